@@ -6,12 +6,14 @@ public class PacketInfo{
     private boolean ack;
     private int packetNo;
     private double timeOfTransmission;
+    private int transmissions;
 
     public PacketInfo(DatagramPacket packet, int packetNo, double timeOfTransmission){
         this.packet = packet;
         ack = false;
         this.packetNo = packetNo;
         this.timeOfTransmission = 0;
+        this.transmissions = 0;
     }
 
     public DatagramPacket getPacket(){
@@ -34,8 +36,14 @@ public class PacketInfo{
         this.ack = ack;
     }
 
+    // Also counts another transmission of the packet
     public void setTimeOfTransmission(double timeOfTransmission){
         this.timeOfTransmission = timeOfTransmission;
+        transmissions++;
+    }
+
+    public int getTransmissions(){
+        return transmissions;
     }
 
 }
\ No newline at end of file
@@ -1,16 +1,30 @@
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.BitSet;
 
 public class Receiver1a {
 
+	// How long in ms to keep answering round-end packets once the file is
+	// complete, in case the final report is lost
+	static final int LINGER_TIME = 2000;
+
 	public static void main(String[] args) throws Exception {
 
 		// Values provided by user
 		int port = Integer.valueOf(args[0]);
 		String fileName = args[1];
 
+		// If "repair" is given, report missing packets to the sender until the
+		// whole file has arrived
+		if (args.length > 2 && args[2].equals("repair")) {
+			receiveWithRepair(port, fileName);
+			return;
+		}
+
 		// Set to false when whole file has been received
 		Boolean stillReceiving = true;
 		// Will save the received file
@@ -43,4 +57,55 @@ public class Receiver1a {
 		output.close();
 		socket.close();
 	}
+
+	static void receiveWithRepair(int port, String fileName) throws Exception {
+
+		// Packets can arrive in any order, so each is written at its own offset
+		RandomAccessFile output = new RandomAccessFile(fileName, "rw");
+		output.setLength(0);
+		DatagramSocket socket = new DatagramSocket(port);
+		DatagramSocket reportSocket = new DatagramSocket();
+		// Which packets have been written so far
+		BitSet received = new BitSet();
+		boolean complete = false;
+		byte buffer[] = new byte[1027];
+
+		System.out.println("Waiting for sender");
+		while (true) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException ste) {
+				// Only happens once complete, when the sender has stopped asking
+				break;
+			}
+			int packetNo = ((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF);
+
+			if (buffer[2] == Sender1a.ROUND_END) {
+				// End of a round: packetNo is the total number of packets. Reply
+				// with the round number and a bitmap of the missing packets
+				byte report[] = new byte[1 + (packetNo + 7) / 8];
+				report[0] = buffer[3];
+				int missing = 0;
+				for (int i = received.nextClearBit(0); i < packetNo; i = received.nextClearBit(i + 1)) {
+					report[1 + i / 8] |= (byte) (1 << (i % 8));
+					missing++;
+				}
+				reportSocket.send(new DatagramPacket(report, report.length, packet.getAddress(), port + 1));
+				if (missing == 0 && !complete) {
+					complete = true;
+					socket.setSoTimeout(LINGER_TIME);
+				}
+			} else if (!received.get(packetNo)) {
+				output.seek((long) packetNo * 1024);
+				output.write(buffer, 3, packet.getLength() - 3);
+				received.set(packetNo);
+			}
+		}
+
+		System.out.println("File saved as " + fileName);
+		output.close();
+		socket.close();
+		reportSocket.close();
+	}
 }
@@ -3,14 +3,28 @@ import java.io.FileOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 
 public class Receiver1b {
 
+	// How long in ms to wait for the sender's FIN once the file is written
+	static final int LINGER_TIME = 2000;
+
 	public static void main(String[] args) throws Exception {
 
 		// Values provided by user
 		int port = Integer.valueOf(args[0]);
 		String fileName = args[1];
+		// Number of stop-and-wait channels the sender is using
+		int channels = 1;
+		if (args.length > 2) {
+			channels = Integer.valueOf(args[2]);
+		}
+		// The channel is sent in one byte
+		if (channels < 1 || channels > 256) {
+			System.err.println("Error: The number of channels must be from 1 to 256");
+			System.exit(-1);
+		}
 
 		// Set to false when whole file has been received
 		Boolean stillReceiving = true;
@@ -25,50 +39,89 @@ public class Receiver1b {
 		DatagramPacket ack;
 		// IP address of the source of the packet, used to send the ack
 		InetAddress ip;
-		// Number of previously received packet, used to compare with most recent
-		// packet. Initially set to 2
-		int receivedPacketNo = 2;
-		// Number of current received packet
+		// Number of the packet expected next on each channel (0 or 1), used to spot
+		// duplicates
+		int expectedPacketNo[] = new int[channels];
+		// Data of packets that arrived ahead of packets on earlier channels
+		byte waitingData[][] = new byte[channels][];
+		boolean waitingEof[] = new boolean[channels];
+		// Channel of the next packet to be written to the file
+		int nextChannel = 0;
+		// Number and channel of current received packet
 		int packetNo;
+		int channel;
 		// Buffer for saving the data in the packet
 		byte buffer[] = new byte[1027];
-		// Buffer for sending the packet number back to the source
-		byte ackData[] = new byte[1];
+		// Buffer for sending the packet number and channel back to the source
+		byte ackData[] = new byte[2];
 		// What the data from the packet will be moved to
 		byte packetArray[];
 
+		// Set to true when the sender sends a FIN. Until then, packets re-sent after
+		// the end of the file still get acked, in case the acks were lost
+		boolean closed = false;
+
 		System.out.println("Waiting for sender");
 		do {
 			// Receive the packet from the socket
 			packet = new DatagramPacket(buffer, buffer.length);
-			socket.receive(packet);
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException ste) {
+				// Only happens after the end of the file, the sender has gone quiet
+				break;
+			}
 			packetArray = packet.getData();
-			// Set the current packet number
+			// A FIN gets a FIN-ACK, the ack with a third byte of FIN
+			if (packet.getLength() == 3 && packetArray[2] == Sender1b.FIN) {
+				byte finAck[] = { 0, 0, Sender1b.FIN };
+				ackSocket.send(new DatagramPacket(finAck, finAck.length, packet.getAddress(), port + 1));
+				closed = true;
+				continue;
+			}
+			// Set the current channel and packet number. The channel byte is unsigned
+			channel = packetArray[0] & 0xFF;
 			packetNo = packetArray[1];
 			// Save the source ip
 			ip = packet.getAddress();
-
-			// If the packet number does not match the previous packet number, then a packet
-			// was not lost and this packet is not a duplicate
-			if (packetNo != receivedPacketNo) {
-				// Write the data in the packet to the output file
-				output.write(packetArray, 3, packet.getLength() - 3);
+			if (channel < 0 || channel >= channels) {
+				continue;
 			}
 
-			// If we received the end-of-file tag, then exit loop
-			if (packetArray[2] == 1) {
-				stillReceiving = false;
+			// If the packet number matches the one expected on its channel, then this
+			// packet is not a duplicate. Hold it until the packets before it on the
+			// other channels have been written
+			if (packetNo == expectedPacketNo[channel]) {
+				waitingData[channel] = new byte[packet.getLength() - 3];
+				System.arraycopy(packetArray, 3, waitingData[channel], 0, packet.getLength() - 3);
+				waitingEof[channel] = packetArray[2] == 1;
+				expectedPacketNo[channel] = 1 - packetNo;
+
+				// Write the data of every packet that is now in order to the output file
+				while (stillReceiving && waitingData[nextChannel] != null) {
+					output.write(waitingData[nextChannel]);
+					// If we wrote the end-of-file packet, then exit loop
+					if (waitingEof[nextChannel]) {
+						stillReceiving = false;
+					}
+					waitingData[nextChannel] = null;
+					nextChannel = (nextChannel + 1) % channels;
+				}
 			}
 
-			// Write the current packet number to the ack buffer
+			// Write the current packet number and channel to the ack buffer
 			ackData[0] = (byte) packetNo;
+			ackData[1] = (byte) channel;
 			// Send the ack packet to the source
-			ack = new DatagramPacket(ackData, 1, ip, port + 1);
+			ack = new DatagramPacket(ackData, 2, ip, port + 1);
 			ackSocket.send(ack);
-			// Update the previous packet number
-			receivedPacketNo = packetNo;
 
-		} while (stillReceiving);
+			// Stop waiting for the FIN if the sender goes quiet
+			if (!stillReceiving) {
+				socket.setSoTimeout(LINGER_TIME);
+			}
+
+		} while (!closed);
 
 		System.out.println("File saved as " + fileName);
 		// Close the sockets and the file output stream
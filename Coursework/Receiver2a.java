@@ -3,16 +3,28 @@ import java.io.FileOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Receiver2a {
 
+	// How long in ms to wait for the sender's FIN once the file is written
+	static final int LINGER_TIME = 2000;
+
 	public static void main(String[] args) throws Exception {
 
 		// Values provided by user
 		int port = Integer.valueOf(args[0]);
 		String fileName = args[1];
+		// Optional number of packets ahead of the expected one that will be held
+		// until the gap before them is filled. 0 means out-of-order packets are dropped
+		int reorderBufferSize = 0;
+		if (args.length > 2) {
+			reorderBufferSize = Integer.valueOf(args[2]);
+		}
 
 		// Set to false when whole file has been received
 		Boolean stillReceiving = true;
@@ -38,13 +50,33 @@ public class Receiver2a {
 		byte ackData[] = new byte[2];
 		// What the data from the packet will be moved to
 		byte packetArray[];
+		// Out-of-order packets waiting to be written, keyed by packet number
+		Map<Integer, byte[]> reorderBuffer = new HashMap<Integer, byte[]>();
+		// Number of the end-of-file packet if it has been buffered, otherwise -1
+		int bufferedEofPacketNo = -1;
+
+		// Set to true when the sender sends a FIN. Until then, packets re-sent after
+		// the end of the file still get acked, in case the acks were lost
+		boolean closed = false;
 
 		System.out.println("Waiting for sender");
 		do {
 			// Receive the packet from the socket
 			packet = new DatagramPacket(buffer, buffer.length);
-			socket.receive(packet);
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException ste) {
+				// Only happens after the end of the file, the sender has gone quiet
+				break;
+			}
 			packetArray = packet.getData();
+			// A FIN gets a FIN-ACK, the ack with a third byte of FIN
+			if (packet.getLength() == 3 && packetArray[2] == Sender2a.FIN) {
+				byte finAck[] = { 0, 0, Sender2a.FIN };
+				ackSocket.send(new DatagramPacket(finAck, finAck.length, packet.getAddress(), port + 1));
+				closed = true;
+				continue;
+			}
 			// Set the current packet number
 			byte[] packetNoArray = { packetArray[0], packetArray[1] };
 			ByteBuffer byteBuffer = ByteBuffer.wrap(packetNoArray);
@@ -60,14 +92,32 @@ public class Receiver2a {
 				System.out.println(packetNo);
 				receivedPacketNo = packetNo;
 				output.write(packetArray, 3, packet.getLength() - 3);
-			} else {
-				packetNo = receivedPacketNo;
-			}
-
-			// If we received the end-of-file tag, then exit loop
-			if (packetArray[2] == 1) {
-				stillReceiving = false;
+				// If we received the end-of-file tag, then exit loop
+				if (packetArray[2] == 1) {
+					stillReceiving = false;
+				}
+				// Write any buffered packets that were waiting on this one
+				while (stillReceiving && reorderBuffer.containsKey(receivedPacketNo + 1)) {
+					receivedPacketNo++;
+					byte[] bufferedData = reorderBuffer.remove(receivedPacketNo);
+					output.write(bufferedData, 0, bufferedData.length);
+					if (receivedPacketNo == bufferedEofPacketNo) {
+						stillReceiving = false;
+					}
+				}
+			} else if (packetNo > receivedPacketNo + 1 && packetNo <= receivedPacketNo + reorderBufferSize) {
+				// Ahead of the expected packet but within the buffer, so keep it
+				if (!reorderBuffer.containsKey(packetNo)) {
+					byte[] bufferedData = new byte[packet.getLength() - 3];
+					System.arraycopy(packetArray, 3, bufferedData, 0, bufferedData.length);
+					reorderBuffer.put(packetNo, bufferedData);
+					if (packetArray[2] == 1) {
+						bufferedEofPacketNo = packetNo;
+					}
+				}
 			}
+			// The ack is cumulative, for the last packet written in order
+			packetNo = receivedPacketNo;
 
 			// Write the current packet number to the ack buffer
 			//ackData = ByteBuffer.allocate(2).putInt(packetNo).array();
@@ -80,11 +130,13 @@ public class Receiver2a {
 			System.out.println(packetNo);
 			ack = new DatagramPacket(ackData, ackData.length, ip, port + 1);
 			ackSocket.send(ack);
-			// Update the previous packet number
 
-		
+			// Stop waiting for the FIN if the sender goes quiet
+			if (!stillReceiving) {
+				socket.setSoTimeout(LINGER_TIME);
+			}
 
-		} while (stillReceiving);
+		} while (!closed);
 
 		System.out.println("File saved as " + fileName);
 		// Close the sockets and the file output stream
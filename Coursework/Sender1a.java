@@ -1,16 +1,28 @@
 import java.io.FileInputStream;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 
 public class Sender1a {
 
+	// End-of-file byte value marking a repair round-end packet
+	static final byte ROUND_END = 2;
+	// Time in ms to wait for a missing packet report before asking again
+	static final int REPORT_TIMEOUT = 500;
+	// Number of unanswered round-end packets before giving up on the receiver
+	static final int MAX_REPORT_ATTEMPTS = 20;
+
 	public static void main(String[] args) throws Exception {
 
 		// Values given by user
 		String remoteHost = args[0];
 		int port = Integer.valueOf(args[1]);
 		String fileName = args[2];
+		// If "repair" is given, lost packets are re-sent in rounds until the
+		// receiver has the whole file
+		boolean repair = args.length > 3 && args[3].equals("repair");
 
 		// The file we will be sending
 		FileInputStream input = new FileInputStream(fileName);
@@ -68,9 +80,86 @@ public class Sender1a {
 
 		} while (stillSending);
 
+		if (repair) {
+			// packetNo is the number of the last packet, so the total is one more
+			if (!repairRounds(socket, ip, port, fileName, (int) packetNo + 1)) {
+				System.out.println("Receiver stopped answering, file may be incomplete");
+				socket.close();
+				input.close();
+				return;
+			}
+		}
+
 		System.out.println("File sent successfully");
 		// Close the socket and the file stream
 		socket.close();
 		input.close();
 	}
+
+	// After the first pass, ask the receiver which packets it is missing and
+	// send only those again, round after round, until nothing is missing.
+	// Returns false if the receiver stops answering.
+	static boolean repairRounds(DatagramSocket socket, InetAddress ip, int port, String fileName,
+			int totalPackets) throws Exception {
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		DatagramSocket reportSocket = new DatagramSocket(port + 1);
+		reportSocket.setSoTimeout(REPORT_TIMEOUT);
+		// The report is the round number followed by one bit per packet, set if
+		// the packet is missing
+		byte report[] = new byte[1 + (totalPackets + 7) / 8];
+
+		try {
+			for (int round = 0;; round++) {
+				// The round-end packet holds the total number of packets in place of
+				// the packet number, and the round number after the end-of-file byte
+				byte roundEnd[] = { (byte) (totalPackets >>> 8), (byte) totalPackets, ROUND_END, (byte) round };
+				DatagramPacket roundEndPacket = new DatagramPacket(roundEnd, roundEnd.length, ip, port);
+
+				boolean gotReport = false;
+				for (int attempt = 0; attempt < MAX_REPORT_ATTEMPTS && !gotReport; attempt++) {
+					socket.send(roundEndPacket);
+					try {
+						// Skip any late reports from earlier rounds
+						do {
+							DatagramPacket reportPacket = new DatagramPacket(report, report.length);
+							reportSocket.receive(reportPacket);
+							gotReport = reportPacket.getLength() == report.length && report[0] == (byte) round;
+						} while (!gotReport);
+					} catch (SocketTimeoutException ste) {
+						// Report or round-end packet was lost, so ask again
+					}
+				}
+				if (!gotReport) {
+					return false;
+				}
+
+				// Send again every packet marked as missing
+				int resent = 0;
+				for (int packetNo = 0; packetNo < totalPackets; packetNo++) {
+					if ((report[1 + packetNo / 8] & (1 << (packetNo % 8))) == 0) {
+						continue;
+					}
+					long offset = (long) packetNo * 1024;
+					int bytesToSend = (int) Math.min(1024, file.length() - offset);
+					byte packetArray[] = new byte[bytesToSend + 3];
+					packetArray[0] = (byte) (packetNo >>> 8);
+					packetArray[1] = (byte) packetNo;
+					packetArray[2] = (byte) (packetNo == totalPackets - 1 ? 1 : 0);
+					file.seek(offset);
+					file.readFully(packetArray, 3, bytesToSend);
+					socket.send(new DatagramPacket(packetArray, packetArray.length, ip, port));
+					resent++;
+					Thread.sleep(10);
+				}
+				System.out.println("Repair round " + round + ": resent " + resent + " packets");
+				if (resent == 0) {
+					return true;
+				}
+			}
+		} finally {
+			reportSocket.close();
+			file.close();
+		}
+	}
 }
@@ -3,9 +3,18 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Sender1b {
 
+	// End-of-file byte value marking a FIN packet, and the third byte of a FIN-ACK
+	static final byte FIN = 2;
+	// Number of times the FIN is sent before giving up on a FIN-ACK
+	static final int MAX_FIN_ATTEMPTS = 10;
+	// Shortest wait in ms before a tail-loss probe
+	static final long MIN_PROBE_TIMEOUT = 10;
+
 	public static void main(String[] args) throws Exception {
 
 		// Values given by user
@@ -18,94 +27,134 @@ public class Sender1b {
 		DatagramSocket socket = new DatagramSocket();
 		DatagramSocket ackSocket = new DatagramSocket(port + 1);
 		InetAddress ip = InetAddress.getByName(remoteHost);
+		// Number of stop-and-wait channels sharing the socket. Packet n goes on
+		// channel n % channels, and a channel only gets a new packet once every
+		// earlier packet has been acked
+		int channels = 1;
+		if (args.length > 4) {
+			channels = Integer.valueOf(args[4]);
+		}
+		// The channel is sent in one byte
+		if (channels < 1 || channels > 256) {
+			System.err.println("Error: The number of channels must be from 1 to 256");
+			System.exit(-1);
+		}
+		// Packets that have been sent but not yet acked, in order, at most one per
+		// channel
+		List<PacketInfo> inFlight = new ArrayList<PacketInfo>();
 		// Set to false when all packets have been sent
 		Boolean stillSending = true;
-		// Set to true when ack has been received
-		Boolean ack = false;
-		int finalPacket = 0;
-		// long is used to store the packet number, instead of byte, so it can be right
-		// shifted to split into the two bytes in the packet header
+		// Smoothed round trip time in ms, -1 until the first ack arrives. Used to
+		// re-send the last packet after about 2 round trips instead of a full timeout
+		double rtt = -1;
+		// Number of the next packet read from the file. Its channel number and
+		// alternating 0/1 number are worked out from this
 		int packetNo = 0;
 		// The number of bytes of data being sent in the packet. Normally 1024, but can
 		// be smaller in the last packer
 		int bytesToSend;
+		int timeout = Integer.valueOf(args[3]);
 
 		System.out.println("Sending file");
 		do {
-			bytesToSend = 1024;
-
-			// If there are less than 1024 bytes of data left in the file, then set the
-			// number of bytes in the packet accordingly
-			if (input.available() < 1024) {
-				bytesToSend = input.available();
-			}
-
-			// The packet will contain the number of bytes in the payload + 2 bytes for the
-			// packet no and 1 byte for the end-of-file tag. The first byte will always be 0
-			// as the packet number can only be either 1 or 0
-			byte packetArray[] = new byte[bytesToSend + 3];
-			packetArray[2] = (byte) 0;
-
-			// For the final packet, change stillSending to false and set the end-of-file
-			// byte to 1
-			if (input.available() <= 1024) {
-				stillSending = false;
-				packetArray[2] = (byte) 1;
+			// Forget packets that have been acked, oldest first
+			while (inFlight.size() > 0 && inFlight.get(0).getAck()) {
+				inFlight.remove(0);
 			}
 
-			// Store the packet number in the first two bytes of the packet
-			packetArray[0] = 0;
-			packetArray[1] = (byte) packetNo;
+			// Give every free channel a new packet
+			while (stillSending && inFlight.size() < channels) {
+				bytesToSend = 1024;
 
-			// Read the file from the fourth byte, as the first 3 are reserved for the
-			// packet number and the end-of-file tag
-			input.read(packetArray, 3, bytesToSend);
+				// If there are less than 1024 bytes of data left in the file, then set the
+				// number of bytes in the packet accordingly
+				if (input.available() < 1024) {
+					bytesToSend = input.available();
+				}
 
-			// Create the packet
-			DatagramPacket packet = new DatagramPacket(packetArray, packetArray.length, ip, port);
-			ack = false;
+				// The packet will contain the number of bytes in the payload + 1 byte for the
+				// channel, 1 byte for the packet no (either 0 or 1) and 1 byte for the
+				// end-of-file tag
+				byte packetArray[] = new byte[bytesToSend + 3];
+				packetArray[2] = (byte) 0;
+
+				// For the final packet, change stillSending to false and set the end-of-file
+				// byte to 1
+				if (input.available() <= 1024) {
+					stillSending = false;
+					packetArray[2] = (byte) 1;
+				}
 
-			// Wait until ack is received
-			while (!ack) {
+				// Store the channel and packet number in the first two bytes of the packet
+				packetArray[0] = (byte) (packetNo % channels);
+				packetArray[1] = (byte) ((packetNo / channels) % 2);
 
-				// Send the packet
-				socket.send(packet);
-				try {
+				// Read the file from the fourth byte, as the first 3 are reserved for the
+				// packet number and the end-of-file tag
+				input.read(packetArray, 3, bytesToSend);
 
-					// Set timeout for ack packet and wait
-					byte[] bufferAck = new byte[1];
-					DatagramPacket packetAck = new DatagramPacket(bufferAck, bufferAck.length);
-					ackSocket.setSoTimeout(Integer.valueOf(args[3]));
-					ackSocket.receive(packetAck);
-					byte[] ackData = packetAck.getData();
+				DatagramPacket packet = new DatagramPacket(packetArray, packetArray.length, ip, port);
+				inFlight.add(new PacketInfo(packet, packetNo, 0));
+				packetNo++;
+			}
 
-					// If the packet number in the ack packet matches the most recently sent packet
-					// number, then exit loop
-					if (ackData[0] == packetNo) {
-						ack = true;
+			// Send every unacked packet that is new or has timed out. Once the whole
+			// file has been read, the last packet is first re-sent as a tail-loss probe.
+			// Note when the next unacked packet will be due to be sent again
+			long nextResend = Long.MAX_VALUE;
+			for (PacketInfo info : inFlight) {
+				long wait = timeout;
+				if (!stillSending && rtt >= 0 && info.getTransmissions() == 1
+						&& info == inFlight.get(inFlight.size() - 1)) {
+					wait = Math.min(timeout, Math.max(MIN_PROBE_TIMEOUT, (long) (2 * rtt)));
+				}
+				if (!info.getAck()) {
+					if (info.getTimeOfTransmission() + wait <= System.currentTimeMillis()) {
+						socket.send(info.getPacket());
+						info.setTimeOfTransmission(System.currentTimeMillis());
 					}
-
-				} catch (SocketTimeoutException ste) {
-					// Go here if ack is not received in within the timeout time
-					// System.out.println("ACK Timeout: Resending");
+					nextResend = Math.min(nextResend, (long) info.getTimeOfTransmission() + wait);
 				}
+			}
 
-				// If the final packet has been sent 10 times, receiving no ack, then exit the
-				// loop. Ack was presumably lost from receiver.
-				if (finalPacket > 10) {
-					ack = true;
+			try {
+
+				// Wait for an ack until the next packet is due to be sent again. A
+				// timeout of 0 would wait forever, so wait at least 1 ms
+				byte[] bufferAck = new byte[2];
+				DatagramPacket packetAck = new DatagramPacket(bufferAck, bufferAck.length);
+				long untilResend = Math.min(timeout, nextResend - System.currentTimeMillis());
+				ackSocket.setSoTimeout((int) Math.max(1, untilResend));
+				ackSocket.receive(packetAck);
+				byte[] ackData = packetAck.getData();
+
+				// The ack holds the packet number and then the channel, which is
+				// unsigned. Mark the packet in flight on that channel as acked if the
+				// numbers match
+				for (PacketInfo info : inFlight) {
+					if (info.getPacketNo() % channels == (ackData[1] & 0xFF)
+							&& (info.getPacketNo() / channels) % 2 == ackData[0]) {
+						// Only a packet sent once gives a reliable round trip time
+						if (!info.getAck() && info.getTransmissions() == 1) {
+							double sample = System.currentTimeMillis() - info.getTimeOfTransmission();
+							rtt = rtt < 0 ? sample : rtt + (sample - rtt) / 8;
+						}
+						info.setAck(true);
+					}
 				}
 
+			} catch (SocketTimeoutException ste) {
+				// Go here if ack is not received in within the timeout time
+				// System.out.println("ACK Timeout: Resending");
 			}
 
-			// Alternate the packet number
-			if (packetNo == 0) {
-				packetNo = 1;
-			} else {
-				packetNo = 0;
-			}
+		} while (stillSending || inFlight.size() > 0 && !allAcked(inFlight));
 
-		} while (stillSending);
+		// Everything is acked, so tell the receiver it can stop. The receiver keeps
+		// acking re-sent packets until it gets this, so a lost final ack can't stall us
+		if (!sendFin(socket, ackSocket, ip, port, timeout)) {
+			System.out.println("No FIN-ACK received, receiver will time out");
+		}
 
 		System.out.println("File sent successfully");
 
@@ -115,4 +164,39 @@ public class Sender1b {
 		input.close();
 	}
 
+	// Send a FIN until the receiver answers with a FIN-ACK. Returns false if it
+	// never does
+	static boolean sendFin(DatagramSocket socket, DatagramSocket ackSocket, InetAddress ip, int port,
+			int timeout) throws Exception {
+		byte fin[] = { 0, 0, FIN };
+		ackSocket.setSoTimeout(timeout);
+		for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS; attempt++) {
+			socket.send(new DatagramPacket(fin, fin.length, ip, port));
+			try {
+				// Skip any late acks for data packets
+				while (true) {
+					byte bufferAck[] = new byte[3];
+					DatagramPacket packetAck = new DatagramPacket(bufferAck, bufferAck.length);
+					ackSocket.receive(packetAck);
+					if (packetAck.getLength() == 3 && bufferAck[2] == FIN) {
+						return true;
+					}
+				}
+			} catch (SocketTimeoutException ste) {
+				// FIN or FIN-ACK lost, so send again
+			}
+		}
+		return false;
+	}
+
+	// True if every packet in the list has been acked
+	static boolean allAcked(List<PacketInfo> packets) {
+		for (PacketInfo info : packets) {
+			if (!info.getAck()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 }
@@ -16,6 +16,14 @@ public class Sender2a {
 	static int timeout;
 	static boolean receiveAck = false;
 	static int windowSize;
+	// Set by the ack thread when the receiver answers the FIN
+	static volatile boolean finAcked = false;
+	// End-of-file byte value marking a FIN packet, and the third byte of a FIN-ACK
+	static final byte FIN = 2;
+	// Number of times the FIN is sent before giving up on a FIN-ACK
+	static final int MAX_FIN_ATTEMPTS = 10;
+	// Shortest wait in ms before a tail-loss probe
+	static final long MIN_PROBE_TIMEOUT = 10;
 
 	public static void main(String[] args) throws Exception {
 
@@ -42,7 +50,12 @@ public class Sender2a {
 		// The number of bytes of data being sent in the packet. Normally 1024, but can
 		// be smaller in the last packer
 		int bytesToSend;
+		// Smoothed round trip time in ms, -1 until the first ack arrives. Used to
+		// re-send the last packet after about 2 round trips instead of a full timeout
+		double rtt = -1;
 
+		// The ack thread runs until receiveAck is cleared, so set it before starting
+		receiveAck = true;
 		ACKReceiveThread ackReceiveThread = new ACKReceiveThread(port);
 		Thread ackThread = new Thread(ackReceiveThread);
 		ackThread.start();
@@ -51,15 +64,18 @@ public class Sender2a {
 		do {
 			bytesToSend = 1024;
 
-			try{
-				if (packetsInfo.get(0).getPacketNo() <= ackPacket) {
-					packetsInfo.remove(0);
+			// Remove acked packets, timing the round trip of the one the ack was for if
+			// it was only sent once
+			int lastAcked = ackPacket;
+			while (packetsInfo.size() > 0 && packetsInfo.get(0).getPacketNo() <= lastAcked) {
+				PacketInfo acked = packetsInfo.remove(0);
+				if (acked.getPacketNo() == lastAcked && acked.getTransmissions() == 1) {
+					double sample = System.currentTimeMillis() - acked.getTimeOfTransmission();
+					rtt = rtt < 0 ? sample : rtt + (sample - rtt) / 8;
 				}
-			} catch(IndexOutOfBoundsException e){
-
 			}
 
-			while (packetsInfo.size() < windowSize) {
+			while (stillSending && packetsInfo.size() < windowSize) {
 
 
 				// If there are less than 1024 bytes of data left in the file, then set the
@@ -96,7 +112,7 @@ public class Sender2a {
 				System.out.println("PACKET " + packetNo + " SENT");
 				packetNo++;
 				socket.send(packet);
-				receiveAck = true;
+				packetsInfo.get(packetsInfo.size() - 1).setTimeOfTransmission(System.currentTimeMillis());
 
 				if(!stillSending){
 					break;
@@ -104,21 +120,49 @@ public class Sender2a {
 
 			}
 			PacketInfo currentPacket;
+			// Only the oldest unacked packet is re-sent on a timeout. The receiver may be
+			// holding the packets after it, and its cumulative ack shows the next gap
 			for(int i = 0; i < packetsInfo.size(); i++){
 				currentPacket = packetsInfo.get(i);
-				if (currentPacket.getPacketNo() > ackPacket && currentPacket.getTimeOfTransmission() + timeout < System.currentTimeMillis()){
+				if (currentPacket.getPacketNo() > ackPacket) {
+					if (currentPacket.getTimeOfTransmission() + timeout < System.currentTimeMillis()) {
 						System.out.println("Resending packet " + currentPacket.getPacketNo());
 						socket.send(currentPacket.getPacket());
 						//System.out.println("RESENDING PACKET " + currentPacket.getPacketNo());
 						currentPacket.setTimeOfTransmission(System.currentTimeMillis());
-					
+					}
+					break;
 				}
 			}
-			if(packetsInfo.size() == 0){
-				receiveAck = false;
+
+			// Tail-loss probe: once the whole file has been read, re-send the last packet
+			// on its own if it goes about 2 round trips without an ack
+			if (!stillSending && rtt >= 0 && packetsInfo.size() > 0) {
+				currentPacket = packetsInfo.get(packetsInfo.size() - 1);
+				long probeTimeout = Math.min(timeout, Math.max(MIN_PROBE_TIMEOUT, (long) (2 * rtt)));
+				if (currentPacket.getPacketNo() > ackPacket && currentPacket.getTransmissions() == 1
+						&& currentPacket.getTimeOfTransmission() + probeTimeout < System.currentTimeMillis()) {
+					System.out.println("Probing with packet " + currentPacket.getPacketNo());
+					socket.send(currentPacket.getPacket());
+					currentPacket.setTimeOfTransmission(System.currentTimeMillis());
+				}
 			}
 
-		} while (stillSending);
+		} while (stillSending || packetsInfo.size() > 0);
+
+		// Everything is acked, so tell the receiver it can stop. The receiver keeps
+		// acking re-sent packets until it gets this, so a lost final ack can't stall us
+		byte fin[] = { 0, 0, FIN };
+		for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS && !finAcked; attempt++) {
+			socket.send(new DatagramPacket(fin, fin.length, ip, port));
+			long resendTime = System.currentTimeMillis() + timeout;
+			while (!finAcked && System.currentTimeMillis() < resendTime) {
+				Thread.sleep(1);
+			}
+		}
+		if (!finAcked) {
+			System.out.println("No FIN-ACK received, receiver will time out");
+		}
 
 		System.out.println("File sent successfully");
 
@@ -132,26 +176,30 @@ public class Sender2a {
 	private static class ACKReceiveThread implements Runnable {
 
 		DatagramSocket ackSocket;
-		int finalPacket = 0;
 
 		public ACKReceiveThread(int port) throws SocketException {
 			this.ackSocket = new DatagramSocket(port + 1);
 		}
 
 		public void run() {
-			// Wait until an ack is received
-			boolean ack = false;
+			// Keep reading acks until the sender is finished
 			while (receiveAck) {
 
 				try {
 
 					// Set timeout for ack packet and wait
-					byte[] bufferAck = new byte[2];
+					byte[] bufferAck = new byte[3];
 					DatagramPacket packetAck = new DatagramPacket(bufferAck, bufferAck.length);
 					ackSocket.setSoTimeout(5);
 					ackSocket.receive(packetAck);
 					int ackPacketNum;
 					byte[] ackData = packetAck.getData();
+
+					// The answer to the FIN
+					if (packetAck.getLength() == 3 && ackData[2] == FIN) {
+						finAcked = true;
+						continue;
+					}
 					//System.out.println(ackData.length);
 
 
@@ -173,14 +221,6 @@ public class Sender2a {
 					e.printStackTrace();
 				}
 
-
-
-				// If the final packet has been sent 10 times, receiving no ack, then exit the
-				// loop. Ack was presumably lost from receiver.
-				if (finalPacket > 10) {
-					ack = true;
-				}
-
 			}
 
 			ackSocket.close();
@@ -1,17 +1,19 @@
 #!/bin/bash
 
 if [ $# -lt 1 ]; then
-	echo "Usage: ./receiver.sh receiver_number [parameters]"
+	echo "Usage: ./receiver.sh receiver_number|auto [parameters]"
 	exit
 fi
 
-if [ $1 -lt 1 -o $1 -gt 4 ]; then
-	echo "Error: receiver_number must be between 1 and 4!"
+if [ "$1" = "auto" ]; then
+	CLASS=AutoReceiver
+elif [ $1 -lt 1 -o $1 -gt 4 ]; then
+	echo "Error: receiver_number must be between 1 and 4, or auto!"
 	exit
+else
+	CLASS=Receiver$1
 fi
-
-NUM=$1
 shift
 
 export CLASSPATH=$CLASSPATH:bin/
-java Receiver$NUM $@
+java $CLASS $@
@@ -1,17 +1,19 @@
 #!/bin/bash
 
 if [ $# -lt 1 ]; then
-	echo "Usage: ./sender.sh sender_number [parameters]"
+	echo "Usage: ./sender.sh sender_number|auto [parameters]"
 	exit
 fi
 
-if [ $1 -lt 1 -o $1 -gt 4 ]; then
-	echo "Error: sender_number must be between 1 and 4!"
+if [ "$1" = "auto" ]; then
+	CLASS=AutoSender
+elif [ $1 -lt 1 -o $1 -gt 4 ]; then
+	echo "Error: sender_number must be between 1 and 4, or auto!"
 	exit
+else
+	CLASS=Sender$1
 fi
-
-NUM=$1
 shift
 
 export CLASSPATH=$CLASSPATH:bin/
-java Sender$NUM $@
+java $CLASS $@
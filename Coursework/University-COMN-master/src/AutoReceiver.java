@@ -0,0 +1,310 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * The AutoReceiver class receives a file sent by {@link AutoSender}, which
+ * chooses the protocol and window for each segment of the file from probes of
+ * the path.
+ * <p>
+ * Probes and select packets (see {@link AutoSender} and {@link PathProbe}) arrive
+ * on the port + 2 and are answered to the port + 3. When a select packet arrives
+ * for a new segment, the matching receiver ({@link Receiver2}, {@link Receiver3}
+ * or {@link Receiver4}) is started in its own thread on the port, writing the
+ * segment into the file at its offset, and the select packet is acked. The
+ * probes and select packets keep being answered while the segment arrives, in
+ * case the ack was lost.
+ *
+ * @author s0840449
+ *
+ */
+public class AutoReceiver {
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* How often (in ms) we check whether the final segment has arrived. */
+	private static final int POLL_LENGTH = 100;
+
+	/* The file name to write to. */
+	private String fileName;
+
+	/* The port number to listen for data on. */
+	private int portNumber;
+
+	/* The socket that probes and select packets arrive on. */
+	private DatagramSocket controlSocket;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param fileName		The output file name to write to.
+	 * @param portNumber	The port number to wait for data on.
+	 */
+	public AutoReceiver(String fileName, int portNumber) {
+		this.fileName = fileName;
+		this.portNumber = portNumber;
+	}
+
+	/**
+	 * The SegmentThread class receives one segment of the file, with the
+	 * protocol and window chosen by the sender.
+	 */
+	private class SegmentThread extends Thread {
+
+		private int protocol;
+		private int window;
+		private long offset;
+
+		private boolean successful;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param protocol		The protocol number, 2, 3 or 4.
+		 * @param window		The window size or number of channels.
+		 * @param offset		Where the segment starts in the file.
+		 */
+		public SegmentThread(int protocol, int window, long offset) {
+			this.protocol = protocol;
+			this.window = window;
+			this.offset = offset;
+			this.successful = false;
+		}
+
+		/**
+		 * The main method for the thread. Runs the receiver for the segment.
+		 */
+		public void run() {
+
+			if (protocol == 2) {
+				successful = new Receiver2(fileName, portNumber, window).receive(offset);
+			} else if (protocol == 3) {
+				successful = new Receiver3(fileName, portNumber, window).receive(offset);
+			} else if (protocol == 4) {
+				successful = new Receiver4(fileName, portNumber, window).receive(offset);
+			} else {
+				System.err.println("Error: Unknown protocol " + protocol + " chosen by the sender.");
+			}
+
+		}
+
+		/**
+		 * Returns whether the segment was received.
+		 *
+		 * @return		True once the segment has been received and written.
+		 */
+		public boolean isSuccessful() {
+			return successful;
+		}
+
+	}
+
+	/**
+	 * Receives data from the set port and writes the received data to a file,
+	 * using whichever protocol the sender chooses for each segment.
+	 *
+	 * @return		True if data is correctly received and the output file
+	 * 				written, False otherwise.
+	 */
+	public boolean receive() {
+
+		/* The thread receiving the current segment. */
+		SegmentThread segmentThread = null;
+
+		try {
+
+			/* Segments are written into the file at their offsets, so empty
+			 * it first. */
+			RandomAccessFile writer = new RandomAccessFile(new File(this.fileName), "rw");
+			writer.setLength(0);
+			writer.close();
+
+			controlSocket = new DatagramSocket(portNumber + 2);
+
+			/* The segment being received, and whether it is the last. */
+			int currentSegment = -1;
+			boolean lastSegment = false;
+
+			/* The number and arrival time (in ns) of the last probe, used to time
+			 * the gap between the probes of a pair. */
+			int lastProbeNum = -1;
+			long lastProbeTime = 0;
+
+			while (true) {
+
+				if (lastSegment) {
+
+					if (!segmentThread.isAlive()) {
+						break;
+					}
+
+					controlSocket.setSoTimeout(POLL_LENGTH);
+
+				}
+
+				byte[] receivedDataBuffer = new byte[PathProbe.PACKET_SIZE];
+				DatagramPacket receivedPacket = new DatagramPacket(receivedDataBuffer,
+						receivedDataBuffer.length);
+
+				try {
+					controlSocket.receive(receivedPacket);
+				} catch (SocketTimeoutException ste) {
+					continue;
+				}
+
+				long arrivalTime = System.nanoTime();
+
+				if (receivedPacket.getLength() < 3) {
+					continue;
+				}
+
+				int packetNum = ((0x000000FF & receivedDataBuffer[0]) << 8) | (0x000000FF & receivedDataBuffer[1]);
+				InetAddress ipAddress = receivedPacket.getAddress();
+
+				if (receivedDataBuffer[2] == AutoSender.PROBE) {
+
+					/* Time the gap if this is the second probe of a pair. */
+					int gap = -1;
+					if (packetNum % 2 == 1 && packetNum - 1 == lastProbeNum) {
+						gap = (int) ((arrivalTime - lastProbeTime) / 1000);
+					}
+
+					lastProbeNum = packetNum;
+					lastProbeTime = arrivalTime;
+
+					ByteBuffer echoBuffer = ByteBuffer.allocate(7);
+					echoBuffer.put(receivedDataBuffer, 0, 3);
+					echoBuffer.putInt(gap);
+
+					controlSocket.send(new DatagramPacket(echoBuffer.array(), echoBuffer.capacity(),
+							ipAddress, portNumber + 3));
+
+				} else if (receivedDataBuffer[2] == AutoSender.SELECT && receivedPacket.getLength() == 25) {
+
+					if (packetNum == currentSegment + 1) {
+
+						/* The sender has finished the previous segment, but if its FIN
+						 * was lost the receiver may not have noticed yet. */
+						if (segmentThread != null) {
+
+							segmentThread.join();
+
+							if (!segmentThread.isSuccessful()) {
+								return false;
+							}
+
+						}
+
+						ByteBuffer selectBuffer = ByteBuffer.wrap(receivedDataBuffer, 3, 22);
+						int protocol = selectBuffer.get();
+						int window = 0x0000FFFF & selectBuffer.getShort();
+						long offset = selectBuffer.getLong();
+						long length = selectBuffer.getLong();
+						lastSegment = selectBuffer.get() == 1;
+
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Segment " + packetNum + " of " + length + " bytes at " + offset +
+									" uses protocol " + protocol + " with a window of " + window + ".");
+						}
+
+						segmentThread = new SegmentThread(protocol, window, offset);
+						segmentThread.start();
+
+						currentSegment = packetNum;
+
+					}
+
+					/* Ack both new and repeated select packets, as the ack may have been lost. */
+					if (packetNum <= currentSegment) {
+
+						byte[] ackBuffer = { receivedDataBuffer[0], receivedDataBuffer[1], AutoSender.SELECT };
+						controlSocket.send(new DatagramPacket(ackBuffer, ackBuffer.length,
+								ipAddress, portNumber + 3));
+
+					}
+
+				}
+
+			}
+
+		} catch (SocketException se) {
+
+			System.err.println("Error: Unable to open a datagram socket:");
+			System.err.println(se.getMessage());
+			return false;
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		} catch (InterruptedException ie) {
+
+			System.err.println("Error: Interrupted while waiting for a segment.");
+			return false;
+
+		} finally {
+
+			if (controlSocket != null) {
+				controlSocket.close();
+			}
+
+		}
+
+		return segmentThread.isSuccessful();
+
+	}
+
+	/**
+	 * The main method for running the AutoReceiver class. There are two
+	 * compulsory arguments - the port number to receive on and the name of
+	 * the file to write.
+	 *
+	 * @param args		The program arguments: the port number and the name
+	 * 					of the file that is to be written.
+	 */
+	public static void main(String[] args) {
+
+		int portNumber;
+		String fileName = null;
+		boolean successful = false;
+
+		if (args.length != 2) {
+			System.err.println("Usage: java AutoReceiver port filename");
+			System.exit(-1);
+		}
+
+		try {
+			portNumber = Integer.parseInt(args[0]);
+			fileName = args[1];
+
+			/* Attempt to receive data and write it to the given file. */
+			AutoReceiver receiver = new AutoReceiver(fileName, portNumber);
+			successful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number to an integer.");
+			System.exit(-1);
+		}
+
+		if (successful) {
+			System.out.println("Success! A file has been received and written to " + fileName);
+		} else {
+			System.err.println("File was not received successfully. Please try again.");
+		}
+
+	}
+
+}
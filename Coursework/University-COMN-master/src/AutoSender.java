@@ -0,0 +1,356 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * The AutoSender class sends a file using whichever of the reliable protocols
+ * should perform best on the path to the receiver, so that the protocol and
+ * window size don't have to be picked by hand.
+ * <p>
+ * Before sending, the path is probed (see {@link PathProbe}) for its round trip
+ * time, loss rate and bandwidth. The window is twice the number of packets the
+ * path holds (the bandwidth-delay product), leaving room for queueing, and the
+ * protocol is:
+ * <ul>
+ * <li>selective repeat ({@link Sender4}) if the path loses more than
+ * <a href="#MAX_LOSS">MAX_LOSS</a> of its packets. Each loss holds up the window
+ * until the retransmission timeout, so the window is made big enough to cover the
+ * timeout as well as the round trip.
+ * <li>stop-and-wait over one channel per packet in the window ({@link Sender2}),
+ * if the window is no more than <a href="#MAX_CHANNELS">MAX_CHANNELS</a>.
+ * <li>go-back-N ({@link Sender3}) if the round trip is well inside its
+ * retransmission timeout, as it asks the least of the receiver.
+ * <li>selective repeat otherwise.
+ * </ul>
+ * The naive protocol is never chosen, as it does not deliver the file reliably.
+ * <p>
+ * The file is sent in segments of <a href="#SEGMENT_SIZE">SEGMENT_SIZE</a> bytes,
+ * and the path is probed again before each one, so if conditions change part way
+ * through we switch protocol or window for the rest of the file.
+ * <p>
+ * Before each segment, the choice is sent to the {@link AutoReceiver} in a select
+ * packet, re-sent until it is acked:
+ * <ul>
+ * <li>The first two bytes are the segment number.
+ * <li>The next byte is <a href="#SELECT">SELECT</a>.
+ * <li>The next byte is the protocol: 2, 3 or 4, as in Sender2 to Sender4.
+ * <li>The next two bytes are the window size or number of channels.
+ * <li>The next eight bytes are the offset of the segment in the file, and the
+ * eight after that its length.
+ * <li>The last byte is 1 for the final segment, 0 otherwise.
+ * </ul>
+ * The ack packet is the first three bytes of the select packet.
+ * <p>
+ * Probes and select packets go to the port + 2, and their echoes and acks come
+ * back on the port + 3, so they never mix with the chosen protocol's own data
+ * and acks on the port and port + 1.
+ *
+ * @author s0840449
+ *
+ */
+public class AutoSender {
+
+	/** The packet type byte of a probe packet. */
+	public static final byte PROBE = 4;
+
+	/** The packet type byte of a select packet. */
+	public static final byte SELECT = 5;
+
+	/** The number of bytes sent between probes of the path. Small enough that a
+	 * segment never needs more packet numbers than the protocols have. */
+	public static final long SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* How long (in ms) to wait for a select packet to be acked, and how many
+	 * times to try. Long enough to outlast the receiver waiting for the previous
+	 * segment's FIN. */
+	private static final int SELECT_TIMEOUT_LENGTH = 500;
+	private static final int MAX_SELECT_ATTEMPTS = 20;
+
+	/* How many rounds of probes to send before giving up on the receiver. */
+	private static final int MAX_PROBE_ATTEMPTS = 10;
+
+	/* The largest window that stop-and-wait is used for. */
+	private static final int MAX_CHANNELS = 8;
+
+	/* The window used when the bandwidth could not be measured, and the
+	 * largest window we ever use. */
+	private static final int DEFAULT_WINDOW = 64;
+	private static final int MAX_WINDOW = 1024;
+
+	/* The highest loss rate for which we use anything but selective repeat. */
+	private static final double MAX_LOSS = 0.01;
+
+	/* The host to send to and the port number the data goes to. */
+	private String host;
+	private int portNumber;
+
+	/* The socket that probes and select packets are sent from. */
+	private DatagramSocket controlSocket;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The host to send the data to.
+	 * @param portNumber	The port number to send the data to.
+	 */
+	public AutoSender(String host, int portNumber) {
+		this.host = host;
+		this.portNumber = portNumber;
+	}
+
+	/**
+	 * Attempt to send the data contained in a file, choosing the protocol and
+	 * window from probes of the path.
+	 *
+	 * @param dataFile		The file to get the data from.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 * 			A return value of True does <b>not</b> guarantee that the
+	 * 			data made it successfully to the receiver, only that an
+	 * 			ack was received for every packet sent.
+	 */
+	public boolean send(File dataFile) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		try {
+
+			InetAddress ipAddress = InetAddress.getByName(host);
+
+			controlSocket = new DatagramSocket(portNumber + 3);
+			PathProbe probe = new PathProbe(controlSocket, ipAddress, portNumber + 2);
+
+			long dataFileLength = dataFile.length();
+			long numSegments = Math.max(1, (dataFileLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+
+			/* The protocol used for the previous segment. */
+			int protocol = 0;
+
+			/* Used to monitor throughput for the coursework question. */
+			long before = System.currentTimeMillis();
+
+			for (int segment = 0; segment < numSegments; segment++) {
+
+				/* The receiver may not be listening yet for the first segment. */
+				int probeAttempts = 0;
+				while (!probe.measure()) {
+					if (++probeAttempts == MAX_PROBE_ATTEMPTS) {
+						System.err.println("Error: The receiver did not answer any probes.");
+						return false;
+					}
+				}
+
+				int window = chooseWindow(probe);
+				int newProtocol = chooseProtocol(probe, window);
+
+				if (newProtocol != protocol) {
+					System.out.println("Path has RTT " + probe.getRtt() + " ms, loss rate " + probe.getLossRate() +
+							", bandwidth " + probe.getBandwidth() / 1024.0 + " kB/s.");
+					System.out.println((protocol == 0 ? "Using" : "Switching to") + " protocol " + newProtocol +
+							" with a window of " + window + ".");
+				}
+				protocol = newProtocol;
+
+				long offset = segment * SEGMENT_SIZE;
+				long length = Math.min(SEGMENT_SIZE, dataFileLength - offset);
+				boolean lastSegment = segment == numSegments - 1;
+
+				if (!sendSelect(ipAddress, segment, protocol, window, offset, length, lastSegment)) {
+					System.err.println("Error: The receiver did not ack segment " + segment + ".");
+					return false;
+				}
+
+				boolean sent;
+				if (protocol == 2) {
+					sent = new Sender2(host, portNumber, window).send(dataFile, offset, length);
+				} else if (protocol == 3) {
+					sent = new Sender3(host, portNumber, window).send(dataFile, offset, length);
+				} else {
+					sent = new Sender4(host, portNumber, window).send(dataFile, offset, length);
+				}
+
+				if (!sent) {
+					return false;
+				}
+
+			}
+
+			/* Calculate the throughput over the whole file. */
+			double timeTaken = (System.currentTimeMillis() - before) / 1000.0;
+			System.out.println("Total time taken: " + timeTaken);
+			System.out.println("Total throughput: " + (dataFileLength / 1024.0 / timeTaken) + " kB/s");
+
+		} catch (SocketException se) {
+			System.err.println("Error: Socket exception:");
+			System.err.println(se.getMessage());
+			return false;
+		} catch (UnknownHostException uhe) {
+			System.err.println("Error: Host \"" + host + "\" was not found.");
+			return false;
+		} catch (IOException e) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(e.getMessage());
+			return false;
+		} finally {
+			if (controlSocket != null) {
+				controlSocket.close();
+			}
+		}
+
+		return true;
+
+	}
+
+	/* Returns a window of twice the bandwidth-delay product, in packets, taking
+	 * the delay on a lossy path to include the retransmission timeout. */
+	private int chooseWindow(PathProbe probe) {
+
+		if (probe.getBandwidth() < 0) {
+			return DEFAULT_WINDOW;
+		}
+
+		double delay = probe.getRtt();
+		if (probe.getLossRate() > MAX_LOSS) {
+			delay += Sender4.TIMEOUT_LENGTH;
+		}
+
+		double pathPackets = probe.getBandwidth() * delay / 1000 / PathProbe.PACKET_SIZE;
+		int window = (int) Math.ceil(2 * pathPackets);
+
+		return Math.max(1, Math.min(MAX_WINDOW, window));
+
+	}
+
+	/* Returns the number of the protocol expected to perform best. */
+	private int chooseProtocol(PathProbe probe, int window) {
+
+		if (probe.getLossRate() > MAX_LOSS) {
+			return 4;
+		}
+
+		if (window <= MAX_CHANNELS) {
+			return 2;
+		}
+
+		if (probe.getRtt() <= Sender3.TIMEOUT_LENGTH / 2) {
+			return 3;
+		}
+
+		return 4;
+
+	}
+
+	/* Sends a select packet until it is acked, and returns whether it was. */
+	private boolean sendSelect(InetAddress ipAddress, int segment, int protocol, int window,
+			long offset, long length, boolean lastSegment) throws IOException {
+
+		ByteBuffer selectBuffer = ByteBuffer.allocate(25);
+		selectBuffer.putShort((short) segment);
+		selectBuffer.put(SELECT);
+		selectBuffer.put((byte) protocol);
+		selectBuffer.putShort((short) window);
+		selectBuffer.putLong(offset);
+		selectBuffer.putLong(length);
+		selectBuffer.put((byte) (lastSegment ? 1 : 0));
+
+		DatagramPacket selectPacket = new DatagramPacket(selectBuffer.array(), selectBuffer.capacity(),
+				ipAddress, portNumber + 2);
+
+		for (int attempt = 0; attempt < MAX_SELECT_ATTEMPTS; attempt++) {
+
+			controlSocket.send(selectPacket);
+
+			if (DEBUG_MODE) {
+				System.out.println("DEBUG: Sent select packet for segment " + segment + ".");
+			}
+
+			long deadline = System.currentTimeMillis() + SELECT_TIMEOUT_LENGTH;
+
+			/* Late probe echoes may arrive first, so keep listening until the
+			 * timeout is up. */
+			while (System.currentTimeMillis() < deadline) {
+
+				byte[] ackBuffer = new byte[3];
+				DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+
+				try {
+					controlSocket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+					controlSocket.receive(ackPacket);
+				} catch (SocketTimeoutException ste) {
+					break;
+				}
+
+				int ackedSegment = ((0x000000FF & ackBuffer[0]) << 8) | (0x000000FF & ackBuffer[1]);
+				if (ackPacket.getLength() == 3 && ackBuffer[2] == SELECT && ackedSegment == (segment & 0xFFFF)) {
+					return true;
+				}
+
+			}
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * The main method for running the AutoSender class. There are three
+	 * compulsory arguments - the host name, the port number, and the name
+	 * of the file to send.
+	 *
+	 * @param args		The program arguments: the host name, the port number,
+	 * 					and the name of the file to send.
+	 */
+	public static void main(String[] args) {
+
+		String host;
+		int portNumber;
+		String filePath;
+		boolean successful = false;
+
+		if (args.length != 3) {
+			System.err.println("Usage: java AutoSender host_name port filename");
+			System.exit(-1);
+		}
+
+		try {
+
+			host = args[0];
+			portNumber = Integer.parseInt(args[1]);
+			filePath = args[2];
+
+			/* Attempt to send the file. */
+			AutoSender sender = new AutoSender(host, portNumber);
+			successful = sender.send(new File(filePath));
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number to an integer.");
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+		}
+
+		if (successful) {
+			System.out.println("Success! File has been sent.");
+		} else {
+			System.err.println("File was not sent successfully. Please try again.");
+		}
+
+	}
+
+}
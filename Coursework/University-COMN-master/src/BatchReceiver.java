@@ -0,0 +1,272 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The BatchReceiver class receives a batch of files sent by a {@link BatchSender},
+ * with {@link Receiver4}, and writes each into the output directory under its name
+ * in the batch. See {@link BatchSender} for the framing.
+ * <p>
+ * The files are split out as the data arrives, so the batch is never held whole in
+ * memory or on disk. Names that would land outside the output directory are
+ * refused.
+ *
+ * @author s0840449
+ *
+ */
+public class BatchReceiver {
+
+	/* The directory to write the files to. */
+	private File directory;
+
+	/* The port number and window size to receive with. */
+	private int portNumber;
+	private int windowSize;
+
+	/* How long (in ms) to wait for a packet before giving up, or 0 to wait forever. */
+	private int idleTimeout;
+
+	/* The number of files written so far. */
+	private int filesReceived;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param directory		The directory to write the files to.
+	 * @param portNumber	The port number to wait for data on.
+	 * @param windowSize	The window size.
+	 */
+	public BatchReceiver(File directory, int portNumber, int windowSize) {
+
+		if (!directory.isDirectory()) {
+			throw new IllegalArgumentException("\"" + directory.getPath() + "\" is not a directory.");
+		}
+
+		this.directory = directory;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+		this.filesReceived = 0;
+	}
+
+	/**
+	 * Sets how long to wait for a packet before giving up on the sender. By
+	 * default we wait forever.
+	 *
+	 * @param idleTimeout	The time in ms, or 0 to wait forever.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Receives a batch, writing out each file as it arrives.
+	 *
+	 * @return		True if the batch was received and every file in it written,
+	 * 				False otherwise.
+	 */
+	public boolean receive() {
+
+		Unpacker unpacker = new Unpacker();
+		Receiver4 receiver = new Receiver4(null, portNumber, windowSize);
+		receiver.setIdleTimeout(idleTimeout);
+
+		if (!receiver.receive(unpacker)) {
+			return false;
+		}
+
+		if (!unpacker.atFileBoundary()) {
+			System.err.println("Error: The batch ended part of the way through a file.");
+			return false;
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of files written by {@link #receive()}.
+	 *
+	 * @return		The number of files.
+	 */
+	public int getFilesReceived() {
+		return filesReceived;
+	}
+
+	/**
+	 * The Unpacker class takes in the batch in order and splits it back out
+	 * into files.
+	 */
+	private class Unpacker extends OutputStream {
+
+		/* Collects the header of the next file: first its two length bytes,
+		 * then the name and eight length bytes. */
+		private ByteBuffer header = ByteBuffer.allocate(2);
+		private boolean haveNameLength = false;
+
+		/* The file being written, and how much of it is left. */
+		private OutputStream writer = null;
+		private long bytesLeft = 0;
+
+		/**
+		 * Returns whether the data so far has ended exactly at the end of a file.
+		 *
+		 * @return		True if no file or header is part written.
+		 */
+		public boolean atFileBoundary() {
+			return writer == null && !haveNameLength && header.position() == 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+
+			while (len > 0) {
+
+				if (writer != null) {
+
+					int count = (int) Math.min(len, bytesLeft);
+					writer.write(data, off, count);
+					off += count;
+					len -= count;
+					bytesLeft -= count;
+
+					if (bytesLeft == 0) {
+						finishFile();
+					}
+
+					continue;
+
+				}
+
+				int count = Math.min(len, header.remaining());
+				header.put(data, off, count);
+				off += count;
+				len -= count;
+
+				if (!header.hasRemaining()) {
+					readHeader();
+				}
+
+			}
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (writer != null) {
+				writer.close();
+				writer = null;
+			}
+		}
+
+		/* Acts on a completed part of the header. */
+		private void readHeader() throws IOException {
+
+			header.flip();
+
+			if (!haveNameLength) {
+				int nameLength = 0xFFFF & header.getShort();
+				header = ByteBuffer.allocate(nameLength + 8);
+				haveNameLength = true;
+				return;
+			}
+
+			byte[] name = new byte[header.remaining() - 8];
+			header.get(name);
+			bytesLeft = header.getLong();
+
+			header = ByteBuffer.allocate(2);
+			haveNameLength = false;
+
+			File file = outputFile(new String(name, StandardCharsets.UTF_8));
+			File parent = file.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Unable to create the directory \"" + parent.getPath() + "\".");
+			}
+
+			writer = new BufferedOutputStream(new FileOutputStream(file));
+			if (bytesLeft == 0) {
+				finishFile();
+			}
+
+		}
+
+		/* Closes the file just written. */
+		private void finishFile() throws IOException {
+			writer.close();
+			writer = null;
+			filesReceived++;
+		}
+
+	}
+
+	/* Returns where a file of the batch goes, refusing names that would put it
+	 * outside the output directory. */
+	private File outputFile(String name) throws IOException {
+
+		File file = new File(directory, name);
+
+		String directoryPath = directory.getCanonicalPath() + File.separator;
+		if (name.isEmpty() || !file.getCanonicalPath().startsWith(directoryPath)) {
+			throw new IOException("The batch holds a file named \"" + name +
+					"\", which is outside the output directory.");
+		}
+
+		return file;
+
+	}
+
+	/**
+	 * The main method for running the BatchReceiver class. There are three
+	 * compulsory arguments - the port number to listen on, the directory to
+	 * write the files to, and the window size.
+	 *
+	 * @param args		The program arguments: the port number, the output
+	 * 					directory and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean receiveSuccessful = false;
+		BatchReceiver receiver = null;
+
+		if (args.length != 3) {
+			System.err.println("Usage: java BatchReceiver port directory windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File directory = new File(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+
+			receiver = new BatchReceiver(directory, portNumber, windowSize);
+			receiveSuccessful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (receiveSuccessful) {
+			System.out.println("Success! " + receiver.getFilesReceived() + " files have been received.");
+		} else {
+			System.err.println("Files were not received successfully. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,252 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * The BatchSender class sends many files as one {@link Sender4} transfer, to be
+ * split back out into a directory by a {@link BatchReceiver}. Sending each small
+ * file on its own costs a transfer apiece - new sockets, a window that starts
+ * empty, and a wait for the last few acks and the FIN - which for a file of a few
+ * packets takes far longer than its data. In a batch, the files follow one another
+ * in a single packet stream, so each only costs the bytes of its header.
+ * <p>
+ * Each file is framed as:
+ * <ul>
+ * <li>Two bytes giving the length of the file's name.
+ * <li>The name, in UTF-8. This is the path of the file within the batch, with
+ * '/' separating directories.
+ * <li>Eight bytes giving the length of the file.
+ * <li>The file's data.
+ * </ul>
+ * Files are opened one at a time as the transfer reaches them. As with
+ * {@link Sender4}, I do no locking, so a file must not change while being sent.
+ *
+ * @author s0840449
+ *
+ */
+public class BatchSender {
+
+	/* The receiving host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* How long (in ms) to wait for an ack before giving up, or 0 to wait forever. */
+	private int idleTimeout;
+
+	/* The files in the batch, and their names within it. */
+	private List<File> files;
+	private List<String> names;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The receiving host.
+	 * @param portNumber	The port number on the receiving host.
+	 * @param windowSize	The window size.
+	 */
+	public BatchSender(String host, int portNumber, int windowSize) {
+		this.host = host;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+
+		this.files = new ArrayList<File>();
+		this.names = new ArrayList<String>();
+	}
+
+	/**
+	 * Sets how long to wait for an ack before giving up on the receiver. By
+	 * default we wait forever.
+	 *
+	 * @param idleTimeout	The time in ms, or 0 to wait forever.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Adds a file to the batch.
+	 *
+	 * @param file		The file to send.
+	 * @param name		The path to give it within the batch, using '/'
+	 * 					between directories.
+	 */
+	public void addFile(File file, String name) {
+
+		if (!file.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					file.getName() + "\". Please check file permissions and try again.");
+		}
+
+		if (name.getBytes(StandardCharsets.UTF_8).length > 0xFFFF) {
+			throw new IllegalArgumentException("The name \"" + name + "\" is too long.");
+		}
+
+		files.add(file);
+		names.add(name);
+	}
+
+	/**
+	 * Adds every file under a directory to the batch, named by their paths
+	 * within it.
+	 *
+	 * @param directory		The directory to send.
+	 */
+	public void addDirectory(File directory) {
+		addDirectory(directory, "");
+	}
+
+	/* Adds the files under a directory, with their names starting with prefix. */
+	private void addDirectory(File directory, String prefix) {
+
+		File[] children = directory.listFiles();
+		if (children == null) {
+			throw new IllegalArgumentException("Cannot list directory \"" + directory.getPath() + "\".");
+		}
+
+		for (File child : children) {
+			if (child.isDirectory()) {
+				addDirectory(child, prefix + child.getName() + "/");
+			} else {
+				addFile(child, prefix + child.getName());
+			}
+		}
+
+	}
+
+	/**
+	 * Sends the batch.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send() {
+
+		long totalLength = 0;
+		for (int i = 0; i < files.size(); i++) {
+			totalLength += header(i).length + files.get(i).length();
+		}
+
+		Sender4 sender = new Sender4(host, portNumber, windowSize);
+		sender.setIdleTimeout(idleTimeout);
+
+		return sender.send(new SequenceInputStream(new BatchEnumeration()), totalLength);
+
+	}
+
+	/* Returns the framing header of the i-th file. */
+	private byte[] header(int i) {
+
+		byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+
+		ByteBuffer header = ByteBuffer.allocate(2 + name.length + 8);
+		header.putShort((short) name.length);
+		header.put(name);
+		header.putLong(files.get(i).length());
+
+		return header.array();
+
+	}
+
+	/**
+	 * Hands the SequenceInputStream each file's header and then the file
+	 * itself, opening the file only once its header has been read.
+	 */
+	private class BatchEnumeration implements Enumeration<InputStream> {
+
+		/* The next part: even parts are headers, odd parts are files. */
+		private int part = 0;
+
+		public boolean hasMoreElements() {
+			return part < files.size() * 2;
+		}
+
+		public InputStream nextElement() {
+
+			int i = part / 2;
+			boolean isHeader = (part % 2 == 0);
+			part++;
+
+			if (isHeader) {
+				return new ByteArrayInputStream(header(i));
+			}
+
+			try {
+				return new FileInputStream(files.get(i));
+			} catch (final IOException ioe) {
+
+				/* We can't throw from here, so the error is raised by the read
+				 * instead, where the sender will catch it. */
+				return new InputStream() {
+					public int read() throws IOException {
+						throw ioe;
+					}
+				};
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * The main method for running the BatchSender class. There are four or more
+	 * arguments - the host name, port number, window size, and the files or
+	 * directories to send. Files are named by their own names in the batch, and
+	 * files under a directory by their paths within it.
+	 *
+	 * @param args	The program arguments: the host name, the port number, the
+	 * 				window size, and the files and directories to send.
+	 */
+	public static void main(String[] args) {
+
+		boolean sendSuccessful = false;
+
+		if (args.length < 4) {
+			System.err.println("Usage: java BatchSender host_name port windowsize file_or_dir [file_or_dir ...]");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+
+			BatchSender sender = new BatchSender(host, portNumber, windowSize);
+			for (int i = 3; i < args.length; i++) {
+				File file = new File(args[i]);
+				if (file.isDirectory()) {
+					sender.addDirectory(file);
+				} else {
+					sender.addFile(file, file.getName());
+				}
+			}
+
+			sendSuccessful = sender.send();
+
+		} catch (IllegalArgumentException iae) {
+			/* Includes NumberFormatException. */
+			System.err.println("Error: " + iae.getMessage());
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! Files have been sent.");
+		} else {
+			System.err.println("Files were not sent successfully. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,353 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of blocks of files, shared by every transfer reading from it, so that
+ * when many transfers send the same file each block is read from disk once
+ * rather than once per transfer. The blocks are held outside the Java heap, in
+ * a fixed number of direct buffers allocated up front, and the least recently
+ * used blocks are thrown away to make room for new ones.
+ * <p>
+ * Each open reader pins the block it is reading, so it cannot be thrown away
+ * part way through, and the cache must hold at least as many blocks as there are
+ * readers open at once. When several readers ask for a block that is not held at
+ * once, one of them reads it and the others wait for it, rather than each reading
+ * it. Hits and misses are counted per block a reader moves on to, not per read.
+ * <p>
+ * Files are assumed not to change while they are being read through the cache.
+ *
+ * @author s0840449
+ */
+public class BlockCache {
+
+	/** The size of a block. */
+	public static final int BLOCK_SIZE = 64 * 1024;
+
+	/* The buffers holding the blocks, and those not holding one. */
+	private ByteBuffer[] slots;
+	private ArrayDeque<Integer> freeSlots;
+
+	/* The blocks held, from least to most recently used, by file and index. */
+	private LinkedHashMap<String, Block> blocks;
+
+	/* Counts of blocks found, read from disk and thrown away. */
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param maxBytes	The most bytes of blocks to hold. At least one block is
+	 * 					always held.
+	 */
+	public BlockCache(long maxBytes) {
+
+		if (maxBytes / BLOCK_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The cache size is too large.");
+		}
+
+		int numSlots = (int) Math.max(1, maxBytes / BLOCK_SIZE);
+
+		this.slots = new ByteBuffer[numSlots];
+		this.freeSlots = new ArrayDeque<Integer>(numSlots);
+		this.blocks = new LinkedHashMap<String, Block>(16, 0.75f, true);
+
+		for (int i = 0; i < numSlots; i++) {
+			slots[i] = ByteBuffer.allocateDirect(BLOCK_SIZE);
+			freeSlots.add(i);
+		}
+
+	}
+
+	/**
+	 * The Block class holds where a block is kept and who is using it.
+	 */
+	private static class Block {
+
+		private int slot;
+		private int length;
+		private int pins;
+		private boolean loading;
+
+		/**
+		 * Default constructor. The block starts pinned and loading.
+		 *
+		 * @param slot		The buffer the block is kept in.
+		 */
+		public Block(int slot) {
+			this.slot = slot;
+			this.length = 0;
+			this.pins = 1;
+			this.loading = true;
+		}
+
+	}
+
+	/**
+	 * Opens part of a file to be read through the cache.
+	 *
+	 * @param file			The file.
+	 * @param offset		Where to start reading.
+	 * @param length		How much to read.
+	 *
+	 * @return				A stream of that part of the file.
+	 *
+	 * @throws IOException	If the file cannot be opened.
+	 */
+	public InputStream open(File file, long offset, long length) throws IOException {
+		return new CachedReader(file, offset, length);
+	}
+
+	/**
+	 * Returns the number of blocks readers found held, including those they
+	 * waited for another reader to bring in.
+	 *
+	 * @return		The number of blocks.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of blocks readers had to read from disk.
+	 *
+	 * @return		The number of blocks.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of blocks thrown away to make room.
+	 *
+	 * @return		The number of blocks.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the fraction of blocks readers found held.
+	 *
+	 * @return		The hit rate, from 0 to 1, or 0 if nothing has been read.
+	 */
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	/* Returns a block pinned, reading it from the file if it is not held. */
+	private Block acquire(String key, FileChannel channel, long index) throws IOException {
+
+		Block block;
+
+		synchronized (this) {
+
+			while (true) {
+
+				block = blocks.get(key);
+				if (block != null && !block.loading) {
+					block.pins++;
+					hits++;
+					return block;
+				}
+
+				/* Wait for the read already under way, or for a slot to come free. */
+				Integer slot = block == null ? takeSlot() : null;
+				if (slot != null) {
+					block = new Block(slot);
+					blocks.put(key, block);
+					misses++;
+					break;
+				}
+
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				}
+
+			}
+
+		}
+
+		/* The disk is read without holding the lock, so other blocks can be used
+		 * meanwhile. */
+		try {
+
+			ByteBuffer view = slots[block.slot].duplicate();
+			view.clear();
+			long start = index * BLOCK_SIZE;
+			while (view.hasRemaining()) {
+				if (channel.read(view, start + view.position()) < 0) {
+					break;
+				}
+			}
+
+			synchronized (this) {
+				block.length = view.position();
+				block.loading = false;
+				notifyAll();
+			}
+
+			return block;
+
+		} catch (IOException ioe) {
+
+			synchronized (this) {
+				blocks.remove(key);
+				freeSlots.add(block.slot);
+				notifyAll();
+			}
+
+			throw ioe;
+
+		}
+
+	}
+
+	/* Unpins a block. */
+	private synchronized void release(Block block) {
+
+		block.pins--;
+		if (block.pins == 0) {
+			notifyAll();
+		}
+
+	}
+
+	/* Returns a free slot, throwing away the least recently used unpinned block
+	 * if need be, or null if every block is pinned. */
+	private Integer takeSlot() {
+
+		Integer slot = freeSlots.poll();
+		if (slot != null) {
+			return slot;
+		}
+
+		Iterator<Map.Entry<String, Block>> iterator = blocks.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Block block = iterator.next().getValue();
+			if (block.pins == 0) {
+				iterator.remove();
+				evictions++;
+				return block.slot;
+			}
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * The CachedReader class reads part of a file through the cache.
+	 */
+	private class CachedReader extends InputStream {
+
+		/* The file's name in the cache, and the file itself. */
+		private String name;
+		private FileChannel channel;
+
+		/* The block being read, pinned, and its index. */
+		private Block block;
+		private long index;
+
+		/* Where the next read starts, and how much is left. */
+		private long position;
+		private long left;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param file			The file.
+		 * @param offset		Where to start reading.
+		 * @param length		How much to read.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public CachedReader(File file, long offset, long length) throws IOException {
+			this.name = file.getCanonicalPath();
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.position = offset;
+			this.left = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			byte[] single = new byte[1];
+			if (read(single, 0, 1) < 0) {
+				return -1;
+			}
+
+			return 0xFF & single[0];
+
+		}
+
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (left == 0) {
+				return -1;
+			}
+
+			if (block == null || position / BLOCK_SIZE != index) {
+				close(false);
+				index = position / BLOCK_SIZE;
+				block = acquire(name + "#" + index, channel, index);
+			}
+
+			int start = (int) (position - index * BLOCK_SIZE);
+			if (start >= block.length) {
+				return -1;
+			}
+
+			int count = (int) Math.min(Math.min(len, left), block.length - start);
+			ByteBuffer view = slots[block.slot].duplicate();
+			view.position(start);
+			view.get(data, off, count);
+
+			position += count;
+			left -= count;
+
+			return count;
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			close(true);
+		}
+
+		/* Unpins the block being read, and closes the file if asked. */
+		private void close(boolean closeFile) throws IOException {
+
+			if (block != null) {
+				release(block);
+				block = null;
+			}
+
+			if (closeFile) {
+				channel.close();
+			}
+
+		}
+
+	}
+
+}
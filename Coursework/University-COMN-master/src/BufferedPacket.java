@@ -1,7 +1,7 @@
 /* Stephen McGruer 0840449 */
 
 /**
- * Represents an out of order packet in Receiver4 waiting to be
+ * Represents an out of order packet in Receiver2/3/4 waiting to be
  * written to the output file.
  * 
  * @author s0840449
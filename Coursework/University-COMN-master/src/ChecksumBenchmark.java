@@ -0,0 +1,145 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures what packet checksums (see {@link PacketChecksum}) cost in throughput,
+ * by sending a file to a {@link Receiver4} in this process with
+ * {@link Sender4}, over and over, with and without checksums. Runs with and
+ * without take turns, so that anything else slowing the machine down hits
+ * both alike. On loopback the transfer is held up by the CPU rather than the
+ * network, so this is the worst case for the checksums.
+ *
+ * @author s0840449
+ *
+ */
+public class ChecksumBenchmark {
+
+	/* How long (in ms) to give the receiver to start before sending. */
+	private static final int RECEIVER_START_TIME = 100;
+
+	/* Only the main method. */
+	private ChecksumBenchmark() { }
+
+	/**
+	 * Times one transfer of a file.
+	 *
+	 * @param dataFile		The file to send.
+	 * @param outFile		The file to receive into.
+	 * @param portNumber	The port number to send to.
+	 * @param windowSize	The window size.
+	 * @param checksummed	Whether to add checksums to the packets.
+	 *
+	 * @return				The time taken in ns, or -1 if the transfer failed.
+	 */
+	private static long timeTransfer(File dataFile, File outFile, int portNumber, int windowSize,
+			boolean checksummed) {
+
+		final Receiver4 receiver = new Receiver4(outFile.getPath(), portNumber, windowSize);
+		receiver.setChecksummed(checksummed);
+		final boolean[] received = { false };
+
+		Thread receiveThread = new Thread() {
+			public void run() {
+				received[0] = receiver.receive();
+			}
+		};
+		receiveThread.start();
+
+		Sender4 sender = new Sender4("localhost", portNumber, windowSize);
+		sender.setChecksummed(checksummed);
+
+		try {
+			Thread.sleep(RECEIVER_START_TIME);
+		} catch (InterruptedException ie) { }
+
+		long start = System.nanoTime();
+		boolean sent = sender.send(dataFile);
+
+		try {
+			receiveThread.join();
+		} catch (InterruptedException ie) {
+			return -1;
+		}
+
+		long time = System.nanoTime() - start;
+
+		return (sent && received[0]) ? time : -1;
+
+	}
+
+	/**
+	 * The main method for running the ChecksumBenchmark class. There are four
+	 * compulsory arguments - the file to send, the port number to use, the window
+	 * size, and the number of runs each with and without checksums.
+	 *
+	 * @param args		The program arguments: the name of the file, the port
+	 * 					number, the window size and the number of runs.
+	 */
+	public static void main(String[] args) {
+
+		if (args.length != 4) {
+			System.err.println("Usage: java ChecksumBenchmark filename port windowsize runs");
+			System.exit(-1);
+		}
+
+		File dataFile = new File(args[0]);
+		int portNumber = 0;
+		int windowSize = 0;
+		int runs = 0;
+
+		try {
+			portNumber = Integer.parseInt(args[1]);
+			windowSize = Integer.parseInt(args[2]);
+			runs = Integer.parseInt(args[3]);
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number, window size or number of runs to an integer.");
+			System.exit(-1);
+		}
+
+		File outFile = null;
+		try {
+			outFile = File.createTempFile("checksum", ".bin");
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			System.exit(-1);
+		}
+
+		/* The total time taken without and with checksums. */
+		long[] times = new long[2];
+
+		try {
+
+			for (int run = 0; run < 2 * runs; run++) {
+
+				/* Take turns as with, without, without, with, and so on, so that
+				 * neither always goes first. */
+				boolean checksummed = (run % 2 == 0) == (run % 4 < 2);
+
+				long time = timeTransfer(dataFile, outFile, portNumber, windowSize, checksummed);
+				if (time < 0) {
+					System.err.println("Error: A transfer failed.");
+					System.exit(-1);
+				}
+
+				times[checksummed ? 1 : 0] += time;
+
+			}
+
+		} finally {
+			outFile.delete();
+		}
+
+		double kB = (double) runs * dataFile.length() / 1024.0;
+		double plainThroughput = kB / (times[0] / 1e9);
+		double checksummedThroughput = kB / (times[1] / 1e9);
+
+		System.out.println("Without checksums: " + plainThroughput + " kB/s");
+		System.out.println("With checksums: " + checksummedThroughput + " kB/s");
+		System.out.println("Cost: " + (100 * (1 - checksummedThroughput / plainThroughput)) + "%");
+
+	}
+
+}
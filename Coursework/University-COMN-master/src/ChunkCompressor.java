@@ -0,0 +1,333 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * The ChunkCompressor class compresses the data read from a stream, for sending
+ * with {@link Sender4#setCompressed(boolean)}. The data is cut into chunks of
+ * <a href="#CHUNK_SIZE">CHUNK_SIZE</a> bytes, which are deflated in parallel on
+ * the common fork-join pool while the sender is sending the ones before them. The
+ * compressed chunks are read back out in order, each framed as:
+ * <ul>
+ * <li>A flag byte - <a href="#DEFLATED">DEFLATED</a> or <a href="#STORED">STORED</a>.
+ * <li>Four bytes giving the length of the original chunk.
+ * <li>Four bytes giving the length of the chunk as sent.
+ * <li>The chunk.
+ * </ul>
+ * A chunk that does not shrink when deflated is stored as it was. If the sender
+ * spends much of its time waiting for chunks to be compressed, then the CPU rather
+ * than the network is holding the transfer up, and compressing is turned off: the chunks
+ * are stored until <a href="#PROBE_INTERVAL">PROBE_INTERVAL</a> have been sent,
+ * then compressing is tried again. {@link ChunkDecompressor} reverses this.
+ *
+ * @author s0840449
+ *
+ */
+public class ChunkCompressor extends InputStream {
+
+	/** The size of a chunk before compression. */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	/** The size of a chunk's frame header. */
+	public static final int FRAME_HEADER_SIZE = 9;
+
+	/** The flag byte of a deflated chunk. */
+	public static final byte DEFLATED = 1;
+
+	/** The flag byte of a chunk stored as it was. */
+	public static final byte STORED = 0;
+
+	/** The number of stored chunks sent before compressing is tried again. */
+	public static final int PROBE_INTERVAL = 256;
+
+	/* The number of chunks compressed ahead of the sender, per thread in the pool. */
+	private static final int CHUNKS_AHEAD_PER_THREAD = 2;
+
+	/* The number of chunks between checks on whether compressing is worth it, and
+	 * the fraction of the time since the last check the sender may spend waiting
+	 * for chunks before it is turned off. */
+	private static final int CHECK_INTERVAL = 16;
+	private static final double MAX_WAIT_FRACTION = 0.25;
+
+	/* Each pool thread keeps its own Deflater, as they are slow to set up. */
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	/* The stream the data comes from, and how much more of it to read. */
+	private InputStream source;
+	private long sourceLeft;
+	private boolean sourceEnded;
+
+	/* The pool chunks are compressed on, and the most chunks in hand at once. */
+	private ForkJoinPool pool;
+	private int maxChunksAhead;
+
+	/* The framed chunks, in order, that are done or being worked on. */
+	private Queue<Future<byte[]>> chunks;
+
+	/* The framed chunk being read out, and the position in it. */
+	private byte[] current;
+	private int position;
+
+	/* Whether chunks are being compressed, and the counts used to decide. */
+	private boolean compressing;
+	private int chunksSinceCheck;
+	private long lastCheckTime;
+	private long waitTimeSinceCheck;
+
+	/* The number of bytes read from the source, and read out compressed. */
+	private long bytesIn;
+	private long bytesOut;
+
+	/**
+	 * Default constructor. Compresses everything up to the end of the stream.
+	 *
+	 * @param source	The stream to read the data to compress from.
+	 */
+	public ChunkCompressor(InputStream source) {
+		this(source, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor which compresses only the start of a stream.
+	 *
+	 * @param source	The stream to read the data to compress from.
+	 * @param length	The most bytes to read from it.
+	 */
+	public ChunkCompressor(InputStream source, long length) {
+		this.source = source;
+		this.sourceLeft = length;
+		this.sourceEnded = false;
+
+		this.pool = ForkJoinPool.commonPool();
+		this.maxChunksAhead = Math.max(4, CHUNKS_AHEAD_PER_THREAD * pool.getParallelism());
+		this.chunks = new ArrayDeque<Future<byte[]>>();
+
+		this.current = new byte[0];
+		this.position = 0;
+
+		this.compressing = true;
+		this.chunksSinceCheck = 0;
+		this.lastCheckTime = System.nanoTime();
+		this.waitTimeSinceCheck = 0;
+
+		this.bytesIn = 0;
+		this.bytesOut = 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		byte[] single = new byte[1];
+		if (read(single, 0, 1) < 0) {
+			return -1;
+		}
+
+		return 0xFF & single[0];
+
+	}
+
+	@Override
+	public int read(byte[] buffer, int off, int len) throws IOException {
+
+		if (len == 0) {
+			return 0;
+		}
+
+		if (position == current.length && !nextChunk()) {
+			return -1;
+		}
+
+		int count = Math.min(len, current.length - position);
+		System.arraycopy(current, position, buffer, off, count);
+		position += count;
+		bytesOut += count;
+
+		return count;
+
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		for (Future<byte[]> chunk : chunks) {
+			chunk.cancel(false);
+		}
+		chunks.clear();
+
+		source.close();
+
+	}
+
+	/**
+	 * Returns the size of the data read out, as a fraction of the size of the
+	 * data read in.
+	 *
+	 * @return		The compression ratio so far, or 1 if nothing has been read.
+	 */
+	public double getRatio() {
+		return (bytesIn == 0) ? 1 : (double) bytesOut / bytesIn;
+	}
+
+	/* Moves on to the next framed chunk, returning false at the end of the data. */
+	private boolean nextChunk() throws IOException {
+
+		fillAhead();
+
+		Future<byte[]> chunk = chunks.poll();
+		if (chunk == null) {
+			return false;
+		}
+
+		long waitStart = System.nanoTime();
+
+		try {
+			current = chunk.get();
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted while compressing.");
+		} catch (ExecutionException ee) {
+			throw new IOException("Unable to compress a chunk: " + ee.getCause().getMessage());
+		}
+		position = 0;
+
+		waitTimeSinceCheck += System.nanoTime() - waitStart;
+		checkWorthIt();
+
+		/* Read ahead again now that a chunk has been taken. */
+		fillAhead();
+
+		return true;
+
+	}
+
+	/* Reads chunks from the source and hands them to the pool until enough are in hand. */
+	private void fillAhead() throws IOException {
+
+		while (!sourceEnded && chunks.size() < maxChunksAhead) {
+
+			final byte[] data = readChunk();
+			if (data == null) {
+				sourceEnded = true;
+				break;
+			}
+
+			bytesIn += data.length;
+
+			if (compressing) {
+
+				chunks.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() {
+						return deflate(data);
+					}
+				}));
+
+			} else {
+				chunks.add(CompletableFuture.completedFuture(frame(STORED, data.length, data, data.length)));
+			}
+
+		}
+
+	}
+
+	/* Decides, every CHECK_INTERVAL chunks sent, whether compressing is still
+	 * worth it. It is not if the sender spent long waiting for the last chunks. */
+	private void checkWorthIt() {
+
+		chunksSinceCheck++;
+
+		boolean check = compressing ? chunksSinceCheck == CHECK_INTERVAL : chunksSinceCheck == PROBE_INTERVAL;
+		if (!check) {
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		if (compressing) {
+			compressing = waitTimeSinceCheck < MAX_WAIT_FRACTION * (now - lastCheckTime);
+		} else {
+			compressing = true;
+		}
+
+		chunksSinceCheck = 0;
+		lastCheckTime = now;
+		waitTimeSinceCheck = 0;
+
+	}
+
+	/* Reads the next chunk from the source, or returns null at its end. */
+	private byte[] readChunk() throws IOException {
+
+		int size = (int) Math.min(CHUNK_SIZE, sourceLeft);
+		byte[] data = new byte[size];
+		int length = 0;
+
+		while (length < size) {
+			int read = source.read(data, length, size - length);
+			if (read < 0) {
+				break;
+			}
+			length += read;
+		}
+
+		sourceLeft -= length;
+
+		if (length == 0) {
+			return null;
+		}
+
+		return (length == size) ? data : Arrays.copyOf(data, length);
+
+	}
+
+	/* Deflates a chunk, storing it as it was if it does not shrink. */
+	private static byte[] deflate(byte[] data) {
+
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+
+		/* Anything longer than the original is no use to us. */
+		byte[] deflated = new byte[data.length];
+		int length = 0;
+		while (!deflater.finished() && length < deflated.length) {
+			length += deflater.deflate(deflated, length, deflated.length - length);
+		}
+
+		if (!deflater.finished()) {
+			return frame(STORED, data.length, data, data.length);
+		}
+
+		return frame(DEFLATED, data.length, deflated, length);
+
+	}
+
+	/* Puts the frame header on a chunk. */
+	private static byte[] frame(byte flag, int originalLength, byte[] data, int length) {
+
+		ByteBuffer framed = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+		framed.put(flag);
+		framed.putInt(originalLength);
+		framed.putInt(length);
+		framed.put(data, 0, length);
+
+		return framed.array();
+
+	}
+
+}
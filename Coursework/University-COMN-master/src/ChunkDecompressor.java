@@ -0,0 +1,246 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The ChunkDecompressor class takes in the framed chunks made by a
+ * {@link ChunkCompressor}, in order, and writes the original data out to another
+ * stream. Deflated chunks are inflated in parallel on the common fork-join pool,
+ * while the next ones are still arriving, and written out in order as they finish.
+ *
+ * @author s0840449
+ *
+ */
+public class ChunkDecompressor extends OutputStream {
+
+	/* The number of chunks being inflated at once, per thread in the pool. */
+	private static final int CHUNKS_AHEAD_PER_THREAD = 2;
+
+	/* Each pool thread keeps its own Inflater, as they are slow to set up. */
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/* The stream the original data is written to. */
+	private OutputStream output;
+
+	/* The pool chunks are inflated on, and the most chunks in hand at once. */
+	private ForkJoinPool pool;
+	private int maxChunksAhead;
+
+	/* The chunks, in order, that are done or being worked on. */
+	private Queue<Future<byte[]>> chunks;
+
+	/* Collects the frame header of the next chunk, and then the chunk. */
+	private ByteBuffer header;
+	private byte flag;
+	private int originalLength;
+	private byte[] chunk;
+	private int chunkPosition;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param output	The stream to write the original data to.
+	 */
+	public ChunkDecompressor(OutputStream output) {
+		this.output = output;
+
+		this.pool = ForkJoinPool.commonPool();
+		this.maxChunksAhead = CHUNKS_AHEAD_PER_THREAD * pool.getParallelism();
+		this.chunks = new ArrayDeque<Future<byte[]>>();
+
+		this.header = ByteBuffer.allocate(ChunkCompressor.FRAME_HEADER_SIZE);
+		this.chunk = null;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] data, int off, int len) throws IOException {
+
+		while (len > 0) {
+
+			if (chunk == null) {
+
+				int count = Math.min(len, header.remaining());
+				header.put(data, off, count);
+				off += count;
+				len -= count;
+
+				if (!header.hasRemaining()) {
+					readHeader();
+				}
+
+			} else {
+
+				int count = Math.min(len, chunk.length - chunkPosition);
+				System.arraycopy(data, off, chunk, chunkPosition, count);
+				chunkPosition += count;
+				off += count;
+				len -= count;
+
+			}
+
+			if (chunk != null && chunkPosition == chunk.length) {
+				chunkDone();
+			}
+
+		}
+
+	}
+
+	/**
+	 * Writes out every chunk taken in so far. Only whole chunks can be written,
+	 * so part of a chunk may still be held.
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		while (!chunks.isEmpty()) {
+			writeNext();
+		}
+
+		output.flush();
+
+	}
+
+	/**
+	 * Writes out every chunk and closes the output stream.
+	 *
+	 * @throws IOException	If the data ended part of the way through a chunk,
+	 * 						or a chunk could not be inflated.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		try {
+
+			flush();
+
+			if (chunk != null || header.position() > 0) {
+				throw new IOException("The compressed data ended part of the way through a chunk.");
+			}
+
+		} finally {
+			output.close();
+		}
+
+	}
+
+	/* Acts on a completed frame header. */
+	private void readHeader() throws IOException {
+
+		header.flip();
+		flag = header.get();
+		originalLength = header.getInt();
+		int length = header.getInt();
+		header.clear();
+
+		if (originalLength < 0 || originalLength > ChunkCompressor.CHUNK_SIZE || length < 0
+				|| length > originalLength || (flag == ChunkCompressor.STORED && length != originalLength)
+				|| (flag != ChunkCompressor.DEFLATED && flag != ChunkCompressor.STORED)) {
+			throw new IOException("The compressed data has a bad chunk header.");
+		}
+
+		chunk = new byte[length];
+		chunkPosition = 0;
+
+	}
+
+	/* Hands a complete chunk to the pool, or straight on if it is stored. */
+	private void chunkDone() throws IOException {
+
+		final byte[] data = chunk;
+		final int length = originalLength;
+		chunk = null;
+
+		/* Keep the number of chunks in hand bounded. */
+		while (chunks.size() >= maxChunksAhead) {
+			writeNext();
+		}
+
+		if (flag == ChunkCompressor.STORED) {
+
+			/* Nothing to do, but it still has to wait its turn. */
+			if (chunks.isEmpty()) {
+				output.write(data);
+				return;
+			}
+
+			chunks.add(CompletableFuture.completedFuture(data));
+			return;
+
+		}
+
+		chunks.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() throws DataFormatException {
+				return inflate(data, length);
+			}
+		}));
+
+		/* Write out whatever has finished, without waiting. */
+		while (!chunks.isEmpty() && chunks.peek().isDone()) {
+			writeNext();
+		}
+
+	}
+
+	/* Waits for the oldest chunk and writes it out. */
+	private void writeNext() throws IOException {
+
+		try {
+			output.write(chunks.poll().get());
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted while decompressing.");
+		} catch (ExecutionException ee) {
+			throw new IOException("Unable to decompress a chunk: " + ee.getCause().getMessage());
+		}
+
+	}
+
+	/* Inflates a chunk back to its original length. */
+	private static byte[] inflate(byte[] data, int originalLength) throws DataFormatException {
+
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(data);
+
+		byte[] inflated = new byte[originalLength];
+		int length = 0;
+		while (length < originalLength && !inflater.finished()) {
+
+			int count = inflater.inflate(inflated, length, originalLength - length);
+			if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				break;
+			}
+			length += count;
+
+		}
+
+		if (length != originalLength) {
+			throw new DataFormatException("The chunk inflated to " + length + " bytes, not " + originalLength + ".");
+		}
+
+		return inflated;
+
+	}
+
+}
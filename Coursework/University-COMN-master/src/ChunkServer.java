@@ -0,0 +1,398 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The ChunkServer class serves parts (chunks) of a file on request, so that a
+ * {@link MultiSourceReceiver} can download the file from several servers holding
+ * copies of it at once.
+ * <p>
+ * Requests arrive on the server's port. Each request is answered to the address
+ * and port it came from:
+ * <ul>
+ * <li>An info request is the request number (two bytes) and
+ * <a href="#INFO">INFO</a>. It is answered with the same three bytes followed by
+ * the eight byte length of the file.
+ * <li>A chunk request is the request number, <a href="#CHUNK">CHUNK</a>, the eight
+ * byte offset and eight byte length of the chunk, and the four byte port to send
+ * it to. It is acked with its first three bytes, and the chunk is then sent with
+ * {@link Sender4} to that port on the requesting host (so the acks come back on the
+ * port + 1 here). Repeated requests are acked again but only sent once.
+ * </ul>
+ * Chunks are sent in the order requested, by several threads at once, so that
+ * many requesters can be served together. As the acks for a chunk come back on
+ * the port + 1 here, chunks sent to the same port are still sent one at a time.
+ * A chunk is given up on if the requester stops acking it, as it may have had
+ * the chunk from another server first.
+ * <p>
+ * The file is read through a {@link BlockCache} shared by all the threads, so
+ * when many requesters download the file at around the same time, each part of
+ * it is only read from disk once.
+ *
+ * @author s0840449
+ *
+ */
+public class ChunkServer {
+
+	/** The packet type byte of an info request. */
+	public static final byte INFO = 7;
+
+	/** The packet type byte of a chunk request. */
+	public static final byte CHUNK = 8;
+
+	/** The size of a chunk request packet. */
+	public static final int CHUNK_REQUEST_SIZE = 23;
+
+	/** The number of threads sending chunks, unless told otherwise. */
+	public static final int DEFAULT_SENDERS = 8;
+
+	/** The size of the block cache in MB, unless told otherwise. */
+	public static final int DEFAULT_CACHE_SIZE = 64;
+
+	/* The file to serve. */
+	private File dataFile;
+
+	/* The port number to listen for requests on. */
+	private int portNumber;
+
+	/* The window size to send chunks with. */
+	private int windowSize;
+
+	/* The number of threads sending chunks. */
+	private int numSenders;
+
+	/* The cache the file is read through. */
+	private BlockCache cache;
+
+	/* The chunks waiting to be sent, and the ports chunks are being sent to. */
+	private LinkedList<ChunkRequest> requests;
+	private Set<Integer> busyPorts;
+
+	/**
+	 * Default constructor. Uses <a href="#DEFAULT_SENDERS">DEFAULT_SENDERS</a>
+	 * threads and a cache of <a href="#DEFAULT_CACHE_SIZE">DEFAULT_CACHE_SIZE</a>
+	 * MB.
+	 *
+	 * @param dataFile		The file to serve.
+	 * @param portNumber	The port number to listen for requests on.
+	 * @param windowSize	The window size to send chunks with.
+	 */
+	public ChunkServer(File dataFile, int portNumber, int windowSize) {
+		this(dataFile, portNumber, windowSize, DEFAULT_SENDERS, DEFAULT_CACHE_SIZE * 1024L * 1024L);
+	}
+
+	/**
+	 * Constructor setting the number of threads and size of the cache.
+	 *
+	 * @param dataFile		The file to serve.
+	 * @param portNumber	The port number to listen for requests on.
+	 * @param windowSize	The window size to send chunks with.
+	 * @param numSenders	The number of chunks to send at once.
+	 * @param cacheBytes	The size of the block cache, in bytes.
+	 */
+	public ChunkServer(File dataFile, int portNumber, int windowSize, int numSenders, long cacheBytes) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		if (numSenders < 1) {
+			throw new IllegalArgumentException("There must be at least one sending thread.");
+		}
+
+		/* Each thread pins the block it is sending from. */
+		if (cacheBytes / BlockCache.BLOCK_SIZE < numSenders) {
+			throw new IllegalArgumentException("The cache must hold at least one block per sending thread.");
+		}
+
+		this.dataFile = dataFile;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+		this.numSenders = numSenders;
+		this.cache = new BlockCache(cacheBytes);
+		this.requests = new LinkedList<ChunkRequest>();
+		this.busyPorts = new HashSet<Integer>();
+	}
+
+	/**
+	 * Returns the cache the file is read through, for its hit counts.
+	 *
+	 * @return		The cache.
+	 */
+	public BlockCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * The ChunkRequest class holds a chunk that has been asked for.
+	 */
+	private static class ChunkRequest {
+
+		private InetAddress address;
+		private int port;
+		private int requestNum;
+		private long offset;
+		private long length;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param address		The host that asked.
+		 * @param port			The port the host asked control requests from.
+		 * @param requestNum	The request number.
+		 * @param offset		The offset of the chunk.
+		 * @param length		The length of the chunk.
+		 */
+		public ChunkRequest(InetAddress address, int port, int requestNum, long offset, long length) {
+			this.address = address;
+			this.port = port;
+			this.requestNum = requestNum;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Returns whether another request is a repeat of this one.
+		 *
+		 * @param other		The other request.
+		 *
+		 * @return			True if it came from the same place with the same number.
+		 */
+		public boolean isRepeatOf(ChunkRequest other) {
+			return other != null && address.equals(other.address) && port == other.port
+					&& requestNum == other.requestNum;
+		}
+
+	}
+
+	/* Queues a chunk to be sent. */
+	private synchronized void addRequest(ChunkRequest request) {
+		requests.add(request);
+		notifyAll();
+	}
+
+	/* Waits for the first chunk whose port is not being sent to, and takes it. */
+	private synchronized ChunkRequest takeRequest() throws InterruptedException {
+
+		while (true) {
+
+			Iterator<ChunkRequest> iterator = requests.iterator();
+			while (iterator.hasNext()) {
+				ChunkRequest request = iterator.next();
+				if (!busyPorts.contains(request.port)) {
+					iterator.remove();
+					busyPorts.add(request.port);
+					return request;
+				}
+			}
+
+			wait();
+
+		}
+
+	}
+
+	/* Frees the port a chunk was sent to. */
+	private synchronized void finishRequest(ChunkRequest request) {
+		busyPorts.remove(request.port);
+		notifyAll();
+	}
+
+	/**
+	 * This thread sends requested chunks, one after the other.
+	 */
+	private class SendThread extends Thread {
+
+		/**
+		 * The main method for the thread. Sends each chunk as it is requested.
+		 */
+		public void run() {
+
+			while (true) {
+
+				ChunkRequest request;
+				try {
+					request = takeRequest();
+				} catch (InterruptedException ie) {
+					return;
+				}
+
+				try {
+
+					/* The requester may have got the chunk elsewhere and stopped listening. */
+					Sender4 sender = new Sender4(request.address.getHostAddress(), request.port, windowSize);
+					sender.setIdleTimeout(MultiSourceReceiver.IDLE_TIMEOUT_LENGTH);
+					InputStream chunk = cache.open(dataFile, request.offset, request.length);
+					if (!sender.send(chunk, request.length)) {
+						System.err.println("Error: Unable to send the chunk at " + request.offset + ".");
+					}
+
+				} catch (IOException ioe) {
+					System.err.println("Error: IO Exception:");
+					System.err.println(ioe.getMessage());
+				} finally {
+					finishRequest(request);
+				}
+
+				System.out.println("Cache: " + cache.getHits() + " hits, " + cache.getMisses() +
+						" misses (" + Math.round(100 * cache.getHitRate()) + "% hit rate), " +
+						cache.getEvictions() + " evictions");
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Answers requests forever.
+	 *
+	 * @return		False if the server could not be started or stopped on an
+	 * 				error. Otherwise it never returns.
+	 */
+	public boolean serve() {
+
+		DatagramSocket controlSocket = null;
+
+		for (int i = 0; i < numSenders; i++) {
+			SendThread sendThread = new SendThread();
+			sendThread.setDaemon(true);
+			sendThread.start();
+		}
+
+		try {
+
+			controlSocket = new DatagramSocket(portNumber);
+
+			/* The last chunk request from each host, to spot repeats. Requests
+			 * from one host arrive one at a time, so the latest is enough. */
+			Map<String, ChunkRequest> lastRequests = new HashMap<String, ChunkRequest>();
+
+			while (true) {
+
+				byte[] requestBuffer = new byte[CHUNK_REQUEST_SIZE];
+				DatagramPacket requestPacket = new DatagramPacket(requestBuffer, requestBuffer.length);
+				controlSocket.receive(requestPacket);
+
+				if (requestPacket.getLength() < 3) {
+					continue;
+				}
+
+				int requestNum = ((0x000000FF & requestBuffer[0]) << 8) | (0x000000FF & requestBuffer[1]);
+
+				if (requestBuffer[2] == INFO) {
+
+					ByteBuffer infoBuffer = ByteBuffer.allocate(11);
+					infoBuffer.put(requestBuffer, 0, 3);
+					infoBuffer.putLong(dataFile.length());
+
+					controlSocket.send(new DatagramPacket(infoBuffer.array(), infoBuffer.capacity(),
+							requestPacket.getSocketAddress()));
+
+				} else if (requestBuffer[2] == CHUNK && requestPacket.getLength() == CHUNK_REQUEST_SIZE) {
+
+					ByteBuffer chunkBuffer = ByteBuffer.wrap(requestBuffer, 3, CHUNK_REQUEST_SIZE - 3);
+					long offset = chunkBuffer.getLong();
+					long length = chunkBuffer.getLong();
+					int dataPort = chunkBuffer.getInt();
+
+					if (offset < 0 || length < 0 || offset + length > dataFile.length()) {
+						continue;
+					}
+
+					ChunkRequest request = new ChunkRequest(requestPacket.getAddress(), dataPort,
+							requestNum, offset, length);
+
+					String requester = requestPacket.getSocketAddress().toString();
+					if (!request.isRepeatOf(lastRequests.get(requester))) {
+						lastRequests.put(requester, request);
+						addRequest(request);
+					}
+
+					byte[] ackBuffer = { requestBuffer[0], requestBuffer[1], CHUNK };
+					controlSocket.send(new DatagramPacket(ackBuffer, ackBuffer.length,
+							requestPacket.getSocketAddress()));
+
+				}
+
+			}
+
+		} catch (SocketException se) {
+
+			System.err.println("Error: Unable to open a datagram socket:");
+			System.err.println(se.getMessage());
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+
+		} finally {
+
+			if (controlSocket != null) {
+				controlSocket.close();
+			}
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * The main method for running the ChunkServer class. There are three
+	 * compulsory arguments - the port number to listen on, the name of the
+	 * file to serve and the window size - and two optional ones, the number of
+	 * chunks to send at once and the size of the block cache in MB.
+	 *
+	 * @param args		The program arguments: the port number, the name of
+	 * 					the file to serve, the window size and optionally the
+	 * 					number of sending threads and the cache size.
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 3 || args.length > 5) {
+			System.err.println("Usage: java ChunkServer port filename windowsize [senders] [cache_mb]");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File dataFile = new File(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+			int numSenders = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SENDERS;
+			long cacheBytes = (args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_CACHE_SIZE) * 1024L * 1024L;
+
+			ChunkServer server = new ChunkServer(dataFile, portNumber, windowSize, numSenders, cacheBytes);
+			System.out.println("Serving " + dataFile.getPath() + " on port " + portNumber);
+			server.serve();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number, window size, " +
+					"number of senders or cache size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		System.err.println("The server has stopped.");
+
+	}
+
+}
@@ -0,0 +1,254 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A store of chunks of data on disk, each kept in a file named by the hex SHA-256
+ * hash of its contents, so that a chunk is only ever stored once however many
+ * files it turns up in. The store is kept under a given size by throwing away the
+ * least recently used chunks. The order of use is kept in the files' modification
+ * times, so it survives restarts.
+ * <p>
+ * Chunks can be pinned while a transfer needs them, so that storing the chunks it
+ * is sent cannot throw away the ones it is relying on the store for. While chunks
+ * are pinned the store may grow past its size.
+ *
+ * @author s0840449
+ */
+public class ChunkStore {
+
+	/** The size of a chunk hash. */
+	public static final int HASH_SIZE = 32;
+
+	/* The directory holding the chunks, and the most bytes to keep in it. */
+	private File directory;
+	private long maxBytes;
+
+	/* The chunks held, from least to most recently used, with their sizes. */
+	private LinkedHashMap<String, Long> chunks;
+	private long totalBytes;
+
+	/* The chunks that must not be thrown away. */
+	private Set<String> pinned;
+
+	/**
+	 * Default constructor. Opens the store in a directory, taking in any
+	 * chunks already there.
+	 *
+	 * @param directory		The directory to keep the chunks in.
+	 * @param maxBytes		The most bytes of chunks to keep.
+	 */
+	public ChunkStore(File directory, long maxBytes) {
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Unable to create the chunk store \"" + directory.getPath() + "\".");
+		}
+
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.chunks = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		this.totalBytes = 0;
+		this.pinned = new HashSet<String>();
+
+		File[] files = directory.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File file1, File file2) {
+				return Long.compare(file1.lastModified(), file2.lastModified());
+			}
+		});
+
+		for (File file : files) {
+			if (file.getName().length() == 2 * HASH_SIZE) {
+				chunks.put(file.getName(), file.length());
+				totalBytes += file.length();
+			}
+		}
+
+		evict();
+
+	}
+
+	/**
+	 * Returns the hash a chunk is stored under.
+	 *
+	 * @param data		The chunk.
+	 *
+	 * @return			Its SHA-256 hash.
+	 */
+	public static byte[] hash(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException nsae) {
+			/* Every Java platform has to provide SHA-256. */
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * Returns whether a chunk is held, counting as a use of it.
+	 *
+	 * @param hash		The chunk's hash.
+	 *
+	 * @return			True if it is held.
+	 */
+	public synchronized boolean contains(byte[] hash) {
+		return touch(toHex(hash));
+	}
+
+	/**
+	 * Reads a chunk.
+	 *
+	 * @param hash		The chunk's hash.
+	 *
+	 * @return			The chunk, or null if it is not held.
+	 *
+	 * @throws IOException	If the chunk cannot be read.
+	 */
+	public synchronized byte[] get(byte[] hash) throws IOException {
+
+		String name = toHex(hash);
+		if (!touch(name)) {
+			return null;
+		}
+
+		return Files.readAllBytes(new File(directory, name).toPath());
+
+	}
+
+	/**
+	 * Stores a chunk, throwing away the least recently used chunks if the
+	 * store has grown too large.
+	 *
+	 * @param data		The chunk.
+	 *
+	 * @return			The chunk's hash.
+	 *
+	 * @throws IOException	If the chunk cannot be written.
+	 */
+	public synchronized byte[] put(byte[] data) throws IOException {
+
+		byte[] hash = hash(data);
+		String name = toHex(hash);
+
+		if (touch(name)) {
+			return hash;
+		}
+
+		/* Write it under another name first, so that a half written chunk is
+		 * never taken for a whole one. */
+		File temp = new File(directory, name + ".tmp");
+		FileOutputStream writer = new FileOutputStream(temp);
+		try {
+			writer.write(data);
+		} finally {
+			writer.close();
+		}
+		Files.move(temp.toPath(), new File(directory, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		chunks.put(name, (long) data.length);
+		totalBytes += data.length;
+
+		evict();
+
+		return hash;
+
+	}
+
+	/**
+	 * Pins chunks, so that they are not thrown away until unpinned.
+	 *
+	 * @param hashes	The chunks' hashes.
+	 */
+	public synchronized void pin(Collection<byte[]> hashes) {
+		for (byte[] hash : hashes) {
+			pinned.add(toHex(hash));
+		}
+	}
+
+	/**
+	 * Unpins chunks, and throws away chunks if the store has grown too large
+	 * while they were pinned.
+	 *
+	 * @param hashes	The chunks' hashes.
+	 */
+	public synchronized void unpin(Collection<byte[]> hashes) {
+
+		for (byte[] hash : hashes) {
+			pinned.remove(toHex(hash));
+		}
+
+		evict();
+
+	}
+
+	/**
+	 * Returns the number of bytes of chunks held.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/* Marks a chunk as just used, returning false if it is not held. */
+	private boolean touch(String name) {
+
+		if (chunks.get(name) == null) {
+			return false;
+		}
+
+		new File(directory, name).setLastModified(System.currentTimeMillis());
+		return true;
+
+	}
+
+	/* Throws away the least recently used unpinned chunks until the store fits. */
+	private void evict() {
+
+		Iterator<Map.Entry<String, Long>> iterator = chunks.entrySet().iterator();
+
+		while (totalBytes > maxBytes && iterator.hasNext()) {
+
+			Map.Entry<String, Long> chunk = iterator.next();
+			if (pinned.contains(chunk.getKey())) {
+				continue;
+			}
+
+			if (new File(directory, chunk.getKey()).delete()) {
+				totalBytes -= chunk.getValue();
+				iterator.remove();
+			}
+
+		}
+
+	}
+
+	/* Returns a hash as hex. */
+	private static String toHex(byte[] hash) {
+
+		StringBuilder hex = new StringBuilder(2 * hash.length);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return hex.toString();
+
+	}
+
+}
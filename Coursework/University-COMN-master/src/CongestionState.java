@@ -0,0 +1,178 @@
+/* Stephen McGruer 0840449 */
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one congestion window for every transfer from this process to the same
+ * host, so that parallel transfers through the same bottleneck behave like a
+ * single well-behaved flow rather than each growing its own window, together
+ * overloading the link and all losing packets at once.
+ * <p>
+ * The shared window grows as in TCP: by a packet per ack below the slow-start
+ * threshold, and by about a packet per round trip above it, however many
+ * transfers the acks came from. A loss halves it, but losses of packets sent before
+ * the last halving are ignored, so a burst of losses across the transfers counts
+ * as one congestion event.
+ * <p>
+ * Each transfer may have as many packets unacked as its share of the shared
+ * window, split by weight, and never fewer than one.
+ *
+ * @author s0840449
+ */
+public class CongestionState {
+
+	/** The shared window (in packets) of a new host, and its smallest value. */
+	public static final int INITIAL_WINDOW = 4;
+	public static final int MIN_WINDOW = 2;
+
+	/* The shared states, one per host. */
+	private static final Map<InetAddress, CongestionState> STATES =
+			new ConcurrentHashMap<InetAddress, CongestionState>();
+
+	/* The shared window and slow-start threshold, in packets. */
+	private double window;
+	private double slowStartThreshold;
+
+	/* When (in ms) the window was last halved. */
+	private long lastDecrease;
+
+	/* The transfers sharing the window, with their weights and the largest
+	 * window each would use. */
+	private Map<Object, Integer> weights;
+	private Map<Object, Integer> maxWindows;
+	private int totalWeight;
+	private int totalMaxWindow;
+
+	/**
+	 * Default constructor. Use {@link #forHost(InetAddress)} to share the state.
+	 */
+	public CongestionState() {
+		this.window = INITIAL_WINDOW;
+		this.slowStartThreshold = Double.MAX_VALUE;
+		this.lastDecrease = 0;
+
+		this.weights = new HashMap<Object, Integer>();
+		this.maxWindows = new HashMap<Object, Integer>();
+		this.totalWeight = 0;
+		this.totalMaxWindow = 0;
+	}
+
+	/**
+	 * Returns the congestion state shared by every transfer to a host.
+	 *
+	 * @param host		The receiving host.
+	 *
+	 * @return			The state for that host.
+	 */
+	public static CongestionState forHost(InetAddress host) {
+
+		CongestionState state = STATES.get(host);
+
+		if (state == null) {
+			synchronized (STATES) {
+				state = STATES.get(host);
+				if (state == null) {
+					state = new CongestionState();
+					STATES.put(host, state);
+				}
+			}
+		}
+
+		return state;
+
+	}
+
+	/**
+	 * Adds a transfer to those sharing the window, or changes its weight.
+	 *
+	 * @param transfer		The transfer.
+	 * @param weight		Its weight, at least 1.
+	 * @param maxWindow		The largest window it would use, in packets. The
+	 * 						shared window never grows past the total of these,
+	 * 						as the transfers could not use it.
+	 */
+	public synchronized void join(Object transfer, int weight, int maxWindow) {
+
+		leave(transfer);
+
+		weights.put(transfer, weight);
+		maxWindows.put(transfer, maxWindow);
+		totalWeight += weight;
+		totalMaxWindow += maxWindow;
+
+	}
+
+	/**
+	 * Removes a transfer from those sharing the window.
+	 *
+	 * @param transfer		The transfer.
+	 */
+	public synchronized void leave(Object transfer) {
+
+		Integer weight = weights.remove(transfer);
+
+		if (weight != null) {
+			totalWeight -= weight;
+			totalMaxWindow -= maxWindows.remove(transfer);
+		}
+
+	}
+
+	/**
+	 * Returns the number of packets a transfer may have unacked: its share of
+	 * the shared window, by weight.
+	 *
+	 * @param transfer		The transfer, which must have joined.
+	 *
+	 * @return				The transfer's window, in packets.
+	 */
+	public synchronized int getWindow(Object transfer) {
+
+		Integer weight = weights.get(transfer);
+
+		if (weight == null) {
+			return (int) window;
+		}
+
+		return Math.max(1, (int) (window * weight / totalWeight));
+
+	}
+
+	/**
+	 * Grows the shared window for a newly acked packet.
+	 */
+	public synchronized void onAck() {
+
+		if (window < slowStartThreshold) {
+			window += 1;
+		} else {
+			window += 1 / window;
+		}
+
+		window = Math.max(MIN_WINDOW, Math.min(window, totalMaxWindow));
+
+	}
+
+	/**
+	 * Halves the shared window for a lost packet, unless the packet was sent
+	 * before the window was last halved, in which case its loss is part of the
+	 * same congestion event.
+	 *
+	 * @param timeSent		When (in ms) the lost packet was sent.
+	 */
+	public synchronized void onLoss(long timeSent) {
+
+		if (timeSent <= lastDecrease) {
+			return;
+		}
+
+		slowStartThreshold = Math.max(MIN_WINDOW, window / 2);
+		window = slowStartThreshold;
+		lastDecrease = System.currentTimeMillis();
+
+	}
+
+}
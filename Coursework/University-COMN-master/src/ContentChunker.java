@@ -0,0 +1,153 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Cuts a stream into chunks at content-defined boundaries, in the manner of
+ * FastCDC. A gear hash of the last few dozen bytes is rolled along the data, and a
+ * chunk ends wherever its low bits are all zero. As a boundary depends only on the
+ * bytes just before it, inserting or removing data only moves the boundaries
+ * around the change, and the rest of the chunks come out the same - unlike cutting
+ * at fixed offsets, where everything after the change shifts.
+ * <p>
+ * Chunks are at least <a href="#MIN_CHUNK_SIZE">MIN_CHUNK_SIZE</a> and at most
+ * <a href="#MAX_CHUNK_SIZE">MAX_CHUNK_SIZE</a> bytes. Below the average size a
+ * harder mask is used, and above it an easier one, which keeps the sizes close to
+ * <a href="#AVERAGE_CHUNK_SIZE">AVERAGE_CHUNK_SIZE</a>.
+ *
+ * @author s0840449
+ */
+public class ContentChunker {
+
+	/** The smallest, average and largest chunk sizes. */
+	public static final int MIN_CHUNK_SIZE = 16 * 1024;
+	public static final int AVERAGE_CHUNK_SIZE = 64 * 1024;
+	public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+	/* The masks used before and after the average size. The average size is 2^16,
+	 * so these have two bits more and two bits fewer than 16 set. The bits are
+	 * spread out, so that each boundary depends on the last 48 or so bytes. */
+	private static final long HARD_MASK = 0x24a4949292524000L;
+	private static final long EASY_MASK = 0x2244889112244000L;
+
+	/* A random value for each byte. The seed is fixed, so that the same data is
+	 * always cut in the same places. */
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x0840449L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/* The stream being cut up. */
+	private InputStream source;
+
+	/* The data in hand, and where the next chunk starts in it. */
+	private byte[] buffer;
+	private int start;
+	private int end;
+	private boolean sourceEnded;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param source	The stream to cut into chunks.
+	 */
+	public ContentChunker(InputStream source) {
+		this.source = source;
+		this.buffer = new byte[2 * MAX_CHUNK_SIZE];
+		this.start = 0;
+		this.end = 0;
+		this.sourceEnded = false;
+	}
+
+	/**
+	 * Returns the next chunk of the stream.
+	 *
+	 * @return		The chunk, or null at the end of the stream.
+	 *
+	 * @throws IOException	If the stream cannot be read.
+	 */
+	public byte[] nextChunk() throws IOException {
+
+		/* Make sure a whole chunk is in hand, if the stream is long enough. */
+		if (end - start < MAX_CHUNK_SIZE && !sourceEnded) {
+			fill();
+		}
+
+		if (start == end) {
+			return null;
+		}
+
+		int length = boundary(start, end - start);
+		byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+		start += length;
+
+		return chunk;
+
+	}
+
+	/**
+	 * Closes the stream being cut up.
+	 *
+	 * @throws IOException	If the stream cannot be closed.
+	 */
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/* Returns the length of the chunk starting at off. */
+	private int boundary(int off, int available) {
+
+		if (available <= MIN_CHUNK_SIZE) {
+			return available;
+		}
+
+		int limit = Math.min(available, MAX_CHUNK_SIZE);
+		int normal = Math.min(limit, AVERAGE_CHUNK_SIZE);
+
+		/* Boundaries before the minimum size are skipped, so the hash starts there. */
+		long hash = 0;
+		int i = MIN_CHUNK_SIZE;
+
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[0xFF & buffer[off + i]];
+			if ((hash & HARD_MASK) == 0) {
+				return i + 1;
+			}
+		}
+
+		for (; i < limit; i++) {
+			hash = (hash << 1) + GEAR[0xFF & buffer[off + i]];
+			if ((hash & EASY_MASK) == 0) {
+				return i + 1;
+			}
+		}
+
+		return limit;
+
+	}
+
+	/* Moves the data in hand to the front of the buffer and reads more after it. */
+	private void fill() throws IOException {
+
+		System.arraycopy(buffer, start, buffer, 0, end - start);
+		end -= start;
+		start = 0;
+
+		while (end < buffer.length) {
+			int read = source.read(buffer, end, buffer.length - end);
+			if (read < 0) {
+				sourceEnded = true;
+				break;
+			}
+			end += read;
+		}
+
+	}
+
+}
@@ -0,0 +1,411 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The DedupReceiver class receives a file from a {@link DedupSender}, keeping the
+ * chunks of every file it receives in a {@link ChunkStore}. The sender first offers
+ * the hashes of the file's chunks, and only the chunks not already in the store
+ * are sent - the rest are read back out of it. Sending a file again, or one that
+ * shares most of its data with a file sent before (under any name), then costs
+ * little more than the list of hashes. Chunks are cut with a
+ * {@link ContentChunker}, so data shifted by an insertion still matches.
+ * <p>
+ * The transfer goes:
+ * <ol>
+ * <li>The sender sends the recipe to our port with {@link Sender4}. It is the four
+ * byte number of chunks, then for each chunk, in order, its thirty two byte
+ * SHA-256 hash and four byte length.
+ * <li>We send back which chunks we want to the sender's port + 2 with
+ * {@link Sender4} (with its acks coming back on our port + 3). It is a bitmap, a
+ * bit per chunk of the recipe starting from the high bit of the first byte (see
+ * {@link WantedBitmap}). A chunk that appears more than once is only asked for
+ * the first time.
+ * <li>The sender sends the chunks asked for to our port with {@link Sender4}, one
+ * after another in recipe order.
+ * </ol>
+ * Each chunk received is checked against its hash before it is stored. The file is
+ * built beside its final name, and only moved there once whole. Once the recipe
+ * has arrived, both ends give up on the other after
+ * <a href="#IDLE_TIMEOUT_LENGTH">IDLE_TIMEOUT_LENGTH</a> of quiet.
+ *
+ * @author s0840449
+ *
+ */
+public class DedupReceiver {
+
+	/** The size of the recipe entry for one chunk. */
+	public static final int RECIPE_ENTRY_SIZE = ChunkStore.HASH_SIZE + 4;
+
+	/** How long (in ms) either end waits to hear from the other, once the recipe is sent. */
+	public static final int IDLE_TIMEOUT_LENGTH = 10000;
+
+	/* The port number we receive on. */
+	private int portNumber;
+
+	/* The file to write, and the store of chunks. */
+	private File dataFile;
+	private ChunkStore store;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* Counts reported once done. */
+	private long receivedBytes;
+	private long reusedBytes;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param portNumber	The port number we receive on, and that the sender's
+	 * 						ports are worked out from.
+	 * @param dataFile		The file to write the received file to.
+	 * @param store			The store of chunks already held.
+	 * @param windowSize	The window size.
+	 */
+	public DedupReceiver(int portNumber, File dataFile, ChunkStore store, int windowSize) {
+		this.portNumber = portNumber;
+		this.dataFile = dataFile;
+		this.store = store;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Waits for a sender's recipe, then receives the file from it.
+	 *
+	 * @return		True if the file was received and put in place, False
+	 * 				otherwise.
+	 */
+	public boolean receive() {
+
+		Receiver4 recipeReceiver = new Receiver4(null, portNumber, windowSize);
+		ByteArrayOutputStream recipeBytes = new ByteArrayOutputStream();
+
+		if (!recipeReceiver.receive(recipeBytes)) {
+			System.err.println("Error: Unable to receive the recipe.");
+			return false;
+		}
+
+		InetAddress senderAddress = recipeReceiver.getSenderAddress();
+
+		List<byte[]> hashes;
+		int[] lengths;
+		try {
+
+			ByteBuffer recipe = ByteBuffer.wrap(recipeBytes.toByteArray());
+			if (recipe.remaining() < 4) {
+				throw new IOException("The recipe is malformed.");
+			}
+
+			int numChunks = recipe.getInt();
+			if (numChunks < 0 || recipe.remaining() != (long) numChunks * RECIPE_ENTRY_SIZE) {
+				throw new IOException("The recipe is malformed.");
+			}
+
+			hashes = new ArrayList<byte[]>(numChunks);
+			lengths = new int[numChunks];
+			for (int i = 0; i < numChunks; i++) {
+				byte[] hash = new byte[ChunkStore.HASH_SIZE];
+				recipe.get(hash);
+				hashes.add(hash);
+				lengths[i] = recipe.getInt();
+				if (lengths[i] <= 0 || lengths[i] > ContentChunker.MAX_CHUNK_SIZE) {
+					throw new IOException("The recipe is malformed.");
+				}
+			}
+
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		/* Keep the chunks the file needs until it is written, so that storing the
+		 * ones we are sent cannot throw them away. */
+		store.pin(hashes);
+
+		File newFile = new File(dataFile.getPath() + ".dedup");
+
+		try {
+
+			boolean[] wanted = new boolean[hashes.size()];
+			long wantedBytes = 0;
+
+			Set<ByteBuffer> asked = new HashSet<ByteBuffer>();
+			for (int i = 0; i < wanted.length; i++) {
+				byte[] hash = hashes.get(i);
+				if (!store.contains(hash) && asked.add(ByteBuffer.wrap(hash))) {
+					wanted[i] = true;
+					wantedBytes += lengths[i];
+				}
+			}
+			byte[] bitmap = WantedBitmap.encode(wanted);
+
+			/* Start listening for the chunks before asking for them. */
+			final Receiver4 receiver = new Receiver4(null, portNumber, windowSize);
+			receiver.setIdleTimeout(IDLE_TIMEOUT_LENGTH);
+			final Materializer materializer = new Materializer(newFile, hashes, lengths, wanted);
+			final boolean[] received = { false };
+
+			Thread receiveThread = new Thread() {
+				public void run() {
+					received[0] = receiver.receive(materializer);
+				}
+			};
+			receiveThread.setDaemon(true);
+			receiveThread.start();
+
+			Sender4 sender = new Sender4(senderAddress.getHostAddress(), portNumber + 2, windowSize);
+			sender.setIdleTimeout(IDLE_TIMEOUT_LENGTH);
+			if (!sender.send(new ByteArrayInputStream(bitmap), bitmap.length)) {
+				System.err.println("Error: Unable to send the wanted chunks.");
+				return false;
+			}
+
+			try {
+				receiveThread.join();
+			} catch (InterruptedException ie) {
+				return false;
+			}
+
+			if (!received[0]) {
+				return false;
+			}
+
+			if (!materializer.isComplete()) {
+				System.err.println("Error: The sender did not send every chunk asked for.");
+				return false;
+			}
+
+			Files.move(newFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			receivedBytes = wantedBytes;
+			reusedBytes = materializer.writtenBytes - wantedBytes;
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		} finally {
+
+			store.unpin(hashes);
+			newFile.delete();
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of bytes of the file that were sent.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes of the file read from the chunk store.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getReusedBytes() {
+		return reusedBytes;
+	}
+
+	/**
+	 * The Materializer class takes in the chunks asked for, in order, and
+	 * writes out the file from them and the chunks in the store.
+	 */
+	private class Materializer extends OutputStream {
+
+		/* The recipe, and which of its chunks are being sent. */
+		private List<byte[]> hashes;
+		private int[] lengths;
+		private boolean[] wanted;
+
+		/* The file being built. */
+		private OutputStream writer;
+
+		/* The next chunk of the recipe, and the part of it received so far if
+		 * it is being sent. */
+		private int next;
+		private byte[] chunk;
+		private int filled;
+
+		/* The number of bytes of the file written. */
+		private long writtenBytes;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param newFile		Where to write the file.
+		 * @param hashes		The hash of each chunk of the file.
+		 * @param lengths		The length of each chunk of the file.
+		 * @param wanted		Which chunks are being sent.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public Materializer(File newFile, List<byte[]> hashes, int[] lengths, boolean[] wanted) throws IOException {
+			this.hashes = hashes;
+			this.lengths = lengths;
+			this.wanted = wanted;
+			this.writer = new BufferedOutputStream(new FileOutputStream(newFile));
+			this.next = 0;
+			this.filled = 0;
+			this.writtenBytes = 0;
+		}
+
+		/**
+		 * Returns whether every chunk of the file has been written.
+		 *
+		 * @return		True if the file is whole.
+		 */
+		public boolean isComplete() {
+			return next == wanted.length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+
+			while (len > 0) {
+
+				writeKnown();
+
+				if (next == wanted.length) {
+					throw new IOException("More data was sent than asked for.");
+				}
+
+				if (chunk == null) {
+					chunk = new byte[lengths[next]];
+					filled = 0;
+				}
+
+				int count = Math.min(len, chunk.length - filled);
+				System.arraycopy(data, off, chunk, filled, count);
+				filled += count;
+				off += count;
+				len -= count;
+
+				if (filled == chunk.length) {
+
+					if (!Arrays.equals(ChunkStore.hash(chunk), hashes.get(next))) {
+						throw new IOException("A chunk received does not match its hash.");
+					}
+
+					store.put(chunk);
+					writeOut(chunk);
+					chunk = null;
+					next++;
+
+				}
+
+			}
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				writeKnown();
+			} finally {
+				writer.close();
+			}
+		}
+
+		/* Writes out the chunks from the store up to the next one being sent. */
+		private void writeKnown() throws IOException {
+
+			while (next < wanted.length && !wanted[next]) {
+
+				byte[] known = store.get(hashes.get(next));
+				if (known == null || !Arrays.equals(ChunkStore.hash(known), hashes.get(next))) {
+					throw new IOException("A chunk is missing from the store.");
+				}
+
+				writeOut(known);
+				next++;
+
+			}
+
+		}
+
+		/* Writes a chunk of the file. */
+		private void writeOut(byte[] data) throws IOException {
+			writer.write(data);
+			writtenBytes += data.length;
+		}
+
+	}
+
+	/**
+	 * The main method for running the DedupReceiver class. There are five
+	 * compulsory arguments - the port number, the file to write, the chunk store
+	 * directory, the most megabytes to keep in the store, and the window size.
+	 *
+	 * @param args		The program arguments: the port number, the name of the
+	 * 					file, the store directory, the store size and the
+	 * 					window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean receiveSuccessful = false;
+		DedupReceiver receiver = null;
+
+		if (args.length != 5) {
+			System.err.println("Usage: java DedupReceiver port filename storedir storemegabytes windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File dataFile = new File(args[1]);
+			ChunkStore store = new ChunkStore(new File(args[2]), Long.parseLong(args[3]) * 1024 * 1024);
+			int windowSize = Integer.parseInt(args[4]);
+
+			receiver = new DedupReceiver(portNumber, dataFile, store, windowSize);
+			receiveSuccessful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number, store size or window size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (receiveSuccessful) {
+			System.out.println("Success! " + args[1] + " has been received: " + receiver.getReceivedBytes() +
+					" bytes were sent and " + receiver.getReusedBytes() + " bytes reused from the store.");
+		} else {
+			System.err.println("File was not received. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,303 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The DedupSender class sends a file to a {@link DedupReceiver}, sending only the
+ * chunks the receiver does not already hold. See {@link DedupReceiver} for the
+ * protocol.
+ * <p>
+ * The file is read through once to cut it into chunks with a
+ * {@link ContentChunker} and hash them, keeping only where each chunk is. The
+ * chunks asked for are then read back out of the file as they are sent.
+ *
+ * @author s0840449
+ *
+ */
+public class DedupSender {
+
+	/* The receiver's host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The file to send. */
+	private File dataFile;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* Counts reported once done. */
+	private long sentBytes;
+	private long skippedBytes;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The host the receiver is on.
+	 * @param portNumber	The port number the receiver receives on, and that our
+	 * 						ports are worked out from.
+	 * @param dataFile		The file to send.
+	 * @param windowSize	The window size.
+	 */
+	public DedupSender(String host, int portNumber, File dataFile, int windowSize) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		this.host = host;
+		this.portNumber = portNumber;
+		this.dataFile = dataFile;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Offers the receiver the file's chunks, then sends it the ones it asks for.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send() {
+
+		List<Long> offsets = new ArrayList<Long>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+
+		try {
+
+			ContentChunker chunker = new ContentChunker(new FileInputStream(dataFile));
+			long offset = 0;
+
+			try {
+				for (byte[] chunk = chunker.nextChunk(); chunk != null; chunk = chunker.nextChunk()) {
+					entries.write(ChunkStore.hash(chunk));
+					entries.write(ByteBuffer.allocate(4).putInt(chunk.length).array());
+					offsets.add(offset);
+					lengths.add(chunk.length);
+					offset += chunk.length;
+				}
+			} finally {
+				chunker.close();
+			}
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		}
+
+		byte[] recipe = ByteBuffer.allocate(4 + entries.size())
+				.putInt(offsets.size()).put(entries.toByteArray()).array();
+
+		Sender4 recipeSender = new Sender4(host, portNumber, windowSize);
+		if (!recipeSender.send(new ByteArrayInputStream(recipe), recipe.length)) {
+			System.err.println("Error: Unable to send the recipe.");
+			return false;
+		}
+
+		Receiver4 receiver = new Receiver4(null, portNumber + 2, windowSize);
+		receiver.setIdleTimeout(DedupReceiver.IDLE_TIMEOUT_LENGTH);
+		ByteArrayOutputStream bitmap = new ByteArrayOutputStream();
+
+		if (!receiver.receive(bitmap)) {
+			System.err.println("Error: Unable to receive the wanted chunks.");
+			return false;
+		}
+
+		if (bitmap.size() != WantedBitmap.length(offsets.size())) {
+			System.err.println("Error: The wanted chunks are malformed.");
+			return false;
+		}
+
+		byte[] bits = bitmap.toByteArray();
+		List<Long> wantedOffsets = new ArrayList<Long>();
+		List<Integer> wantedLengths = new ArrayList<Integer>();
+		long wantedBytes = 0;
+		long totalBytes = 0;
+
+		for (int i = 0; i < offsets.size(); i++) {
+			if (WantedBitmap.isWanted(bits, i)) {
+				wantedOffsets.add(offsets.get(i));
+				wantedLengths.add(lengths.get(i));
+				wantedBytes += lengths.get(i);
+			}
+			totalBytes += lengths.get(i);
+		}
+
+		ChunkReader chunks;
+		try {
+			chunks = new ChunkReader(wantedOffsets, wantedLengths);
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		Sender4 sender = new Sender4(host, portNumber, windowSize);
+		sender.setIdleTimeout(DedupReceiver.IDLE_TIMEOUT_LENGTH);
+		if (!sender.send(chunks, wantedBytes)) {
+			return false;
+		}
+
+		sentBytes = wantedBytes;
+		skippedBytes = totalBytes - wantedBytes;
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of bytes of the file sent.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getSentBytes() {
+		return sentBytes;
+	}
+
+	/**
+	 * Returns the number of bytes of the file not sent, as the receiver
+	 * already held them.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getSkippedBytes() {
+		return skippedBytes;
+	}
+
+	/**
+	 * The ChunkReader class reads the chunks asked for out of the file, one
+	 * after another.
+	 */
+	private class ChunkReader extends InputStream {
+
+		/* Where the chunks are in the file. */
+		private List<Long> offsets;
+		private List<Integer> lengths;
+
+		/* The file, the chunk being read and how much of it is left. */
+		private RandomAccessFile reader;
+		private int next;
+		private int left;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param offsets		The offset of each chunk.
+		 * @param lengths		The length of each chunk.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public ChunkReader(List<Long> offsets, List<Integer> lengths) throws IOException {
+			this.offsets = offsets;
+			this.lengths = lengths;
+			this.reader = new RandomAccessFile(dataFile, "r");
+			this.next = 0;
+			this.left = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			byte[] single = new byte[1];
+			if (read(single, 0, 1) < 0) {
+				return -1;
+			}
+
+			return 0xFF & single[0];
+
+		}
+
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (left == 0) {
+
+				if (next == offsets.size()) {
+					return -1;
+				}
+
+				reader.seek(offsets.get(next));
+				left = lengths.get(next);
+				next++;
+
+			}
+
+			int read = reader.read(data, off, Math.min(len, left));
+			if (read < 0) {
+				throw new IOException("The file changed while being sent.");
+			}
+			left -= read;
+
+			return read;
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * The main method for running the DedupSender class. There are four
+	 * compulsory arguments - the receiver's host name, the port number, the file
+	 * to send, and the window size.
+	 *
+	 * @param args		The program arguments: the host name, the port number,
+	 * 					the name of the file and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean sendSuccessful = false;
+		DedupSender sender = null;
+
+		if (args.length != 4) {
+			System.err.println("Usage: java DedupSender host_name port filename windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			File dataFile = new File(args[2]);
+			int windowSize = Integer.parseInt(args[3]);
+
+			sender = new DedupSender(host, portNumber, dataFile, windowSize);
+			sendSuccessful = sender.send();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! File has been sent: " + sender.getSentBytes() +
+					" bytes were sent and " + sender.getSkippedBytes() + " bytes were already held.");
+		} else {
+			System.err.println("File was not sent. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,523 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The DeltaReceiver class brings a file up to date with a newer copy held by a
+ * {@link DeltaSender}, in the way rsync does. Rather than taking the whole new
+ * file, it sends the sender a signature of each block of its old copy, and the
+ * sender sends back only the data it could not find in those blocks, along with
+ * references to the blocks it did find. A mostly unchanged file then costs little
+ * more than its signatures.
+ * <p>
+ * The transfer goes:
+ * <ol>
+ * <li>The signatures are sent to the sender's port + 2 with {@link Sender4} (with
+ * its acks coming back on our port + 3). They are the four byte block size, the
+ * eight byte length of the old file, then for each block its four byte
+ * {@link RollingChecksum} and sixteen byte MD5 hash. The last block may be short.
+ * <li>The sender sends the delta back to our port with {@link Sender4}. It is a
+ * list of instructions, each starting with a type byte:
+ * <ul>
+ * <li><a href="#LITERAL">LITERAL</a>, a four byte length, and that much new data.
+ * <li><a href="#COPY">COPY</a>, a four byte block number and a four byte count:
+ * copy that many blocks from the old file, starting at that block.
+ * <li><a href="#END">END</a> and the sixteen byte MD5 hash of the new file.
+ * </ul>
+ * </ol>
+ * The new file is built beside the old one, checked against the hash, and only
+ * then moved over it, so the old copy is kept if anything goes wrong.
+ *
+ * @author s0840449
+ *
+ */
+public class DeltaReceiver {
+
+	/** The instruction type of new data. */
+	public static final byte LITERAL = 1;
+
+	/** The instruction type of a run of blocks copied from the old file. */
+	public static final byte COPY = 2;
+
+	/** The instruction type of the end of the delta. */
+	public static final byte END = 3;
+
+	/** The size of the signature of one block. */
+	public static final int SIGNATURE_SIZE = 20;
+
+	/** The size of the signature header. */
+	public static final int SIGNATURE_HEADER_SIZE = 12;
+
+	/** The smallest and largest block sizes. */
+	public static final int MIN_BLOCK_SIZE = 2 * 1024;
+	public static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	/* The sender's host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The file to bring up to date. */
+	private File dataFile;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* Counts reported once done. */
+	private long literalBytes;
+	private long copiedBytes;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The host the sender is on.
+	 * @param portNumber	The port number we receive the delta on, and that the
+	 * 						sender's ports are worked out from.
+	 * @param dataFile		The file to bring up to date. It need not exist.
+	 * @param windowSize	The window size.
+	 */
+	public DeltaReceiver(String host, int portNumber, File dataFile, int windowSize) {
+		this.host = host;
+		this.portNumber = portNumber;
+		this.dataFile = dataFile;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Picks the block size for a file. As with rsync, this is about the square
+	 * root of the file size, so that the signatures and the cost of a changed
+	 * block both stay small.
+	 *
+	 * @param fileLength	The length of the file.
+	 *
+	 * @return				The block size.
+	 */
+	public static int blockSize(long fileLength) {
+
+		long size = (long) Math.sqrt(fileLength);
+		size = (size / 1024) * 1024;
+
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+
+	}
+
+	/**
+	 * Brings the file up to date.
+	 *
+	 * @return		True if the new file was received, checked and put in place
+	 * 				of the old one, False otherwise.
+	 */
+	public boolean receive() {
+
+		File newFile = new File(dataFile.getPath() + ".delta");
+		RandomAccessFile oldFile = null;
+
+		try {
+
+			/* Start listening for the delta before asking for it. */
+			final Receiver4 receiver = new Receiver4(null, portNumber, windowSize);
+			final DeltaApplier applier = new DeltaApplier(newFile);
+			final boolean[] received = { false };
+
+			Thread receiveThread = new Thread() {
+				public void run() {
+					received[0] = receiver.receive(applier);
+				}
+			};
+			receiveThread.setDaemon(true);
+			receiveThread.start();
+
+			if (dataFile.exists()) {
+				oldFile = new RandomAccessFile(dataFile, "r");
+			}
+			applier.setOldFile(oldFile);
+
+			byte[] signatures = signatures();
+
+			Sender4 sender = new Sender4(host, portNumber + 2, windowSize);
+			if (!sender.send(new ByteArrayInputStream(signatures), signatures.length)) {
+				System.err.println("Error: Unable to send the signatures.");
+				return false;
+			}
+
+			try {
+				receiveThread.join();
+			} catch (InterruptedException ie) {
+				return false;
+			}
+
+			if (!received[0]) {
+				return false;
+			}
+
+			if (!applier.isVerified()) {
+				System.err.println("Error: The rebuilt file does not match the sender's copy.");
+				return false;
+			}
+
+			if (oldFile != null) {
+				oldFile.close();
+				oldFile = null;
+			}
+
+			Files.move(newFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			literalBytes = applier.literalBytes;
+			copiedBytes = applier.copiedBytes;
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		} finally {
+
+			if (oldFile != null) {
+				try {
+					oldFile.close();
+				} catch (IOException ioe) { }
+			}
+
+			newFile.delete();
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of bytes of the new file sent as data, rather than
+	 * copied from the old file.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getLiteralBytes() {
+		return literalBytes;
+	}
+
+	/**
+	 * Returns the number of bytes of the new file copied from the old file.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes;
+	}
+
+	/* Works out the signatures of the old file's blocks. */
+	private byte[] signatures() throws IOException {
+
+		long fileLength = dataFile.exists() ? dataFile.length() : 0;
+		int blockSize = blockSize(fileLength);
+		long numBlocks = (fileLength + blockSize - 1) / blockSize;
+
+		if (SIGNATURE_HEADER_SIZE + numBlocks * SIGNATURE_SIZE > Integer.MAX_VALUE) {
+			throw new IOException("The file is too large to sign.");
+		}
+
+		ByteBuffer signatures = ByteBuffer.allocate((int) (SIGNATURE_HEADER_SIZE + numBlocks * SIGNATURE_SIZE));
+		signatures.putInt(blockSize);
+		signatures.putLong(fileLength);
+
+		if (numBlocks == 0) {
+			return signatures.array();
+		}
+
+		MessageDigest md5 = newMd5();
+		RollingChecksum checksum = new RollingChecksum();
+		byte[] block = new byte[blockSize];
+
+		FileInputStream reader = new FileInputStream(dataFile);
+		try {
+
+			for (long i = 0; i < numBlocks; i++) {
+
+				int length = (int) Math.min(blockSize, fileLength - i * blockSize);
+				int read = 0;
+				while (read < length) {
+					int count = reader.read(block, read, length - read);
+					if (count < 0) {
+						throw new IOException("The file changed while being signed.");
+					}
+					read += count;
+				}
+
+				checksum.reset(block, 0, length);
+				md5.update(block, 0, length);
+
+				signatures.putInt(checksum.getValue());
+				signatures.put(md5.digest());
+
+			}
+
+		} finally {
+			reader.close();
+		}
+
+		return signatures.array();
+
+	}
+
+	/**
+	 * Returns a new MD5 digest.
+	 *
+	 * @return		The digest.
+	 */
+	public static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException nsae) {
+			/* Every Java platform has to provide MD5. */
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * The DeltaApplier class takes in the delta, in order, and writes out the
+	 * new file from it and the old file.
+	 */
+	private static class DeltaApplier extends OutputStream {
+
+		/* The old file, or null if there is none, and its block size. */
+		private RandomAccessFile oldFile;
+		private int blockSize;
+
+		/* The new file, and the hash of what has been written to it. */
+		private OutputStream writer;
+		private MessageDigest md5;
+		private boolean verified;
+
+		/* Collects the instruction being read. */
+		private ByteBuffer instruction;
+		private long literalLeft;
+
+		/* Counts of how the new file was made. */
+		private long literalBytes;
+		private long copiedBytes;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param newFile		Where to write the new file.
+		 *
+		 * @throws IOException	If it cannot be opened.
+		 */
+		public DeltaApplier(File newFile) throws IOException {
+			this.writer = new BufferedOutputStream(new FileOutputStream(newFile));
+			this.md5 = newMd5();
+			this.verified = false;
+
+			this.instruction = ByteBuffer.allocate(1);
+			this.literalLeft = 0;
+		}
+
+		/**
+		 * Sets the old file, which must be done before any of the delta arrives.
+		 *
+		 * @param oldFile		The old file, or null if there is none.
+		 *
+		 * @throws IOException	If its length cannot be read.
+		 */
+		public void setOldFile(RandomAccessFile oldFile) throws IOException {
+			this.oldFile = oldFile;
+			this.blockSize = blockSize((oldFile == null) ? 0 : oldFile.length());
+		}
+
+		/**
+		 * Returns whether the end of the delta arrived, with a hash matching
+		 * the new file.
+		 *
+		 * @return		True if the new file is whole and correct.
+		 */
+		public boolean isVerified() {
+			return verified;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+
+			while (len > 0) {
+
+				if (verified) {
+					throw new IOException("The delta continues past its end.");
+				}
+
+				if (literalLeft > 0) {
+
+					int count = (int) Math.min(len, literalLeft);
+					writeOut(data, off, count);
+					literalBytes += count;
+					literalLeft -= count;
+					off += count;
+					len -= count;
+					continue;
+
+				}
+
+				int count = Math.min(len, instruction.remaining());
+				instruction.put(data, off, count);
+				off += count;
+				len -= count;
+
+				if (!instruction.hasRemaining()) {
+					readInstruction();
+				}
+
+			}
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.close();
+		}
+
+		/* Acts on the instruction collected so far, growing the buffer if only
+		 * its type has been read. */
+		private void readInstruction() throws IOException {
+
+			byte type = instruction.get(0);
+
+			int size;
+			switch (type) {
+			case LITERAL:
+				size = 5;
+				break;
+			case COPY:
+				size = 9;
+				break;
+			case END:
+				size = 17;
+				break;
+			default:
+				throw new IOException("The delta holds an unknown instruction.");
+			}
+
+			if (instruction.capacity() < size) {
+				instruction = ByteBuffer.allocate(size).put(type);
+				return;
+			}
+
+			instruction.flip();
+			instruction.get();
+
+			if (type == LITERAL) {
+
+				literalLeft = instruction.getInt();
+
+			} else if (type == COPY) {
+
+				int block = instruction.getInt();
+				int count = instruction.getInt();
+				copyBlocks(block, count);
+
+			} else {
+
+				byte[] expected = new byte[16];
+				instruction.get(expected);
+				writer.flush();
+				verified = Arrays.equals(expected, md5.digest());
+
+			}
+
+			instruction = ByteBuffer.allocate(1);
+
+		}
+
+		/* Copies a run of blocks from the old file to the new one. */
+		private void copyBlocks(int block, int count) throws IOException {
+
+			long start = (long) block * blockSize;
+			long end = Math.min(start + (long) count * blockSize, (oldFile == null) ? 0 : oldFile.length());
+
+			if (block < 0 || count <= 0 || start >= end) {
+				throw new IOException("The delta refers to a block the old file does not have.");
+			}
+
+			byte[] buffer = new byte[blockSize];
+			oldFile.seek(start);
+
+			for (long position = start; position < end; ) {
+				int length = (int) Math.min(buffer.length, end - position);
+				oldFile.readFully(buffer, 0, length);
+				writeOut(buffer, 0, length);
+				position += length;
+			}
+
+			copiedBytes += end - start;
+
+		}
+
+		/* Writes part of the new file. */
+		private void writeOut(byte[] data, int off, int len) throws IOException {
+			writer.write(data, off, len);
+			md5.update(data, off, len);
+		}
+
+	}
+
+	/**
+	 * The main method for running the DeltaReceiver class. There are four
+	 * compulsory arguments - the sender's host name, the port number, the file
+	 * to bring up to date, and the window size.
+	 *
+	 * @param args		The program arguments: the host name, the port number,
+	 * 					the name of the file and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean receiveSuccessful = false;
+		DeltaReceiver receiver = null;
+
+		if (args.length != 4) {
+			System.err.println("Usage: java DeltaReceiver host_name port filename windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			File dataFile = new File(args[2]);
+			int windowSize = Integer.parseInt(args[3]);
+
+			receiver = new DeltaReceiver(host, portNumber, dataFile, windowSize);
+			receiveSuccessful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (receiveSuccessful) {
+			System.out.println("Success! " + args[2] + " is up to date: " + receiver.getLiteralBytes() +
+					" bytes were sent and " + receiver.getCopiedBytes() + " bytes copied.");
+		} else {
+			System.err.println("File was not brought up to date. Please try again.");
+		}
+
+	}
+
+}
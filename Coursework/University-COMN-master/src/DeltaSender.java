@@ -0,0 +1,546 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The DeltaSender class sends a {@link DeltaReceiver} the changes it needs to bring
+ * its old copy of a file up to date. See {@link DeltaReceiver} for the protocol.
+ * <p>
+ * Once the signatures of the old copy's blocks have arrived, the new file is read
+ * through once. At every offset the {@link RollingChecksum} of the block starting
+ * there is looked up among the old blocks', and where it matches one whose MD5
+ * hash matches too, a reference to that block is sent and we skip past it.
+ * Otherwise the byte is sent as new data and the checksum rolled on by a byte.
+ * References to consecutive blocks are sent as one. The delta is made as it is
+ * sent, so the new file is never held in memory.
+ *
+ * @author s0840449
+ *
+ */
+public class DeltaSender {
+
+	/* The most new data sent in one instruction, and the most blocks in one copy. */
+	private static final int MAX_LITERAL = 64 * 1024;
+	private static final int MAX_COPY_BLOCKS = 1024;
+
+	/* The port number the receiver is on. */
+	private int portNumber;
+
+	/* The new copy of the file. */
+	private File dataFile;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* Counts reported once done. */
+	private long literalBytes;
+	private long copiedBytes;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param portNumber	The port number the receiver receives the delta on, and
+	 * 						that our ports are worked out from.
+	 * @param dataFile		The new copy of the file.
+	 * @param windowSize	The window size.
+	 */
+	public DeltaSender(int portNumber, File dataFile, int windowSize) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		this.portNumber = portNumber;
+		this.dataFile = dataFile;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Waits for a receiver's signatures, then sends it the delta.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send() {
+
+		Receiver4 receiver = new Receiver4(null, portNumber + 2, windowSize);
+		ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+
+		if (!receiver.receive(signatures)) {
+			System.err.println("Error: Unable to receive the signatures.");
+			return false;
+		}
+
+		InetAddress receiverAddress = receiver.getSenderAddress();
+
+		DeltaEncoder encoder;
+		try {
+			encoder = new DeltaEncoder(signatures.toByteArray());
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		Sender4 sender = new Sender4(receiverAddress.getHostAddress(), portNumber, windowSize);
+		if (!sender.send(encoder)) {
+			return false;
+		}
+
+		literalBytes = encoder.literalBytes;
+		copiedBytes = encoder.copiedBytes;
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of bytes of the new file sent as data.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getLiteralBytes() {
+		return literalBytes;
+	}
+
+	/**
+	 * Returns the number of bytes of the new file sent as references to the
+	 * old file's blocks.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes;
+	}
+
+	/**
+	 * The DeltaEncoder class reads the new file and makes the delta from it
+	 * as the sender reads it out.
+	 */
+	private class DeltaEncoder extends InputStream {
+
+		/* The old file's block size, length and number of blocks. */
+		private int blockSize;
+		private long oldLength;
+		private int numBlocks;
+
+		/* The old blocks by weak checksum, and their MD5 hashes. */
+		private Map<Integer, List<Integer>> blocksByChecksum;
+		private byte[] hashes;
+
+		/* The new file, the part of it in hand, and where we are in that part. */
+		private FileInputStream reader;
+		private boolean readerEnded;
+		private byte[] buffer;
+		private int start;
+		private int end;
+
+		/* The checksum of the block at start, if it is up to date. */
+		private RollingChecksum checksum;
+		private boolean checksumValid;
+
+		/* The MD5 hashes of a block and of the whole new file. */
+		private MessageDigest blockMd5;
+		private MessageDigest fileMd5;
+
+		/* The new data and the run of copied blocks not yet made into instructions.
+		 * The latest new data is left in the buffer, from literalStart up to start,
+		 * until it is gathered. */
+		private ByteArrayOutputStream literal;
+		private int literalStart;
+		private int runStart;
+		private int runCount;
+
+		/* The instructions made but not yet read out, and where we are in them. */
+		private ByteArrayOutputStream made;
+		private DataOutputStream instructions;
+		private byte[] current;
+		private int position;
+		private boolean finished;
+
+		/* Counts of how the new file was sent. */
+		private long literalBytes;
+		private long copiedBytes;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param signatures	The signatures of the old file.
+		 *
+		 * @throws IOException	If the signatures are malformed, or the new file
+		 * 						cannot be opened.
+		 */
+		public DeltaEncoder(byte[] signatures) throws IOException {
+
+			ByteBuffer signatureBuffer = ByteBuffer.wrap(signatures);
+			if (signatures.length < DeltaReceiver.SIGNATURE_HEADER_SIZE
+					|| (signatures.length - DeltaReceiver.SIGNATURE_HEADER_SIZE) % DeltaReceiver.SIGNATURE_SIZE != 0) {
+				throw new IOException("The signatures are malformed.");
+			}
+
+			blockSize = signatureBuffer.getInt();
+			oldLength = signatureBuffer.getLong();
+			numBlocks = (signatures.length - DeltaReceiver.SIGNATURE_HEADER_SIZE) / DeltaReceiver.SIGNATURE_SIZE;
+
+			if (blockSize < DeltaReceiver.MIN_BLOCK_SIZE || blockSize > DeltaReceiver.MAX_BLOCK_SIZE
+					|| (oldLength + blockSize - 1) / blockSize != numBlocks) {
+				throw new IOException("The signatures are malformed.");
+			}
+
+			blocksByChecksum = new HashMap<Integer, List<Integer>>();
+			hashes = new byte[numBlocks * 16];
+
+			for (int i = 0; i < numBlocks; i++) {
+
+				int weak = signatureBuffer.getInt();
+				signatureBuffer.get(hashes, i * 16, 16);
+
+				List<Integer> blocks = blocksByChecksum.get(weak);
+				if (blocks == null) {
+					blocks = new ArrayList<Integer>(1);
+					blocksByChecksum.put(weak, blocks);
+				}
+				blocks.add(i);
+
+			}
+
+			reader = new FileInputStream(dataFile);
+			readerEnded = false;
+			buffer = new byte[Math.max(4 * blockSize, 1024 * 1024)];
+			start = 0;
+			end = 0;
+			literalStart = 0;
+
+			checksum = new RollingChecksum();
+			checksumValid = false;
+
+			blockMd5 = DeltaReceiver.newMd5();
+			fileMd5 = DeltaReceiver.newMd5();
+
+			literal = new ByteArrayOutputStream();
+			runCount = 0;
+
+			made = new ByteArrayOutputStream();
+			instructions = new DataOutputStream(made);
+			current = new byte[0];
+			position = 0;
+			finished = false;
+
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			byte[] single = new byte[1];
+			if (read(single, 0, 1) < 0) {
+				return -1;
+			}
+
+			return 0xFF & single[0];
+
+		}
+
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			while (position == current.length) {
+
+				if (finished) {
+					return -1;
+				}
+
+				makeInstructions();
+				current = made.toByteArray();
+				position = 0;
+				made.reset();
+
+			}
+
+			int count = Math.min(len, current.length - position);
+			System.arraycopy(current, position, data, off, count);
+			position += count;
+
+			return count;
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+
+		/* Works through the new file until there are instructions to read out,
+		 * or the end is reached. */
+		private void makeInstructions() throws IOException {
+
+			while (made.size() == 0 && !finished) {
+
+				if (end - start < blockSize && !readerEnded) {
+					fill();
+					continue;
+				}
+
+				if (end - start < blockSize) {
+					finish();
+					break;
+				}
+
+				if (!checksumValid) {
+					checksum.reset(buffer, start, blockSize);
+					checksumValid = true;
+				}
+
+				int block = findBlock(blockSize);
+				if (block >= 0) {
+
+					copyBlock(block);
+					start += blockSize;
+					literalStart = start;
+					checksumValid = false;
+
+				} else {
+
+					/* Roll on by a byte, if the next byte is in hand. */
+					if (start + blockSize < end) {
+						checksum.roll(buffer[start], buffer[start + blockSize]);
+					} else {
+						checksumValid = false;
+					}
+					start++;
+
+					if (literal.size() + start - literalStart >= MAX_LITERAL) {
+						writeLiteral();
+					}
+
+				}
+
+			}
+
+		}
+
+		/* Moves the data in hand to the front of the buffer and reads more after it. */
+		private void fill() throws IOException {
+
+			gatherLiteral();
+
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+			literalStart = 0;
+
+			int read = reader.read(buffer, end, buffer.length - end);
+			if (read < 0) {
+				readerEnded = true;
+				return;
+			}
+
+			fileMd5.update(buffer, end, read);
+			end += read;
+
+		}
+
+		/* Deals with the last part of the file, shorter than a block, and ends
+		 * the delta. */
+		private void finish() throws IOException {
+
+			int length = end - start;
+
+			/* It can only match the old file's last block, if that is short too. */
+			int block = -1;
+			if (length > 0) {
+				checksum.reset(buffer, start, length);
+				block = findBlock(length);
+			}
+
+			if (block >= 0) {
+				copyBlock(block);
+				literalStart = end;
+			}
+			start = end;
+
+			writeLiteral();
+			writeCopy();
+
+			instructions.writeByte(DeltaReceiver.END);
+			instructions.write(fileMd5.digest());
+			instructions.flush();
+
+			finished = true;
+
+		}
+
+		/* Returns an old block of the given length matching the block at start, or
+		 * -1 if there is none. The block after the last one copied is preferred, so
+		 * that runs of blocks can be sent as one. */
+		private int findBlock(int length) {
+
+			List<Integer> blocks = blocksByChecksum.get(checksum.getValue());
+			if (blocks == null) {
+				return -1;
+			}
+
+			blockMd5.update(buffer, start, length);
+			byte[] hash = blockMd5.digest();
+
+			int found = -1;
+			for (int block : blocks) {
+
+				if (blockLength(block) != length || !hashMatches(block, hash)) {
+					continue;
+				}
+
+				if (runCount > 0 && block == runStart + runCount) {
+					return block;
+				}
+
+				if (found < 0) {
+					found = block;
+				}
+
+			}
+
+			return found;
+
+		}
+
+		/* Returns the length of an old block - the last may be short. */
+		private int blockLength(int block) {
+			return (int) Math.min(blockSize, oldLength - (long) block * blockSize);
+		}
+
+		/* Returns whether an old block has the given MD5 hash. */
+		private boolean hashMatches(int block, byte[] hash) {
+
+			for (int i = 0; i < 16; i++) {
+				if (hashes[block * 16 + i] != hash[i]) {
+					return false;
+				}
+			}
+
+			return true;
+
+		}
+
+		/* Adds a block to the run of copied blocks, starting a new run if it does
+		 * not follow on. */
+		private void copyBlock(int block) throws IOException {
+
+			writeLiteral();
+
+			if (runCount > 0 && (block != runStart + runCount || runCount == MAX_COPY_BLOCKS)) {
+				writeCopy();
+			}
+
+			if (runCount == 0) {
+				runStart = block;
+			}
+			runCount++;
+
+			copiedBytes += blockLength(block);
+
+		}
+
+		/* Moves the new data left in the buffer into the literal. */
+		private void gatherLiteral() {
+			literal.write(buffer, literalStart, start - literalStart);
+			literalStart = start;
+		}
+
+		/* Makes the new data collected so far into an instruction. */
+		private void writeLiteral() throws IOException {
+
+			gatherLiteral();
+
+			if (literal.size() == 0) {
+				return;
+			}
+
+			writeCopy();
+
+			instructions.writeByte(DeltaReceiver.LITERAL);
+			instructions.writeInt(literal.size());
+			literal.writeTo(instructions);
+			instructions.flush();
+
+			literalBytes += literal.size();
+			literal.reset();
+
+		}
+
+		/* Makes the run of copied blocks so far into an instruction. */
+		private void writeCopy() throws IOException {
+
+			if (runCount == 0) {
+				return;
+			}
+
+			instructions.writeByte(DeltaReceiver.COPY);
+			instructions.writeInt(runStart);
+			instructions.writeInt(runCount);
+			instructions.flush();
+
+			runCount = 0;
+
+		}
+
+	}
+
+	/**
+	 * The main method for running the DeltaSender class. There are three
+	 * compulsory arguments - the port number the receiver is on, the name of the
+	 * new file, and the window size. It waits for one receiver, sends it the
+	 * delta, then exits.
+	 *
+	 * @param args		The program arguments: the port number, the name of
+	 * 					the file and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean sendSuccessful = false;
+		DeltaSender sender = null;
+
+		if (args.length != 3) {
+			System.err.println("Usage: java DeltaSender port filename windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File dataFile = new File(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+
+			sender = new DeltaSender(portNumber, dataFile, windowSize);
+			sendSuccessful = sender.send();
+
+		} catch (IllegalArgumentException iae) {
+			/* Includes NumberFormatException. */
+			System.err.println("Error: " + iae.getMessage());
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! Delta has been sent: " + sender.getLiteralBytes() +
+					" bytes of new data, " + sender.getCopiedBytes() + " bytes copied.");
+		} else {
+			System.err.println("Delta was not sent successfully. Please try again.");
+		}
+
+	}
+
+}
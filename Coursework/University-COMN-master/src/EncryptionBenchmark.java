@@ -0,0 +1,398 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures what encrypting packets (see {@link PacketCipher}) costs in throughput,
+ * by timing transfers of a file from {@link Sender4} to a {@link Receiver4} in this
+ * process, in plain and encrypted pairs. One transfer of each kind is made first
+ * and not timed, so that the AES-GCM code has been compiled down to the
+ * processor's AES instructions before timing starts, as it would be in a sender
+ * that has been running for a while.
+ * <p>
+ * The transfers are always made straight over loopback, where nothing but the
+ * processor holds them up, and that cost is what encryption takes out of the
+ * fastest transfer this machine can make. Given a link rate, they are then made
+ * again through a {@link Link} that lets packets through no faster than that, and
+ * both costs are reported. A slow enough link hides the encryption behind the
+ * time packets spend on it, so the cost through a link only says how much is
+ * lost at that rate, not that encryption is cheap.
+ * <p>
+ * The rate at which one thread can seal and open packets on its own is also
+ * given, which is the most an encrypted transfer could manage with the network
+ * out of the way.
+ *
+ * @author s0840449
+ *
+ */
+public class EncryptionBenchmark {
+
+	/* How long (in ms) to give the receiver to start before sending. */
+	private static final int RECEIVER_START_TIME = 100;
+
+	/* The size of the random shared key both ends are given. */
+	private static final int SHARED_KEY_SIZE = 32;
+
+	/* How long (in ns) a link must have had nothing to send to count as idle. */
+	private static final long LINK_IDLE_TIME = 1000000;
+
+	/* Only the main method. */
+	private EncryptionBenchmark() { }
+
+	/**
+	 * The Link class passes packets from one port on to another, holding each one
+	 * back until the ones before it would have been sent over a link of the given
+	 * rate. Packets that arrive faster wait in the socket's buffer, and are dropped
+	 * once that is full, as at a router.
+	 */
+	private static class Link extends Thread {
+
+		/* The socket packets arrive on, and the port they go on to. */
+		private DatagramSocket socket;
+		private int toPort;
+
+		/* How long (in ns) a byte takes to send, or 0 for no limit. */
+		private double byteTime;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param fromPort			The port packets arrive on.
+		 * @param toPort			The port they go on to.
+		 * @param rate				The link rate in kB/s, or 0 for no limit.
+		 *
+		 * @throws SocketException	If the port cannot be bound.
+		 */
+		public Link(int fromPort, int toPort, int rate) throws SocketException {
+			this.socket = new DatagramSocket(fromPort);
+			this.toPort = toPort;
+			this.byteTime = (rate > 0) ? 1e9 / (rate * 1024.0) : 0;
+			setDaemon(true);
+		}
+
+		/**
+		 * The main method for the thread. Passes packets on until the link is
+		 * closed.
+		 */
+		public void run() {
+
+			byte[] buffer = new byte[Sender4.PACKET_SIZE];
+			long free = System.nanoTime();
+
+			try {
+
+				InetAddress localhost = InetAddress.getByName("localhost");
+
+				while (true) {
+
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					socket.receive(packet);
+
+					/* Wait for the packet to have been sent, after those before it.
+					 * Unless the link was idle, time overslept waiting for the last
+					 * one is made up by sending this one sooner. */
+					long now = System.nanoTime();
+					if (now - free > LINK_IDLE_TIME) {
+						free = now;
+					}
+					free += (long) (packet.getLength() * byteTime);
+					if (free > now) {
+						LockSupport.parkNanos(free - now);
+					}
+
+					packet.setAddress(localhost);
+					packet.setPort(toPort);
+					socket.send(packet);
+
+				}
+
+			} catch (IOException ioe) {
+				/* The link was closed. */
+			}
+
+		}
+
+		/**
+		 * Closes the link.
+		 */
+		public void close() {
+			socket.close();
+		}
+
+	}
+
+	/**
+	 * Times one transfer of a file, key agreement included.
+	 *
+	 * @param dataFile		The file to send.
+	 * @param outFile		The file to receive into.
+	 * @param portNumber	The port number to send to.
+	 * @param receiverPort	The port number the receiver is on, which is the
+	 * 						same unless sending through a link.
+	 * @param windowSize	The window size.
+	 * @param sharedKey		The shared key to encrypt the packets with, or null.
+	 *
+	 * @return				The time taken in ns, or -1 if the transfer failed.
+	 */
+	private static long timeTransfer(File dataFile, File outFile, int portNumber, int receiverPort,
+			int windowSize, byte[] sharedKey) {
+
+		final Receiver4 receiver = new Receiver4(outFile.getPath(), receiverPort, windowSize);
+		receiver.setEncrypted(sharedKey);
+		final boolean[] received = { false };
+
+		Thread receiveThread = new Thread() {
+			public void run() {
+				received[0] = receiver.receive();
+			}
+		};
+		receiveThread.start();
+
+		Sender4 sender = new Sender4("localhost", portNumber, windowSize);
+		sender.setEncrypted(sharedKey);
+
+		try {
+			Thread.sleep(RECEIVER_START_TIME);
+		} catch (InterruptedException ie) { }
+
+		long start = System.nanoTime();
+		boolean sent = sender.send(dataFile);
+
+		try {
+			receiveThread.join();
+		} catch (InterruptedException ie) {
+			return -1;
+		}
+
+		long time = System.nanoTime() - start;
+
+		return (sent && received[0] && outFile.length() == dataFile.length()) ? time : -1;
+
+	}
+
+	/**
+	 * Times transfers of a file in plain and encrypted pairs. The first pair warms
+	 * up, and is not counted.
+	 *
+	 * @param dataFile		The file to send.
+	 * @param outFile		The file to receive into.
+	 * @param portNumber	The port number to send to.
+	 * @param receiverPort	The port number the receiver is on.
+	 * @param windowSize	The window size.
+	 * @param runs			The number of timed runs of each kind.
+	 * @param sharedKey		The shared key to encrypt the packets with.
+	 *
+	 * @return				The total time taken in ns plain and encrypted, or
+	 * 						null if a transfer failed.
+	 */
+	private static long[] timeTransfers(File dataFile, File outFile, int portNumber, int receiverPort,
+			int windowSize, int runs, byte[] sharedKey) {
+
+		long[] times = new long[2];
+
+		for (int run = -2; run < 2 * runs; run++) {
+
+			/* Go plain, encrypted, encrypted, plain, and so on, so that
+			 * neither kind always runs first. */
+			boolean encrypted = (run & 1) != ((run >> 1) & 1);
+
+			long time = timeTransfer(dataFile, outFile, portNumber, receiverPort, windowSize,
+					encrypted ? sharedKey : null);
+			if (time < 0) {
+				return null;
+			}
+
+			if (run >= 0) {
+				times[encrypted ? 1 : 0] += time;
+			}
+
+		}
+
+		return times;
+
+	}
+
+	/**
+	 * Prints the plain and encrypted throughputs and what encryption costs.
+	 *
+	 * @param name		What the transfers went over.
+	 * @param times		The total time taken in ns plain and encrypted.
+	 * @param kB		The number of kB sent of each kind.
+	 */
+	private static void printCost(String name, long[] times, double kB) {
+
+		double plainThroughput = kB / (times[0] / 1e9);
+		double encryptedThroughput = kB / (times[1] / 1e9);
+
+		System.out.println(name + ":");
+		System.out.println("  Plain: " + plainThroughput + " kB/s");
+		System.out.println("  Encrypted: " + encryptedThroughput + " kB/s");
+		System.out.println("  Cost: " + (100 * (1 - encryptedThroughput / plainThroughput)) + "%");
+
+	}
+
+	/**
+	 * Times sealing and opening as many packets as it takes to send a file, with
+	 * no network involved.
+	 *
+	 * @param length		The length of the file.
+	 * @param sharedKey		The shared key.
+	 *
+	 * @return				The time taken in ns.
+	 *
+	 * @throws IOException	If a packet cannot be sealed or opened.
+	 */
+	private static long timeCipher(long length, byte[] sharedKey) throws IOException {
+
+		KeyPair senderKeys = PacketCipher.generateKeyPair();
+		KeyPair receiverKeys = PacketCipher.generateKeyPair();
+		byte[] senderKey = PacketCipher.signKey(sharedKey, senderKeys, null);
+		byte[] receiverKey = PacketCipher.signKey(sharedKey, receiverKeys, senderKey);
+		PacketCipher sealer = PacketCipher.agree(sharedKey, senderKeys, receiverKey, true);
+		PacketCipher opener = PacketCipher.agree(sharedKey, receiverKeys, senderKey, false);
+
+		int dataLength = Sender4.PACKET_SIZE - 3 - PacketCipher.TAG_SIZE;
+		byte[] packet = new byte[Sender4.PACKET_SIZE];
+		long numPackets = (length + dataLength - 1) / dataLength;
+
+		long start = System.nanoTime();
+
+		for (long packetNum = 0; packetNum < numPackets; packetNum++) {
+			sealer.seal(packet, 3, 3, dataLength, packetNum);
+			if (!opener.open(packet, 3, 3, packet.length, packetNum)) {
+				throw new IOException("A packet did not open.");
+			}
+		}
+
+		return System.nanoTime() - start;
+
+	}
+
+	/**
+	 * The main method for running the EncryptionBenchmark class. There are four
+	 * compulsory arguments - the file to send, the port number to use, the window
+	 * size, and the number of timed runs each plain and encrypted - and an optional
+	 * fifth, the rate in kB/s of a link to send through as well as straight over
+	 * loopback. The link also uses the port number + 2 and + 3.
+	 *
+	 * @param args		The program arguments: the name of the file, the port
+	 * 					number, the window size, the number of runs and
+	 * 					optionally the link rate.
+	 */
+	public static void main(String[] args) {
+
+		if (args.length != 4 && args.length != 5) {
+			System.err.println("Usage: java EncryptionBenchmark filename port windowsize runs [rate]");
+			System.exit(-1);
+		}
+
+		File dataFile = new File(args[0]);
+		int portNumber = 0;
+		int windowSize = 0;
+		int runs = 0;
+		int rate = 0;
+
+		try {
+			portNumber = Integer.parseInt(args[1]);
+			windowSize = Integer.parseInt(args[2]);
+			runs = Integer.parseInt(args[3]);
+			if (args.length == 5) {
+				rate = Integer.parseInt(args[4]);
+			}
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number, window size, number of runs or rate to an integer.");
+			System.exit(-1);
+		}
+
+		File outFile = null;
+		try {
+			outFile = File.createTempFile("encryption", ".bin");
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			System.exit(-1);
+		}
+
+		/* Both ends are given the same random shared key. */
+		byte[] sharedKey = new byte[SHARED_KEY_SIZE];
+		new SecureRandom().nextBytes(sharedKey);
+
+		/* The total time taken plain and encrypted, straight and through the link. */
+		long[] loopbackTimes = null;
+		long[] linkTimes = null;
+
+		try {
+
+			/* Through a link, data goes from the port to the receiver on the port + 2,
+			 * and its acks from the port + 3 back to the sender on the port + 1. This
+			 * is done first, as each receiver holds on to its port for a while to
+			 * answer late FINs, which would keep the link from opening after. */
+			if (rate > 0) {
+
+				Link dataLink = null;
+				Link ackLink = null;
+				try {
+					dataLink = new Link(portNumber, portNumber + 2, rate);
+					ackLink = new Link(portNumber + 3, portNumber + 1, 0);
+				} catch (SocketException se) {
+					System.err.println("Error: Unable to open the link:");
+					System.err.println(se.getMessage());
+					System.exit(-1);
+				}
+				dataLink.start();
+				ackLink.start();
+
+				try {
+					linkTimes = timeTransfers(dataFile, outFile, portNumber, portNumber + 2, windowSize,
+							runs, sharedKey);
+				} finally {
+					dataLink.close();
+					ackLink.close();
+				}
+
+			}
+
+			if (rate <= 0 || linkTimes != null) {
+				loopbackTimes = timeTransfers(dataFile, outFile, portNumber, portNumber, windowSize,
+						runs, sharedKey);
+			}
+
+		} finally {
+			outFile.delete();
+		}
+
+		if (loopbackTimes == null) {
+			System.err.println("Error: A transfer failed.");
+			System.exit(-1);
+		}
+
+		long cipherTime = 0;
+		try {
+			for (int run = 0; run < runs; run++) {
+				cipherTime += timeCipher(dataFile.length(), sharedKey);
+			}
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			System.exit(-1);
+		}
+
+		double kB = (double) runs * dataFile.length() / 1024.0;
+
+		printCost("Loopback", loopbackTimes, kB);
+		if (linkTimes != null) {
+			printCost("Link at " + rate + " kB/s", linkTimes, kB);
+		}
+		System.out.println("Sealing and opening alone: " + (kB / (cipherTime / 1e9)) + " kB/s");
+
+	}
+
+}
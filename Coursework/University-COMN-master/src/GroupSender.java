@@ -0,0 +1,640 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The GroupSender class sends one file to a group of {@link Receiver4}s at once,
+ * reading each packet from the file once however many receivers there are, rather
+ * than running a {@link Sender4} per receiver.
+ * <p>
+ * The packets and acks are those of Sender4. A single window is shared by the whole
+ * group, and a packet stays in it until every receiver has acked it. Each new packet
+ * is sent to every receiver, either one copy each or, on a LAN, a single copy to a
+ * multicast group that the receivers have joined (see
+ * {@link Receiver4#setMulticastGroup(InetAddress)}). When a packet times out it is
+ * re-sent only to the receivers that haven't acked it, one copy each, unless more
+ * than half the group is missing it and there is a multicast group, in which case
+ * one copy is multicast.
+ * <p>
+ * Each receiver acks to the port + 1 of its own port, and is told apart from the
+ * others by the port its acks arrive on and the address they come from. A receiver
+ * that acks nothing for <a href="#DROP_TIMEOUT_LENGTH">DROP_TIMEOUT_LENGTH</a> is
+ * dropped from the group, so that one dead machine does not hold up the rest.
+ * <p>
+ * As with Sender4, the file must fit in 65536 packets.
+ *
+ * @author s0840449
+ *
+ */
+public class GroupSender {
+
+	/** How long (in ms) a receiver may go without acking before it is dropped. */
+	public static final int DROP_TIMEOUT_LENGTH = 10000;
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* The packet number and EOF byte before the data. */
+	private static final int HEADER_SIZE = 3;
+
+	/* The address receivers on this machine are looked up by. */
+	private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+	/* The number of times we send a FIN packet before giving up on a FIN-ACK. */
+	private static final int MAX_FIN_ATTEMPTS = 10;
+
+	/* The receivers, as host:port, and the multicast group as group:port, or
+	 * null to send a copy to each receiver. */
+	private String[] receiverSpecs;
+	private String groupSpec;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* The receivers once resolved. */
+	private List<GroupReceiver> receivers;
+
+	/* The receivers by the port their acks arrive on and their address. */
+	private Map<String, GroupReceiver> receiversByAck;
+
+	/* Holds the window packets. */
+	private List<GroupPacket> windowPackets;
+
+	/* The socket all packets are sent from, and the group address and port. */
+	private DatagramSocket senderSocket;
+	private InetAddress groupAddress;
+	private int groupPort;
+
+	/* Flag to stop the ack threads. */
+	private volatile boolean stopThread;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param receiverSpecs		The receivers, each as host:port.
+	 * @param windowSize		The window size to use.
+	 * @param groupSpec			The multicast group the receivers have joined, as
+	 * 							group:port, or null to send a copy to each receiver.
+	 */
+	public GroupSender(String[] receiverSpecs, int windowSize, String groupSpec) {
+
+		if (receiverSpecs.length < 1) {
+			throw new IllegalArgumentException("At least one receiver is needed.");
+		}
+
+		this.receiverSpecs = receiverSpecs;
+		this.windowSize = windowSize;
+		this.groupSpec = groupSpec;
+
+		this.stopThread = false;
+	}
+
+	/**
+	 * The GroupReceiver class holds what we know of one receiver.
+	 */
+	private static class GroupReceiver {
+
+		private int index;
+		private String name;
+		private InetAddress address;
+		private int port;
+
+		/* When the receiver last acked anything, whether it has been dropped,
+		 * and whether it has answered our FIN. */
+		private volatile long lastAckTime;
+		private volatile boolean dropped;
+		private volatile boolean finAcked;
+
+		/* The number of packets re-sent to it alone. */
+		private int repairs;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param index		The receiver's number.
+		 * @param name		The receiver as given.
+		 * @param address	The receiver's address.
+		 * @param port		The receiver's port.
+		 */
+		public GroupReceiver(int index, String name, InetAddress address, int port) {
+			this.index = index;
+			this.name = name;
+			this.address = address;
+			this.port = port;
+			this.dropped = false;
+			this.finAcked = false;
+			this.repairs = 0;
+		}
+
+	}
+
+	/**
+	 * The GroupPacket class is a window packet that knows which receivers have
+	 * acked it.
+	 */
+	private class GroupPacket extends WindowPacket {
+
+		private boolean[] ackedBy;
+		private int acksLeft;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param packet		The UDP packet.
+		 * @param packetNum		The packet number.
+		 */
+		public GroupPacket(DatagramPacket packet, int packetNum) {
+			super(packet, false, packetNum);
+			this.ackedBy = new boolean[receivers.size()];
+			this.acksLeft = 0;
+			for (GroupReceiver receiver : receivers) {
+				if (!receiver.dropped) {
+					acksLeft++;
+				}
+			}
+		}
+
+		/**
+		 * Records an ack from a receiver, marking the packet acked once every
+		 * receiver still in the group has acked it.
+		 *
+		 * @param receiver		The receiver that acked.
+		 */
+		public void ackBy(GroupReceiver receiver) {
+			if (!ackedBy[receiver.index]) {
+				ackedBy[receiver.index] = true;
+				if (--acksLeft == 0) {
+					ackPacket();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * This thread monitors the acks arriving on one port. When an ack is received
+	 * the relevant packet is marked as acked by that receiver.
+	 */
+	private class ACKThread extends Thread {
+
+		private DatagramSocket ackSocket;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param ackPort			The port to listen for acks on.
+		 *
+		 * @throws SocketException	If the port cannot be opened.
+		 */
+		public ACKThread(int ackPort) throws SocketException {
+			this.ackSocket = new DatagramSocket(ackPort);
+		}
+
+		/**
+		 * The main method for the thread. Constantly waits for ack packets to
+		 * arrive and acks the relevant packet.
+		 */
+		public void run() {
+
+			while (!stopThread) {
+
+				try {
+
+					byte[] ackBuffer = new byte[HEADER_SIZE];
+					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+
+					/* Timeout so that we will keep checking for stopThread rather than
+					 * just blocking forever. */
+					ackSocket.setSoTimeout(50);
+					ackSocket.receive(ackPacket);
+
+					GroupReceiver receiver = receiversByAck.get(ackKey(ackSocket.getLocalPort(),
+							ackPacket.getAddress()));
+
+					/* A receiver on this machine may ack from any of its addresses. */
+					if (receiver == null && NetworkInterface.getByInetAddress(ackPacket.getAddress()) != null) {
+						receiver = receiversByAck.get(ackKey(ackSocket.getLocalPort(), LOOPBACK));
+					}
+					if (receiver == null || receiver.dropped || ackPacket.getLength() < 2) {
+						continue;
+					}
+
+					receiver.lastAckTime = System.currentTimeMillis();
+
+					/* The answer to our FIN. */
+					if (ackPacket.getLength() == 3 && ackBuffer[2] == Sender4.FIN) {
+						receiver.finAcked = true;
+						continue;
+					}
+
+					int ackPacketNum = ((ackBuffer[1] << 8) & 0x0000FF00) | (ackBuffer[0] & 0x000000FF);
+
+					synchronized (windowPackets) {
+						for (GroupPacket packet : windowPackets) {
+							if (packet.getPacketNum() == ackPacketNum) {
+								packet.ackBy(receiver);
+								break;
+							}
+						}
+					}
+
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Received ack for packet num " + ackPacketNum +
+								" from " + receiver.name);
+					}
+
+				} catch (SocketTimeoutException ste) {
+					/* Ignore timeouts. */
+				} catch (IOException e) {
+					System.err.println("Error: IO exception - " + e.getMessage());
+				}
+
+			}
+
+			ackSocket.close();
+
+		}
+
+	}
+
+	/**
+	 * Attempt to send the data contained in a file to every receiver.
+	 *
+	 * @param dataFile		The file to get the data from.
+	 *
+	 * @return	True if the sending succeeded for every receiver, False if an
+	 * 			error occurred or a receiver was dropped. A return value of True
+	 * 			does <b>not</b> guarantee that the data made it successfully to
+	 * 			the receivers, only that every receiver acked every packet.
+	 */
+	public boolean send(File dataFile) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		FileInputStream reader;
+		try {
+			reader = new FileInputStream(dataFile);
+		} catch (FileNotFoundException fnfe) {
+			throw new IllegalArgumentException("Input file \"" + dataFile.getName() +
+					"\" does not exist.");
+		}
+
+		receivers = new ArrayList<GroupReceiver>();
+		receiversByAck = new HashMap<String, GroupReceiver>();
+		windowPackets = Collections.synchronizedList(new ArrayList<GroupPacket>());
+		List<ACKThread> ackThreads = new ArrayList<ACKThread>();
+
+		try {
+
+			for (int i = 0; i < receiverSpecs.length; i++) {
+
+				int colon = receiverSpecs[i].lastIndexOf(':');
+				if (colon < 0) {
+					throw new IllegalArgumentException("\"" + receiverSpecs[i] + "\" is not of the form host:port.");
+				}
+
+				GroupReceiver receiver = new GroupReceiver(i, receiverSpecs[i],
+						InetAddress.getByName(receiverSpecs[i].substring(0, colon)),
+						Integer.parseInt(receiverSpecs[i].substring(colon + 1)));
+
+				receivers.add(receiver);
+				receiversByAck.put(ackKey(receiver.port + 1, receiver.address), receiver);
+
+				/* A receiver on this machine is also looked up by the loopback address. */
+				if (receiver.address.isLoopbackAddress()) {
+					receiversByAck.put(ackKey(receiver.port + 1, LOOPBACK), receiver);
+				}
+
+			}
+
+			if (groupSpec != null) {
+
+				int colon = groupSpec.lastIndexOf(':');
+				if (colon < 0) {
+					throw new IllegalArgumentException("\"" + groupSpec + "\" is not of the form group:port.");
+				}
+
+				groupAddress = InetAddress.getByName(groupSpec.substring(0, colon));
+				groupPort = Integer.parseInt(groupSpec.substring(colon + 1));
+
+				if (!groupAddress.isMulticastAddress()) {
+					throw new IllegalArgumentException(groupAddress.getHostAddress() + " is not a multicast address.");
+				}
+
+				senderSocket = new MulticastSocket();
+
+			} else {
+				senderSocket = new DatagramSocket();
+			}
+
+			List<Integer> ackPorts = new ArrayList<Integer>();
+			for (GroupReceiver receiver : receivers) {
+				if (!ackPorts.contains(receiver.port + 1)) {
+					ackPorts.add(receiver.port + 1);
+					ackThreads.add(new ACKThread(receiver.port + 1));
+				}
+			}
+
+			long dataFileLength = dataFile.length();
+			long bytesLeft = dataFileLength;
+			int packetNum = 0;
+			boolean EOF = false;
+
+			/* Used to monitor throughput for the coursework question. */
+			long before = System.currentTimeMillis();
+			int packetsRead = 0;
+			int copiesSent = 0;
+
+			for (GroupReceiver receiver : receivers) {
+				receiver.lastAckTime = before;
+			}
+
+			for (ACKThread ackThread : ackThreads) {
+				ackThread.start();
+			}
+
+			while (true) {
+
+				synchronized (windowPackets) {
+
+					/* Remove acked packets. */
+					while (windowPackets.size() > 0 && windowPackets.get(0).isAcked()) {
+						windowPackets.remove(0);
+					}
+
+					if (windowPackets.size() == 0 && EOF) {
+						break;
+					}
+
+					long now = System.currentTimeMillis();
+
+					/* Drop receivers that have stopped acking while we wait on them. */
+					if (windowPackets.size() > 0) {
+						for (GroupReceiver receiver : receivers) {
+							if (!receiver.dropped && now - receiver.lastAckTime > DROP_TIMEOUT_LENGTH) {
+								System.err.println("Receiver " + receiver.name + " stopped acking, dropping it.");
+								receiver.dropped = true;
+								/* Stop waiting for its acks. */
+								for (GroupPacket packet : windowPackets) {
+									packet.ackBy(receiver);
+								}
+							}
+						}
+					}
+
+					/* Re-send timed out packets to the receivers missing them. */
+					for (GroupPacket packet : windowPackets) {
+
+						if (packet.isAcked() || now <= packet.getTimeLastSent() + Sender4.TIMEOUT_LENGTH) {
+							continue;
+						}
+
+						if (groupAddress != null && 2 * packet.acksLeft > activeReceivers()) {
+							copiesSent += sendToGroup(packet);
+						} else {
+							for (GroupReceiver receiver : receivers) {
+								if (!receiver.dropped && !packet.ackedBy[receiver.index]) {
+									copiesSent += sendTo(packet, receiver);
+									receiver.repairs++;
+								}
+							}
+						}
+
+						packet.setTimeLastSent(now);
+
+					}
+
+					/* Add new packets to the window, sending each to the whole group. */
+					while (windowPackets.size() < windowSize && !EOF) {
+
+						/* If in the final packet, there may be less than
+						 * PACKET_SIZE - HEADER_SIZE bytes left to send. */
+						int datalen = (bytesLeft >= (Sender4.PACKET_SIZE - HEADER_SIZE))
+								? Sender4.PACKET_SIZE - HEADER_SIZE
+								: (int) bytesLeft;
+
+						EOF = bytesLeft <= (Sender4.PACKET_SIZE - HEADER_SIZE);
+
+						byte sendData[] = new byte[datalen + HEADER_SIZE];
+						sendData[0] = (byte) (packetNum >> 8);
+						sendData[1] = (byte) (packetNum);
+						sendData[2] = (byte) (EOF ? 1 : 0);
+
+						reader.read(sendData, HEADER_SIZE, datalen);
+						bytesLeft -= datalen;
+						packetsRead++;
+
+						GroupPacket packet = new GroupPacket(new DatagramPacket(sendData, sendData.length),
+								packetNum & 0xFFFF);
+						windowPackets.add(packet);
+
+						if (groupAddress != null) {
+							copiesSent += sendToGroup(packet);
+						} else {
+							for (GroupReceiver receiver : receivers) {
+								if (!receiver.dropped) {
+									copiesSent += sendTo(packet, receiver);
+								}
+							}
+						}
+
+						packet.setTimeLastSent(System.currentTimeMillis());
+
+						packetNum++;
+
+					}
+
+				}
+
+				try { Thread.sleep(1); } catch (InterruptedException e) { }
+
+			}
+
+			close();
+
+			/* Calculate the throughput, and report on each receiver. */
+			double timeTaken = (System.currentTimeMillis() - before) / 1000.0;
+			System.out.println("Time taken: " + timeTaken);
+			System.out.println("Data file size: " + dataFileLength + " ("  + dataFileLength/1024.0 + " kB)");
+			System.out.println("Throughput: " + (dataFileLength / 1024.0 / timeTaken) + " kB/s per receiver");
+			System.out.println("Packets read: " + packetsRead + ", copies sent: " + copiesSent);
+
+			boolean allReceived = true;
+			for (GroupReceiver receiver : receivers) {
+				System.out.println("Receiver " + receiver.name + ": " +
+						(receiver.dropped ? "dropped" : receiver.repairs + " packets repaired"));
+				allReceived &= !receiver.dropped;
+			}
+
+			reader.close();
+
+			return allReceived;
+
+		} catch (SocketException se) {
+			System.err.println("Error: Socket exception:");
+			System.err.println(se.getMessage());
+			return false;
+		} catch (UnknownHostException uhe) {
+			System.err.println("Error: Host \"" + uhe.getMessage() + "\" was not found.");
+			return false;
+		} catch (IOException e) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(e.getMessage());
+			return false;
+		} finally {
+
+			stopThread = true;
+
+			for (ACKThread ackThread : ackThreads) {
+				if (ackThread.isAlive()) {
+					try {
+						ackThread.join();
+					} catch (InterruptedException ie) { }
+				} else {
+					ackThread.ackSocket.close();
+				}
+			}
+
+			if (senderSocket != null) {
+				senderSocket.close();
+			}
+
+		}
+
+	}
+
+	/* Sends a copy of a packet to one receiver, and returns the number of copies sent. */
+	private int sendTo(GroupPacket packet, GroupReceiver receiver) throws IOException {
+		DatagramPacket sendPacket = packet.getPacket();
+		sendPacket.setAddress(receiver.address);
+		sendPacket.setPort(receiver.port);
+		senderSocket.send(sendPacket);
+		return 1;
+	}
+
+	/* Sends one copy of a packet to the multicast group, and returns the number of
+	 * copies sent. */
+	private int sendToGroup(GroupPacket packet) throws IOException {
+		DatagramPacket sendPacket = packet.getPacket();
+		sendPacket.setAddress(groupAddress);
+		sendPacket.setPort(groupPort);
+		senderSocket.send(sendPacket);
+		return 1;
+	}
+
+	/* Returns the number of receivers still in the group. */
+	private int activeReceivers() {
+		int active = 0;
+		for (GroupReceiver receiver : receivers) {
+			if (!receiver.dropped) {
+				active++;
+			}
+		}
+		return active;
+	}
+
+	/* Returns the key a receiver's acks are looked up by. */
+	private static String ackKey(int ackPort, InetAddress address) {
+		return ackPort + "/" + address.getHostAddress();
+	}
+
+	/**
+	 * Closes the transfer with every receiver by sending each a FIN packet until
+	 * it answers with a FIN-ACK.
+	 *
+	 * @throws IOException	If a FIN packet cannot be sent.
+	 */
+	private void close() throws IOException {
+
+		byte[] finData = new byte[HEADER_SIZE];
+		finData[HEADER_SIZE - 1] = Sender4.FIN;
+
+		for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS; attempt++) {
+
+			boolean allAcked = true;
+
+			for (GroupReceiver receiver : receivers) {
+				if (!receiver.dropped && !receiver.finAcked) {
+					senderSocket.send(new DatagramPacket(finData, finData.length, receiver.address, receiver.port));
+					allAcked = false;
+				}
+			}
+
+			if (allAcked) {
+				return;
+			}
+
+			try { Thread.sleep(Sender4.TIMEOUT_LENGTH); } catch (InterruptedException e) { }
+
+		}
+
+		if (DEBUG_MODE) {
+			System.out.println("DEBUG: Not every receiver answered our FIN, they will time out instead.");
+		}
+
+	}
+
+	/**
+	 * The main method for running the GroupSender class. There are three
+	 * compulsory arguments - the name of the file to send, the window size, and
+	 * the receivers as a comma separated list of host:port - and an optional
+	 * fourth, the multicast group:port the receivers have joined.
+	 *
+	 * @param args	The program arguments: the name of the file that is to be
+	 * 				sent, the window size, the receivers, and optionally the
+	 * 				multicast group.
+	 */
+	public static void main(String[] args) {
+
+		boolean sendSuccessful = false;
+
+		if (args.length != 3 && args.length != 4) {
+			System.err.println("Usage: java GroupSender filename windowsize host:port[,host:port...] [group:port]");
+			System.exit(-1);
+		}
+
+		try {
+
+			String filePath = args[0];
+			int windowSize = Integer.parseInt(args[1]);
+			String[] receiverSpecs = args[2].split(",");
+			String groupSpec = (args.length == 4) ? args[3] : null;
+
+			GroupSender sender = new GroupSender(receiverSpecs, windowSize, groupSpec);
+			sendSuccessful = sender.send(new File(filePath));
+
+		} catch (IllegalArgumentException iae) {
+			/* Includes NumberFormatException. */
+			System.err.println("Error: " + iae.getMessage());
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! File has been sent to every receiver.");
+		} else {
+			System.err.println("File was not sent successfully to every receiver. Please try again.");
+		}
+
+	}
+
+}
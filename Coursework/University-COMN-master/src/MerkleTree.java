@@ -0,0 +1,414 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A Merkle tree of the SHA-256 hashes of a file's chunks. Each leaf is the hash
+ * of a chunk of <a href="#CHUNK_SIZE">CHUNK_SIZE</a> bytes (the last may be
+ * short), and each node above is the hash of its two children, or of its one
+ * child at the end of an odd-sized level. Leaves and nodes are hashed with
+ * different prefixes, so one cannot pass for the other.
+ * <p>
+ * Comparing two trees starts at the roots, and only goes down into subtrees whose
+ * roots differ, so finding a few damaged chunks in a large file takes a handful
+ * of comparisons rather than one per chunk. A tree can be built from data as it
+ * streams past with a {@link Builder}, which hashes the chunks in parallel.
+ *
+ * @author s0840449
+ *
+ */
+public class MerkleTree {
+
+	/** The size of the chunk each leaf covers. */
+	public static final int CHUNK_SIZE = 256 * 1024;
+
+	/** The size of a hash. */
+	public static final int HASH_SIZE = 32;
+
+	/* The prefixes of leaf and node hashes. */
+	private static final byte LEAF_PREFIX = 0;
+	private static final byte NODE_PREFIX = 1;
+
+	/* The hashes, level by level from the leaves up to the root. */
+	private byte[][][] levels;
+
+	/**
+	 * Default constructor. Builds the tree above a set of leaves.
+	 *
+	 * @param leaves	The leaf hashes, in chunk order. There must be at least one.
+	 */
+	public MerkleTree(byte[][] leaves) {
+
+		if (leaves.length == 0) {
+			throw new IllegalArgumentException("A hash tree needs at least one leaf.");
+		}
+
+		List<byte[][]> built = new ArrayList<byte[][]>();
+		built.add(leaves);
+
+		byte[][] level = leaves;
+		while (level.length > 1) {
+			level = parents(level);
+			built.add(level);
+		}
+
+		levels = built.toArray(new byte[built.size()][][]);
+
+	}
+
+	/**
+	 * Returns the number of leaves the tree of a file has. An empty file has
+	 * one, the hash of no data.
+	 *
+	 * @param length	The length of the file.
+	 *
+	 * @return			The number of leaves.
+	 */
+	public static int numLeaves(long length) {
+		return (int) Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/**
+	 * Returns the size of the tree of a file, as written by {@link #toBytes()}.
+	 *
+	 * @param length	The length of the file.
+	 *
+	 * @return			The size in bytes.
+	 */
+	public static int serializedSize(long length) {
+
+		int nodes = 0;
+		for (int count = numLeaves(length); ; count = (count + 1) / 2) {
+			nodes += count;
+			if (count == 1) {
+				break;
+			}
+		}
+
+		return nodes * HASH_SIZE;
+
+	}
+
+	/**
+	 * Hashes a chunk as a leaf.
+	 *
+	 * @param data		The data holding the chunk.
+	 * @param off		The start of the chunk.
+	 * @param len		The length of the chunk.
+	 *
+	 * @return			The leaf hash.
+	 */
+	public static byte[] hashLeaf(byte[] data, int off, int len) {
+
+		MessageDigest sha256 = newSha256();
+		sha256.update(LEAF_PREFIX);
+		sha256.update(data, off, len);
+
+		return sha256.digest();
+
+	}
+
+	/**
+	 * Reads a tree written by {@link #toBytes()}, checking that each node is the
+	 * hash of its children.
+	 *
+	 * @param data			The tree as written.
+	 * @param numLeaves		The number of leaves it should have.
+	 *
+	 * @return				The tree.
+	 *
+	 * @throws IOException	If the tree is malformed or a node does not match
+	 * 						its children.
+	 */
+	public static MerkleTree fromBytes(byte[] data, int numLeaves) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+
+		byte[][] leaves = new byte[numLeaves][HASH_SIZE];
+		for (byte[] leaf : leaves) {
+			if (buffer.remaining() < HASH_SIZE) {
+				throw new IOException("The hash tree is malformed.");
+			}
+			buffer.get(leaf);
+		}
+
+		MerkleTree tree = new MerkleTree(leaves);
+
+		for (int level = 1; level < tree.levels.length; level++) {
+			for (byte[] node : tree.levels[level]) {
+				byte[] sent = new byte[HASH_SIZE];
+				if (buffer.remaining() < HASH_SIZE) {
+					throw new IOException("The hash tree is malformed.");
+				}
+				buffer.get(sent);
+				if (!Arrays.equals(sent, node)) {
+					throw new IOException("The hash tree does not match its leaves.");
+				}
+			}
+		}
+
+		if (buffer.hasRemaining()) {
+			throw new IOException("The hash tree is malformed.");
+		}
+
+		return tree;
+
+	}
+
+	/**
+	 * Writes the tree out, level by level from the leaves up.
+	 *
+	 * @return		The tree as bytes.
+	 */
+	public byte[] toBytes() {
+
+		int nodes = 0;
+		for (byte[][] level : levels) {
+			nodes += level.length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(nodes * HASH_SIZE);
+		for (byte[][] level : levels) {
+			for (byte[] node : level) {
+				buffer.put(node);
+			}
+		}
+
+		return buffer.array();
+
+	}
+
+	/**
+	 * Returns the number of leaves.
+	 *
+	 * @return		The number of leaves.
+	 */
+	public int getNumLeaves() {
+		return levels[0].length;
+	}
+
+	/**
+	 * Returns the root hash.
+	 *
+	 * @return		The root hash.
+	 */
+	public byte[] getRoot() {
+		return levels[levels.length - 1][0].clone();
+	}
+
+	/**
+	 * Returns a copy of the tree with some leaves replaced.
+	 *
+	 * @param indices	The leaves to replace.
+	 * @param hashes	Their new hashes.
+	 *
+	 * @return			The new tree.
+	 */
+	public MerkleTree withLeaves(List<Integer> indices, List<byte[]> hashes) {
+
+		byte[][] leaves = levels[0].clone();
+		for (int i = 0; i < indices.size(); i++) {
+			leaves[indices.get(i)] = hashes.get(i);
+		}
+
+		return new MerkleTree(leaves);
+
+	}
+
+	/**
+	 * Finds the leaves that differ from another tree of the same shape. Only
+	 * the subtrees whose roots differ are looked into.
+	 *
+	 * @param other		The tree to compare with.
+	 *
+	 * @return			The indices of the leaves that differ, in order.
+	 */
+	public List<Integer> differingLeaves(MerkleTree other) {
+
+		if (other.getNumLeaves() != getNumLeaves()) {
+			throw new IllegalArgumentException("Hash trees of different sizes cannot be compared.");
+		}
+
+		List<Integer> differing = new ArrayList<Integer>();
+		findDiffering(other, levels.length - 1, 0, differing);
+
+		return differing;
+
+	}
+
+	/* Adds the differing leaves below a node to the list. */
+	private void findDiffering(MerkleTree other, int level, int index, List<Integer> differing) {
+
+		if (index >= levels[level].length || Arrays.equals(levels[level][index], other.levels[level][index])) {
+			return;
+		}
+
+		if (level == 0) {
+			differing.add(index);
+			return;
+		}
+
+		findDiffering(other, level - 1, 2 * index, differing);
+		findDiffering(other, level - 1, 2 * index + 1, differing);
+
+	}
+
+	/* Hashes each pair of nodes in a level into the level above. */
+	private static byte[][] parents(byte[][] level) {
+
+		byte[][] parents = new byte[(level.length + 1) / 2][];
+
+		for (int i = 0; i < parents.length; i++) {
+			MessageDigest sha256 = newSha256();
+			sha256.update(NODE_PREFIX);
+			sha256.update(level[2 * i]);
+			if (2 * i + 1 < level.length) {
+				sha256.update(level[2 * i + 1]);
+			}
+			parents[i] = sha256.digest();
+		}
+
+		return parents;
+
+	}
+
+	/* Returns a new SHA-256 digest. */
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			/* Every Java platform has to provide SHA-256. */
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * The Builder class builds the tree of data as it streams past. Each chunk is
+	 * hashed on the common fork-join pool once it is complete, so the hashing is
+	 * spread over the processors and keeps up with the data without holding it up.
+	 */
+	public static class Builder {
+
+		/* The most chunks waiting to be hashed before we wait for the oldest. */
+		private static final int MAX_CHUNKS_AHEAD = 16;
+
+		/* The pool chunks are hashed on. */
+		private ForkJoinPool pool;
+
+		/* The leaf hashes of the complete chunks, done or being worked on, and
+		 * the number known to be done. */
+		private List<Future<byte[]>> leaves;
+		private int leavesDone;
+
+		/* The chunk being filled. */
+		private byte[] chunk;
+		private int filled;
+
+		/**
+		 * Default constructor.
+		 */
+		public Builder() {
+			this.pool = ForkJoinPool.commonPool();
+			this.leaves = new ArrayList<Future<byte[]>>();
+			this.leavesDone = 0;
+			this.chunk = new byte[CHUNK_SIZE];
+			this.filled = 0;
+		}
+
+		/**
+		 * Adds the next part of the data.
+		 *
+		 * @param data		The data.
+		 * @param off		The start of the part.
+		 * @param len		The length of the part.
+		 *
+		 * @throws IOException	If hashing an earlier chunk failed.
+		 */
+		public void update(byte[] data, int off, int len) throws IOException {
+
+			while (len > 0) {
+
+				int count = Math.min(len, CHUNK_SIZE - filled);
+				System.arraycopy(data, off, chunk, filled, count);
+				filled += count;
+				off += count;
+				len -= count;
+
+				if (filled == CHUNK_SIZE) {
+					submitChunk();
+				}
+
+			}
+
+		}
+
+		/**
+		 * Hashes the last chunk and builds the tree, once all of the data has
+		 * been added.
+		 *
+		 * @return		The tree.
+		 *
+		 * @throws IOException	If hashing a chunk failed.
+		 */
+		public MerkleTree finish() throws IOException {
+
+			if (filled > 0 || leaves.isEmpty()) {
+				submitChunk();
+			}
+
+			byte[][] hashes = new byte[leaves.size()][];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = waitFor(leaves.get(i));
+			}
+
+			return new MerkleTree(hashes);
+
+		}
+
+		/* Hands the chunk to the pool to hash, waiting for older chunks if too
+		 * many are waiting. */
+		private void submitChunk() throws IOException {
+
+			final byte[] data = chunk;
+			final int length = filled;
+
+			leaves.add(pool.submit(new Callable<byte[]>() {
+				public byte[] call() {
+					return hashLeaf(data, 0, length);
+				}
+			}));
+
+			while (leaves.size() - leavesDone > MAX_CHUNKS_AHEAD) {
+				waitFor(leaves.get(leavesDone));
+				leavesDone++;
+			}
+
+			chunk = new byte[CHUNK_SIZE];
+			filled = 0;
+
+		}
+
+		/* Waits for a leaf to be hashed. */
+		private static byte[] waitFor(Future<byte[]> leaf) throws IOException {
+			try {
+				return leaf.get();
+			} catch (InterruptedException ie) {
+				throw new IOException("Interrupted while hashing.");
+			} catch (ExecutionException ee) {
+				throw new IOException("Unable to hash a chunk: " + ee.getCause().getMessage());
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,776 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The MultiSender class sends several files at once to a {@link ReceiverServer},
+ * one session each, from a single process and socket. Running several
+ * {@link Sender4} processes instead leaves them to compete blindly for the link,
+ * so a large transfer can hold up a small urgent one for as long as it runs.
+ * <p>
+ * Each transfer uses the selective-repeat protocol of Sender4 in session mode,
+ * with its own window, and has a weight that can be changed while it runs. Which
+ * transfer sends the next packet is decided by a deficit round robin scheduler:
+ * on each round every transfer with something to send earns
+ * <a href="#QUANTUM">QUANTUM</a> times its weight in bytes, and sends packets
+ * (re-sends first) while it has earned enough for a full packet. A transfer with
+ * nothing to send loses what it has earned, so idling doesn't buy a burst later.
+ * <p>
+ * When the total send rate is limited (to the speed of the bottleneck link, so
+ * that the queue builds here rather than in the network), each transfer that has
+ * data to send gets at least its weight's share of that rate. A transfer of weight
+ * w among transfers with total weight W therefore takes at most W / w times as long
+ * as it would with the link to itself, plus the round trips, however much data
+ * the others have queued.
+ * <p>
+ * The transfers share one congestion window (see {@link CongestionState}) with any
+ * other coupled transfers from this process to the same host, split between them
+ * by weight, so together they take the bandwidth of one well-behaved flow rather
+ * than each growing its own window until they overload the link. A packet
+ * re-sent after the full timeout counts as a loss.
+ * <p>
+ * Transfers can be added while others are running. The session IDs must not be in
+ * use by any other sender to the same server.
+ *
+ * @author s0840449
+ *
+ */
+public class MultiSender {
+
+	/** The number of bytes a transfer of weight 1 earns on each scheduling round. */
+	public static final int QUANTUM = Sender4.PACKET_SIZE;
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* The session ID, packet number and EOF byte before the data. */
+	private static final int HEADER_SIZE = 7;
+
+	/* The shortest time (in ms) we wait before sending a tail-loss probe. */
+	private static final long MIN_PROBE_TIMEOUT = 10;
+
+	/* The number of times we send a FIN packet before giving up on a FIN-ACK. */
+	private static final int MAX_FIN_ATTEMPTS = 10;
+
+	/* The most data (in packets) sent back to back when the rate is limited. */
+	private static final int MAX_BURST = 16;
+
+	/* The receiving host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The window size of each transfer. */
+	private int windowSize;
+
+	/* The most bytes per second to send in total, or 0 for no limit. */
+	private long rate;
+
+	/* The socket all packets are sent from and all acks arrive on. */
+	private DatagramSocket senderSocket;
+
+	/* Every transfer not yet finished, by session ID, and the transfers
+	 * added since the scheduler last looked. */
+	private Map<Integer, Transfer> transfers;
+	private ConcurrentLinkedQueue<Transfer> newTransfers;
+
+	/* The congestion window shared with other transfers to the host. */
+	private CongestionState congestionState;
+
+	/* Flag to stop the ack thread. */
+	private volatile boolean stopThread;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The receiving host.
+	 * @param portNumber	The port number the server listens on.
+	 * @param windowSize	The window size of each transfer.
+	 * @param rate			The most bytes per second to send in total, or 0 for
+	 * 						no limit. The weights only decide the shares of the
+	 * 						link if this is no more than the link can carry.
+	 */
+	public MultiSender(String host, int portNumber, int windowSize, long rate) {
+
+		if (rate < 0) {
+			throw new IllegalArgumentException("Rate must not be negative.");
+		}
+
+		this.host = host;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+		this.rate = rate;
+
+		this.transfers = new ConcurrentHashMap<Integer, Transfer>();
+		this.newTransfers = new ConcurrentLinkedQueue<Transfer>();
+		this.stopThread = false;
+	}
+
+	/**
+	 * The Transfer class holds the state of one file being sent: its window,
+	 * its weight, and its place in the scheduler.
+	 */
+	private class Transfer {
+
+		private int sessionId;
+		private File dataFile;
+		private FileInputStream reader;
+		private long bytesLeft;
+
+		/* The weight may be changed by another thread while we send. */
+		private volatile int weight;
+
+		/* The bytes earned but not yet spent on packets. */
+		private long deficit;
+
+		/* The weight the transfer last joined the congestion state with. */
+		private int joinedWeight;
+
+		private List<WindowPacket> windowPackets;
+		private int packetNum;
+		private boolean EOF;
+
+		private RttEstimator rttEstimator;
+
+		/* FIN packets sent, when the last was sent, and whether one was answered. */
+		private int finAttempts;
+		private long finLastSent;
+		private volatile boolean finAcked;
+
+		/* Used to report the time taken. */
+		private long added;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param sessionId		The session ID.
+		 * @param dataFile		The file to send.
+		 * @param weight		The initial weight.
+		 *
+		 * @throws FileNotFoundException	If the file cannot be opened.
+		 */
+		public Transfer(int sessionId, File dataFile, int weight) throws FileNotFoundException {
+			this.sessionId = sessionId;
+			this.dataFile = dataFile;
+			this.reader = new FileInputStream(dataFile);
+			this.bytesLeft = dataFile.length();
+			this.weight = weight;
+
+			this.deficit = 0;
+			this.joinedWeight = 0;
+			this.windowPackets = new ArrayList<WindowPacket>();
+			this.packetNum = 0;
+			this.EOF = false;
+			this.rttEstimator = new RttEstimator();
+			this.finAttempts = 0;
+			this.finAcked = false;
+			this.added = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns the next packet this transfer should send, if any: the first
+		 * timed out packet in the window, or else a new packet if the window has
+		 * room.
+		 *
+		 * @param ipAddress		The address of the receiver.
+		 *
+		 * @return				The packet to send, or null if there is nothing to
+		 * 						send yet.
+		 *
+		 * @throws IOException	If the file cannot be read.
+		 */
+		public WindowPacket nextPacket(InetAddress ipAddress) throws IOException {
+
+			synchronized (windowPackets) {
+
+				/* Remove acked packets. */
+				while (windowPackets.size() > 0 && windowPackets.get(0).isAcked()) {
+					windowPackets.remove(0);
+				}
+
+				/* Re-send timed out packets first. Once the whole file is in the
+				 * window, the last unacked packet is re-sent as a tail-loss probe,
+				 * as in Sender4. */
+				WindowPacket tailPacket = null;
+				if (EOF) {
+					for (WindowPacket packet : windowPackets) {
+						if (!packet.isAcked()) {
+							tailPacket = packet;
+						}
+					}
+				}
+
+				long probeTimeout = rttEstimator.getProbeTimeout(MIN_PROBE_TIMEOUT, Sender4.TIMEOUT_LENGTH);
+				long now = System.currentTimeMillis();
+
+				for (WindowPacket packet : windowPackets) {
+
+					/* New packets have not been sent yet. */
+					if (packet.getTimesSent() == 0) {
+						continue;
+					}
+
+					long timeout = (packet == tailPacket && packet.getTimesSent() == 1)
+									? probeTimeout
+									: Sender4.TIMEOUT_LENGTH;
+
+					if (!packet.isAcked() && now > packet.getTimeLastSent() + timeout) {
+
+						if (timeout == Sender4.TIMEOUT_LENGTH) {
+							congestionState.onLoss(packet.getTimeLastSent());
+						}
+
+						return packet;
+
+					}
+
+				}
+
+				if (windowPackets.size() >= Math.min(windowSize, congestionState.getWindow(this)) || EOF) {
+					return null;
+				}
+
+				/* If in the final packet, there may be less than
+				 * PACKET_SIZE - HEADER_SIZE bytes left to send. */
+				int datalen = (bytesLeft >= (Sender4.PACKET_SIZE - HEADER_SIZE))
+						? Sender4.PACKET_SIZE - HEADER_SIZE
+						: (int) bytesLeft;
+
+				EOF = bytesLeft <= (Sender4.PACKET_SIZE - HEADER_SIZE);
+
+				byte sendData[] = new byte[datalen + HEADER_SIZE];
+
+				writeSessionId(sendData, sessionId);
+				sendData[4] = (byte) (packetNum >> 8);
+				sendData[5] = (byte) (packetNum);
+				sendData[6] = (byte) (EOF ? 1 : 0);
+
+				reader.read(sendData, HEADER_SIZE, datalen);
+				bytesLeft -= datalen;
+
+				DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, ipAddress, portNumber);
+				WindowPacket packet = new WindowPacket(sendPacket, false, packetNum & 0xFFFF);
+				windowPackets.add(packet);
+
+				packetNum++;
+
+				return packet;
+
+			}
+
+		}
+
+		/**
+		 * Marks a packet as acked.
+		 *
+		 * @param ackPacketNum		The packet number that was acked.
+		 */
+		public void ackPacket(int ackPacketNum) {
+
+			synchronized (windowPackets) {
+
+				for (WindowPacket packet : windowPackets) {
+
+					if (packet.getPacketNum() == ackPacketNum) {
+
+						/* Only packets sent once give a reliable round trip time. */
+						if (!packet.isAcked() && packet.getTimesSent() == 1) {
+							rttEstimator.addSample(System.currentTimeMillis() - packet.getTimeLastSent());
+						}
+
+						if (!packet.isAcked()) {
+							congestionState.onAck();
+						}
+
+						packet.ackPacket();
+						break;
+
+					}
+
+				}
+
+			}
+
+		}
+
+		/**
+		 * Returns whether every packet has been sent and acked.
+		 *
+		 * @return		True once only the FIN exchange is left.
+		 */
+		public boolean isClosing() {
+			synchronized (windowPackets) {
+				while (windowPackets.size() > 0 && windowPackets.get(0).isAcked()) {
+					windowPackets.remove(0);
+				}
+				return EOF && windowPackets.size() == 0;
+			}
+		}
+
+	}
+
+	/**
+	 * This thread receives the acks for every transfer, and passes each to
+	 * the transfer with its session ID.
+	 */
+	private class ACKThread extends Thread {
+
+		/**
+		 * The main method for the thread. Constantly waits for ack packets to
+		 * arrive and acks the relevant packet.
+		 */
+		public void run() {
+
+			while (!stopThread) {
+
+				try {
+
+					byte[] ackBuffer = new byte[HEADER_SIZE];
+					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+
+					/* Timeout so that we will keep checking for stopThread rather than
+					 * just blocking forever. */
+					senderSocket.setSoTimeout(50);
+					senderSocket.receive(ackPacket);
+
+					if (ackPacket.getLength() < 6) {
+						continue;
+					}
+
+					Transfer transfer = transfers.get(Sender4.readSessionId(ackBuffer));
+					if (transfer == null) {
+						continue;
+					}
+
+					/* The answer to our FIN. */
+					if (ackPacket.getLength() == 7 && ackBuffer[6] == Sender4.FIN) {
+						transfer.finAcked = true;
+						continue;
+					}
+
+					int ackPacketNum = ((ackBuffer[5] << 8) & 0x0000FF00) | (ackBuffer[4] & 0x000000FF);
+					transfer.ackPacket(ackPacketNum);
+
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Received ack for packet num " + ackPacketNum +
+								" of session " + transfer.sessionId);
+					}
+
+				} catch (SocketTimeoutException ste) {
+					/* Ignore timeouts. */
+				} catch (IOException e) {
+					if (!stopThread) {
+						System.err.println("Error: IO exception - " + e.getMessage());
+					}
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Adds a file to be sent. It may be added before or while {@link #send()} runs.
+	 *
+	 * @param dataFile		The file to send.
+	 * @param sessionId		The session ID to send it under.
+	 * @param weight		The weight of the transfer, at least 1.
+	 */
+	public void addTransfer(File dataFile, int sessionId, int weight) {
+
+		if (weight < 1) {
+			throw new IllegalArgumentException("Weight must be at least 1.");
+		}
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		if (transfers.containsKey(sessionId)) {
+			throw new IllegalArgumentException("Session " + sessionId + " is already being sent.");
+		}
+
+		Transfer transfer;
+		try {
+			transfer = new Transfer(sessionId, dataFile, weight);
+		} catch (FileNotFoundException fnfe) {
+			throw new IllegalArgumentException("Input file \"" + dataFile.getName() +
+					"\" does not exist.");
+		}
+
+		transfers.put(sessionId, transfer);
+		newTransfers.add(transfer);
+
+	}
+
+	/**
+	 * Changes the weight of a transfer. Takes effect from the next scheduling
+	 * round.
+	 *
+	 * @param sessionId		The session ID of the transfer.
+	 * @param weight		The new weight, at least 1.
+	 *
+	 * @return				False if there is no such transfer still running.
+	 */
+	public boolean setWeight(int sessionId, int weight) {
+
+		if (weight < 1) {
+			throw new IllegalArgumentException("Weight must be at least 1.");
+		}
+
+		Transfer transfer = transfers.get(sessionId);
+		if (transfer == null) {
+			return false;
+		}
+
+		transfer.weight = weight;
+		return true;
+
+	}
+
+	/**
+	 * Sends every transfer added, including any added while sending, and
+	 * returns once they have all finished.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 * 			A return value of True does <b>not</b> guarantee that the
+	 * 			data made it successfully to the receiver, only that an
+	 * 			ack was received for every packet sent.
+	 */
+	public boolean send() {
+
+		List<Transfer> active = new ArrayList<Transfer>();
+
+		ACKThread ackThread = null;
+
+		try {
+
+			senderSocket = new DatagramSocket();
+			InetAddress ipAddress = InetAddress.getByName(host);
+			congestionState = CongestionState.forHost(ipAddress);
+
+			ackThread = new ACKThread();
+			ackThread.start();
+
+			/* The bytes we may send now, when the rate is limited. */
+			double tokens = 0;
+			long lastRefill = System.nanoTime();
+
+			while (true) {
+
+				Transfer newTransfer;
+				while ((newTransfer = newTransfers.poll()) != null) {
+					active.add(newTransfer);
+				}
+
+				/* Join new transfers to the congestion state, and pass on weight changes. */
+				for (Transfer transfer : active) {
+					int weight = transfer.weight;
+					if (weight != transfer.joinedWeight) {
+						congestionState.join(transfer, weight, windowSize);
+						transfer.joinedWeight = weight;
+					}
+				}
+
+				if (active.isEmpty()) {
+					break;
+				}
+
+				boolean sentAny = false;
+
+				/* One round of the scheduler. */
+				for (Transfer transfer : active) {
+
+					transfer.deficit += (long) QUANTUM * transfer.weight;
+
+					while (transfer.deficit >= Sender4.PACKET_SIZE) {
+
+						WindowPacket packet = transfer.nextPacket(ipAddress);
+
+						if (packet == null) {
+							transfer.deficit = 0;
+							break;
+						}
+
+						int length = packet.getPacket().getLength();
+
+						/* Wait until the rate allows the packet. */
+						if (rate > 0) {
+							while (tokens < length) {
+								long now = System.nanoTime();
+								tokens = Math.min((double) MAX_BURST * Sender4.PACKET_SIZE,
+										tokens + rate * ((now - lastRefill) / 1e9));
+								lastRefill = now;
+								if (tokens < length) {
+									try { Thread.sleep(1); } catch (InterruptedException e) { }
+								}
+							}
+							tokens -= length;
+						}
+
+						senderSocket.send(packet.getPacket());
+						synchronized (transfer.windowPackets) {
+							packet.setTimeLastSent(System.currentTimeMillis());
+						}
+
+						transfer.deficit -= length;
+						sentAny = true;
+
+					}
+
+				}
+
+				/* Close the transfers that have had every packet acked. */
+				Iterator<Transfer> transferIterator = active.iterator();
+				while (transferIterator.hasNext()) {
+
+					Transfer transfer = transferIterator.next();
+
+					if (!transfer.isClosing()) {
+						continue;
+					}
+
+					if (!transfer.finAcked && transfer.finAttempts < MAX_FIN_ATTEMPTS) {
+
+						if (System.currentTimeMillis() > transfer.finLastSent + Sender4.TIMEOUT_LENGTH) {
+
+							byte[] finData = new byte[HEADER_SIZE];
+							writeSessionId(finData, transfer.sessionId);
+							finData[HEADER_SIZE - 1] = Sender4.FIN;
+							senderSocket.send(new DatagramPacket(finData, finData.length, ipAddress, portNumber));
+
+							transfer.finAttempts++;
+							transfer.finLastSent = System.currentTimeMillis();
+
+						}
+
+						continue;
+
+					}
+
+					if (!transfer.finAcked && DEBUG_MODE) {
+						System.out.println("DEBUG: No FIN-ACK received for session " + transfer.sessionId +
+								", the receiver will time out instead.");
+					}
+
+					double timeTaken = (System.currentTimeMillis() - transfer.added) / 1000.0;
+					long dataFileLength = transfer.dataFile.length();
+					System.out.println("Session " + transfer.sessionId + " (" + transfer.dataFile.getName() +
+							", weight " + transfer.weight + ") sent in " + timeTaken + " s: " +
+							(dataFileLength / 1024.0 / timeTaken) + " kB/s");
+
+					transfer.reader.close();
+					congestionState.leave(transfer);
+					transfers.remove(transfer.sessionId);
+					transferIterator.remove();
+
+				}
+
+				if (!sentAny) {
+					try { Thread.sleep(1); } catch (InterruptedException e) { }
+				}
+
+			}
+
+		} catch (SocketException se) {
+			System.err.println("Error: Socket exception:");
+			System.err.println(se.getMessage());
+			return false;
+		} catch (UnknownHostException uhe) {
+			System.err.println("Error: Host \"" + host + "\" was not found.");
+			return false;
+		} catch (IOException e) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(e.getMessage());
+			return false;
+		} finally {
+
+			stopThread = true;
+
+			if (congestionState != null) {
+				for (Transfer transfer : active) {
+					congestionState.leave(transfer);
+				}
+			}
+
+			if (ackThread != null) {
+				try {
+					ackThread.join();
+				} catch (InterruptedException ie) { }
+			}
+
+			if (senderSocket != null) {
+				senderSocket.close();
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/* Writes the session ID into the first 4 bytes of a packet. */
+	private static void writeSessionId(byte[] data, int sessionId) {
+		data[0] = (byte) (sessionId >>> 24);
+		data[1] = (byte) (sessionId >>> 16);
+		data[2] = (byte) (sessionId >>> 8);
+		data[3] = (byte) sessionId;
+	}
+
+	/* Returns whether a string is a whole number. */
+	private static boolean isInteger(String text) {
+		try {
+			Integer.parseInt(text);
+			return true;
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+	}
+
+	/**
+	 * The main method for running the MultiSender class. There are four
+	 * compulsory arguments - the host name, the port number, the window size and
+	 * the total rate in kB/s (0 for no limit) - followed by the files to send, each
+	 * as filename:weight or filename:weight:session_id. Files without a session ID
+	 * are given a random one, so that separate runs sending to the same
+	 * {@link ReceiverServer} do not clash, and the IDs are printed before sending.
+	 * <p>
+	 * While sending, weights can be changed by typing "session_id weight" lines.
+	 *
+	 * @param args		The program arguments: the host name, the port number,
+	 * 					the window size, the rate, and the files with their weights.
+	 */
+	public static void main(String[] args) {
+
+		boolean successful = false;
+
+		if (args.length < 5) {
+			System.err.println("Usage: java MultiSender host_name port windowsize rate_kBps " +
+					"filename:weight[:session_id] [filename:weight[:session_id] ...]");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+			long rate = Long.parseLong(args[3]) * 1024;
+
+			final MultiSender sender = new MultiSender(host, portNumber, windowSize, rate);
+
+			/* Take the caller's session IDs first, so random ones can avoid them. */
+			String[] fileNames = new String[args.length - 4];
+			int[] weights = new int[fileNames.length];
+			Integer[] sessionIds = new Integer[fileNames.length];
+			Set<Integer> usedIds = new HashSet<Integer>();
+
+			for (int i = 0; i < fileNames.length; i++) {
+
+				int split = args[i + 4].lastIndexOf(':');
+				if (split < 0) {
+					throw new IllegalArgumentException("\"" + args[i + 4] +
+							"\" is not of the form filename:weight[:session_id].");
+				}
+
+				/* A file name may itself hold colons, so the numbers are read from the end. */
+				String rest = args[i + 4].substring(0, split);
+				String last = args[i + 4].substring(split + 1);
+				int weightSplit = rest.lastIndexOf(':');
+
+				if (weightSplit >= 0 && isInteger(rest.substring(weightSplit + 1))) {
+
+					fileNames[i] = rest.substring(0, weightSplit);
+					weights[i] = Integer.parseInt(rest.substring(weightSplit + 1));
+					sessionIds[i] = Integer.parseInt(last);
+
+					if (!usedIds.add(sessionIds[i])) {
+						throw new IllegalArgumentException("Session " + sessionIds[i] + " is given twice.");
+					}
+
+				} else {
+					fileNames[i] = rest;
+					weights[i] = Integer.parseInt(last);
+				}
+
+			}
+
+			Random random = new Random();
+			for (int i = 0; i < fileNames.length; i++) {
+
+				if (sessionIds[i] == null) {
+					do {
+						sessionIds[i] = random.nextInt(Integer.MAX_VALUE) + 1;
+					} while (!usedIds.add(sessionIds[i]));
+				}
+
+				sender.addTransfer(new File(fileNames[i]), sessionIds[i], weights[i]);
+				System.out.println("Session " + sessionIds[i] + ": " + fileNames[i]);
+
+			}
+
+			/* Read weight changes from the console. */
+			Thread weightThread = new Thread() {
+				public void run() {
+					try {
+						BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+						String line;
+						while ((line = console.readLine()) != null) {
+							String[] fields = line.trim().split("\\s+");
+							if (fields.length != 2) {
+								continue;
+							}
+							try {
+								int sessionId = Integer.parseInt(fields[0]);
+								if (!sender.setWeight(sessionId, Integer.parseInt(fields[1]))) {
+									System.err.println("Session " + sessionId + " is not being sent.");
+								}
+							} catch (IllegalArgumentException iae) {
+								System.err.println("Error: " + iae.getMessage());
+							}
+						}
+					} catch (IOException ioe) { }
+				}
+			};
+			weightThread.setDaemon(true);
+			weightThread.start();
+
+			successful = sender.send();
+
+		} catch (IllegalArgumentException iae) {
+			/* Includes NumberFormatException. */
+			System.err.println("Error: " + iae.getMessage());
+		}
+
+		if (successful) {
+			System.out.println("Success! Files have been sent.");
+		} else {
+			System.err.println("Files were not sent successfully. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,494 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * The MultiSourceReceiver class downloads a file from several {@link ChunkServer}s
+ * holding copies of it at once, so that the copy goes as fast as the sources
+ * together can send it rather than as fast as one of them.
+ * <p>
+ * The file is split into chunks of <a href="#CHUNK_SIZE">CHUNK_SIZE</a> bytes.
+ * Each source has a thread which asks it for one chunk at a time, receives the
+ * chunk with {@link Receiver4} on a port of its own (the port + 2i for the i-th
+ * source) and writes it into the file at its offset, then asks for the next
+ * chunk no one has yet. A fast source therefore ends up sending more chunks than
+ * a slow one.
+ * <p>
+ * A chunk that a source stops sending for <a href="#IDLE_TIMEOUT_LENGTH">IDLE_TIMEOUT_LENGTH</a>,
+ * or doesn't answer the request for, is handed back for any source to take. A
+ * source that fails <a href="#MAX_CHUNK_FAILURES">MAX_CHUNK_FAILURES</a> chunks in a
+ * row is dropped, so one lost packet does not cost us a working source. Once every chunk has been handed out, a source with nothing to
+ * do asks for a chunk that another source is still sending, and whichever copy
+ * arrives first counts, so the copy does not wait on the slowest source's last
+ * chunk.
+ *
+ * @author s0840449
+ *
+ */
+public class MultiSourceReceiver {
+
+	/** The size of a chunk. Small enough to need fewer than 65536 packets. */
+	public static final long CHUNK_SIZE = 1024 * 1024;
+
+	/** How long (in ms) a source may go without sending before it is dropped. */
+	public static final int IDLE_TIMEOUT_LENGTH = 3000;
+
+	/** How many chunks in a row a source may fail before it is dropped. */
+	public static final int MAX_CHUNK_FAILURES = 2;
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* How long (in ms) to wait for a request to be answered, and how many
+	 * times to try. */
+	private static final int REQUEST_TIMEOUT_LENGTH = 500;
+	private static final int MAX_REQUEST_ATTEMPTS = 5;
+
+	/* The most copies of one chunk we ask for at once. */
+	private static final int MAX_COPIES = 2;
+
+	/* The file name to write to. */
+	private String fileName;
+
+	/* The first port number to receive chunks on. */
+	private int portNumber;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* The sources, as host:port. */
+	private String[] sources;
+
+	/* For each chunk, whether it has arrived, how many sources are sending it,
+	 * and when the first of them was asked. Guarded by the receiver. */
+	private boolean[] chunkDone;
+	private int[] chunkCopies;
+	private long[] chunkStarted;
+	private int chunksLeft;
+
+	/* The length of the file. */
+	private long dataFileLength;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param fileName		The output file name to write to.
+	 * @param portNumber	The first port number to receive chunks on. Each
+	 * 						source uses two ports from here on.
+	 * @param windowSize	The window size the sources send with.
+	 * @param sources		The sources, each as host:port.
+	 */
+	public MultiSourceReceiver(String fileName, int portNumber, int windowSize, String[] sources) {
+
+		if (sources.length < 1) {
+			throw new IllegalArgumentException("At least one source is needed.");
+		}
+
+		this.fileName = fileName;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+		this.sources = sources;
+	}
+
+	/**
+	 * The SourceThread class downloads chunks from one source until there are
+	 * none left or the source fails.
+	 */
+	private class SourceThread extends Thread {
+
+		private int source;
+		private InetAddress address;
+		private int sourcePort;
+
+		private DatagramSocket controlSocket;
+		private int requestNum;
+
+		/* The number of chunks this source sent us first. */
+		private int chunksReceived;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param source		The source number.
+		 * @param address		The address of the source.
+		 * @param sourcePort	The port the source listens for requests on.
+		 */
+		public SourceThread(int source, InetAddress address, int sourcePort) {
+			this.source = source;
+			this.address = address;
+			this.sourcePort = sourcePort;
+			this.requestNum = 0;
+			this.chunksReceived = 0;
+
+			setDaemon(true);
+		}
+
+		/**
+		 * The main method for the thread. Downloads chunks until there are none left.
+		 */
+		public void run() {
+
+			try {
+
+				controlSocket = new DatagramSocket();
+
+				/* Check that the source has the same file. */
+				ByteBuffer info = request(ByteBuffer.allocate(3), ChunkServer.INFO, 11);
+				if (info == null || info.getLong(3) != dataFileLength) {
+					System.err.println("Source " + sources[source] + " does not have the file, dropping it.");
+					return;
+				}
+
+				int chunk;
+				int failures = 0;
+				while ((chunk = takeChunk()) >= 0) {
+
+					long offset = chunk * CHUNK_SIZE;
+					long length = Math.min(CHUNK_SIZE, dataFileLength - offset);
+
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Asking " + sources[source] + " for chunk " + chunk + ".");
+					}
+
+					/* Start listening before asking, so the first packets aren't lost. */
+					final Receiver4 receiver = new Receiver4(fileName, portNumber + 2 * source, windowSize);
+					receiver.setIdleTimeout(IDLE_TIMEOUT_LENGTH);
+
+					final long chunkOffset = offset;
+					final boolean[] received = new boolean[1];
+					Thread receiveThread = new Thread() {
+						public void run() {
+							received[0] = receiver.receive(chunkOffset);
+						}
+					};
+					receiveThread.setDaemon(true);
+					receiveThread.start();
+
+					ByteBuffer chunkRequest = ByteBuffer.allocate(ChunkServer.CHUNK_REQUEST_SIZE);
+					chunkRequest.position(3);
+					chunkRequest.putLong(offset);
+					chunkRequest.putLong(length);
+					chunkRequest.putInt(portNumber + 2 * source);
+
+					boolean acked = request(chunkRequest, ChunkServer.CHUNK, 3) != null;
+
+					/* Without an ack the receiver gives up after the idle timeout. */
+					receiveThread.join();
+
+					if (!acked || !received[0]) {
+
+						releaseChunk(chunk);
+
+						failures++;
+						if (failures == MAX_CHUNK_FAILURES) {
+							System.err.println("Source " + sources[source] + " stopped sending, dropping it.");
+							return;
+						}
+
+						continue;
+
+					}
+
+					failures = 0;
+					finishChunk(chunk, this);
+
+				}
+
+			} catch (IOException ioe) {
+
+				System.err.println("Error: IO Exception with source " + sources[source] + ":");
+				System.err.println(ioe.getMessage());
+
+			} catch (InterruptedException ie) {
+				/* Give up on the source. */
+			} finally {
+
+				if (controlSocket != null) {
+					controlSocket.close();
+				}
+
+				sourceFinished();
+
+			}
+
+		}
+
+		/* Sends a request until it is answered, and returns the answer, or null if
+		 * there was none. The request's first three bytes are filled in here. */
+		private ByteBuffer request(ByteBuffer request, byte type, int answerSize) throws IOException {
+
+			requestNum = (requestNum + 1) & 0xFFFF;
+			request.put(0, (byte) (requestNum >> 8));
+			request.put(1, (byte) requestNum);
+			request.put(2, type);
+
+			DatagramPacket requestPacket = new DatagramPacket(request.array(), request.capacity(),
+					address, sourcePort);
+
+			for (int attempt = 0; attempt < MAX_REQUEST_ATTEMPTS; attempt++) {
+
+				controlSocket.send(requestPacket);
+
+				long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT_LENGTH;
+
+				/* Late answers to earlier requests may arrive first. */
+				while (System.currentTimeMillis() < deadline) {
+
+					byte[] answerBuffer = new byte[answerSize];
+					DatagramPacket answerPacket = new DatagramPacket(answerBuffer, answerBuffer.length);
+
+					try {
+						controlSocket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+						controlSocket.receive(answerPacket);
+					} catch (SocketTimeoutException ste) {
+						break;
+					}
+
+					int answerNum = ((0x000000FF & answerBuffer[0]) << 8) | (0x000000FF & answerBuffer[1]);
+					if (answerPacket.getLength() == answerSize && answerBuffer[2] == type && answerNum == requestNum) {
+						return ByteBuffer.wrap(answerBuffer);
+					}
+
+				}
+
+			}
+
+			return null;
+
+		}
+
+	}
+
+	/* Returns the next chunk for a source to fetch: the first chunk not yet
+	 * handed out, or once there are none, the unfinished chunk that has been
+	 * going longest with the fewest copies. Returns -1 if there is nothing left. */
+	private synchronized int takeChunk() {
+
+		int best = -1;
+
+		for (int chunk = 0; chunk < chunkDone.length; chunk++) {
+
+			if (chunkDone[chunk] || chunkCopies[chunk] >= MAX_COPIES) {
+				continue;
+			}
+
+			if (chunkCopies[chunk] == 0) {
+				best = chunk;
+				break;
+			}
+
+			if (best < 0 || chunkCopies[chunk] < chunkCopies[best]
+					|| (chunkCopies[chunk] == chunkCopies[best] && chunkStarted[chunk] < chunkStarted[best])) {
+				best = chunk;
+			}
+
+		}
+
+		if (best >= 0) {
+			if (chunkCopies[best] == 0) {
+				chunkStarted[best] = System.currentTimeMillis();
+			}
+			chunkCopies[best]++;
+		}
+
+		return best;
+
+	}
+
+	/* Hands back a chunk that a source failed to send. */
+	private synchronized void releaseChunk(int chunk) {
+		chunkCopies[chunk]--;
+		notifyAll();
+	}
+
+	/* Marks a chunk as arrived, crediting the source if it was the first copy. */
+	private synchronized void finishChunk(int chunk, SourceThread sourceThread) {
+
+		chunkCopies[chunk]--;
+
+		if (chunkDone[chunk]) {
+			return;
+		}
+
+		chunkDone[chunk] = true;
+		chunksLeft--;
+		sourceThread.chunksReceived++;
+		notifyAll();
+
+	}
+
+	/* Wakes the main thread when a source stops. */
+	private synchronized void sourceFinished() {
+		notifyAll();
+	}
+
+	/**
+	 * Downloads the file from the sources and writes it to the output file.
+	 *
+	 * @return		True if every chunk was received and written, False otherwise.
+	 */
+	public boolean receive() {
+
+		SourceThread[] sourceThreads = new SourceThread[sources.length];
+
+		try {
+
+			for (int source = 0; source < sources.length; source++) {
+
+				int colon = sources[source].lastIndexOf(':');
+				if (colon < 0) {
+					throw new IllegalArgumentException("\"" + sources[source] + "\" is not of the form host:port.");
+				}
+
+				sourceThreads[source] = new SourceThread(source,
+						InetAddress.getByName(sources[source].substring(0, colon)),
+						Integer.parseInt(sources[source].substring(colon + 1)));
+
+			}
+
+			/* Ask the first source that answers for the length of the file. */
+			dataFileLength = -1;
+			for (int source = 0; source < sources.length && dataFileLength < 0; source++) {
+				sourceThreads[source].controlSocket = new DatagramSocket();
+				try {
+					ByteBuffer info = sourceThreads[source].request(ByteBuffer.allocate(3), ChunkServer.INFO, 11);
+					if (info != null) {
+						dataFileLength = info.getLong(3);
+					}
+				} finally {
+					sourceThreads[source].controlSocket.close();
+				}
+			}
+
+			if (dataFileLength < 0) {
+				System.err.println("Error: None of the sources answered.");
+				return false;
+			}
+
+			int numChunks = (int) ((dataFileLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			chunkDone = new boolean[numChunks];
+			chunkCopies = new int[numChunks];
+			chunkStarted = new long[numChunks];
+			chunksLeft = numChunks;
+
+			/* Set the file to its full length up front, as the chunks are
+			 * written into it out of order. */
+			RandomAccessFile writer = new RandomAccessFile(new File(this.fileName), "rw");
+			writer.setLength(0);
+			writer.setLength(dataFileLength);
+			writer.close();
+
+			/* Used to monitor throughput. */
+			long before = System.currentTimeMillis();
+
+			for (SourceThread sourceThread : sourceThreads) {
+				sourceThread.start();
+			}
+
+			/* Wait for every chunk, or for every source to stop. */
+			synchronized (this) {
+				while (chunksLeft > 0) {
+
+					boolean anyAlive = false;
+					for (SourceThread sourceThread : sourceThreads) {
+						anyAlive |= sourceThread.isAlive();
+					}
+
+					if (!anyAlive) {
+						System.err.println("Error: Every source stopped with " + chunksLeft + " chunks left.");
+						return false;
+					}
+
+					wait(100);
+
+				}
+			}
+
+			double timeTaken = (System.currentTimeMillis() - before) / 1000.0;
+			System.out.println("Time taken: " + timeTaken);
+			System.out.println("Throughput: " + (dataFileLength / 1024.0 / timeTaken) + " kB/s");
+
+			for (int source = 0; source < sources.length; source++) {
+				System.out.println("Source " + sources[source] + ": " + sourceThreads[source].chunksReceived +
+						" of " + numChunks + " chunks");
+			}
+
+		} catch (SocketException se) {
+
+			System.err.println("Error: Unable to open a datagram socket:");
+			System.err.println(se.getMessage());
+			return false;
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		} catch (InterruptedException ie) {
+
+			System.err.println("Error: Interrupted while waiting for the sources.");
+			return false;
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * The main method for running the MultiSourceReceiver class. There are four
+	 * compulsory arguments - the first port number to receive on, the name of
+	 * the file to write, the window size the sources use, and the sources: a
+	 * comma separated list of host:port.
+	 *
+	 * @param args		The program arguments: the first port number, the name of
+	 * 					the file that is to be written, the window size and the
+	 * 					sources.
+	 */
+	public static void main(String[] args) {
+
+		String fileName = null;
+		boolean successful = false;
+
+		if (args.length != 4) {
+			System.err.println("Usage: java MultiSourceReceiver port filename window_size host:port[,host:port...]");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			fileName = args[1];
+			int windowSize = Integer.parseInt(args[2]);
+			String[] sources = args[3].split(",");
+
+			/* Attempt to receive data and write it to the given file. */
+			MultiSourceReceiver receiver = new MultiSourceReceiver(fileName, portNumber, windowSize, sources);
+			successful = receiver.receive();
+
+		} catch (IllegalArgumentException iae) {
+			/* Includes NumberFormatException. */
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (successful) {
+			System.out.println("Success! A file has been received and written to " + fileName);
+		} else {
+			System.err.println("File was not received successfully. Please try again.");
+		}
+
+	}
+
+}
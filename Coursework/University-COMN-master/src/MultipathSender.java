@@ -0,0 +1,754 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * The MultipathSender class sends a file to a {@link Receiver4} over several paths
+ * at once, one for each local address (or network interface) given, so that on a
+ * host with more than one link the bandwidth of the links adds up, and the transfer
+ * carries on if one of them goes bad.
+ * <p>
+ * The packets and acks are those of {@link Sender4}. Each path has its own socket
+ * bound to its local address, and its own ack socket bound to the same address on
+ * the port + 1. Receiver4 acks each packet to the address it came from, so the acks
+ * come back over the path the packet went out on. A path may also be given its own
+ * receiver address, for a receiver that has more than one.
+ * <p>
+ * Each path keeps its own round trip time estimate, loss rate and congestion window
+ * (see {@link CongestionState}). New packets go out on the path with the lowest
+ * round trip time that has room in its window, so a faster path carries more of the
+ * file. A packet that times out is re-sent on another path where there is one that
+ * is working, as the path it was lost on may have failed. A path that loses
+ * <a href="#MAX_CONSECUTIVE_LOSSES">MAX_CONSECUTIVE_LOSSES</a> packets in a row
+ * without an ack is stalled, and only carries one packet at a time until an ack
+ * comes back on it.
+ *
+ * @author s0840449
+ *
+ */
+public class MultipathSender {
+
+	/** The number of packets in a row a path may lose before it is stalled. */
+	public static final int MAX_CONSECUTIVE_LOSSES = 3;
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* The packet number and EOF byte before the data. */
+	private static final int HEADER_SIZE = 3;
+
+	/* The shortest time (in ms) we wait before sending a tail-loss probe. */
+	private static final long MIN_PROBE_TIMEOUT = 10;
+
+	/* The number of times we send a FIN packet before giving up on a FIN-ACK. */
+	private static final int MAX_FIN_ATTEMPTS = 10;
+
+	/* The gain of the moving average of each path's loss rate. */
+	private static final double LOSS_GAIN = 1.0 / 16;
+
+	/* The receiving host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The window size, across all paths. */
+	private int windowSize;
+
+	/* The paths, as given: a local address or interface, optionally with
+	 * @host:port for a receiver address of its own. */
+	private String[] pathSpecs;
+
+	/* The paths once open. */
+	private List<Path> paths;
+
+	/* Holds the window packets. */
+	private List<PathPacket> windowPackets;
+
+	/* Flag to stop the ack threads. */
+	private volatile boolean stopThread;
+
+	/* Set by an ack thread when the receiver answers our FIN. */
+	private volatile boolean finAcked;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The receiving host.
+	 * @param portNumber	The port number on the receiving host.
+	 * @param windowSize	The window size to use, across all paths.
+	 * @param pathSpecs		The local address or network interface name of each
+	 * 						path, each optionally followed by @host:port to send
+	 * 						that path's packets to a different receiver address.
+	 */
+	public MultipathSender(String host, int portNumber, int windowSize, String[] pathSpecs) {
+
+		if (pathSpecs.length < 1) {
+			throw new IllegalArgumentException("At least one path is needed.");
+		}
+
+		this.host = host;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+		this.pathSpecs = pathSpecs;
+
+		this.stopThread = false;
+		this.finAcked = false;
+	}
+
+	/**
+	 * The Path class holds the sockets and the estimates of one path.
+	 */
+	private class Path {
+
+		private String name;
+		private DatagramSocket dataSocket;
+		private DatagramSocket ackSocket;
+		private InetAddress remoteAddress;
+		private int remotePort;
+
+		private RttEstimator rttEstimator;
+		private CongestionState congestionState;
+
+		/* A moving average of the fraction of packets lost, and the number of
+		 * packets lost since the last ack on this path. */
+		private double lossRate;
+		private int consecutiveLosses;
+
+		/* Counts for the report at the end. */
+		private int packetsSent;
+		private int packetsLost;
+
+		/**
+		 * Default constructor. Opens the path's sockets.
+		 *
+		 * @param name				The name of the path, for reports.
+		 * @param localAddress		The local address to send from.
+		 * @param remoteAddress		The address to send to.
+		 * @param remotePort		The port to send to.
+		 *
+		 * @throws SocketException	If a socket cannot be opened.
+		 */
+		public Path(String name, InetAddress localAddress, InetAddress remoteAddress, int remotePort)
+				throws SocketException {
+
+			this.name = name;
+			this.remoteAddress = remoteAddress;
+			this.remotePort = remotePort;
+
+			this.dataSocket = new DatagramSocket(new InetSocketAddress(localAddress, 0));
+
+			try {
+				this.ackSocket = new DatagramSocket(new InetSocketAddress(localAddress, portNumber + 1));
+			} catch (SocketException se) {
+				dataSocket.close();
+				throw se;
+			}
+
+			this.rttEstimator = new RttEstimator();
+			this.congestionState = new CongestionState();
+			this.congestionState.join(this, 1, windowSize);
+
+			this.lossRate = 0;
+			this.consecutiveLosses = 0;
+			this.packetsSent = 0;
+			this.packetsLost = 0;
+		}
+
+		/**
+		 * Returns the number of packets this path may have unacked.
+		 *
+		 * @return		The path's window, in packets.
+		 */
+		public int getWindow() {
+			if (isStalled()) {
+				return 1;
+			}
+			return Math.min(windowSize, congestionState.getWindow(this));
+		}
+
+		/**
+		 * Returns whether the path has lost too many packets in a row to trust.
+		 *
+		 * @return		True if the path is stalled.
+		 */
+		public synchronized boolean isStalled() {
+			return consecutiveLosses >= MAX_CONSECUTIVE_LOSSES;
+		}
+
+		/**
+		 * Records an ack that came back on this path.
+		 *
+		 * @param packet		The newly acked packet.
+		 */
+		public synchronized void onAck(PathPacket packet) {
+
+			/* Only packets sent once give a reliable round trip time. */
+			if (packet.getTimesSent() == 1) {
+				rttEstimator.addSample(System.currentTimeMillis() - packet.getTimeLastSent());
+			}
+
+			congestionState.onAck();
+			lossRate -= lossRate * LOSS_GAIN;
+
+			if (DEBUG_MODE && consecutiveLosses >= MAX_CONSECUTIVE_LOSSES) {
+				System.out.println("DEBUG: Path " + name + " is working again.");
+			}
+
+			consecutiveLosses = 0;
+
+		}
+
+		/**
+		 * Records a packet sent on this path that timed out.
+		 *
+		 * @param packet		The lost packet.
+		 */
+		public synchronized void onLoss(PathPacket packet) {
+
+			congestionState.onLoss(packet.getTimeLastSent());
+			lossRate += (1 - lossRate) * LOSS_GAIN;
+			consecutiveLosses++;
+			packetsLost++;
+
+			if (DEBUG_MODE && consecutiveLosses == MAX_CONSECUTIVE_LOSSES) {
+				System.out.println("DEBUG: Path " + name + " has stalled.");
+			}
+
+		}
+
+		/**
+		 * Sends a packet on this path.
+		 *
+		 * @param packet		The packet to send.
+		 *
+		 * @throws IOException	If the packet cannot be sent.
+		 */
+		public void send(PathPacket packet) throws IOException {
+
+			DatagramPacket sendPacket = packet.getPacket();
+			sendPacket.setAddress(remoteAddress);
+			sendPacket.setPort(remotePort);
+
+			dataSocket.send(sendPacket);
+
+			packet.path = this;
+			packet.setTimeLastSent(System.currentTimeMillis());
+
+			synchronized (this) {
+				packetsSent++;
+			}
+
+		}
+
+		/**
+		 * Closes the path's sockets.
+		 */
+		public void close() {
+			dataSocket.close();
+			ackSocket.close();
+		}
+
+	}
+
+	/**
+	 * The PathPacket class is a window packet that knows which path it was
+	 * last sent on.
+	 */
+	private class PathPacket extends WindowPacket {
+
+		private Path path;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param packet		The UDP packet.
+		 * @param packetNum		The packet number.
+		 */
+		public PathPacket(DatagramPacket packet, int packetNum) {
+			super(packet, false, packetNum);
+			this.path = null;
+		}
+
+	}
+
+	/**
+	 * This thread monitors the acks arriving on one path. When an ack is received
+	 * the relevant packet is marked as having been acked, and the path is credited.
+	 */
+	private class ACKThread extends Thread {
+
+		private Path path;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param path		The path whose ack socket to listen on.
+		 */
+		public ACKThread(Path path) {
+			this.path = path;
+		}
+
+		/**
+		 * The main method for the thread. Constantly waits for ack packets to
+		 * arrive and acks the relevant packet.
+		 */
+		public void run() {
+
+			while (!stopThread) {
+
+				try {
+
+					byte[] ackBuffer = new byte[HEADER_SIZE];
+					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+
+					/* Timeout so that we will keep checking for stopThread rather than
+					 * just blocking forever. */
+					path.ackSocket.setSoTimeout(50);
+					path.ackSocket.receive(ackPacket);
+
+					/* The answer to our FIN. */
+					if (ackPacket.getLength() == 3 && ackBuffer[2] == Sender4.FIN) {
+						finAcked = true;
+						continue;
+					}
+
+					if (ackPacket.getLength() < 2) {
+						continue;
+					}
+
+					int ackPacketNum = ((ackBuffer[1] << 8) & 0x0000FF00) | (ackBuffer[0] & 0x000000FF);
+
+					synchronized (windowPackets) {
+
+						for (PathPacket packet : windowPackets) {
+
+							if (packet.getPacketNum() == ackPacketNum) {
+
+								if (!packet.isAcked()) {
+									path.onAck(packet);
+									packet.ackPacket();
+								}
+
+								break;
+
+							}
+
+						}
+
+					}
+
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Received ack for packet num " + ackPacketNum +
+								" on path " + path.name);
+					}
+
+				} catch (SocketTimeoutException ste) {
+					/* Ignore timeouts. */
+				} catch (IOException e) {
+					if (!stopThread) {
+						System.err.println("Error: IO exception - " + e.getMessage());
+					}
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Attempt to send the data contained in a file over every path.
+	 *
+	 * @param dataFile		The file to get the data from.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 * 			A return value of True does <b>not</b> guarantee that the
+	 * 			data made it successfully to the receiver, only that an
+	 * 			ack was received for every packet sent.
+	 */
+	public boolean send(File dataFile) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		FileInputStream reader;
+		try {
+			reader = new FileInputStream(dataFile);
+		} catch (FileNotFoundException fnfe) {
+			throw new IllegalArgumentException("Input file \"" + dataFile.getName() +
+					"\" does not exist.");
+		}
+
+		paths = new ArrayList<Path>();
+		windowPackets = Collections.synchronizedList(new ArrayList<PathPacket>());
+		List<ACKThread> ackThreads = new ArrayList<ACKThread>();
+
+		try {
+
+			InetAddress ipAddress = InetAddress.getByName(host);
+
+			for (String pathSpec : pathSpecs) {
+				paths.add(openPath(pathSpec, ipAddress));
+			}
+
+			for (Path path : paths) {
+				ACKThread ackThread = new ACKThread(path);
+				ackThreads.add(ackThread);
+				ackThread.start();
+			}
+
+			long dataFileLength = dataFile.length();
+			long bytesLeft = dataFileLength;
+			int packetNum = 0;
+			boolean EOF = false;
+
+			/* Used to monitor throughput for the coursework question. */
+			long before = System.currentTimeMillis();
+
+			while (true) {
+
+				synchronized (windowPackets) {
+
+					/* Remove acked packets. */
+					while (windowPackets.size() > 0 && windowPackets.get(0).isAcked()) {
+						windowPackets.remove(0);
+					}
+
+					/* Once the window is empty, we know that we have sent all possible
+					 * packets, so close the transfer. */
+					if (windowPackets.size() == 0 && EOF) {
+						break;
+					}
+
+					/* The last unacked packet, for a tail-loss probe once the whole
+					 * file is in the window. */
+					PathPacket tailPacket = null;
+					if (EOF) {
+						for (PathPacket packet : windowPackets) {
+							if (!packet.isAcked()) {
+								tailPacket = packet;
+							}
+						}
+					}
+
+					/* Re-send the timed out packets, on another path if there is a
+					 * working one. */
+					for (PathPacket packet : windowPackets) {
+
+						if (packet.isAcked()) {
+							continue;
+						}
+
+						boolean probe = packet == tailPacket && packet.getTimesSent() == 1;
+						long timeout = probe
+								? packet.path.rttEstimator.getProbeTimeout(MIN_PROBE_TIMEOUT, Sender4.TIMEOUT_LENGTH)
+								: Sender4.TIMEOUT_LENGTH;
+
+						if (System.currentTimeMillis() <= packet.getTimeLastSent() + timeout) {
+							continue;
+						}
+
+						Path lostPath = packet.path;
+						if (!probe) {
+							lostPath.onLoss(packet);
+						}
+
+						Path path = choosePath(lostPath, false);
+						if (path == null) {
+							path = lostPath;
+						}
+
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Re-sending packet " + packet.getPacketNum() +
+									" on path " + path.name);
+						}
+
+						path.send(packet);
+
+					}
+
+					/* Add new packets to the window, each on the best path with room for it. */
+					while (windowPackets.size() < windowSize && !EOF) {
+
+						Path path = choosePath(null, true);
+						if (path == null) {
+							break;
+						}
+
+						/* If in the final packet, there may be less than
+						 * PACKET_SIZE - HEADER_SIZE bytes left to send. */
+						int datalen = (bytesLeft >= (Sender4.PACKET_SIZE - HEADER_SIZE))
+								? Sender4.PACKET_SIZE - HEADER_SIZE
+								: (int) bytesLeft;
+
+						EOF = bytesLeft <= (Sender4.PACKET_SIZE - HEADER_SIZE);
+
+						byte sendData[] = new byte[datalen + HEADER_SIZE];
+						sendData[0] = (byte) (packetNum >> 8);
+						sendData[1] = (byte) (packetNum);
+						sendData[2] = (byte) (EOF ? 1 : 0);
+
+						reader.read(sendData, HEADER_SIZE, datalen);
+						bytesLeft -= datalen;
+
+						PathPacket packet = new PathPacket(new DatagramPacket(sendData, sendData.length),
+								packetNum & 0xFFFF);
+						windowPackets.add(packet);
+						path.send(packet);
+
+						packetNum++;
+
+					}
+
+				}
+
+				try { Thread.sleep(1); } catch (InterruptedException e) { }
+
+			}
+
+			if (!close() && DEBUG_MODE) {
+				System.out.println("DEBUG: No FIN-ACK received, the receiver will time out instead.");
+			}
+
+			/* Calculate the throughput, and report on each path. */
+			double timeTaken = (System.currentTimeMillis() - before) / 1000.0;
+			System.out.println("Time taken: " + timeTaken);
+			System.out.println("Data file size: " + dataFileLength + " ("  + dataFileLength/1024.0 + " kB)");
+			System.out.println("Throughput: " + (dataFileLength / 1024.0 / timeTaken) + " kB/s");
+
+			for (Path path : paths) {
+				System.out.println("Path " + path.name + ": " + path.packetsSent + " packets sent, " +
+						path.packetsLost + " lost, RTT " + path.rttEstimator.getSmoothedRtt() + " ms" +
+						(path.isStalled() ? ", stalled" : ""));
+			}
+
+			reader.close();
+
+		} catch (SocketException se) {
+			System.err.println("Error: Socket exception:");
+			System.err.println(se.getMessage());
+			return false;
+		} catch (UnknownHostException uhe) {
+			System.err.println("Error: Host \"" + uhe.getMessage() + "\" was not found.");
+			return false;
+		} catch (IOException e) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(e.getMessage());
+			return false;
+		} finally {
+
+			stopThread = true;
+
+			for (ACKThread ackThread : ackThreads) {
+				try {
+					ackThread.join();
+				} catch (InterruptedException ie) { }
+			}
+
+			for (Path path : paths) {
+				path.close();
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/* Returns the working path with the lowest round trip time, skipping the given
+	 * path, and if roomNeeded those with their windows full. Paths not yet measured
+	 * come first, so that every path gets tried. Returns null if there is none. */
+	private Path choosePath(Path skip, boolean roomNeeded) {
+
+		Path best = null;
+		double bestRtt = 0;
+
+		for (Path path : paths) {
+
+			if (path == skip || (!roomNeeded && path.isStalled())) {
+				continue;
+			}
+
+			if (roomNeeded && countInFlight(path) >= path.getWindow()) {
+				continue;
+			}
+
+			double rtt = path.rttEstimator.getSmoothedRtt();
+
+			/* Weigh the round trip time by the chance of having to re-send. */
+			rtt = rtt * (1 + path.lossRate * Sender4.TIMEOUT_LENGTH / Math.max(1, rtt));
+
+			if (best == null || rtt < bestRtt) {
+				best = path;
+				bestRtt = rtt;
+			}
+
+		}
+
+		return best;
+
+	}
+
+	/* Returns the number of unacked packets last sent on a path. The caller
+	 * must hold the window lock. */
+	private int countInFlight(Path path) {
+
+		int inFlight = 0;
+
+		for (PathPacket packet : windowPackets) {
+			if (packet.path == path && !packet.isAcked()) {
+				inFlight++;
+			}
+		}
+
+		return inFlight;
+
+	}
+
+	/* Opens a path from its description: a local address or interface name,
+	 * optionally followed by @host:port. */
+	private Path openPath(String pathSpec, InetAddress ipAddress) throws IOException {
+
+		String local = pathSpec;
+		InetAddress remoteAddress = ipAddress;
+		int remotePort = portNumber;
+
+		int at = pathSpec.indexOf('@');
+		if (at >= 0) {
+
+			local = pathSpec.substring(0, at);
+			String remote = pathSpec.substring(at + 1);
+
+			int colon = remote.lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("\"" + pathSpec + "\" should end in @host:port.");
+			}
+
+			remoteAddress = InetAddress.getByName(remote.substring(0, colon));
+			remotePort = Integer.parseInt(remote.substring(colon + 1));
+
+		}
+
+		InetAddress localAddress = null;
+
+		/* An interface name stands for its first address of the receiver's family. */
+		NetworkInterface networkInterface = NetworkInterface.getByName(local);
+		if (networkInterface != null) {
+
+			Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+			while (addresses.hasMoreElements() && localAddress == null) {
+				InetAddress address = addresses.nextElement();
+				if ((address instanceof Inet4Address) == (remoteAddress instanceof Inet4Address)) {
+					localAddress = address;
+				}
+			}
+
+			if (localAddress == null) {
+				throw new IllegalArgumentException("Interface \"" + local + "\" has no suitable address.");
+			}
+
+		} else {
+			localAddress = InetAddress.getByName(local);
+		}
+
+		return new Path(pathSpec, localAddress, remoteAddress, remotePort);
+
+	}
+
+	/**
+	 * Closes the transfer by sending a FIN packet on every working path until an
+	 * ack thread hears a FIN-ACK.
+	 *
+	 * @return				True if a FIN-ACK was received, false if we gave up.
+	 *
+	 * @throws IOException	If the FIN packet cannot be sent.
+	 */
+	private boolean close() throws IOException {
+
+		byte[] finData = new byte[HEADER_SIZE];
+		finData[HEADER_SIZE - 1] = Sender4.FIN;
+
+		for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS && !finAcked; attempt++) {
+
+			for (Path path : paths) {
+				if (!path.isStalled() || attempt > 0) {
+					path.dataSocket.send(new DatagramPacket(finData, finData.length,
+							path.remoteAddress, path.remotePort));
+				}
+			}
+
+			long resendTime = System.currentTimeMillis() + Sender4.TIMEOUT_LENGTH;
+			while (!finAcked && System.currentTimeMillis() < resendTime) {
+				try { Thread.sleep(1); } catch (InterruptedException e) { }
+			}
+
+		}
+
+		return finAcked;
+
+	}
+
+	/**
+	 * The main method for running the MultipathSender class. There are five
+	 * compulsory arguments - the host name, the port number, the name of the
+	 * file to send, the window size, and the paths: a comma separated list of
+	 * local addresses or interface names, each optionally followed by @host:port.
+	 *
+	 * @param args	The program arguments: the host name, the port number, the
+	 * 				name of the file that is to be sent, the window size, and
+	 * 				the paths.
+	 */
+	public static void main(String[] args) {
+
+		boolean sendSuccessful = false;
+
+		if (args.length != 5) {
+			System.err.println("Usage: java MultipathSender host_name port filename windowsize " +
+					"local_address[@host:port][,local_address[@host:port]...]");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			String filePath = args[2];
+			int windowSize = Integer.parseInt(args[3]);
+			String[] pathSpecs = args[4].split(",");
+
+			MultipathSender sender = new MultipathSender(host, portNumber, windowSize, pathSpecs);
+			sendSuccessful = sender.send(new File(filePath));
+
+		} catch (IllegalArgumentException iae) {
+			/* Includes NumberFormatException. */
+			System.err.println("Error: " + iae.getMessage());
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! File has been sent.");
+		} else {
+			System.err.println("File was not sent successfully. Please try again.");
+		}
+
+	}
+
+}
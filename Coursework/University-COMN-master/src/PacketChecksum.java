@@ -0,0 +1,140 @@
+/* Stephen McGruer 0840449 */
+
+import java.util.zip.Checksum;
+
+/**
+ * Checksums data packets with CRC32C, so that a receiver can tell a packet was
+ * corrupted on the way and drop it rather than write it out. The checksum is a
+ * four byte field in the packet header, and covers the whole packet other than
+ * itself.
+ * <p>
+ * Where the platform has <tt>java.util.zip.CRC32C</tt> (Java 9 on), that is used,
+ * as it is computed with the processor's CRC instructions. Otherwise a table
+ * driven version is used, which gives the same values more slowly, so the two
+ * ends of a transfer need not be on the same platform.
+ *
+ * @author s0840449
+ *
+ */
+public class PacketChecksum {
+
+	/** The size of the checksum field. */
+	public static final int CHECKSUM_SIZE = 4;
+
+	/* The CRC32C polynomial, bit reversed. */
+	private static final int POLYNOMIAL = 0x82F63B78;
+
+	/* The CRC of each byte value, for the table driven version. */
+	private static final int[] TABLE = new int[256];
+	static {
+		for (int i = 0; i < TABLE.length; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = ((crc & 1) != 0) ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	/* Each thread keeps its own checksum, as they cannot be shared. */
+	private static final ThreadLocal<Checksum> CHECKSUMS = new ThreadLocal<Checksum>() {
+		@Override
+		protected Checksum initialValue() {
+			try {
+				return (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				return new TableCrc32c();
+			}
+		}
+	};
+
+	/* Only static methods. */
+	private PacketChecksum() { }
+
+	/**
+	 * Fills in a packet's checksum field.
+	 *
+	 * @param packet			The packet.
+	 * @param checksumOffset	Where the checksum field is in the packet.
+	 * @param length			The length of the packet.
+	 */
+	public static void sign(byte[] packet, int checksumOffset, int length) {
+
+		int crc = compute(packet, checksumOffset, length);
+
+		packet[checksumOffset] = (byte) (crc >>> 24);
+		packet[checksumOffset + 1] = (byte) (crc >>> 16);
+		packet[checksumOffset + 2] = (byte) (crc >>> 8);
+		packet[checksumOffset + 3] = (byte) crc;
+
+	}
+
+	/**
+	 * Checks a packet against its checksum field.
+	 *
+	 * @param packet			The packet.
+	 * @param checksumOffset	Where the checksum field is in the packet.
+	 * @param length			The length of the packet.
+	 *
+	 * @return					True if the packet matches its checksum, False if
+	 * 							it was corrupted or is too short to hold one.
+	 */
+	public static boolean verify(byte[] packet, int checksumOffset, int length) {
+
+		if (length < checksumOffset + CHECKSUM_SIZE) {
+			return false;
+		}
+
+		int expected = ((0xFF & packet[checksumOffset]) << 24) | ((0xFF & packet[checksumOffset + 1]) << 16)
+				| ((0xFF & packet[checksumOffset + 2]) << 8) | (0xFF & packet[checksumOffset + 3]);
+
+		return compute(packet, checksumOffset, length) == expected;
+
+	}
+
+	/* Returns the CRC of a packet, leaving out its checksum field. */
+	private static int compute(byte[] packet, int checksumOffset, int length) {
+
+		Checksum checksum = CHECKSUMS.get();
+		checksum.reset();
+		checksum.update(packet, 0, checksumOffset);
+		checksum.update(packet, checksumOffset + CHECKSUM_SIZE, length - checksumOffset - CHECKSUM_SIZE);
+
+		return (int) checksum.getValue();
+
+	}
+
+	/**
+	 * The TableCrc32c class works out CRC32C a byte at a time from a table, for
+	 * platforms without <tt>java.util.zip.CRC32C</tt>.
+	 */
+	private static class TableCrc32c implements Checksum {
+
+		/* The CRC so far, inverted. */
+		private int crc = 0xFFFFFFFF;
+
+		@Override
+		public void update(int b) {
+			crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+		}
+
+		@Override
+		public void update(byte[] data, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+			}
+		}
+
+		@Override
+		public long getValue() {
+			return 0xFFFFFFFFL & ~crc;
+		}
+
+		@Override
+		public void reset() {
+			crc = 0xFFFFFFFF;
+		}
+
+	}
+
+}
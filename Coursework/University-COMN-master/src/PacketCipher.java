@@ -0,0 +1,396 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and authenticates data packets with AES-GCM, under a key agreed for
+ * the one transfer. Each end makes a new elliptic curve (P-256) key pair, they
+ * swap the public halves, and both work out the same AES key and nonce salt from
+ * the Diffie-Hellman secret. The packet's data is encrypted, and its header is
+ * authenticated along with it, so a packet that was altered or forged on the way
+ * fails to open and is dropped.
+ * <p>
+ * Both ends hold a shared key, given beforehand (see {@link #loadSharedKey(File)}),
+ * which authenticates the key agreement. Each public key is sent with an
+ * HMAC-SHA256 of it under the shared key, the receiver's also covering the
+ * sender's key it answers, and a key whose MAC is wrong is refused. The shared
+ * key is also mixed into the keys worked out from the secret. Someone in the
+ * middle without the shared key can therefore neither swap in keys of their own
+ * nor read or forge packets, though by replaying an old key packet they can stall
+ * a transfer.
+ * <p>
+ * The nonce of a packet is the salt and then its full packet number, so no two
+ * packets of a transfer share one, and a re-send goes out exactly as first sent.
+ * The key pairs are thrown away after each transfer, so nonces are never used
+ * again under the same key. Acks, FINs and FIN-ACKs hold no data and are not
+ * encrypted, but carry a truncated HMAC-SHA256 over their bytes and the full
+ * packet number (see {@link #sign(byte[], int, long)}), so they cannot be forged.
+ * Each direction has its own MAC key, so a FIN cannot be reflected back as a
+ * FIN-ACK.
+ * <p>
+ * Each thread keeps its own <tt>Cipher</tt>, as they cannot be shared and are
+ * costly to make, and only re-initialises it with each packet's nonce. AES-GCM is
+ * worked out with the processor's AES and carry-less multiply instructions where
+ * the platform has them.
+ *
+ * @author s0840449
+ *
+ */
+public class PacketCipher {
+
+	/** The size of the authentication tag added to each packet. */
+	public static final int TAG_SIZE = 16;
+
+	/** The size of the MAC added to acks, FINs, FIN-ACKs and public keys. */
+	public static final int MAC_SIZE = 16;
+
+	/** The EOF byte value that marks a key packet, carrying a public key. */
+	public static final byte KEY = 3;
+
+	/* The sizes of the AES key, the nonce and its salt. */
+	private static final int KEY_SIZE = 16;
+	private static final int NONCE_SIZE = 12;
+	private static final int SALT_SIZE = 4;
+
+	/* What each key worked out from the secret is for, and which end a signed
+	 * public key came from. */
+	private static final byte CIPHER_LABEL = 1;
+	private static final byte SENDER_LABEL = 2;
+	private static final byte RECEIVER_LABEL = 3;
+
+	/* Each thread keeps its own cipher, as they cannot be shared. */
+	private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("AES/GCM/NoPadding");
+			} catch (GeneralSecurityException gse) {
+				/* Every Java platform has to provide AES-GCM. */
+				throw new IllegalStateException(gse);
+			}
+		}
+	};
+
+	/* The agreed key and nonce salt. */
+	private SecretKeySpec key;
+	private byte[] salt;
+
+	/* The MACs for the packets we send and those the other end sends. Each is
+	 * locked while in use, as they cannot be shared. */
+	private Mac ourMac;
+	private Mac theirMac;
+
+	/* Private, as made by agree(). */
+	private PacketCipher(SecretKeySpec key, byte[] salt, Mac ourMac, Mac theirMac) {
+		this.key = key;
+		this.salt = salt;
+		this.ourMac = ourMac;
+		this.theirMac = theirMac;
+	}
+
+	/**
+	 * Reads a shared key from a file. Any file will do, as long as both ends have
+	 * the same one, but it should hold at least 32 random bytes.
+	 *
+	 * @param file			The file.
+	 *
+	 * @return				The shared key.
+	 *
+	 * @throws IOException	If the file cannot be read, or is empty.
+	 */
+	public static byte[] loadSharedKey(File file) throws IOException {
+
+		byte[] sharedKey = Files.readAllBytes(file.toPath());
+		if (sharedKey.length == 0) {
+			throw new IOException("The shared key file \"" + file.getPath() + "\" is empty.");
+		}
+
+		return sharedKey;
+
+	}
+
+	/**
+	 * Makes a new key pair for one transfer.
+	 *
+	 * @return		The key pair.
+	 */
+	public static KeyPair generateKeyPair() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+			generator.initialize(new ECGenParameterSpec("secp256r1"));
+			return generator.generateKeyPair();
+		} catch (GeneralSecurityException gse) {
+			throw new IllegalStateException(gse);
+		}
+	}
+
+	/**
+	 * Signs our public key under the shared key, to be sent in our key packet. The
+	 * receiver signs the sender's public key along with its own, so that its
+	 * answer cannot be replayed to another sender.
+	 *
+	 * @param sharedKey		The shared key.
+	 * @param ourKeys		Our key pair.
+	 * @param theirKey		The sender's signed public key, as sent, if we are
+	 * 						the receiving end, or null.
+	 *
+	 * @return				Our public key, followed by its MAC.
+	 */
+	public static byte[] signKey(byte[] sharedKey, KeyPair ourKeys, byte[] theirKey) {
+
+		byte[] ourKey = ourKeys.getPublic().getEncoded();
+		byte[] signedKey = Arrays.copyOf(ourKey, ourKey.length + MAC_SIZE);
+
+		byte[] mac = (theirKey == null)
+				? keyMac(sharedKey, SENDER_LABEL, ourKey, null)
+				: keyMac(sharedKey, RECEIVER_LABEL, ourKey, Arrays.copyOf(theirKey, theirKey.length - MAC_SIZE));
+		System.arraycopy(mac, 0, signedKey, ourKey.length, MAC_SIZE);
+
+		return signedKey;
+
+	}
+
+	/**
+	 * Works out the cipher for a transfer from our key pair and the other end's
+	 * signed public key (see {@link #signKey(byte[], KeyPair, byte[])}).
+	 *
+	 * @param sharedKey		The shared key.
+	 * @param ourKeys		Our key pair.
+	 * @param theirKey		The other end's signed public key, as sent.
+	 * @param sender		Whether we are the sending end.
+	 *
+	 * @return				The cipher.
+	 *
+	 * @throws IOException	If the other end's key is not signed under the shared
+	 * 						key, or is not a valid public key.
+	 */
+	public static PacketCipher agree(byte[] sharedKey, KeyPair ourKeys, byte[] theirKey, boolean sender)
+			throws IOException {
+
+		if (theirKey.length <= MAC_SIZE) {
+			throw new IOException("Unable to agree a key: The key is too short.");
+		}
+
+		byte[] ourKey = ourKeys.getPublic().getEncoded();
+		byte[] theirPublicKey = Arrays.copyOf(theirKey, theirKey.length - MAC_SIZE);
+		byte[] mac = sender
+				? keyMac(sharedKey, RECEIVER_LABEL, theirPublicKey, ourKey)
+				: keyMac(sharedKey, SENDER_LABEL, theirPublicKey, null);
+
+		if (!MessageDigest.isEqual(Arrays.copyOf(mac, MAC_SIZE),
+				Arrays.copyOfRange(theirKey, theirPublicKey.length, theirKey.length))) {
+			throw new IOException("Unable to agree a key: The key was not signed with the shared key.");
+		}
+
+		try {
+
+			PublicKey theirPublic = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(theirPublicKey));
+
+			KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+			agreement.init(ourKeys.getPrivate());
+			agreement.doPhase(theirPublic, true);
+
+			/* Work out each key from the secret and both public keys, the sender's
+			 * first, under the shared key, so that they are bound to this exchange. */
+			byte[] secret = agreement.generateSecret();
+			byte[] senderKey = sender ? ourKey : theirPublicKey;
+			byte[] receiverKey = sender ? theirPublicKey : ourKey;
+
+			byte[] derived = derive(sharedKey, CIPHER_LABEL, secret, senderKey, receiverKey);
+			Mac senderMac = newMac(derive(sharedKey, SENDER_LABEL, secret, senderKey, receiverKey));
+			Mac receiverMac = newMac(derive(sharedKey, RECEIVER_LABEL, secret, senderKey, receiverKey));
+
+			return new PacketCipher(new SecretKeySpec(derived, 0, KEY_SIZE, "AES"),
+					Arrays.copyOfRange(derived, KEY_SIZE, KEY_SIZE + SALT_SIZE),
+					sender ? senderMac : receiverMac, sender ? receiverMac : senderMac);
+
+		} catch (GeneralSecurityException gse) {
+			throw new IOException("Unable to agree a key: " + gse.getMessage());
+		}
+
+	}
+
+	/**
+	 * Encrypts a packet's data in place, adding the tag after it. The header
+	 * before the data is authenticated but left as it is.
+	 *
+	 * @param packet		The packet, with room for the tag after the data.
+	 * @param headerLength	The length of the header to authenticate.
+	 * @param dataStart		Where the data starts.
+	 * @param dataLength	The length of the data.
+	 * @param packetNum		The full packet number.
+	 *
+	 * @throws IOException	If the packet cannot be encrypted.
+	 */
+	public void seal(byte[] packet, int headerLength, int dataStart, int dataLength, long packetNum) throws IOException {
+
+		try {
+			Cipher cipher = init(Cipher.ENCRYPT_MODE, packetNum);
+			cipher.updateAAD(packet, 0, headerLength);
+			cipher.doFinal(packet, dataStart, dataLength, packet, dataStart);
+		} catch (GeneralSecurityException gse) {
+			throw new IOException("Unable to encrypt a packet: " + gse.getMessage());
+		}
+
+	}
+
+	/**
+	 * Decrypts a packet's data in place, checking it and its header against
+	 * the tag.
+	 *
+	 * @param packet		The packet.
+	 * @param headerLength	The length of the header that was authenticated.
+	 * @param dataStart		Where the data starts.
+	 * @param length		The length of the packet, tag included.
+	 * @param packetNum		The full packet number.
+	 *
+	 * @return				True if the packet was opened, False if it had been
+	 * 						altered, or was too short to hold a tag.
+	 *
+	 * @throws IOException	If the packet cannot be decrypted.
+	 */
+	public boolean open(byte[] packet, int headerLength, int dataStart, int length, long packetNum) throws IOException {
+
+		if (length < dataStart + TAG_SIZE) {
+			return false;
+		}
+
+		try {
+			Cipher cipher = init(Cipher.DECRYPT_MODE, packetNum);
+			cipher.updateAAD(packet, 0, headerLength);
+			cipher.doFinal(packet, dataStart, length - dataStart, packet, dataStart);
+			return true;
+		} catch (AEADBadTagException abte) {
+			return false;
+		} catch (GeneralSecurityException gse) {
+			throw new IOException("Unable to decrypt a packet: " + gse.getMessage());
+		}
+
+	}
+
+	/**
+	 * Adds a MAC to a packet we send that holds no data - an ack, FIN or FIN-ACK.
+	 *
+	 * @param packet		The packet, with room for the MAC after it.
+	 * @param length		The length of the packet before the MAC.
+	 * @param packetNum		The full packet number acked, or 0 if none.
+	 */
+	public void sign(byte[] packet, int length, long packetNum) {
+
+		synchronized (ourMac) {
+			byte[] mac = controlMac(ourMac, packet, length, packetNum);
+			System.arraycopy(mac, 0, packet, length, MAC_SIZE);
+		}
+
+	}
+
+	/**
+	 * Checks the MAC of a packet the other end sent that holds no data.
+	 *
+	 * @param packet		The packet.
+	 * @param length		The length of the packet, MAC included.
+	 * @param packetNum		The full packet number it should ack, or 0 if none.
+	 *
+	 * @return				True if the MAC is right, False if the packet was
+	 * 						altered or forged, or was too short to hold a MAC.
+	 */
+	public boolean verify(byte[] packet, int length, long packetNum) {
+
+		if (length < MAC_SIZE) {
+			return false;
+		}
+
+		synchronized (theirMac) {
+			byte[] mac = controlMac(theirMac, packet, length - MAC_SIZE, packetNum);
+			return MessageDigest.isEqual(Arrays.copyOf(mac, MAC_SIZE),
+					Arrays.copyOfRange(packet, length - MAC_SIZE, length));
+		}
+
+	}
+
+	/* Works out the MAC of a packet and its full packet number. */
+	private static byte[] controlMac(Mac mac, byte[] packet, int length, long packetNum) {
+
+		mac.update(packet, 0, length);
+		for (int i = 7; i >= 0; i--) {
+			mac.update((byte) (packetNum >>> (8 * i)));
+		}
+
+		return mac.doFinal();
+
+	}
+
+	/* Works out the MAC of a public key (and the one it answers, if any). */
+	private static byte[] keyMac(byte[] sharedKey, byte label, byte[] key, byte[] answered) {
+
+		Mac mac = newMac(sharedKey);
+		mac.update(label);
+		mac.update(key);
+		if (answered != null) {
+			mac.update(answered);
+		}
+
+		return mac.doFinal();
+
+	}
+
+	/* Works out one of the keys of a transfer from the secret and public keys. */
+	private static byte[] derive(byte[] sharedKey, byte label, byte[] secret, byte[] senderKey, byte[] receiverKey) {
+
+		Mac mac = newMac(sharedKey);
+		mac.update(label);
+		mac.update(secret);
+		mac.update(senderKey);
+		mac.update(receiverKey);
+
+		return mac.doFinal();
+
+	}
+
+	/* Makes an HMAC-SHA256 under a key. */
+	private static Mac newMac(byte[] key) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			return mac;
+		} catch (GeneralSecurityException gse) {
+			/* Every Java platform has to provide HMAC-SHA256. */
+			throw new IllegalStateException(gse);
+		}
+	}
+
+	/* Sets up this thread's cipher for a packet. */
+	private Cipher init(int mode, long packetNum) throws GeneralSecurityException {
+
+		byte[] nonce = new byte[NONCE_SIZE];
+		System.arraycopy(salt, 0, nonce, 0, SALT_SIZE);
+		for (int i = 0; i < 8; i++) {
+			nonce[NONCE_SIZE - 1 - i] = (byte) (packetNum >>> (8 * i));
+		}
+
+		Cipher cipher = CIPHERS.get();
+		cipher.init(mode, key, new GCMParameterSpec(8 * TAG_SIZE, nonce));
+
+		return cipher;
+
+	}
+
+}
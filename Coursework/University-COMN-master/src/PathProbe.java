@@ -0,0 +1,267 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/**
+ * The PathProbe class measures the round trip time, loss rate and bandwidth
+ * of the path to an {@link AutoReceiver}, which echoes back every probe packet
+ * it receives.
+ * <p>
+ * Probes are full sized packets, sent in back-to-back pairs spaced
+ * <a href="#PAIR_SPACING">PAIR_SPACING</a> apart:
+ * <ul>
+ * <li>The round trip time is the median time between sending a probe and
+ * hearing its echo.
+ * <li>The loss rate comes from the probes that were never echoed. A probe can be
+ * lost on the way there or its echo on the way back, so we assume both directions
+ * lose packets equally and work out the one-way rate.
+ * <li>The bandwidth comes from the pairs. The second packet of a pair queues behind
+ * the first at the slowest link, so the gap between their arrivals is how long
+ * that link takes to carry one packet. We take the median over the pairs.
+ * </ul>
+ * <p>
+ * The probe packet protocol is as follows:
+ * <ul>
+ * <li>The first two bytes are the probe number. The first packet of a pair has
+ * an even number and the second the next odd number.
+ * <li>The next byte is <a href="AutoSender.html#PROBE">PROBE</a>.
+ * <li>The remaining bytes are padding, up to <a href="#PACKET_SIZE">PACKET_SIZE</a>.
+ * </ul>
+ * <p>
+ * The echo is the first three bytes of the probe, followed by 4 bytes holding
+ * the gap in microseconds between the arrival of the probe and the one before it
+ * if this is the second packet of a pair, or -1 otherwise.
+ *
+ * @author s0840449
+ *
+ */
+public class PathProbe {
+
+	/** Defines the size of a probe packet, in bytes. The same size as a data packet,
+	 * so that the pairs queue the same way the data would. */
+	public static final int PACKET_SIZE = 1024;
+
+	/** The number of pairs of probes sent per measurement. */
+	public static final int NUM_PAIRS = 8;
+
+	/* Time (in ms) between sending each pair of probes, so that one pair has
+	 * cleared the path before the next arrives. */
+	private static final int PAIR_SPACING = 5;
+
+	/* How long (in ms) we wait for echoes after sending the last pair. */
+	private static final int ECHO_WAIT_LENGTH = 500;
+
+	/* The socket to send probes from and hear echoes on, and where to send them. */
+	private DatagramSocket socket;
+	private InetAddress address;
+	private int portNumber;
+
+	/* The number of the next probe to send. Carried between measurements
+	 * so that a late echo is never taken for one of a later measurement. */
+	private int nextProbeNum;
+
+	/* The results of the last measurement. */
+	private double rtt;
+	private double lossRate;
+	private double bandwidth;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param socket		The socket to send probes from. Echoes must arrive
+	 * 						on this socket.
+	 * @param address		The address of the receiver.
+	 * @param portNumber	The port the receiver listens for probes on.
+	 */
+	public PathProbe(DatagramSocket socket, InetAddress address, int portNumber) {
+		this.socket = socket;
+		this.address = address;
+		this.portNumber = portNumber;
+		this.nextProbeNum = 0;
+		this.rtt = -1;
+		this.lossRate = -1;
+		this.bandwidth = -1;
+	}
+
+	/**
+	 * Sends a round of probes and measures the path from their echoes.
+	 *
+	 * @return				True if any probe was echoed, false if the receiver
+	 * 						did not answer at all, in which case the previous
+	 * 						measurement is kept.
+	 *
+	 * @throws IOException	If a probe cannot be sent or an echo received.
+	 */
+	public boolean measure() throws IOException {
+
+		int numProbes = 2 * NUM_PAIRS;
+		int firstProbeNum = nextProbeNum;
+		nextProbeNum = (nextProbeNum + numProbes) % 65536;
+
+		/* Send and echo times in ns (0 if no echo), and the gaps reported by the
+		 * receiver in microseconds. */
+		long[] sendTimes = new long[numProbes];
+		long[] echoTimes = new long[numProbes];
+		int[] gaps = new int[numProbes];
+		Arrays.fill(gaps, -1);
+
+		int numEchoes = 0;
+
+		for (int pair = 0; pair < NUM_PAIRS; pair++) {
+
+			/* Build both packets first, so that they go out back-to-back. */
+			DatagramPacket[] probes = new DatagramPacket[2];
+			for (int i = 0; i < 2; i++) {
+
+				int probeNum = (firstProbeNum + 2 * pair + i) % 65536;
+
+				byte[] probeData = new byte[PACKET_SIZE];
+				probeData[0] = (byte) (probeNum >>> 8);
+				probeData[1] = (byte) probeNum;
+				probeData[2] = AutoSender.PROBE;
+
+				probes[i] = new DatagramPacket(probeData, probeData.length, address, portNumber);
+
+			}
+
+			for (int i = 0; i < 2; i++) {
+				sendTimes[2 * pair + i] = System.nanoTime();
+				socket.send(probes[i]);
+			}
+
+			/* Listen for echoes until the next pair is due. Waiting without
+			 * listening would add the wait to the round trip times. */
+			numEchoes += receiveEchoes(firstProbeNum, sendTimes, echoTimes, gaps,
+					System.currentTimeMillis() + PAIR_SPACING, numProbes - numEchoes);
+
+		}
+
+		numEchoes += receiveEchoes(firstProbeNum, sendTimes, echoTimes, gaps,
+				System.currentTimeMillis() + ECHO_WAIT_LENGTH, numProbes - numEchoes);
+
+		if (numEchoes == 0) {
+			return false;
+		}
+
+		/* Round trip time, in ms. */
+		double[] rtts = new double[numEchoes];
+		int numRtts = 0;
+		for (int i = 0; i < numProbes; i++) {
+			if (echoTimes[i] != 0) {
+				rtts[numRtts++] = (echoTimes[i] - sendTimes[i]) / 1000000.0;
+			}
+		}
+		rtt = median(rtts, numRtts);
+
+		/* One-way loss rate, from the round trip loss rate. */
+		double roundTripLoss = 1 - (double) numEchoes / numProbes;
+		lossRate = 1 - Math.sqrt(1 - roundTripLoss);
+
+		/* Bandwidth, in bytes per second. A gap of 0 just means that it was
+		 * shorter than the clock can tell. */
+		double[] bandwidths = new double[NUM_PAIRS];
+		int numBandwidths = 0;
+		for (int i = 1; i < numProbes; i += 2) {
+			if (gaps[i] >= 0) {
+				bandwidths[numBandwidths++] = PACKET_SIZE * 1000000.0 / Math.max(1, gaps[i]);
+			}
+		}
+		bandwidth = (numBandwidths > 0) ? median(bandwidths, numBandwidths) : -1;
+
+		return true;
+
+	}
+
+	/* Receives echoes for the current round of probes until the deadline (in ms)
+	 * passes or the given number of echoes have arrived, and returns how many
+	 * arrived. Anything else arriving on the socket is discarded. */
+	private int receiveEchoes(int firstProbeNum, long[] sendTimes, long[] echoTimes, int[] gaps,
+			long deadline, int numMissing) throws IOException {
+
+		int numEchoes = 0;
+
+		while (numEchoes < numMissing) {
+
+			long timeLeft = deadline - System.currentTimeMillis();
+			if (timeLeft <= 0) {
+				break;
+			}
+
+			byte[] echoBuffer = new byte[7];
+			DatagramPacket echoPacket = new DatagramPacket(echoBuffer, echoBuffer.length);
+
+			try {
+				socket.setSoTimeout((int) timeLeft);
+				socket.receive(echoPacket);
+			} catch (SocketTimeoutException ste) {
+				break;
+			}
+
+			long now = System.nanoTime();
+
+			if (echoPacket.getLength() != 7 || echoBuffer[2] != AutoSender.PROBE) {
+				continue;
+			}
+
+			int probeNum = ((0x000000FF & echoBuffer[0]) << 8) | (0x000000FF & echoBuffer[1]);
+			int index = (probeNum - firstProbeNum + 65536) % 65536;
+
+			if (index < sendTimes.length && echoTimes[index] == 0) {
+
+				echoTimes[index] = now;
+				gaps[index] = ((0x000000FF & echoBuffer[3]) << 24) | ((0x000000FF & echoBuffer[4]) << 16)
+						| ((0x000000FF & echoBuffer[5]) << 8) | (0x000000FF & echoBuffer[6]);
+				numEchoes++;
+
+			}
+
+		}
+
+		return numEchoes;
+
+	}
+
+	/* Returns the median of the first count values. */
+	private static double median(double[] values, int count) {
+		double[] sorted = new double[count];
+		System.arraycopy(values, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return (count % 2 == 1) ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+	}
+
+	/**
+	 * Returns the measured round trip time.
+	 *
+	 * @return		The round trip time in milliseconds, or -1 before
+	 * 				the first measurement.
+	 */
+	public double getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * Returns the measured one-way loss rate.
+	 *
+	 * @return		The fraction of packets lost, from 0 to 1, or -1 before
+	 * 				the first measurement.
+	 */
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * Returns the measured bandwidth.
+	 *
+	 * @return		The bandwidth in bytes per second, or -1 if no pair of
+	 * 				probes made it through together.
+	 */
+	public double getBandwidth() {
+		return bandwidth;
+	}
+
+}
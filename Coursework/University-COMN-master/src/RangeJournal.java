@@ -0,0 +1,223 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A journal of the byte ranges of a file received so far, kept on disk beside the
+ * file so that an interrupted transfer can carry on from where it stopped. The
+ * ranges are merged as they are added, so the journal stays a handful of bytes
+ * however the file arrived.
+ * <p>
+ * The journal also holds the length and modification time of the file being
+ * sent, and is only taken up again for the same length and time, so that a file
+ * that has changed since is sent again in full. It is written beside itself and
+ * then moved into place, so a journal is never left half written.
+ *
+ * @author s0840449
+ *
+ */
+public class RangeJournal {
+
+	/* Marks a journal file, and its version. */
+	private static final int MAGIC = 0x524A4E31;
+
+	/* Where the journal is kept. */
+	private File journalFile;
+
+	/* The length and modification time of the file being sent. */
+	private long length;
+	private long modified;
+
+	/* The ranges received, as start to end (exclusive), none touching. */
+	private TreeMap<Long, Long> ranges;
+
+	/**
+	 * Default constructor. Starts an empty journal.
+	 *
+	 * @param journalFile	Where to keep the journal.
+	 * @param length		The length of the file being sent.
+	 * @param modified		The modification time of the file being sent.
+	 */
+	public RangeJournal(File journalFile, long length, long modified) {
+		this.journalFile = journalFile;
+		this.length = length;
+		this.modified = modified;
+		this.ranges = new TreeMap<Long, Long>();
+	}
+
+	/**
+	 * Loads the journal of an earlier transfer of the same file, if there is one.
+	 *
+	 * @param journalFile	Where the journal is kept.
+	 * @param length		The length of the file being sent.
+	 * @param modified		The modification time of the file being sent.
+	 *
+	 * @return				The journal, or an empty one if there is none for this
+	 * 						file or it cannot be read.
+	 */
+	public static RangeJournal load(File journalFile, long length, long modified) {
+
+		RangeJournal journal = new RangeJournal(journalFile, length, modified);
+
+		if (!journalFile.isFile()) {
+			return journal;
+		}
+
+		DataInputStream reader = null;
+		try {
+
+			reader = new DataInputStream(new FileInputStream(journalFile));
+			if (reader.readInt() != MAGIC || reader.readLong() != length || reader.readLong() != modified) {
+				return journal;
+			}
+
+			int count = reader.readInt();
+			for (int i = 0; i < count; i++) {
+				long start = reader.readLong();
+				long end = reader.readLong();
+				if (start < 0 || end <= start || end > length) {
+					return new RangeJournal(journalFile, length, modified);
+				}
+				journal.add(start, end);
+			}
+
+		} catch (IOException ioe) {
+			/* A journal cut short or unreadable is started again. */
+			return new RangeJournal(journalFile, length, modified);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException ioe) { }
+			}
+		}
+
+		return journal;
+
+	}
+
+	/**
+	 * Records a range as received, merging it with any it touches.
+	 *
+	 * @param start		The start of the range.
+	 * @param end		The end of the range (exclusive).
+	 */
+	public void add(long start, long end) {
+
+		if (end <= start) {
+			return;
+		}
+
+		/* Take in the range before, if it reaches this one. */
+		Map.Entry<Long, Long> before = ranges.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+
+		/* And any ranges that start within this one. */
+		Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+		while (after != null && after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			ranges.remove(after.getKey());
+			after = ranges.ceilingEntry(start);
+		}
+
+		ranges.put(start, end);
+
+	}
+
+	/**
+	 * Returns the ranges of the file not yet received, in order.
+	 *
+	 * @return		The ranges, each as a start and an end (exclusive).
+	 */
+	public List<long[]> getMissing() {
+
+		List<long[]> missing = new ArrayList<long[]>();
+		long position = 0;
+
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			if (range.getKey() > position) {
+				missing.add(new long[] { position, range.getKey() });
+			}
+			position = range.getValue();
+		}
+
+		if (position < length) {
+			missing.add(new long[] { position, length });
+		}
+
+		return missing;
+
+	}
+
+	/**
+	 * Returns the number of bytes of the file received.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getReceivedBytes() {
+
+		long received = 0;
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			received += range.getValue() - range.getKey();
+		}
+
+		return received;
+
+	}
+
+	/**
+	 * Writes the journal to disk, replacing the last one written.
+	 *
+	 * @throws IOException	If the journal cannot be written.
+	 */
+	public void save() throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+
+		data.writeInt(MAGIC);
+		data.writeLong(length);
+		data.writeLong(modified);
+		data.writeInt(ranges.size());
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			data.writeLong(range.getKey());
+			data.writeLong(range.getValue());
+		}
+
+		File newFile = new File(journalFile.getPath() + ".new");
+		FileOutputStream writer = new FileOutputStream(newFile);
+		try {
+			writer.write(bytes.toByteArray());
+			writer.getFD().sync();
+		} finally {
+			writer.close();
+		}
+
+		Files.move(newFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/**
+	 * Removes the journal from disk, once the file is whole.
+	 */
+	public void delete() {
+		journalFile.delete();
+	}
+
+}
@@ -3,9 +3,12 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.BitSet;
 
 /**
  * The Receiver1 class represents a naive receiving of a set of bytes via
@@ -18,6 +21,11 @@ import java.net.SocketException;
  * <li>The next byte is the EOF byte. A value of anything but 0 signifies an EOF packet.
  * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 3) bytes are filled with data.
  * </ul>
+ * <p>
+ * In repair mode packets are written at their offset in the file as they arrive, and
+ * each round-end packet from {@link Sender1} is answered with a bitmap of the packets
+ * that are still missing (see {@link Sender1} for the formats). The transfer is over
+ * once nothing is missing.
  * 
  * @author s0840449
  *
@@ -32,6 +40,10 @@ public class Receiver1 {
 	 * optimise away the if statements that rely on it and thus remove
 	 * all performance hits when debugging is off. */
 	private static final boolean DEBUG_MODE = false;
+	
+	/* How long (in ms) we keep answering round-end packets after the file
+	 * is complete, in case our final report is lost. */
+	private static final int LINGER_LENGTH = 2000;
 
 	/* The file name to write to. */
 	private String fileName;
@@ -42,6 +54,12 @@ public class Receiver1 {
 	/* The incoming socket. */
 	private DatagramSocket receiverSocket;
 	
+	/* Used to send missing packet reports in repair mode. */
+	private DatagramSocket reportSocket;
+	
+	/* Whether missing packets are reported back to the sender. */
+	private boolean repairMode;
+	
 	/**
 	 * Default constructor. 
 	 * 
@@ -49,8 +67,21 @@ public class Receiver1 {
 	 * @param portNumber	The port number to listen for data on.
 	 */
 	public Receiver1(String fileName, int portNumber) {
+		this(fileName, portNumber, false);
+	}
+	
+	/**
+	 * Constructor allowing repair mode to be turned on.
+	 * 
+	 * @param fileName		The name of the output file.
+	 * @param portNumber	The port number to listen for data on.
+	 * @param repairMode	Whether to report missing packets back to the
+	 * 						sender until the file is complete.
+	 */
+	public Receiver1(String fileName, int portNumber, boolean repairMode) {
 		this.portNumber = portNumber;
 		this.fileName = fileName;
+		this.repairMode = repairMode;
 	}
 	
 	/**
@@ -63,6 +94,10 @@ public class Receiver1 {
 	 * 				be incorrect or may have been corrupted enroute.
 	 */
 	public boolean receive() {
+		
+		if (repairMode) {
+			return receiveWithRepair();
+		}
 				
 		/* Tracks whether we have finished receiving data (i.e. an EOF
 		 * packet has been received). */
@@ -143,14 +178,134 @@ public class Receiver1 {
 		
 		return true;
 		
-	}		
+	}
+	
+	/**
+	 * Receives data in repair mode. Every packet is written at its own offset
+	 * in the output file, so packets re-sent in later rounds slot straight in.
+	 * Each round-end packet is answered with a bitmap of the packets that have
+	 * not yet arrived.
+	 * 
+	 * @return		True once every packet of the file has been received and
+	 * 				written, False otherwise.
+	 */
+	private boolean receiveWithRepair() {
+		
+		/* Tracks which packets have been written to the file. */
+		BitSet receivedPackets = new BitSet();
+		
+		/* The number of packets in the file, unknown until the first
+		 * round-end packet arrives. */
+		int numPackets = -1;
+		
+		boolean finishedTransfer = false;
+		
+		try {
+			
+			RandomAccessFile writer = new RandomAccessFile(new File(this.fileName), "rw");
+			writer.setLength(0);
+			
+			receiverSocket = new DatagramSocket(portNumber);
+			reportSocket = new DatagramSocket();
+			
+			try {
+				
+				while (true) {
+					
+					byte receivedDataBuffer[] = new byte[PACKET_SIZE];
+					DatagramPacket packet = new DatagramPacket(receivedDataBuffer, receivedDataBuffer.length);
+					
+					try {
+						receiverSocket.receive(packet);
+					} catch (SocketTimeoutException ste) {
+						/* Only possible once finished - the sender has heard our
+						 * final report. */
+						break;
+					}
+					
+					byte data[] = packet.getData();
+					int packetNum = (0x0000FF00 & (data[0] << 8)) | (0x000000FF & data[1]);
+					
+					if (data[2] == Sender1.ROUND_END) {
+						
+						/* For round-end packets the packet number is the total. */
+						numPackets = packetNum;
+						
+						byte[] report = new byte[1 + ((numPackets + 7) / 8)];
+						report[0] = data[3];
+						
+						int numMissing = 0;
+						for (int i = receivedPackets.nextClearBit(0); i < numPackets; 
+								i = receivedPackets.nextClearBit(i + 1)) {
+							report[1 + (i / 8)] |= (byte) (1 << (i % 8));
+							numMissing++;
+						}
+						
+						DatagramPacket reportPacket = new DatagramPacket(report, report.length,
+								packet.getAddress(), portNumber + 1);
+						reportSocket.send(reportPacket);
+						
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Reported " + numMissing + " missing packets for round " + data[3]);
+						}
+						
+						/* Keep answering for a while in case this report is lost. */
+						if (numMissing == 0 && !finishedTransfer) {
+							finishedTransfer = true;
+							receiverSocket.setSoTimeout(LINGER_LENGTH);
+						}
+						
+					} else if (!receivedPackets.get(packetNum)) {
+						
+						writer.seek((long) packetNum * (PACKET_SIZE - 3));
+						writer.write(data, 3, packet.getLength() - 3);
+						receivedPackets.set(packetNum);
+						
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Received packet " + packetNum + " with size " +
+									packet.getLength() + " and data size " + (packet.getLength() - 3));
+						}
+						
+					}
+					
+				}
+				
+			} finally {
+				writer.close();
+			}
+			
+		} catch (SocketException se) {
+			
+			System.err.println("Error: Unable to open a datagram socket:");
+			System.err.println(se.getMessage());
+			return false;
+			
+		} catch (IOException ioe) {
+			
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+			
+		} finally {
+			
+			receiverSocket.close();
+			if (reportSocket != null) {
+				reportSocket.close();
+			}
+			
+		}
+		
+		return finishedTransfer;
+		
+	}
 		
 	/**
-	 * The main method for running the Receiver1 class. There are two arguments -
-	 * the port number to receive on and the name of the file to write.
+	 * The main method for running the Receiver1 class. There are two compulsory
+	 * arguments - the port number to receive on and the name of the file to write -
+	 * and an optional third, the word "repair" to turn on repair mode.
 	 * 
-	 * @param args		The program arguments: the port number and the name of the 
-	 * 					file that is to be sent.
+	 * @param args		The program arguments: the port number, the name of the 
+	 * 					file that is to be sent, and optionally "repair".
 	 */
 	public static void main(String[] args) {
 		
@@ -158,9 +313,9 @@ public class Receiver1 {
 		String fileName = null;
 		boolean successful = false;
 		
-		/* Both arguments are compulsory. */
-		if (args.length != 2) {
-			System.err.println("Usage: java Receiver1 port filename");
+		/* The first two arguments are compulsory. */
+		if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("repair"))) {
+			System.err.println("Usage: java Receiver1 port filename [repair]");
 			System.exit(-1);
 		}
 		
@@ -170,7 +325,7 @@ public class Receiver1 {
 			fileName = args[1];
 			
 			/* Attempt to receive data and write it to the given file. */
-			Receiver1 receiver = new Receiver1(fileName, portNumber);
+			Receiver1 receiver = new Receiver1(fileName, portNumber, args.length == 3);
 			successful = receiver.receive();
 			
 		} catch (NumberFormatException nfe) {
@@ -1,12 +1,14 @@
 /* Stephen McGruer 0840449 */
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 /**
  * The Receiver2 class represents a receiving of a set of bytes via
@@ -15,14 +17,29 @@ import java.net.SocketException;
  * packet's arrival. Duplicate packets are discarded and merely result
  * in multiple acks being sent back.
  * <p>
+ * When the sender uses several stop-and-wait channels (see {@link Sender2}),
+ * each channel's packets are checked for duplicates separately, and packets are
+ * held until the packets before them on the other channels have been written.
+ * <p>
  * The data packet protocol used by this class is as follows:
  * <ul>
- * <li>The first two bytes are the packet number (giving a value range of 0 to 65536).
+ * <li>The first byte is the channel number, always 0 with a single channel.
+ * <li>The second byte is the packet number on that channel, 0 or 1.
  * <li>The next byte is the EOF byte. A value of anything but 0 signifies an EOF packet.
- * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 3) bytes are filled with data.
+ * <li>If checksums are on (see {@link #setChecksummed(boolean)}), the next four bytes
+ * are the packet's checksum (see {@link PacketChecksum}).
+ * <li>The remaining bytes, up to <a href="#PACKET_SIZE">PACKET_SIZE</a>, are filled with data.
  * </ul>
  * <p>
- * The ack packet is merely a 1 or 0 to note the packet number.
+ * The ack packet is a 1 or 0 to note the packet number, followed by the channel
+ * number. A packet that fails its checksum is dropped without an ack, so the
+ * sender re-sends it.
+ * <p>
+ * After the EOF packet has been written, duplicate packets are still acked until
+ * the sender closes the transfer with a FIN packet, which is answered with a
+ * FIN-ACK (see {@link Sender2}). If no FIN arrives within
+ * <a href="#LINGER_LENGTH">LINGER_LENGTH</a> of the last packet, we assume the
+ * sender has finished.
  * <p>
  * Note that the ack-sending port is hard-coded to be the incoming port + 1, as the
  * coursework does not specify any way of setting when calling the program.
@@ -40,6 +57,9 @@ public class Receiver2 {
 	 * optimise away the if statements that rely on it and thus remove
 	 * all performance hits when debugging is off. */
 	private static final boolean DEBUG_MODE = false;
+	
+	/** How long (in ms) we wait for a FIN once the file has been written. */
+	public static final int LINGER_LENGTH = 2000;
 
 	/* The file name to write to. */
 	private String fileName;
@@ -50,16 +70,52 @@ public class Receiver2 {
 	/* The incoming and outgoing sockets. */
 	private DatagramSocket receiverSocket;
 	private DatagramSocket ackSocket;
+	
+	/* The number of stop-and-wait channels the sender is using. */
+	private int numChannels;
+	
+	/* The size of the checksum field in data packets, 0 if they have none. */
+	private int checksumSize;
 
 	/**
-	 * Default constructor. 
+	 * Default constructor. Uses a single channel.
 	 * 
 	 * @param fileName		The output file name to write to.
 	 * @param portNumber	The port number to wait for data on.
 	 */
 	public Receiver2(String fileName, int portNumber) {
+		this(fileName, portNumber, 1);
+	}
+	
+	/**
+	 * Constructor for several stop-and-wait channels.
+	 * 
+	 * @param fileName		The output file name to write to.
+	 * @param portNumber	The port number to wait for data on.
+	 * @param numChannels	The number of channels, from 1 to 256. Must
+	 * 						match the sender.
+	 */
+	public Receiver2(String fileName, int portNumber, int numChannels) {
+		
+		if (numChannels < 1 || numChannels > 256) {
+			throw new IllegalArgumentException("Number of channels must be between 1 and 256.");
+		}
+		
 		this.fileName = fileName;
 		this.portNumber = portNumber;
+		this.numChannels = numChannels;
+		this.checksumSize = 0;
+	}
+	
+	/**
+	 * Sets whether data packets carry a checksum, from a sender set to add one
+	 * (see {@link Sender2#setChecksummed(boolean)}). Packets that fail it are
+	 * dropped without being acked.
+	 * 
+	 * @param checksummed	True to check the data packets' checksums.
+	 */
+	public void setChecksummed(boolean checksummed) {
+		this.checksumSize = checksummed ? PacketChecksum.CHECKSUM_SIZE : 0;
 	}
 	
 	/**
@@ -74,6 +130,27 @@ public class Receiver2 {
 	 * 				data may be incorrect or may have been corrupted enroute.
 	 */
 	public boolean receive() {
+		return receive(0, true);
+	}
+	
+	/**
+	 * Receives part of a file sent with {@link Sender2#send(File, long, long)},
+	 * in the same way as {@link #receive()}, writing the data into the output file
+	 * from the given offset. The rest of the file is left untouched, so a file
+	 * can be received in several parts.
+	 * 
+	 * @param offset	The position in the file to write the first received byte to.
+	 * 
+	 * @return		True if data is correctly received and the output file 
+	 * 				written, False otherwise.
+	 */
+	public boolean receive(long offset) {
+		return receive(offset, false);
+	}
+	
+	/* Does the receiving for both of the above, emptying the output file
+	 * first if replaceFile is set. */
+	private boolean receive(long offset, boolean replaceFile) {
 		
 		/* Monitors whether or not we have received the final EOF packet. */
 		boolean finishedTransfer = false;
@@ -81,20 +158,43 @@ public class Receiver2 {
 		/* If debug mode is set, tracks the number of data bytes that we receive. */
 		int numReceivedFileBytes = 0;
 		
-		/* Used to check for duplicate packets. */
-		int prevPacketNum = -1;
+		/* The packet number we expect next on each channel, used to check
+		 * for duplicate packets. */
+		int[] expectedPacketNums = new int[numChannels];
+		
+		/* Packets that have arrived but are waiting on a packet from an
+		 * earlier channel before they can be written. */
+		BufferedPacket[] waitingPackets = new BufferedPacket[numChannels];
+		
+		/* The channel that the next packet to be written will arrive on. */
+		int nextChannel = 0;
+		
+		/* Where the data starts in a data packet. */
+		int dataStart = 3 + checksumSize;
+
+		/* The output file. */
+		RandomAccessFile writer = null;
 
 		try {
 			
-			/* We use a FileOutputStream to write the data we receive to
-			 * a file. */
-			FileOutputStream writer = new FileOutputStream(new File(this.fileName));
+			/* We use a RandomAccessFile to write the data we receive to
+			 * the file, so that we can start part of the way through it. */
+			writer = new RandomAccessFile(new File(this.fileName), "rw");
+			if (replaceFile) {
+				writer.setLength(0);
+			}
+			writer.seek(offset);
 
 			receiverSocket = new DatagramSocket(portNumber);
 			ackSocket = new DatagramSocket();
 
-			/* Grab packets until we receive an EOF packet. */
-			while (!finishedTransfer) {
+			/* Tracks whether the sender has closed the transfer. */
+			boolean closed = false;
+			
+			/* Grab packets until the sender closes the transfer. Packets that come
+			 * after the EOF packet has been written are re-sends whose acks were
+			 * lost, so we keep acking them. */
+			while (!closed) {
 				
 				/* Buffer for the incoming data. */
 				byte receivedDataBuffer[] = new byte[PACKET_SIZE];
@@ -102,53 +202,122 @@ public class Receiver2 {
 				/* Grab an incoming packet (block waiting for one). */
 				DatagramPacket receivedPacket = new DatagramPacket(receivedDataBuffer,
 						receivedDataBuffer.length);
-				receiverSocket.receive(receivedPacket);
+				
+				try {
+					receiverSocket.receive(receivedPacket);
+				} catch (SocketTimeoutException ste) {
+					
+					/* Only possible after the EOF packet - the sender has gone quiet. */
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: No FIN received, closing anyway.");
+					}
+					
+					break;
+					
+				}
 				
 				byte receivedData[] = receivedPacket.getData();
 				
 				/* The current packet's size is not necessarily PACKET_SIZE - the
 				 * final packet may contain less data. */
 				int currentPacketSize = receivedPacket.getLength();
+				
+				/* FIN check. */
+				if (currentPacketSize == 3 && receivedData[2] == Sender2.FIN) {
+					
+					byte[] finAckBuffer = { 0, 0, Sender2.FIN };
+					DatagramPacket finAckPacket = new DatagramPacket(finAckBuffer, finAckBuffer.length,
+							receivedPacket.getAddress(), portNumber + 1);
+					ackSocket.send(finAckPacket);
+					
+					closed = true;
+					continue;
+					
+				}
+
+				/* Drop corrupted packets without acking them, so that they are re-sent. */
+				if (checksumSize > 0 && !PacketChecksum.verify(receivedData, 3, currentPacketSize)) {
+					
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Corrupted packet received and discarded.");
+					}
+					
+					continue;
+					
+				}
 
 				/* Must take care to avoid int-promotion errors.  */
-				int packetNum = (0x0000FF00 & (receivedData[0] << 8)) | (0x000000FF & receivedData[1]);
+				int channel = 0x000000FF & receivedData[0];
+				int packetNum = 0x000000FF & receivedData[1];
 				
-				/* Only grab the data if this is a new packet. */
-				if (packetNum != prevPacketNum) {
-	
-					/* EOF check. */
-					if (receivedData[2] > 0) {
-						finishedTransfer = true;
+				if (channel >= numChannels) {
+					
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Packet for unknown channel " + channel + " discarded.");
 					}
-	
-					/* Write the file data from the packet. */
-					writer.write(receivedData, 3, currentPacketSize - 3);
+					
+					continue;
+					
+				}
+				
+				/* Only grab the data if this is a new packet. */
+				if (packetNum == expectedPacketNums[channel]) {
 					
 					if (DEBUG_MODE) {
-						System.out.println("DEBUG: Received packet " + packetNum + " with size " +
-								currentPacketSize + " and data size " + (currentPacketSize - 3));
-						numReceivedFileBytes += currentPacketSize - 3;
+						System.out.println("DEBUG: Received packet " + packetNum + " on channel " + channel +
+								" with size " + currentPacketSize + " and data size " + (currentPacketSize - dataStart));
+					}
+					
+					byte[] data = new byte[currentPacketSize - dataStart];
+					System.arraycopy(receivedData, dataStart, data, 0, data.length);
+					waitingPackets[channel] = new BufferedPacket(packetNum, data, receivedData[2] > 0);
+					
+					expectedPacketNums[channel] = (packetNum + 1) % 2;
+					
+					/* Write out every packet that is now in order. */
+					while (!finishedTransfer && waitingPackets[nextChannel] != null) {
+						
+						BufferedPacket packet = waitingPackets[nextChannel];
+						
+						/* Write the file data from the packet. */
+						writer.write(packet.getData(), 0, packet.getData().length);
+						
+						if (DEBUG_MODE) {
+							numReceivedFileBytes += packet.getData().length;
+						}
+						
+						/* EOF check. */
+						finishedTransfer = packet.isEof();
+						
+						waitingPackets[nextChannel] = null;
+						nextChannel = (nextChannel + 1) % numChannels;
+						
 					}
 					
 				} else if (DEBUG_MODE) {
-					System.out.println("DEBUG: Duplicate packet (#" + packetNum + ") received and discarded.");
+					System.out.println("DEBUG: Duplicate packet (#" + packetNum + " on channel " + channel +
+							") received and discarded.");
 				}
 					
 				/* Send an ack packet back to the sender. */
 				InetAddress ipAddress = receivedPacket.getAddress();
 				
-				byte[] ackBuffer = new byte[1];
+				byte[] ackBuffer = new byte[2];
 				ackBuffer[0] = (byte) packetNum;
+				ackBuffer[1] = (byte) channel;
 				
 				DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length,
 						ipAddress, portNumber + 1);
 				ackSocket.send(ackPacket);
 				
 				if (DEBUG_MODE) {
-					System.out.println("DEBUG: Sent ack for packet " + packetNum + ".");
+					System.out.println("DEBUG: Sent ack for packet " + packetNum + " on channel " + channel + ".");
 				}
 				
-				prevPacketNum = packetNum;
+				/* Stop waiting for a FIN if the sender goes quiet. */
+				if (finishedTransfer) {
+					receiverSocket.setSoTimeout(LINGER_LENGTH);
+				}
 				
 			}
 			
@@ -157,8 +326,6 @@ public class Receiver2 {
 				System.out.println("DEBUG: Recieved file size is " + numReceivedFileBytes + " bytes.");
 			}
 			
-			writer.close();
-		
 		} catch (SocketException se) {
 			
 			System.err.println("Error: Unable to open a datagram socket:");
@@ -176,42 +343,61 @@ public class Receiver2 {
 			receiverSocket.close();
 			ackSocket.close();
 			
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ioe) { }
+			}
+			
 		}
 		
-		return true;
+		return finishedTransfer;
 		
 	}
 	
 	/**
-	 * The main method for running the Receiver2 class. There are two arguments -
-	 * the port number to receive on and the name of the file to write.
+	 * The main method for running the Receiver2 class. There are two compulsory
+	 * arguments - the port number to receive on and the name of the file to write -
+	 * and an optional third, the number of channels (default 1). They may be
+	 * preceded by -c to check packet checksums (see {@link #setChecksummed(boolean)}).
 	 * 
-	 * @param args		The program arguments: the host name, the port number, and the 
-	 * 					name of the file that is to be sent.
+	 * @param args		The program arguments: the port number, the name of the file
+	 * 					that is to be written, and optionally the number of channels.
 	 */
 	public static void main(String[] args) {
 		
+		/* A leading -c turns on checksums. */
+		boolean checksummed = args.length > 0 && args[0].equals("-c");
+		if (checksummed) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		
 		int portNumber;
 		String fileName = null;
+		int numChannels;
 		boolean successful = false;
 		
-		/* Both arguments are compulsory. */
-		if (args.length != 2) {
-			System.err.println("Usage: java Receiver2 port filename");
+		/* The port number and file name are compulsory. */
+		if (args.length != 2 && args.length != 3) {
+			System.err.println("Usage: java Receiver2 [-c] port filename [channels]");
 			System.exit(-1);
 		}
 		
 		try {
 			portNumber = Integer.parseInt(args[0]);
 			fileName = args[1];
+			numChannels = (args.length == 3) ? Integer.parseInt(args[2]) : 1;
 	
 			/* Attempt to receive data and write it to the given file. */
-			Receiver2 receiver = new Receiver2(fileName, portNumber);
+			Receiver2 receiver = new Receiver2(fileName, portNumber, numChannels);
+			receiver.setChecksummed(checksummed);
 			successful = receiver.receive();
 			
 		} catch (NumberFormatException nfe) {
-			System.err.println("Error: Unable to convert input port number \""
-					+ args[0] + "\" to an integer.");
+			System.err.println("Error: Unable to convert the port number or number of channels to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
 			System.exit(-1);
 		}
 		
@@ -1,27 +1,45 @@
 /* Stephen McGruer 0840449 */
 
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
 /**
  * The Receiver3 class represents a receiving of a set of bytes via
  * the UDP protocol, using a go-back-N policy. After each received
  * packet, an acknowledgement packet (ack) is sent back confirming the
- * packet's arrival. Duplicate or out of order packets are discarded.
+ * packet's arrival. Duplicate or out of order packets are discarded,
+ * unless a reorder buffer is in use, in which case packets a short way
+ * ahead of the expected packet are held until the gap before them is
+ * filled. Acks remain cumulative either way.
  * <p>
  * The data packet protocol used by this class is as follows:
  * <ul>
  * <li>The first two bytes are the packet number (giving a value range of 0 to 65536).
  * <li>The next byte is the EOF byte. A value of anything but 0 signifies an EOF packet.
- * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 3) bytes are filled with data.
+ * <li>If checksums are on (see {@link #setChecksummed(boolean)}), the next four bytes
+ * are the packet's checksum (see {@link PacketChecksum}).
+ * <li>The remaining bytes, up to <a href="#PACKET_SIZE">PACKET_SIZE</a>, are filled with data.
  * </ul>
  * <p>
- * The ack packet is merely the packet number (and thus is 2 bytes).
+ * The ack packet is merely the packet number (and thus is 2 bytes). A packet that
+ * fails its checksum is dropped without an ack, so the sender re-sends it.
+ * <p>
+ * After the EOF packet has been written, re-sent packets are still acked until
+ * the sender closes the transfer with a FIN packet, which is answered with a
+ * FIN-ACK (see {@link Sender3}). If no FIN arrives within
+ * <a href="#LINGER_LENGTH">LINGER_LENGTH</a> of the last packet, we assume the
+ * sender has finished.
  * <p>
  * Note that the ack-sending port is hard-coded to be the incoming port + 1, as the
  * coursework does not specify any way of setting when calling the program.
@@ -39,6 +57,9 @@ public class Receiver3 {
 	 * optimise away the if statements that rely on it and thus remove
 	 * all performance hits when debugging is off. */
 	private static final boolean DEBUG_MODE = false;
+	
+	/** How long (in ms) we wait for a FIN once the file has been written. */
+	public static final int LINGER_LENGTH = 2000;
 
 	/* The file name to write to. */
 	private String fileName;
@@ -50,15 +71,89 @@ public class Receiver3 {
 	private DatagramSocket receiverSocket;
 	private DatagramSocket ackSocket;
 	
+	/* The number of packets past the expected packet that we are willing
+	 * to hold on to. 0 disables the reorder buffer. */
+	private int reorderBufferSize;
+	
+	/* Holds ahead-of-sequence packets until the gap before them is filled. */
+	private PriorityQueue<BufferedPacket> bufferedPackets;
+	
+	/* Whether runs of zeros arrive as markers. */
+	private boolean sparse;
+	
+	/* The size of the checksum field in data packets, 0 if they have none. */
+	private int checksumSize;
+	
 	/**
-	 * Default constructor. 
+	 * Default constructor. Out of order packets are discarded.
 	 * 
 	 * @param fileName		The output file name to write to.
 	 * @param portNumber	The port number to wait for data on.
 	 */
 	public Receiver3(String fileName, int portNumber) {
+		this(fileName, portNumber, 0);
+	}
+	
+	/**
+	 * Constructor with a reorder buffer.
+	 * 
+	 * @param fileName			The output file name to write to.
+	 * @param portNumber		The port number to wait for data on.
+	 * @param reorderBufferSize	How many packets ahead of the expected packet
+	 * 							may be buffered. 0 disables buffering.
+	 */
+	public Receiver3(String fileName, int portNumber, int reorderBufferSize) {
+		
+		if (reorderBufferSize < 0) {
+			throw new IllegalArgumentException("Reorder buffer size must not be negative.");
+		}
+		
 		this.fileName = fileName;
 		this.portNumber = portNumber;
+		this.reorderBufferSize = reorderBufferSize;
+		this.sparse = false;
+		this.checksumSize = 0;
+		
+		/* The priority queue should sort packets in order of packet number. */
+		int initCapacity = 4;
+		this.bufferedPackets = new PriorityQueue<BufferedPacket>(initCapacity, new Comparator<BufferedPacket>() {
+
+			@Override
+			public int compare(BufferedPacket packet1, BufferedPacket packet2) {
+				
+				if (packet1.equals(packet2)) {
+					return 0;
+				} else if (packet1.getPacketNum() < packet2.getPacketNum()) {
+					return -1;
+				} else {
+					return 1;
+				}
+				 
+			}
+		});
+		
+	}
+	
+	/**
+	 * Sets whether runs of zeros arrive as markers from a sender set to send them
+	 * so (see {@link Sender3#setSparse(boolean)}). They are left as holes in the
+	 * output file (see {@link SparseDecoder}).
+	 * 
+	 * @param sparse	True to expect runs of zeros as markers.
+	 */
+	public void setSparse(boolean sparse) {
+		this.sparse = sparse;
+	}
+	
+	/**
+	 * Sets whether data packets carry a checksum, from a sender set to add one
+	 * (see {@link Sender3#setChecksummed(boolean)}). Packets that fail it are
+	 * dropped without being acked.
+	 * 
+	 * @param checksummed	True to check the data packets' checksums.
+	 */
+	public void setChecksummed(boolean checksummed) {
+		this.checksumSize = checksummed ? PacketChecksum.CHECKSUM_SIZE : 0;
 	}
 	
 	/**
@@ -66,8 +161,9 @@ public class Receiver3 {
 	 * Operates on a go-back-N protocol. When a correct packet is received, 
 	 * an ack is sent back for it. If an incorrect packet is received (either
 	 * a duplicate or out of order packet) an ack is sent for the last
-	 * correctly received packet.  Duplicate/out-of-order packets are discarded
-	 * rather than buffered.
+	 * correctly received packet. Duplicate packets are discarded. Out-of-order
+	 * packets are discarded too, unless they fall within the reorder buffer, in
+	 * which case they are held and written once the missing packets arrive.
 	 * 
 	 * @return		True if data is correctly received and the output file 
 	 * 				written, False otherwise. A value of True does <b>not</b>
@@ -76,6 +172,27 @@ public class Receiver3 {
 	 * 				data may be incorrect or may have been corrupted enroute.
 	 */
 	public boolean receive() {
+		return receive(0, true);
+	}
+	
+	/**
+	 * Receives part of a file sent with {@link Sender3#send(File, long, long)},
+	 * in the same way as {@link #receive()}, writing the data into the output file
+	 * from the given offset. The rest of the file is left untouched, so a file
+	 * can be received in several parts.
+	 * 
+	 * @param offset	The position in the file to write the first received byte to.
+	 * 
+	 * @return		True if data is correctly received and the output file 
+	 * 				written, False otherwise.
+	 */
+	public boolean receive(long offset) {
+		return receive(offset, false);
+	}
+	
+	/* Does the receiving for both of the above, emptying the output file
+	 * first if replaceFile is set. */
+	private boolean receive(long offset, boolean replaceFile) {
 				
 		/* Tracks whether we have received all packets. */
 		boolean finishedTransfer = false;
@@ -85,31 +202,91 @@ public class Receiver3 {
 		
 		/* Used to check for duplicate/out-of-order packets. */
 		int prevPacketNum = 0;
+		
+		/* Where the data starts in a data packet. */
+		int dataStart = 3 + checksumSize;
+
+		/* The output file, and what the data is written through - the file
+		 * itself, or a decoder that leaves holes for runs of zeros. */
+		RandomAccessFile writer = null;
+		DataOutput output = null;
+		DataOutputStream decoder = null;
 
 		try {
 			
-			/* We use a FileOutputStream to write the data we receive to
-			 * a file. */
-			FileOutputStream writer = new FileOutputStream(new File(this.fileName));
+			/* We use a RandomAccessFile to write the data we receive to
+			 * the file, so that we can start part of the way through it. */
+			writer = new RandomAccessFile(new File(this.fileName), "rw");
+			if (replaceFile) {
+				writer.setLength(0);
+			}
+			writer.seek(offset);
+			
+			output = writer;
+			if (sparse) {
+				decoder = new DataOutputStream(new SparseDecoder(writer.getChannel()));
+				output = decoder;
+			}
 
 			receiverSocket = new DatagramSocket(portNumber);
 			ackSocket = new DatagramSocket();
 
-			/* Grab packets until we receive an (expected) EOF packet. */
-			while (!finishedTransfer) {
+			/* Tracks whether the sender has closed the transfer. */
+			boolean closed = false;
+
+			/* Grab packets until the sender closes the transfer. Packets that come
+			 * after the EOF packet has been written are re-sends whose acks were
+			 * lost, so we keep acking them. */
+			while (!closed) {
 				
 				/* Buffer for the incoming data. */
 				byte receivedDataBuffer[] = new byte[PACKET_SIZE];
 
 				/* Grab an incoming packet (block waiting for one). */
 				DatagramPacket receivedPacket = new DatagramPacket(receivedDataBuffer, receivedDataBuffer.length);
-				receiverSocket.receive(receivedPacket);
+				
+				try {
+					receiverSocket.receive(receivedPacket);
+				} catch (SocketTimeoutException ste) {
+					
+					/* Only possible after the EOF packet - the sender has gone quiet. */
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: No FIN received, closing anyway.");
+					}
+					
+					break;
+					
+				}
 				
 				byte receivedData[] = receivedPacket.getData();
 				
 				/* The current packet's size is not necessarily PACKET_SIZE - the
 				 * final packet may contain less data. */
 				int currentPacketSize = receivedPacket.getLength();
+				
+				/* FIN check. */
+				if (currentPacketSize == 3 && receivedData[2] == Sender3.FIN) {
+					
+					byte[] finAckBuffer = { 0, 0, Sender3.FIN };
+					DatagramPacket finAckPacket = new DatagramPacket(finAckBuffer, finAckBuffer.length,
+							receivedPacket.getAddress(), portNumber + 1);
+					ackSocket.send(finAckPacket);
+					
+					closed = true;
+					continue;
+					
+				}
+
+				/* Drop corrupted packets without acking them, so that they are re-sent. */
+				if (checksumSize > 0 && !PacketChecksum.verify(receivedData, 3, currentPacketSize)) {
+					
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Corrupted packet received and discarded.");
+					}
+					
+					continue;
+					
+				}
 
 				/* Must take care to avoid int-promotion errors. */
 				int packetNum = (0x0000FF00 & (receivedData[0] << 8)) | (0x000000FF & receivedData[1]);
@@ -123,16 +300,57 @@ public class Receiver3 {
 					}
 	
 					/* Write the file data from the packet. */
-					writer.write(receivedData, 3, currentPacketSize - 3);
+					output.write(receivedData, dataStart, currentPacketSize - dataStart);
 					
 					if (DEBUG_MODE) {
 						System.out.println("DEBUG: Received packet " + packetNum + " with size " +
-								currentPacketSize + " and data size " + (currentPacketSize - 3));
-						numReceivedFileBytes += currentPacketSize - 3;
+								currentPacketSize + " and data size " + (currentPacketSize - dataStart));
+						numReceivedFileBytes += currentPacketSize - dataStart;
 					}
 					
 					prevPacketNum++;
 					
+					/* Check for any packets we now want to bring in from the buffer. */
+					while (!finishedTransfer && bufferedPackets.size() > 0) {
+						
+						BufferedPacket packet = bufferedPackets.peek();
+						
+						if (packet.getPacketNum() != (prevPacketNum + 1)) {
+							/* Priority queue is in-order, so the first mismatching
+							 * packet means we can stop. */
+							break;
+						}
+						
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Buffered packet " + packet.getPacketNum() + " added to data.");
+							numReceivedFileBytes += packet.getData().length;
+						}
+						
+						output.write(packet.getData(), 0, packet.getData().length);
+						
+						prevPacketNum++;
+						finishedTransfer = packet.isEof();
+						
+						bufferedPackets.remove();
+						
+					}
+					
+				} else if (packetNum > (prevPacketNum + 1) && packetNum <= (prevPacketNum + reorderBufferSize)) {
+					
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Out of order packet " + packetNum + " received and buffered.");
+					}
+					
+					/* Grab the data. */
+					byte[] data = new byte[currentPacketSize - dataStart];
+					System.arraycopy(receivedData, dataStart, data, 0, data.length);
+					
+					/* Add it to the buffer if it isn't already there. */
+					BufferedPacket packet = new BufferedPacket(packetNum, data, receivedData[2] > 0);
+					if (!bufferedPackets.contains(packet)) {
+						bufferedPackets.add(packet);
+					}
+					
 				} else if (DEBUG_MODE) {
 					System.out.println("DEBUG: Duplicate/out-of-order packet " + packetNum + " received and discarded. " +
 							"Expected packet was " + (prevPacketNum + 1));
@@ -153,6 +371,16 @@ public class Receiver3 {
 					System.out.println("DEBUG: Sent ack with packet num " + prevPacketNum + ".");
 				}
 				
+				/* Stop waiting for a FIN if the sender goes quiet. */
+				if (finishedTransfer) {
+					receiverSocket.setSoTimeout(LINGER_LENGTH);
+				}
+				
+			}
+			
+			/* The decoder may have a hole left to make at the end of the file. */
+			if (decoder != null && finishedTransfer) {
+				decoder.close();
 			}
 			
 			if (DEBUG_MODE) {
@@ -177,28 +405,49 @@ public class Receiver3 {
 			receiverSocket.close();
 			ackSocket.close();
 			
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ioe) { }
+			}
+			
 		}
 		
-		return true;
+		return finishedTransfer;
 		
 	}
 	
 	/**
-	 * The main method for running the Receiver3 class. There are two arguments -
-	 * the port number to receive on and the name of the file to write.
+	 * The main method for running the Receiver3 class. There are two compulsory
+	 * arguments - the port number to receive on and the name of the file to write -
+	 * and an optional third, the size of the reorder buffer (default 0, i.e. off).
+	 * They may be preceded by -s to expect runs of zeros as markers (see
+	 * {@link #setSparse(boolean)}) and -c to check packet checksums (see
+	 * {@link #setChecksummed(boolean)}).
 	 * 
-	 * @param args		The program arguments: the port number and the 
-	 * 					name of the file that is to be sent.
+	 * @param args		The program arguments: the port number, the 
+	 * 					name of the file that is to be sent, and optionally
+	 * 					the reorder buffer size.
 	 */
 	public static void main(String[] args) {
 		
+		/* A leading -s turns on sparse receiving, and -c checksums. */
+		boolean sparse = false;
+		boolean checksummed = false;
+		while (args.length > 0 && (args[0].equals("-s") || args[0].equals("-c"))) {
+			sparse |= args[0].equals("-s");
+			checksummed |= args[0].equals("-c");
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		
 		int portNumber;
 		String fileName = null;
+		int reorderBufferSize;
 		boolean successful = false;
 		
-		/* Both arguments are compulsory. */
-		if (args.length != 2) {
-			System.err.println("Usage: java Receiver3 port filename");
+		/* The port and file name are compulsory, the reorder buffer size is not. */
+		if (args.length != 2 && args.length != 3) {
+			System.err.println("Usage: java Receiver3 [-s] [-c] port filename [reorderbuffersize]");
 			System.exit(-1);
 		}
 		
@@ -206,14 +455,19 @@ public class Receiver3 {
 			
 			portNumber = Integer.parseInt(args[0]);
 			fileName = args[1];
+			reorderBufferSize = (args.length == 3) ? Integer.parseInt(args[2]) : 0;
 	
 			/* Attempt to receive data and write it to the given file. */
-			Receiver3 receiver = new Receiver3(fileName, portNumber);
+			Receiver3 receiver = new Receiver3(fileName, portNumber, reorderBufferSize);
+			receiver.setSparse(sparse);
+			receiver.setChecksummed(checksummed);
 			successful = receiver.receive();
 			
 		} catch (NumberFormatException nfe) {
-			System.err.println("Error: Unable to convert input port number \""
-					+ args[0] + "\" to an integer.");
+			System.err.println("Error: Unable to convert the port number or reorder buffer size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
 			System.exit(-1);
 		}
 		
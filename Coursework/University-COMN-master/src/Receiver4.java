@@ -1,13 +1,25 @@
 /* Stephen McGruer 0840449 */
 
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.security.KeyPair;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.PriorityQueue;
 
 /**
@@ -21,10 +33,36 @@ import java.util.PriorityQueue;
  * <ul>
  * <li>The first two bytes are the packet number (giving a value range of 0 to 65536).
  * <li>The next byte is the EOF byte. A value of anything but 0 signifies an EOF packet.
- * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 3) bytes are filled with data.
+ * <li>If checksums are on (see {@link #setChecksummed(boolean)}), the next four bytes
+ * are the packet's checksum (see {@link PacketChecksum}).
+ * <li>The remaining bytes, up to <a href="#PACKET_SIZE">PACKET_SIZE</a>, are filled with data.
+ * If encryption is on (see {@link #setEncrypted(boolean)}), the data is encrypted and
+ * followed by its authentication tag (see {@link PacketCipher}).
  * </ul>
  * <p>
- * The ack packet is merely the packet number (and thus is 2 bytes).
+ * The ack packet is merely the packet number (and thus is 2 bytes). A packet that
+ * fails its checksum, or cannot be opened when encrypted, is dropped without an ack,
+ * so the sender re-sends it. With encryption on, the sender's key packet is answered
+ * with ours if it is signed under the shared key (see {@link Sender4}), and data
+ * packets are dropped until a key is agreed. Acks, FINs and FIN-ACKs then carry a
+ * MAC under the agreed key, and FINs whose MAC is wrong are ignored.
+ * <p>
+ * After the EOF packet has been written, re-sent packets are still acked until
+ * the sender closes the transfer with a FIN packet, which is answered with a
+ * FIN-ACK (see {@link Sender4}). If no FIN arrives within
+ * <a href="#LINGER_LENGTH">LINGER_LENGTH</a> of the last packet, we assume the
+ * sender has finished. As the FIN-ACK may be lost, re-sent FINs are still answered
+ * for <a href="#FIN_LINGER_LENGTH">FIN_LINGER_LENGTH</a> once receive() has
+ * returned, in the background (much as TCP's TIME_WAIT), unless another Receiver4
+ * in this program takes over the port first. A FIN that arrives before any data
+ * is such a re-send from an earlier transfer to the port, so it is answered but
+ * does not close ours. An idle timeout can also be set (see
+ * {@link #setIdleTimeout(int)}), so that we give up on a sender that goes quiet
+ * part way through.
+ * <p>
+ * To receive from a {@link GroupSender} sending to a multicast group, the group can
+ * be joined (see {@link #setMulticastGroup(InetAddress)}). Packets sent straight to
+ * us are still received, and acks still go straight back to the sender.
  * <p>
  * Note that the ack-sending port is hard-coded to be the incoming port + 1, as the
  * coursework does not specify any way of setting when calling the program.
@@ -42,6 +80,15 @@ public class Receiver4 {
 	 * all performance hits when debugging is off. */
 	private static final boolean DEBUG_MODE = false;
 	
+	/** How long (in ms) we wait for a FIN once the file has been written. */
+	public static final int LINGER_LENGTH = 2000;
+	
+	/** How long (in ms) re-sent FINs are still answered once the transfer closes. */
+	public static final int FIN_LINGER_LENGTH = 3000;
+	
+	/* The sockets of closed transfers still answering FINs, by port. */
+	private static final Map<Integer, FinLinger> lingering = new HashMap<Integer, FinLinger>();
+	
 	/* The file name to write to. */
 	private String fileName;
 
@@ -50,6 +97,32 @@ public class Receiver4 {
 	
 	/* The window size. */
 	private int windowSize;
+	
+	/* How long (in ms) to wait for a packet before giving up on the sender,
+	 * or 0 to wait forever. */
+	private int idleTimeout;
+	
+	/* The multicast group to join, or null. */
+	private InetAddress multicastGroup;
+	
+	/* Whether the data arrives compressed. */
+	private boolean compressed;
+	
+	/* Whether runs of zeros arrive as markers. */
+	private boolean sparse;
+	
+	/* The size of the checksum field in data packets, 0 if they have none. */
+	private int checksumSize;
+	
+	/* Whether data packets are encrypted, and the shared key and the size of their
+	 * tag and of the MAC on other packets if so. */
+	private boolean encrypted;
+	private byte[] sharedKey;
+	private int tagSize;
+	private int macSize;
+	
+	/* The address the data came from, once it starts arriving. */
+	private volatile InetAddress senderAddress;
 
 	/* The incoming and outgoing sockets. */
 	private DatagramSocket receiverSocket;
@@ -71,6 +144,16 @@ public class Receiver4 {
 		this.fileName = fileName;
 		this.portNumber = portNumber;
 		this.windowSize = windowSize;
+		this.idleTimeout = 0;
+		this.multicastGroup = null;
+		this.compressed = false;
+		this.sparse = false;
+		this.checksumSize = 0;
+		this.encrypted = false;
+		this.sharedKey = null;
+		this.tagSize = 0;
+		this.macSize = 0;
+		this.senderAddress = null;
 
 		/* The priority queue should sort packets in order of packet number. */
 		int initCapacity = 4;
@@ -92,6 +175,80 @@ public class Receiver4 {
 		
 	}
 	
+	/**
+	 * Sets how long to wait for a packet before giving up on the sender, if it
+	 * goes quiet before the whole file has arrived. By default we wait forever.
+	 * 
+	 * @param idleTimeout	The time in ms, or 0 to wait forever.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Sets a multicast group to join while receiving, so that packets sent to
+	 * the group on our port reach us too.
+	 * 
+	 * @param multicastGroup	The group address, or null for none.
+	 */
+	public void setMulticastGroup(InetAddress multicastGroup) {
+		
+		if (multicastGroup != null && !multicastGroup.isMulticastAddress()) {
+			throw new IllegalArgumentException(multicastGroup.getHostAddress() + " is not a multicast address.");
+		}
+		
+		this.multicastGroup = multicastGroup;
+	}
+	
+	/**
+	 * Sets whether the data arrives compressed by a sender set to compress it
+	 * (see {@link Sender4#setCompressed(boolean)}), and so needs decompressing
+	 * (see {@link ChunkDecompressor}) before being written.
+	 * 
+	 * @param compressed	True to decompress the data.
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+	
+	/**
+	 * Sets whether runs of zeros arrive as markers from a sender set to send them
+	 * so (see {@link Sender4#setSparse(boolean)}). They are left as holes in the
+	 * output file (see {@link SparseDecoder}), or written out in full when
+	 * receiving to a stream.
+	 * 
+	 * @param sparse	True to expect runs of zeros as markers.
+	 */
+	public void setSparse(boolean sparse) {
+		this.sparse = sparse;
+	}
+	
+	/**
+	 * Sets whether data packets carry a checksum, from a sender set to add one
+	 * (see {@link Sender4#setChecksummed(boolean)}). Packets that fail it are
+	 * dropped without being acked.
+	 * 
+	 * @param checksummed	True to check the data packets' checksums.
+	 */
+	public void setChecksummed(boolean checksummed) {
+		this.checksumSize = checksummed ? PacketChecksum.CHECKSUM_SIZE : 0;
+	}
+	
+	/**
+	 * Sets whether data packets are encrypted, from a sender set to encrypt them
+	 * with the same shared key (see {@link Sender4#setEncrypted(byte[])}). A key is
+	 * agreed with the first sender to offer one signed under the shared key, and
+	 * packets that do not open under it are dropped without being acked.
+	 * 
+	 * @param sharedKey		The shared key, or null to take data packets as they are.
+	 */
+	public void setEncrypted(byte[] sharedKey) {
+		this.encrypted = sharedKey != null;
+		this.sharedKey = sharedKey;
+		this.tagSize = encrypted ? PacketCipher.TAG_SIZE : 0;
+		this.macSize = encrypted ? PacketCipher.MAC_SIZE : 0;
+	}
+	
 	/**
 	 * Receives data from the set port and writes the received data to a file.
 	 * Operates on a selective repeat protocol. When a packet is received, 
@@ -108,6 +265,105 @@ public class Receiver4 {
 	 * 				data may be incorrect or may have been corrupted enroute.
 	 */
 	public boolean receive() {
+		return receive(0, true);
+	}
+	
+	/**
+	 * Receives part of a file sent with {@link Sender4#send(File, long, long)},
+	 * in the same way as {@link #receive()}, writing the data into the output file
+	 * from the given offset. The rest of the file is left untouched, so a file
+	 * can be received in several parts.
+	 * 
+	 * @param offset	The position in the file to write the first received byte to.
+	 * 
+	 * @return		True if data is correctly received and the output file 
+	 * 				written, False otherwise.
+	 */
+	public boolean receive(long offset) {
+		return receive(offset, false);
+	}
+	
+	/**
+	 * Receives data sent with {@link Sender4#send(InputStream, long)}, in the same
+	 * way as {@link #receive()}, writing it in order to a stream rather than to
+	 * the output file. The file name given to the constructor is not used. The
+	 * stream is closed once the transfer ends.
+	 * 
+	 * @param output	The stream to write the received data to.
+	 * 
+	 * @return		True if data is correctly received and written to the
+	 * 				stream, False otherwise.
+	 */
+	public boolean receive(OutputStream output) {
+		
+		if (sparse) {
+			output = new SparseDecoder(output);
+		}
+		
+		if (compressed) {
+			output = new ChunkDecompressor(output);
+		}
+		
+		return receiveInto(new DataOutputStream(output));
+		
+	}
+	
+	/* Does the receiving for the file versions of the above, emptying the output
+	 * file first if replaceFile is set. */
+	private boolean receive(long offset, boolean replaceFile) {
+		
+		/* We use a RandomAccessFile to write the data we receive to
+		 * the file, so that we can start part of the way through it. */
+		RandomAccessFile writer = null;
+		OutputStream output = null;
+		
+		try {
+			
+			writer = new RandomAccessFile(new File(this.fileName), "rw");
+			if (replaceFile) {
+				writer.setLength(0);
+			}
+			writer.seek(offset);
+			
+			if (sparse) {
+				output = new SparseDecoder(writer.getChannel());
+			}
+			
+		} catch (IOException ioe) {
+			
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) { }
+			}
+			
+			return false;
+			
+		}
+		
+		if (compressed || sparse) {
+			
+			if (output == null) {
+				output = Channels.newOutputStream(writer.getChannel());
+			}
+			if (compressed) {
+				output = new ChunkDecompressor(output);
+			}
+			
+			return receiveInto(new DataOutputStream(output));
+			
+		}
+		
+		return receiveInto(writer);
+		
+	}
+	
+	/* Does the receiving for all of the above, writing the data in order to
+	 * the writer and closing it at the end. */
+	private <W extends DataOutput & Closeable> boolean receiveInto(W writer) {
 		
 		/* Tracks whether we have received all packets. */
 		boolean finishedTransfer = false;
@@ -120,34 +376,165 @@ public class Receiver4 {
 		
 		/* Used to monitor the start of the packet window */
 		int windowBase = 0;
+		
+		/* Where the data starts in a data packet. */
+		int dataStart = 3 + checksumSize;
+		
+		/* Our key pair and key packet, the sender's signed key and the cipher
+		 * agreed from them, when encrypted. */
+		KeyPair keys = null;
+		DatagramPacket keyPacket = null;
+		byte[] agreedKey = null;
+		PacketCipher cipher = null;
+		
+		/* Tracks whether the sender has closed the transfer. */
+		boolean closed = false;
 
 		try {
 			
-			/* We use a FileOutputStream to write the data we receive to
-			 * a file. */
-			FileOutputStream writer = new FileOutputStream(new File(this.fileName));
+			/* A closed transfer may still be answering FINs on the port. */
+			FinLinger.stop(portNumber);
 			
-			receiverSocket = new DatagramSocket(portNumber);
+			if (multicastGroup != null) {
+				MulticastSocket multicastSocket = new MulticastSocket(portNumber);
+				receiverSocket = multicastSocket;
+				/* A null interface joins on the default one. */
+				multicastSocket.joinGroup(new InetSocketAddress(multicastGroup, 0), null);
+			} else {
+				receiverSocket = new DatagramSocket(portNumber);
+			}
+			receiverSocket.setSoTimeout(idleTimeout);
 			ackSocket = new DatagramSocket();
+			
+			/* Make our key pair while waiting for the sender, rather than once
+			 * it is waiting for us. */
+			if (encrypted) {
+				keys = PacketCipher.generateKeyPair();
+			}
 
-			/* Grab packets until we receive an (expected) EOF packet. */
-			while (!finishedTransfer) {
+			/* Grab packets until the sender closes the transfer. Packets that come
+			 * after the EOF packet has been written are re-sends whose acks were
+			 * lost, so we keep acking them. */
+			while (!closed) {
 				
 				/* Buffer for the incoming data. */
 				byte receivedDataBuffer[] = new byte[PACKET_SIZE];
 
 				/* Grab an incoming packet (block waiting for one). */
 				DatagramPacket receivedPacket = new DatagramPacket(receivedDataBuffer, receivedDataBuffer.length);
-				receiverSocket.receive(receivedPacket);
+				
+				try {
+					receiverSocket.receive(receivedPacket);
+				} catch (SocketTimeoutException ste) {
+					
+					/* The sender has gone quiet - after the EOF packet we close anyway,
+					 * before it we give up on the transfer. */
+					if (DEBUG_MODE) {
+						System.out.println(finishedTransfer
+								? "DEBUG: No FIN received, closing anyway."
+								: "DEBUG: Sender went quiet, giving up.");
+					}
+					
+					break;
+					
+				}
 				
 				byte receivedData[] = receivedPacket.getData();
 				
 				/* The current packet's size is not necessarily PACKET_SIZE - the
 				 * final packet may contain less data. */
 				int currentPacketSize = receivedPacket.getLength();
+				
+				/* FIN check. When encrypted, a FIN from before the key was agreed
+				 * cannot be checked, so it is ignored. */
+				if (currentPacketSize == 3 + macSize && receivedData[2] == Sender4.FIN) {
+					
+					if (encrypted && (cipher == null || !cipher.verify(receivedData, currentPacketSize, 0))) {
+						continue;
+					}
+					
+					byte[] finAckBuffer = makeFinAck(cipher);
+					DatagramPacket finAckPacket = new DatagramPacket(finAckBuffer, finAckBuffer.length,
+							receivedPacket.getAddress(), portNumber + 1);
+					ackSocket.send(finAckPacket);
+					
+					/* Before any data, it is an earlier transfer's FIN whose FIN-ACK
+					 * was lost. */
+					if (prevPacketNum >= 0) {
+						closed = true;
+					}
+					continue;
+					
+				}
+
+				/* Answer a key packet with ours, agreeing the key from the first that
+				 * is signed under the shared key. A sender re-sends its key until it
+				 * hears ours. */
+				if (encrypted && currentPacketSize > 3 && receivedData[2] == PacketCipher.KEY) {
+					
+					byte[] theirKey = Arrays.copyOfRange(receivedData, 3, currentPacketSize);
+					
+					/* A key damaged or forged on the way is dropped, and the sender
+					 * re-sends it. */
+					if (cipher == null) {
+						try {
+							cipher = PacketCipher.agree(sharedKey, keys, theirKey, false);
+							agreedKey = theirKey;
+						} catch (IOException ioe) {
+							continue;
+						}
+						
+						byte[] publicKey = PacketCipher.signKey(sharedKey, keys, theirKey);
+						byte[] keyData = new byte[3 + publicKey.length];
+						keyData[2] = PacketCipher.KEY;
+						System.arraycopy(publicKey, 0, keyData, 3, publicKey.length);
+						keyPacket = new DatagramPacket(keyData, keyData.length);
+					}
+					
+					if (Arrays.equals(theirKey, agreedKey)) {
+						keyPacket.setAddress(receivedPacket.getAddress());
+						keyPacket.setPort(portNumber + 1);
+						ackSocket.send(keyPacket);
+					}
+					
+					continue;
+					
+				}
+				
+				/* Drop corrupted packets without acking them, so that they are re-sent. */
+				if (checksumSize > 0 && !PacketChecksum.verify(receivedData, 3, currentPacketSize)) {
+					
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Corrupted packet received and discarded.");
+					}
+					
+					continue;
+					
+				}
 
 				/* Must take care to avoid int-promotion errors. */
-				int packetNum = (0x0000FF00 & (receivedData[0] << 8)) | (0x000000FF & receivedData[1]);
+				int packetNum = unwrapPacketNum((0x0000FF00 & (receivedData[0] << 8)) | (0x000000FF & receivedData[1]),
+						windowBase);
+				
+				/* Drop encrypted packets that do not open, or that come before a key is
+				 * agreed. Those from before the window are only acked again, so they
+				 * are left as they are. */
+				if (encrypted) {
+					if (cipher == null) {
+						continue;
+					}
+					if (packetNum >= windowBase && !cipher.open(receivedData, 3, dataStart, currentPacketSize, packetNum)) {
+						
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Packet failed to decrypt and was discarded.");
+						}
+						
+						continue;
+						
+					}
+				}
+				
+				senderAddress = receivedPacket.getAddress();
 				
 				/* Only grab the data if the packet is in the window. */
 				if (packetNum >= windowBase && packetNum <= windowBase + (windowSize-1)) {
@@ -165,12 +552,12 @@ public class Receiver4 {
 						}
 						
 						/* Write the file data from the packet. */
-						writer.write(receivedData, 3, currentPacketSize - 3);
+						writer.write(receivedData, dataStart, currentPacketSize - dataStart - tagSize);
 						
 						if (DEBUG_MODE) {
 							System.out.println("DEBUG: Received packet " + packetNum + " with size " +
-									currentPacketSize + " and data size " + (currentPacketSize - 3));
-							numReceivedFileBytes += currentPacketSize - 3;
+									currentPacketSize + " and data size " + (currentPacketSize - dataStart));
+							numReceivedFileBytes += currentPacketSize - dataStart;
 						}
 						
 						prevPacketNum++;
@@ -223,9 +610,9 @@ public class Receiver4 {
 						}
 						
 						/* Grab the data.*/
-						byte[] data = new byte[currentPacketSize];
-						for (int i = 3; i < currentPacketSize; i++) {
-							data[i-3] = receivedData[i];
+						byte[] data = new byte[currentPacketSize - dataStart - tagSize];
+						for (int i = dataStart; i < currentPacketSize - tagSize; i++) {
+							data[i-dataStart] = receivedData[i];
 						}
 						
 						/* Create a new BufferedPacket for the queue, and add it if it doesnt
@@ -240,9 +627,7 @@ public class Receiver4 {
 					/* Send an ack packet back to the sender. */
 					InetAddress ipAddress = receivedPacket.getAddress();
 					
-					byte[] ackBuffer = new byte[2];
-					ackBuffer[1] = (byte) (packetNum >>> 8);
-					ackBuffer[0] = (byte) packetNum;
+					byte[] ackBuffer = makeAck(packetNum, cipher);
 					
 					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length,
 							ipAddress, portNumber + 1);
@@ -265,9 +650,7 @@ public class Receiver4 {
 					/* Send an ack packet back to the sender. */
 					InetAddress ipAddress = receivedPacket.getAddress();
 
-					byte[] ackBuffer = new byte[2];
-					ackBuffer[1] = (byte) (packetNum >>> 8);
-					ackBuffer[0] = (byte) packetNum;
+					byte[] ackBuffer = makeAck(packetNum, cipher);
 
 					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length,
 							ipAddress, portNumber + 1);
@@ -282,6 +665,11 @@ public class Receiver4 {
 					
 				}
 				
+				/* Stop waiting for a FIN if the sender goes quiet. */
+				if (finishedTransfer) {
+					receiverSocket.setSoTimeout(LINGER_LENGTH);
+				}
+				
 			}
 			
 			if (DEBUG_MODE) {
@@ -289,7 +677,9 @@ public class Receiver4 {
 				System.out.println("DEBUG: Recieved file size is " + numReceivedFileBytes + " bytes.");
 			}
 			
-			
+			/* Close the output here rather than in the finally block, so that an
+			 * error writing out the last of the data is reported. */
+			writer.close();
 		
 		} catch (SocketException se) {
 			
@@ -305,35 +695,247 @@ public class Receiver4 {
 			
 		} finally {
 			
-			receiverSocket.close();
-			ackSocket.close();
+			/* Keep answering FINs in case our FIN-ACK was lost. */
+			if (closed && !receiverSocket.isClosed()) {
+				FinLinger.start(portNumber, receiverSocket, ackSocket, cipher);
+			} else {
+				if (receiverSocket != null) {
+					receiverSocket.close();
+				}
+				if (ackSocket != null) {
+					ackSocket.close();
+				}
+			}
+			
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ioe) { }
+			}
+			
+		}
+		
+		return finishedTransfer;
+		
+	}
+	
+	/* Makes the ack of a packet, which when encrypted has a third byte of 0 and a MAC. */
+	private static byte[] makeAck(int packetNum, PacketCipher cipher) {
+		
+		byte[] ackBuffer = new byte[(cipher == null) ? 2 : 3 + PacketCipher.MAC_SIZE];
+		ackBuffer[1] = (byte) (packetNum >>> 8);
+		ackBuffer[0] = (byte) packetNum;
+		
+		if (cipher != null) {
+			cipher.sign(ackBuffer, 3, packetNum);
+		}
+		
+		return ackBuffer;
+		
+	}
+	
+	/* Makes a FIN-ACK, with a MAC when encrypted. */
+	private static byte[] makeFinAck(PacketCipher cipher) {
+		
+		byte[] finAckBuffer = new byte[(cipher == null) ? 3 : 3 + PacketCipher.MAC_SIZE];
+		finAckBuffer[2] = Sender4.FIN;
+		
+		if (cipher != null) {
+			cipher.sign(finAckBuffer, 3, 0);
+		}
+		
+		return finAckBuffer;
+		
+	}
+	
+	/**
+	 * This thread answers the FINs still arriving for a closed transfer, until
+	 * <a href="#FIN_LINGER_LENGTH">FIN_LINGER_LENGTH</a> passes without one or
+	 * another Receiver4 wants the port.
+	 */
+	private static class FinLinger extends Thread {
+		
+		private int portNumber;
+		private DatagramSocket receiverSocket;
+		private DatagramSocket ackSocket;
+		private PacketCipher cipher;
+		
+		/**
+		 * Default constructor.
+		 * 
+		 * @param portNumber		The port the transfer was received on.
+		 * @param receiverSocket	The socket bound to it.
+		 * @param ackSocket			The socket to answer from.
+		 * @param cipher			The transfer's cipher, or null if it was
+		 * 							not encrypted.
+		 */
+		private FinLinger(int portNumber, DatagramSocket receiverSocket, DatagramSocket ackSocket,
+				PacketCipher cipher) {
+			this.portNumber = portNumber;
+			this.receiverSocket = receiverSocket;
+			this.ackSocket = ackSocket;
+			this.cipher = cipher;
+			setDaemon(true);
+		}
+		
+		/* Hands a closed transfer's sockets to a new FinLinger. */
+		private static void start(int portNumber, DatagramSocket receiverSocket, DatagramSocket ackSocket,
+				PacketCipher cipher) {
+			
+			FinLinger linger = new FinLinger(portNumber, receiverSocket, ackSocket, cipher);
+			synchronized (lingering) {
+				lingering.put(portNumber, linger);
+			}
+			linger.start();
+			
+		}
+		
+		/* Closes the sockets of any FinLinger on a port, so it can be bound again. */
+		private static void stop(int portNumber) {
+			
+			FinLinger linger;
+			synchronized (lingering) {
+				linger = lingering.remove(portNumber);
+			}
+			
+			if (linger != null) {
+				linger.receiverSocket.close();
+				try {
+					linger.join();
+				} catch (InterruptedException ie) { }
+			}
+			
+		}
+		
+		/**
+		 * The main method for the thread. Answers FINs until they stop coming or
+		 * the socket is closed under it.
+		 */
+		public void run() {
+			
+			try {
+				
+				receiverSocket.setSoTimeout(FIN_LINGER_LENGTH);
+				byte[] buffer = new byte[PACKET_SIZE];
+				
+				while (true) {
+					
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					receiverSocket.receive(packet);
+					
+					int finSize = (cipher == null) ? 3 : 3 + PacketCipher.MAC_SIZE;
+					if (packet.getLength() == finSize && buffer[2] == Sender4.FIN
+							&& (cipher == null || cipher.verify(buffer, finSize, 0))) {
+						byte[] finAckBuffer = makeFinAck(cipher);
+						ackSocket.send(new DatagramPacket(finAckBuffer, finAckBuffer.length,
+								packet.getAddress(), portNumber + 1));
+					}
+					
+				}
+				
+			} catch (IOException ioe) {
+				/* The linger timed out, or the port was wanted again. */
+			} finally {
+				
+				synchronized (lingering) {
+					if (lingering.get(portNumber) == this) {
+						lingering.remove(portNumber);
+					}
+				}
+				
+				receiverSocket.close();
+				ackSocket.close();
+				
+			}
 			
 		}
 		
-		return true;
+	}
+	
+	/**
+	 * Returns the address the data came from, so that a reply can be sent.
+	 * 
+	 * @return		The sender's address, or null if no data has arrived yet.
+	 */
+	public InetAddress getSenderAddress() {
+		return senderAddress;
+	}
+	
+	/**
+	 * Works out the full packet number of a packet from the two bytes sent, which
+	 * wrap around every 65536 packets. Packets are never more than half that from
+	 * the window base, so the nearest match to it is taken.
+	 * 
+	 * @param wrappedNum	The packet number as sent.
+	 * @param windowBase	The full packet number of the start of the window.
+	 * 
+	 * @return				The full packet number.
+	 */
+	public static int unwrapPacketNum(int wrappedNum, int windowBase) {
+		
+		int ahead = (wrappedNum - windowBase) & 0xFFFF;
+		
+		return (ahead < 0x8000) ? windowBase + ahead : windowBase + ahead - 0x10000;
 		
 	}
 	
 	/**
-	 * The main method for running the Receiver4 class. There are three arguments -
-	 * the port number to receive on, the name of the file to write, and the window size
+	 * The main method for running the Receiver4 class. There are three compulsory
+	 * arguments - the port number to receive on, the name of the file to write, and
+	 * the window size - and an optional fourth, a multicast group to join. They
+	 * may be preceded by -z to decompress the data (see {@link #setCompressed(boolean)})
+	 * -s to expect runs of zeros as markers (see {@link #setSparse(boolean)}), -c
+	 * to check packet checksums (see {@link #setChecksummed(boolean)}) and -e and the
+	 * name of a file holding the shared key to decrypt them (see
+	 * {@link #setEncrypted(byte[])}).
 	 * 
 	 * @param args		The program arguments: the port number, the 
-	 * 					name of the file that is to be sent, and the window size.
+	 * 					name of the file that is to be sent, the window size,
+	 * 					and optionally the multicast group.
 	 */
 	public static void main(String[] args) throws IOException {
 		
+		/* A leading -z turns on compression, -s sparse receiving, -c checksums and
+		 * -e (followed by the shared key file) encryption. */
+		boolean compressed = false;
+		boolean sparse = false;
+		boolean checksummed = false;
+		String sharedKeyFile = null;
+		while (args.length > 0 && (args[0].equals("-z") || args[0].equals("-s") || args[0].equals("-c")
+				|| (args[0].equals("-e") && args.length > 1))) {
+			compressed |= args[0].equals("-z");
+			sparse |= args[0].equals("-s");
+			checksummed |= args[0].equals("-c");
+			if (args[0].equals("-e")) {
+				sharedKeyFile = args[1];
+				args = Arrays.copyOfRange(args, 1, args.length);
+			}
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		
 		int portNumber;
 		String fileName = null;
 		int windowSize;
 		boolean successful = false;
 		
-		/* All 3 arguments are compulsory. */
-		if (args.length != 3) {
-			System.err.println("Usage: java Receiver4 port filename windowsize");
+		/* The first 3 arguments are compulsory. */
+		if (args.length != 3 && args.length != 4) {
+			System.err.println("Usage: java Receiver4 [-z] [-s] [-c] [-e keyfile] port filename windowsize [multicast_group]");
 			System.exit(-1);
 		}
 		
+		/* Read the shared key before anything else. */
+		byte[] sharedKey = null;
+		if (sharedKeyFile != null) {
+			try {
+				sharedKey = PacketCipher.loadSharedKey(new File(sharedKeyFile));
+			} catch (IOException ioe) {
+				System.err.println("Error: Unable to read the shared key:");
+				System.err.println(ioe.getMessage());
+				System.exit(-1);
+			}
+		}
+		
 		try {
 			
 			portNumber = Integer.parseInt(args[0]);
@@ -342,6 +944,13 @@ public class Receiver4 {
 	
 			/* Attempt to receive data and write it to the given file. */
 			Receiver4 receiver = new Receiver4(fileName, portNumber, windowSize);
+			if (args.length == 4) {
+				receiver.setMulticastGroup(InetAddress.getByName(args[3]));
+			}
+			receiver.setCompressed(compressed);
+			receiver.setSparse(sparse);
+			receiver.setChecksummed(checksummed);
+			receiver.setEncrypted(sharedKey);
 			successful = receiver.receive();
 
 		} catch (IllegalArgumentException iae) {
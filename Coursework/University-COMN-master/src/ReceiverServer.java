@@ -0,0 +1,699 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ReceiverServer class is a long-running receiver that serves any number of
+ * concurrent transfers on a single port, using the selective repeat protocol
+ * (see {@link Receiver4}). Each transfer is a session, sent by a {@link Sender4}
+ * given a session ID, and is written to its own file (session-ID) in the output
+ * directory. A session is known by its ID together with the address and port its
+ * packets come from, so senders that happen to pick the same ID are kept apart.
+ * If a running session is already writing session-ID, another session with that
+ * ID writes session-ID.2 (or .3, and so on) instead.
+ * <p>
+ * One thread receives every packet and passes it to its session by its source and
+ * the session ID at the start of the packet. Each session runs on its own thread - a virtual thread
+ * where the JVM has them, so thousands of sessions cost little - writing its file and
+ * sending its acks. Acks go back to the address and port the packet came from, rather
+ * than to the port + 1, so any number of senders can share the server.
+ * <p>
+ * To spread the receiving over several cores, the server can open several sockets
+ * (shards) on the same port with SO_REUSEPORT, one per core by default. The kernel
+ * picks the socket for each packet from its source and destination addresses, so all
+ * of a sender's packets reach the same shard. Each shard has its own receiving thread
+ * and its own sessions, so the shards never wait on each other. SO_REUSEPORT needs
+ * Java 9 and an OS that supports it, otherwise a single socket is used.
+ * <p>
+ * The data packet protocol is that of Receiver4, after a 4 byte session ID. The ack
+ * packet is the session ID followed by the Receiver4 ack.
+ * <p>
+ * A session ends when its sender's FIN arrives, when no FIN arrives within
+ * <a href="Receiver4.html#LINGER_LENGTH">LINGER_LENGTH</a> of the end of the file,
+ * or when nothing arrives for <a href="#SESSION_TIMEOUT_LENGTH">SESSION_TIMEOUT_LENGTH</a>.
+ * Sessions that received their whole file are remembered for
+ * <a href="#FINISHED_SESSION_LENGTH">FINISHED_SESSION_LENGTH</a>, so that late re-sends
+ * from the same source are acked rather than starting a new session. A FIN for a
+ * session we do not know is answered with a FIN-ACK, and never starts one.
+ *
+ * @author s0840449
+ *
+ */
+public class ReceiverServer {
+
+	/** Defines the size of a packet. Usually 1024, must be at least 8. */
+	public static final int PACKET_SIZE = 1024;
+
+	/** How long (in ms) a session can go without a packet before we give up on it. */
+	public static final int SESSION_TIMEOUT_LENGTH = 30000;
+
+	/** How long (in ms) we remember that a session has finished. */
+	public static final int FINISHED_SESSION_LENGTH = 10000;
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* Starts a virtual thread, if the JVM has them (Java 21 on). Looked up by
+	 * reflection so that the code still builds and runs on older JVMs. */
+	private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+
+	/* StandardSocketOptions.SO_REUSEPORT and DatagramSocket.setOption, if the
+	 * JVM has them (Java 9 on). Looked up by reflection for the same reason. */
+	private static final Object SO_REUSEPORT = findReusePortOption();
+	private static final Method SET_OPTION = findSetOption();
+
+	/* The directory to write files to. */
+	private File directory;
+
+	/* The port number to listen for data on. */
+	private int portNumber;
+
+	/* The window size of every session. */
+	private int windowSize;
+
+	/* The number of sockets to receive on. */
+	private int numShards;
+
+	/* The names of the files that running sessions are writing, on every shard. */
+	private Set<String> activeFiles;
+
+	/**
+	 * Default constructor. Uses one shard per core.
+	 *
+	 * @param directory		The directory to write received files to.
+	 * @param portNumber	The port number to wait for data on.
+	 * @param windowSize	The number of packets each session considers
+	 * 						"in scope" at any one time.
+	 */
+	public ReceiverServer(File directory, int portNumber, int windowSize) {
+		this(directory, portNumber, windowSize, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor for a set number of shards.
+	 *
+	 * @param directory		The directory to write received files to.
+	 * @param portNumber	The port number to wait for data on.
+	 * @param windowSize	The number of packets each session considers
+	 * 						"in scope" at any one time.
+	 * @param numShards		The number of sockets to receive on.
+	 */
+	public ReceiverServer(File directory, int portNumber, int windowSize, int numShards) {
+
+		if (!directory.isDirectory()) {
+			throw new IllegalArgumentException("\"" + directory.getPath() + "\" is not a directory.");
+		}
+
+		if (numShards < 1) {
+			throw new IllegalArgumentException("Number of shards must be at least 1.");
+		}
+
+		this.directory = directory;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+		this.numShards = numShards;
+		this.activeFiles = new HashSet<String>();
+	}
+
+	/**
+	 * The SessionKey class identifies a session by where its packets come from
+	 * and its session ID.
+	 */
+	private static class SessionKey {
+
+		private SocketAddress source;
+		private int sessionId;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param source		The address and port the session's packets come from.
+		 * @param sessionId		The session ID.
+		 */
+		public SessionKey(SocketAddress source, int sessionId) {
+			this.source = source;
+			this.sessionId = sessionId;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+
+			if (!(other instanceof SessionKey)) {
+				return false;
+			}
+
+			SessionKey key = (SessionKey) other;
+			return sessionId == key.sessionId && source.equals(key.source);
+
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * source.hashCode() + sessionId;
+		}
+
+	}
+
+	/* Picks the file a new session writes to, and marks it as being written. */
+	private synchronized File claimFile(int sessionId) {
+
+		String name = "session-" + (0xFFFFFFFFL & sessionId);
+		String claimed = name;
+		for (int copy = 2; activeFiles.contains(claimed); copy++) {
+			claimed = name + "." + copy;
+		}
+
+		activeFiles.add(claimed);
+		return new File(directory, claimed);
+
+	}
+
+	/* Marks a session's file as no longer being written. */
+	private synchronized void releaseFile(File file) {
+		activeFiles.remove(file.getName());
+	}
+
+	/**
+	 * The Shard class receives the packets arriving on one socket, passing each
+	 * to its session and starting a new session for each new source and session
+	 * ID. Its
+	 * sessions are only ever seen by the shard and the sessions' own threads.
+	 */
+	private class Shard extends Thread {
+
+		/* The socket that the shard's packets arrive on and its acks leave from. */
+		private DatagramSocket socket;
+
+		/* The running sessions, and the time each finished session finished. */
+		private Map<SessionKey, Session> sessions;
+		private Map<SessionKey, Long> finishedSessions;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param socket	The socket to receive on.
+		 */
+		public Shard(DatagramSocket socket) {
+			this.socket = socket;
+			this.sessions = new ConcurrentHashMap<SessionKey, Session>();
+			this.finishedSessions = new ConcurrentHashMap<SessionKey, Long>();
+		}
+
+		/**
+		 * The main method for the shard. Receives packets until the socket fails.
+		 */
+		public void run() {
+
+			try {
+
+				long lastCleanup = System.currentTimeMillis();
+
+				while (true) {
+
+					/* A new buffer for every packet, as the session keeps it. */
+					byte receivedDataBuffer[] = new byte[PACKET_SIZE];
+					DatagramPacket receivedPacket = new DatagramPacket(receivedDataBuffer, receivedDataBuffer.length);
+
+					socket.receive(receivedPacket);
+
+					/* Session ID, packet number and EOF byte. */
+					if (receivedPacket.getLength() < 7) {
+						continue;
+					}
+
+					int sessionId = Sender4.readSessionId(receivedDataBuffer);
+					SessionKey key = new SessionKey(receivedPacket.getSocketAddress(), sessionId);
+
+					Session session = sessions.get(key);
+
+					if (session == null) {
+
+						boolean fin = receivedPacket.getLength() == 7 && receivedDataBuffer[6] == Sender4.FIN;
+
+						if (finishedSessions.containsKey(key)) {
+
+							/* A re-send from a finished session, whose ack or FIN-ACK was lost. */
+							int packetNum = (0x0000FF00 & (receivedDataBuffer[4] << 8)) | (0x000000FF & receivedDataBuffer[5]);
+							sendAck(receivedPacket, packetNum, fin);
+							continue;
+
+						}
+
+						/* A FIN with no session to end is a late one, from a session we
+						 * have since forgotten. Answer it, rather than start a session
+						 * that would claim the file again and empty it. */
+						if (fin) {
+							sendAck(receivedPacket, 0, true);
+							continue;
+						}
+
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Starting session " + sessionId + " on " + getName() + ".");
+						}
+
+						session = new Session(this, key);
+						sessions.put(key, session);
+						startThread(session);
+
+					}
+
+					session.addPacket(receivedPacket);
+
+					/* Forget sessions that ended long enough ago. */
+					long now = System.currentTimeMillis();
+					if (now - lastCleanup > FINISHED_SESSION_LENGTH) {
+
+						Iterator<Long> endTimes = finishedSessions.values().iterator();
+						while (endTimes.hasNext()) {
+							if (now - endTimes.next() > FINISHED_SESSION_LENGTH) {
+								endTimes.remove();
+							}
+						}
+
+						lastCleanup = now;
+
+					}
+
+				}
+
+			} catch (IOException ioe) {
+
+				System.err.println("Error: IO Exception on " + getName() + ":");
+				System.err.println(ioe.getMessage());
+
+			} finally {
+
+				socket.close();
+
+			}
+
+		}
+
+		/**
+		 * Sends an ack (or a FIN-ACK) for a packet back to where it came from.
+		 *
+		 * @param receivedPacket	The packet being acked.
+		 * @param packetNum			Its packet number.
+		 * @param fin				Whether to send a FIN-ACK.
+		 *
+		 * @throws IOException		If the ack cannot be sent.
+		 */
+		public void sendAck(DatagramPacket receivedPacket, int packetNum, boolean fin) throws IOException {
+
+			byte[] receivedData = receivedPacket.getData();
+
+			byte[] ackBuffer = new byte[fin ? 7 : 6];
+			System.arraycopy(receivedData, 0, ackBuffer, 0, 4);
+
+			if (fin) {
+				ackBuffer[6] = Sender4.FIN;
+			} else {
+				ackBuffer[5] = (byte) (packetNum >>> 8);
+				ackBuffer[4] = (byte) packetNum;
+			}
+
+			socket.send(new DatagramPacket(ackBuffer, ackBuffer.length, receivedPacket.getSocketAddress()));
+
+		}
+
+	}
+
+	/**
+	 * The Session class receives one transfer, from the packets that the
+	 * server passes to it.
+	 */
+	private class Session implements Runnable {
+
+		private Shard shard;
+		private SessionKey key;
+		private int sessionId;
+
+		/* Packets waiting to be handled. */
+		private BlockingQueue<DatagramPacket> packets;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param shard			The shard the session's packets arrive on.
+		 * @param key			The session's source and ID.
+		 */
+		public Session(Shard shard, SessionKey key) {
+			this.shard = shard;
+			this.key = key;
+			this.sessionId = key.sessionId;
+			this.packets = new LinkedBlockingQueue<DatagramPacket>();
+		}
+
+		/**
+		 * Hands a packet to the session.
+		 *
+		 * @param packet	The packet, which must not be reused.
+		 */
+		public void addPacket(DatagramPacket packet) {
+			packets.add(packet);
+		}
+
+		/**
+		 * The main method for the session. Works as Receiver4 does, taking
+		 * packets from the server rather than a socket.
+		 */
+		public void run() {
+
+			File outputFile = claimFile(sessionId);
+
+			/* Tracks whether we have received all packets. */
+			boolean finishedTransfer = false;
+
+			/* Used to check for duplicate/skipped packets. */
+			int prevPacketNum = -1;
+
+			/* Used to monitor the start of the packet window */
+			int windowBase = 0;
+
+			/* A buffer to hold out of order packets, in order of packet number. */
+			PriorityQueue<BufferedPacket> bufferedPackets = new PriorityQueue<BufferedPacket>(4,
+					new Comparator<BufferedPacket>() {
+
+				@Override
+				public int compare(BufferedPacket packet1, BufferedPacket packet2) {
+
+					if (packet1.equals(packet2)) {
+						return 0;
+					} else if (packet1.getPacketNum() < packet2.getPacketNum()) {
+						return -1;
+					} else {
+						return 1;
+					}
+
+				}
+
+			});
+
+			RandomAccessFile writer = null;
+
+			try {
+
+				writer = new RandomAccessFile(outputFile, "rw");
+				writer.setLength(0);
+
+				long timeout = SESSION_TIMEOUT_LENGTH;
+
+				while (true) {
+
+					DatagramPacket receivedPacket = packets.poll(timeout, TimeUnit.MILLISECONDS);
+
+					if (receivedPacket == null) {
+
+						if (!finishedTransfer) {
+							System.err.println("Session " + outputFile.getName() + " timed out.");
+						}
+
+						break;
+
+					}
+
+					byte receivedData[] = receivedPacket.getData();
+					int currentPacketSize = receivedPacket.getLength();
+
+					/* FIN check. */
+					if (currentPacketSize == 7 && receivedData[6] == Sender4.FIN) {
+						shard.sendAck(receivedPacket, 0, true);
+						break;
+					}
+
+					/* Must take care to avoid int-promotion errors. */
+					int packetNum = Receiver4.unwrapPacketNum(
+							(0x0000FF00 & (receivedData[4] << 8)) | (0x000000FF & receivedData[5]), windowBase);
+
+					/* Only grab the data if the packet is in the window. */
+					if (packetNum >= windowBase && packetNum <= windowBase + (windowSize - 1)) {
+
+						if (packetNum == (prevPacketNum + 1)) {
+
+							finishedTransfer = receivedData[6] > 0;
+
+							writer.write(receivedData, 7, currentPacketSize - 7);
+							prevPacketNum++;
+
+							/* Write out any buffered packets that are now in order. */
+							while (bufferedPackets.size() > 0
+									&& bufferedPackets.peek().getPacketNum() == (prevPacketNum + 1)) {
+
+								BufferedPacket packet = bufferedPackets.remove();
+
+								writer.write(packet.getData(), 0, packet.getData().length);
+								prevPacketNum = packet.getPacketNum();
+								finishedTransfer = packet.isEof();
+
+							}
+
+							windowBase = prevPacketNum + 1;
+
+						} else {
+
+							byte[] data = new byte[currentPacketSize - 7];
+							System.arraycopy(receivedData, 7, data, 0, data.length);
+
+							BufferedPacket packet = new BufferedPacket(packetNum, data, receivedData[6] > 0);
+							if (!bufferedPackets.contains(packet)) {
+								bufferedPackets.add(packet);
+							}
+
+						}
+
+						shard.sendAck(receivedPacket, packetNum, false);
+
+					} else if (packetNum < windowBase) {
+
+						/* An old packet whose ack was lost. */
+						shard.sendAck(receivedPacket, packetNum, false);
+
+					} else if (DEBUG_MODE) {
+						System.out.println("DEBUG: Session " + sessionId + " packet " + packetNum +
+								" received ahead of window.");
+					}
+
+					/* Stop waiting for a FIN if the sender goes quiet. */
+					if (finishedTransfer) {
+						timeout = Receiver4.LINGER_LENGTH;
+					}
+
+				}
+
+			} catch (IOException ioe) {
+
+				System.err.println("Error: IO Exception in session " + outputFile.getName() + ":");
+				System.err.println(ioe.getMessage());
+
+			} catch (InterruptedException ie) {
+
+				System.err.println("Error: Session " + outputFile.getName() + " was interrupted.");
+
+			} finally {
+
+				if (writer != null) {
+					try {
+						writer.close();
+					} catch (IOException ioe) { }
+				}
+
+				/* Remember a finished session before forgetting it, so that there
+				 * is no moment when a late packet would start a new one. */
+				if (finishedTransfer) {
+					shard.finishedSessions.put(key, System.currentTimeMillis());
+				}
+				shard.sessions.remove(key);
+				releaseFile(outputFile);
+
+			}
+
+			if (finishedTransfer) {
+				System.out.println("Session " + outputFile.getName() + " received and written to " +
+						outputFile.getPath());
+			}
+
+		}
+
+	}
+
+	/**
+	 * Receives packets on the set port forever, on each shard's socket.
+	 *
+	 * @return		False if the server could not be started or stopped on an
+	 * 				error. Otherwise it never returns.
+	 */
+	public boolean serve() {
+
+		int shardsToOpen = numShards;
+		if (shardsToOpen > 1 && (SO_REUSEPORT == null || SET_OPTION == null)) {
+			System.err.println("SO_REUSEPORT is not available, receiving on a single socket.");
+			shardsToOpen = 1;
+		}
+
+		Shard[] shards = new Shard[shardsToOpen];
+
+		try {
+
+			for (int i = 0; i < shardsToOpen; i++) {
+
+				DatagramSocket socket = new DatagramSocket(null);
+
+				if (shardsToOpen > 1) {
+					try {
+						SET_OPTION.invoke(socket, SO_REUSEPORT, Boolean.TRUE);
+					} catch (Exception e) {
+						socket.close();
+						throw new SocketException("Unable to set SO_REUSEPORT: " + e.getCause());
+					}
+				}
+
+				socket.bind(new InetSocketAddress(portNumber));
+
+				shards[i] = new Shard(socket);
+				shards[i].setName("shard " + i);
+
+			}
+
+		} catch (SocketException se) {
+
+			System.err.println("Error: Unable to open a datagram socket:");
+			System.err.println(se.getMessage());
+
+			for (Shard shard : shards) {
+				if (shard != null) {
+					shard.socket.close();
+				}
+			}
+
+			return false;
+
+		}
+
+		for (Shard shard : shards) {
+			shard.start();
+		}
+
+		/* The shards only stop on an error. */
+		for (Shard shard : shards) {
+			try {
+				shard.join();
+			} catch (InterruptedException ie) {
+				break;
+			}
+		}
+
+		return false;
+
+	}
+
+	/* Runs a task on a virtual thread if we can, or an ordinary one otherwise. */
+	private static void startThread(Runnable task) {
+
+		if (START_VIRTUAL_THREAD != null) {
+			try {
+				START_VIRTUAL_THREAD.invoke(null, task);
+				return;
+			} catch (Exception e) {
+				/* Fall back to an ordinary thread. */
+			}
+		}
+
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	/* Returns Thread.startVirtualThread, or null on JVMs without it. */
+	private static Method findStartVirtualThread() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException nsme) {
+			return null;
+		}
+	}
+
+	/* Returns StandardSocketOptions.SO_REUSEPORT, or null on JVMs without it. */
+	private static Object findReusePortOption() {
+		try {
+			return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/* Returns DatagramSocket.setOption, or null on JVMs without it. */
+	private static Method findSetOption() {
+		try {
+			return DatagramSocket.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The main method for running the ReceiverServer class. There are three
+	 * compulsory arguments - the port number to receive on, the directory to
+	 * write files to, and the window size that the senders use - and an optional
+	 * fourth, the number of shards (one per core by default).
+	 *
+	 * @param args		The program arguments: the port number, the output
+	 * 					directory, the window size, and optionally the number
+	 * 					of shards.
+	 */
+	public static void main(String[] args) {
+
+		if (args.length != 3 && args.length != 4) {
+			System.err.println("Usage: java ReceiverServer port directory windowsize [shards]");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File directory = new File(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+
+			ReceiverServer server;
+			if (args.length == 4) {
+				server = new ReceiverServer(directory, portNumber, windowSize, Integer.parseInt(args[3]));
+			} else {
+				server = new ReceiverServer(directory, portNumber, windowSize);
+			}
+
+			System.out.println("Serving on port " + portNumber + ", writing files to " + directory.getPath());
+			server.serve();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number, window size or number of shards to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		System.err.println("The server has stopped.");
+
+	}
+
+}
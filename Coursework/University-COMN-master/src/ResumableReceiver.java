@@ -0,0 +1,332 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The ResumableReceiver class receives a file from a {@link ResumableSender},
+ * keeping a {@link RangeJournal} of the parts written so far beside the file. If
+ * either end dies part way through, running both again carries on from the
+ * journal, so only the parts still missing are sent.
+ * <p>
+ * The transfer goes:
+ * <ol>
+ * <li>The sender sends to our port with {@link Sender4} the eight byte length of
+ * the file and its eight byte modification time.
+ * <li>We load the journal for the file, if one was left for the same length and
+ * time, and send the ranges still missing to the sender's port + 2 with
+ * {@link Sender4} (with its acks coming back on our port + 3). It is the four
+ * byte number of ranges, then the eight byte start and end of each.
+ * <li>The sender sends the missing ranges to our port with {@link Sender4}, one
+ * after another.
+ * </ol>
+ * The journal is brought up to date at most every
+ * <a href="#FLUSH_INTERVAL">FLUSH_INTERVAL</a>, once the data written so far is on
+ * the disk, so at most that much is sent again after a crash. It is removed once
+ * the file is whole.
+ *
+ * @author s0840449
+ *
+ */
+public class ResumableReceiver {
+
+	/** How often (in ms) the journal is brought up to date. */
+	public static final long FLUSH_INTERVAL = 1000;
+
+	/** How long (in ms) either end waits on the other before giving up, so
+	 * that it can be run again. */
+	public static final int IDLE_TIMEOUT_LENGTH = 10000;
+
+	/* The port number we receive on. */
+	private int portNumber;
+
+	/* The file to write. */
+	private File dataFile;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* The number of bytes that were already held, reported once done. */
+	private long resumedBytes;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param portNumber	The port number we receive on, and that the sender's
+	 * 						ports are worked out from.
+	 * @param dataFile		The file to write the received file to.
+	 * @param windowSize	The window size.
+	 */
+	public ResumableReceiver(int portNumber, File dataFile, int windowSize) {
+		this.portNumber = portNumber;
+		this.dataFile = dataFile;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Waits for a sender, then receives the parts of the file not already held.
+	 *
+	 * @return		True if the file is whole, False otherwise, in which case
+	 * 				the journal is left for the next attempt.
+	 */
+	public boolean receive() {
+
+		Receiver4 offerReceiver = new Receiver4(null, portNumber, windowSize);
+		ByteArrayOutputStream offerBytes = new ByteArrayOutputStream();
+
+		if (!offerReceiver.receive(offerBytes)) {
+			System.err.println("Error: Unable to receive the offer.");
+			return false;
+		}
+
+		InetAddress senderAddress = offerReceiver.getSenderAddress();
+
+		if (offerBytes.size() != 16) {
+			System.err.println("Error: The offer is malformed.");
+			return false;
+		}
+
+		ByteBuffer offer = ByteBuffer.wrap(offerBytes.toByteArray());
+		long length = offer.getLong();
+		long modified = offer.getLong();
+
+		RangeJournal journal = RangeJournal.load(new File(dataFile.getPath() + ".journal"), length, modified);
+		List<long[]> missing = journal.getMissing();
+		resumedBytes = journal.getReceivedBytes();
+
+		try {
+
+			/* Size the file for the ranges to be written into, and note which file
+			 * it is being filled from before writing any of them. */
+			RandomAccessFile file = new RandomAccessFile(dataFile, "rw");
+			try {
+				file.setLength(length);
+			} finally {
+				file.close();
+			}
+			journal.save();
+
+			/* Start listening for the ranges before asking for them. */
+			final Receiver4 receiver = new Receiver4(null, portNumber, windowSize);
+			receiver.setIdleTimeout(IDLE_TIMEOUT_LENGTH);
+			final RangeWriter writer = new RangeWriter(missing, journal);
+			final boolean[] received = { false };
+
+			Thread receiveThread = new Thread() {
+				public void run() {
+					received[0] = receiver.receive(writer);
+				}
+			};
+			receiveThread.setDaemon(true);
+			receiveThread.start();
+
+			ByteBuffer reply = ByteBuffer.allocate(4 + 16 * missing.size());
+			reply.putInt(missing.size());
+			for (long[] range : missing) {
+				reply.putLong(range[0]).putLong(range[1]);
+			}
+
+			Sender4 sender = new Sender4(senderAddress.getHostAddress(), portNumber + 2, windowSize);
+			sender.setIdleTimeout(IDLE_TIMEOUT_LENGTH);
+			if (!sender.send(new ByteArrayInputStream(reply.array()), reply.capacity())) {
+				System.err.println("Error: Unable to send the missing ranges.");
+				return false;
+			}
+
+			try {
+				receiveThread.join();
+			} catch (InterruptedException ie) {
+				return false;
+			}
+
+			if (!received[0] || !writer.isComplete()) {
+				System.err.println("Error: The transfer was cut short. " + journal.getReceivedBytes() + " of " +
+						length + " bytes are held, and the rest will be sent when it is run again.");
+				return false;
+			}
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		}
+
+		journal.delete();
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of bytes that were already held from an earlier attempt.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getResumedBytes() {
+		return resumedBytes;
+	}
+
+	/**
+	 * The RangeWriter class takes in the missing ranges, in order, writing each
+	 * into its place in the file and noting it in the journal as it goes.
+	 */
+	private class RangeWriter extends OutputStream {
+
+		/* The ranges being sent, and the journal to note them in. */
+		private List<long[]> ranges;
+		private RangeJournal journal;
+
+		/* The file, the range being written and how far into the file it has got. */
+		private RandomAccessFile writer;
+		private int next;
+		private long position;
+
+		/* When the journal was last brought up to date. */
+		private long lastFlush;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param ranges		The ranges being sent, each as a start and an end.
+		 * @param journal		The journal to note them in.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public RangeWriter(List<long[]> ranges, RangeJournal journal) throws IOException {
+			this.ranges = ranges;
+			this.journal = journal;
+			this.writer = new RandomAccessFile(dataFile, "rw");
+			this.next = 0;
+			this.position = ranges.isEmpty() ? 0 : ranges.get(0)[0];
+			this.lastFlush = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns whether every range has been written.
+		 *
+		 * @return		True if every range has been written.
+		 */
+		public boolean isComplete() {
+			return next == ranges.size();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+
+			while (len > 0) {
+
+				if (next == ranges.size()) {
+					throw new IOException("More data was sent than asked for.");
+				}
+
+				long[] range = ranges.get(next);
+				if (position == range[0]) {
+					writer.seek(position);
+				}
+
+				int count = (int) Math.min(len, range[1] - position);
+				writer.write(data, off, count);
+				position += count;
+				off += count;
+				len -= count;
+
+				if (position == range[1]) {
+					flush();
+					next++;
+					if (next < ranges.size()) {
+						position = ranges.get(next)[0];
+					}
+				} else if (System.currentTimeMillis() - lastFlush > FLUSH_INTERVAL) {
+					flush();
+				}
+
+			}
+
+		}
+
+		/**
+		 * Brings the journal up to date with what has been written, once that is
+		 * on the disk.
+		 *
+		 * @throws IOException	If the file cannot be synced or the journal written.
+		 */
+		@Override
+		public void flush() throws IOException {
+
+			if (next < ranges.size()) {
+				writer.getFD().sync();
+				journal.add(ranges.get(next)[0], position);
+				journal.save();
+			}
+
+			lastFlush = System.currentTimeMillis();
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				writer.close();
+			}
+		}
+
+	}
+
+	/**
+	 * The main method for running the ResumableReceiver class. There are three
+	 * compulsory arguments - the port number, the file to write, and the window
+	 * size.
+	 *
+	 * @param args		The program arguments: the port number, the name of the
+	 * 					file and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean receiveSuccessful = false;
+		ResumableReceiver receiver = null;
+
+		if (args.length != 3) {
+			System.err.println("Usage: java ResumableReceiver port filename windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File dataFile = new File(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+
+			receiver = new ResumableReceiver(portNumber, dataFile, windowSize);
+			receiveSuccessful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		}
+
+		if (receiveSuccessful) {
+			System.out.println("Success! " + args[1] + " has been received: " + receiver.getResumedBytes() +
+					" bytes were already held from an earlier attempt.");
+		} else {
+			System.err.println("File was not received. Please run it again to carry on.");
+		}
+
+	}
+
+}
@@ -0,0 +1,279 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ResumableSender class sends a file to a {@link ResumableReceiver}, sending
+ * only the ranges the receiver does not already hold from an earlier attempt. See
+ * {@link ResumableReceiver} for the protocol.
+ *
+ * @author s0840449
+ *
+ */
+public class ResumableSender {
+
+	/* The receiver's host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The file to send. */
+	private File dataFile;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* Counts reported once done. */
+	private long sentBytes;
+	private long resumedBytes;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The host the receiver is on.
+	 * @param portNumber	The port number the receiver receives on, and that our
+	 * 						ports are worked out from.
+	 * @param dataFile		The file to send.
+	 * @param windowSize	The window size.
+	 */
+	public ResumableSender(String host, int portNumber, File dataFile, int windowSize) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		this.host = host;
+		this.portNumber = portNumber;
+		this.dataFile = dataFile;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Offers the receiver the file, then sends it the ranges it is missing.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send() {
+
+		long length = dataFile.length();
+		byte[] offer = ByteBuffer.allocate(16).putLong(length).putLong(dataFile.lastModified()).array();
+
+		Sender4 offerSender = new Sender4(host, portNumber, windowSize);
+		if (!offerSender.send(new ByteArrayInputStream(offer), offer.length)) {
+			System.err.println("Error: Unable to send the offer.");
+			return false;
+		}
+
+		Receiver4 receiver = new Receiver4(null, portNumber + 2, windowSize);
+		receiver.setIdleTimeout(ResumableReceiver.IDLE_TIMEOUT_LENGTH);
+		ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
+
+		if (!receiver.receive(replyBytes)) {
+			System.err.println("Error: Unable to receive the missing ranges.");
+			return false;
+		}
+
+		List<long[]> missing = new ArrayList<long[]>();
+		long missingBytes = 0;
+
+		try {
+
+			ByteBuffer reply = ByteBuffer.wrap(replyBytes.toByteArray());
+			if (reply.remaining() < 4) {
+				throw new IOException("The missing ranges are malformed.");
+			}
+
+			int count = reply.getInt();
+			if (count < 0 || reply.remaining() != 16L * count) {
+				throw new IOException("The missing ranges are malformed.");
+			}
+
+			long position = 0;
+			for (int i = 0; i < count; i++) {
+				long start = reply.getLong();
+				long end = reply.getLong();
+				if (start < position || end <= start || end > length) {
+					throw new IOException("The missing ranges are malformed.");
+				}
+				missing.add(new long[] { start, end });
+				missingBytes += end - start;
+				position = end;
+			}
+
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		RangeReader ranges;
+		try {
+			ranges = new RangeReader(missing);
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		Sender4 sender = new Sender4(host, portNumber, windowSize);
+		sender.setIdleTimeout(ResumableReceiver.IDLE_TIMEOUT_LENGTH);
+		if (!sender.send(ranges, missingBytes)) {
+			return false;
+		}
+
+		sentBytes = missingBytes;
+		resumedBytes = length - missingBytes;
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of bytes of the file sent.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getSentBytes() {
+		return sentBytes;
+	}
+
+	/**
+	 * Returns the number of bytes of the file not sent, as the receiver
+	 * already held them from an earlier attempt.
+	 *
+	 * @return		The number of bytes.
+	 */
+	public long getResumedBytes() {
+		return resumedBytes;
+	}
+
+	/**
+	 * The RangeReader class reads the ranges asked for out of the file, one
+	 * after another.
+	 */
+	private class RangeReader extends InputStream {
+
+		/* The ranges to read, each as a start and an end. */
+		private List<long[]> ranges;
+
+		/* The file, the range being read and how much of it is left. */
+		private RandomAccessFile reader;
+		private int next;
+		private long left;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param ranges		The ranges to read.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public RangeReader(List<long[]> ranges) throws IOException {
+			this.ranges = ranges;
+			this.reader = new RandomAccessFile(dataFile, "r");
+			this.next = 0;
+			this.left = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			byte[] single = new byte[1];
+			if (read(single, 0, 1) < 0) {
+				return -1;
+			}
+
+			return 0xFF & single[0];
+
+		}
+
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (left == 0) {
+
+				if (next == ranges.size()) {
+					return -1;
+				}
+
+				reader.seek(ranges.get(next)[0]);
+				left = ranges.get(next)[1] - ranges.get(next)[0];
+				next++;
+
+			}
+
+			int read = reader.read(data, off, (int) Math.min(len, left));
+			if (read < 0) {
+				throw new IOException("The file changed while being sent.");
+			}
+			left -= read;
+
+			return read;
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * The main method for running the ResumableSender class. There are four
+	 * compulsory arguments - the receiver's host name, the port number, the file
+	 * to send, and the window size.
+	 *
+	 * @param args		The program arguments: the host name, the port number,
+	 * 					the name of the file and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean sendSuccessful = false;
+		ResumableSender sender = null;
+
+		if (args.length != 4) {
+			System.err.println("Usage: java ResumableSender host_name port filename windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			File dataFile = new File(args[2]);
+			int windowSize = Integer.parseInt(args[3]);
+
+			sender = new ResumableSender(host, portNumber, dataFile, windowSize);
+			sendSuccessful = sender.send();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! File has been sent: " + sender.getSentBytes() +
+					" bytes were sent and " + sender.getResumedBytes() + " bytes were already held.");
+		} else {
+			System.err.println("File was not sent. Please run it again to carry on.");
+		}
+
+	}
+
+}
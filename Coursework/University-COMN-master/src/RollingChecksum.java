@@ -0,0 +1,74 @@
+/* Stephen McGruer 0840449 */
+
+/**
+ * A weak checksum of a block of bytes that can be rolled along a byte at a time,
+ * as used by rsync. It is two 16 bit sums: <tt>a</tt>, the sum of the bytes, and
+ * <tt>b</tt>, the sum of the running values of <tt>a</tt>. Moving the block on by
+ * one byte takes a couple of additions, rather than summing the whole block again,
+ * so it can be checked at every offset of a file. Matches must be confirmed with a
+ * strong hash, as different blocks often share a weak checksum.
+ *
+ * @author s0840449
+ */
+public class RollingChecksum {
+
+	/* The length of the block. */
+	private int blockLength;
+
+	/* The two sums, kept to 16 bits. */
+	private int a;
+	private int b;
+
+	/**
+	 * Default constructor.
+	 */
+	public RollingChecksum() {
+		this.blockLength = 0;
+		this.a = 0;
+		this.b = 0;
+	}
+
+	/**
+	 * Sets the checksum to that of a block.
+	 *
+	 * @param data		The data holding the block.
+	 * @param off		The start of the block.
+	 * @param len		The length of the block.
+	 */
+	public void reset(byte[] data, int off, int len) {
+
+		blockLength = len;
+		a = 0;
+		b = 0;
+
+		for (int i = off; i < off + len; i++) {
+			a += 0xFF & data[i];
+			b += a;
+		}
+
+		a &= 0xFFFF;
+		b &= 0xFFFF;
+
+	}
+
+	/**
+	 * Moves the block on by one byte.
+	 *
+	 * @param out		The first byte of the block, which leaves it.
+	 * @param in		The byte after the block, which joins it.
+	 */
+	public void roll(byte out, byte in) {
+		a = (a - (0xFF & out) + (0xFF & in)) & 0xFFFF;
+		b = (b - blockLength * (0xFF & out) + a) & 0xFFFF;
+	}
+
+	/**
+	 * Returns the checksum of the current block.
+	 *
+	 * @return		The checksum.
+	 */
+	public int getValue() {
+		return (b << 16) | a;
+	}
+
+}
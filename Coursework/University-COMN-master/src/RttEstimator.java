@@ -0,0 +1,85 @@
+/* Stephen McGruer 0840449 */
+
+/**
+ * Keeps a smoothed estimate of the round trip time to the receiver, in the
+ * same way as TCP (an exponentially weighted moving average of samples, with
+ * a gain of 1/8). Samples should only be taken from packets that were sent
+ * exactly once, as an ack for a re-sent packet could be for either sending.
+ * <p>
+ * The senders use the estimate to send a tail-loss probe - a re-send of the
+ * last unacked packet after about two round trips, rather than after a full
+ * retransmission timeout.
+ *
+ * @author s0840449
+ */
+public class RttEstimator {
+
+	/* The smoothed round trip time in milliseconds, or -1 if there
+	 * have not been any samples yet. */
+	private double smoothedRtt;
+
+	/**
+	 * Default constructor.
+	 */
+	public RttEstimator() {
+		this.smoothedRtt = -1;
+	}
+
+	/**
+	 * Adds a round trip time sample to the estimate.
+	 *
+	 * @param rtt		The time between sending a packet and receiving
+	 * 					its ack, in milliseconds.
+	 */
+	public synchronized void addSample(long rtt) {
+
+		if (smoothedRtt < 0) {
+			smoothedRtt = rtt;
+		} else {
+			smoothedRtt += (rtt - smoothedRtt) / 8;
+		}
+
+	}
+
+	/**
+	 * Returns whether any samples have been added yet.
+	 *
+	 * @return		True if there is an estimate, false otherwise.
+	 */
+	public synchronized boolean hasSamples() {
+		return smoothedRtt >= 0;
+	}
+
+	/**
+	 * Returns the smoothed round trip time.
+	 *
+	 * @return		The round trip time estimate in milliseconds, or
+	 * 				-1 if there have not been any samples yet.
+	 */
+	public synchronized double getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * Returns the time to wait before sending a tail-loss probe: two round
+	 * trips, but never less than the given minimum or more than the given
+	 * retransmission timeout. With no samples the retransmission timeout
+	 * is returned, so no probe goes out before the normal re-send.
+	 *
+	 * @param minimum				The shortest probe timeout, in ms.
+	 * @param retransmitTimeout		The normal retransmission timeout, in ms.
+	 *
+	 * @return						The probe timeout in milliseconds.
+	 */
+	public synchronized long getProbeTimeout(long minimum, long retransmitTimeout) {
+
+		if (smoothedRtt < 0) {
+			return retransmitTimeout;
+		}
+
+		long probeTimeout = Math.max(minimum, (long) Math.ceil(2 * smoothedRtt));
+		return Math.min(probeTimeout, retransmitTimeout);
+
+	}
+
+}
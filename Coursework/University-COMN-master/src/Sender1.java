@@ -4,10 +4,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 /**
@@ -21,6 +23,18 @@ import java.net.UnknownHostException;
  * <li>The next byte is the EOF byte. A value of anything but 0 signifies an EOF packet.
  * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 3) bytes are filled with data.
  * </ul>
+ * <p>
+ * In repair mode the first blast of the file is followed by repair rounds. Each
+ * round ends with a round-end packet, to which the receiver replies with a bitmap
+ * of the packets it is still missing. Only those packets are blasted again, and
+ * rounds continue until the receiver reports that nothing is missing:
+ * <ul>
+ * <li>The round-end packet is the total number of packets (2 bytes), the EOF byte
+ * set to <a href="#ROUND_END">ROUND_END</a>, and the round number (1 byte).
+ * <li>The missing packet report, sent to the outgoing port + 1, is the round number
+ * (1 byte) followed by one bit per packet, lowest packet number first in the lowest
+ * bit, set if that packet is missing.
+ * </ul>
  * 
  * @author s0840449
  *
@@ -31,10 +45,21 @@ public class Sender1 {
 	 * data will be transferred. */
 	public static final int PACKET_SIZE = 1024;
 	
+	/** The EOF byte value that marks a repair mode round-end packet. */
+	public static final byte ROUND_END = 2;
+	
 	/* Using a constant value for DEBUG_MODE allows the compiler to
 	 * optimise away the 'if' statements that rely on it and thus remove
 	 * all performance hits when debugging is off. */
 	private static final boolean DEBUG_MODE = true;
+	
+	/* The amount of time (in ms) we wait for a missing packet report
+	 * before sending the round-end packet again. */
+	private static final int REPORT_TIMEOUT_LENGTH = 500;
+	
+	/* The number of unanswered round-end packets after which we give up
+	 * on the receiver. */
+	private static final int MAX_REPORT_ATTEMPTS = 20;
 
 	/* The receiving host name. */
 	private String host;
@@ -45,8 +70,14 @@ public class Sender1 {
 	/* Used to send packets. */
 	private DatagramSocket senderSocket;
 	
+	/* Used to hear missing packet reports in repair mode. */
+	private DatagramSocket reportSocket;
+	
 	/* Used to read data from the input file. */
 	private FileInputStream reader;
+	
+	/* Whether lost packets are repaired after the first blast. */
+	private boolean repairMode;
 
 	/**
 	 * Default constructor.
@@ -55,8 +86,21 @@ public class Sender1 {
 	 * @param portNumber	The port number on the receiving host.
 	 */
 	public Sender1(String host, int portNumber) {
+		this(host, portNumber, false);
+	}
+	
+	/**
+	 * Constructor allowing repair mode to be turned on.
+	 * 
+	 * @param host			The receiving host.
+	 * @param portNumber	The port number on the receiving host.
+	 * @param repairMode	Whether to follow the first blast with repair rounds
+	 * 						until the receiver has every packet.
+	 */
+	public Sender1(String host, int portNumber, boolean repairMode) {
 		this.host = host;
 		this.portNumber = portNumber;
+		this.repairMode = repairMode;
 	}
 	
 	/**
@@ -65,9 +109,11 @@ public class Sender1 {
 	 * @param dataFile		The file to get the data from.
 	 * 
 	 * @return	True if the sending succeeded, False if an error occurred.
-	 * 			A return value of True does <b>not</b> guarantee that the 
-	 * 			data made it successfully to the receiver (if there even 
-	 * 			is one), only that the data was sent without error.
+	 * 			Outside of repair mode a return value of True does <b>not</b>
+	 * 			guarantee that the data made it successfully to the receiver
+	 * 			(if there even is one), only that the data was sent without
+	 * 			error. In repair mode it means the receiver reported having
+	 * 			every packet.
 	 */
 	public boolean send(File dataFile) throws IllegalArgumentException {
 		
@@ -159,6 +205,11 @@ public class Sender1 {
 				System.out.println("DEBUG: " + numSentFileBytes + " bytes were sent.");
 			}
 			
+			if (repairMode && !repair(dataFile, ipAddress, packetNum)) {
+				System.err.println("Error: Receiver stopped answering round-end packets.");
+				return false;
+			}
+			
 		} catch (SocketException se) {
 			
 			System.err.println("Error: Unable to open a datagram socket:");
@@ -178,17 +229,171 @@ public class Sender1 {
 			
 		} finally {
 			senderSocket.close();
+			if (reportSocket != null) {
+				reportSocket.close();
+			}
 		}
 		
 		return true;
 	}
+	
+	/**
+	 * Runs the repair rounds that follow the first blast of a file. At the end
+	 * of each round the receiver is asked which packets it is missing, and
+	 * those packets are re-read from the file and blasted again.
+	 * 
+	 * @param dataFile		The file being sent.
+	 * @param ipAddress		The address of the receiver.
+	 * @param numPackets	The number of packets the file was split into.
+	 * 
+	 * @return				True once the receiver reports that it has every
+	 * 						packet, false if it stops answering.
+	 * 
+	 * @throws IOException	If the file cannot be re-read or a packet sent.
+	 */
+	private boolean repair(File dataFile, InetAddress ipAddress, int numPackets) throws IOException {
+		
+		RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+		reportSocket = new DatagramSocket(portNumber + 1);
+		
+		try {
+			
+			for (int round = 0; ; round++) {
+				
+				byte[] report = requestMissingReport(ipAddress, numPackets, (byte) round);
+				
+				if (report == null) {
+					return false;
+				}
+				
+				int numResent = 0;
+				
+				/* The bitmap starts after the round number byte. */
+				for (int packetNum = 0; packetNum < numPackets; packetNum++) {
+					
+					if ((report[1 + (packetNum / 8)] & (1 << (packetNum % 8))) != 0) {
+						sendFromFile(file, ipAddress, packetNum, numPackets);
+						numResent++;
+					}
+					
+				}
+				
+				if (DEBUG_MODE) {
+					System.out.println("DEBUG: Repair round " + round + " re-sent " + numResent + " packets.");
+				}
+				
+				if (numResent == 0) {
+					return true;
+				}
+				
+			}
+			
+		} finally {
+			file.close();
+		}
+		
+	}
+	
+	/**
+	 * Sends a round-end packet and waits for the matching missing packet
+	 * report, re-sending the round-end packet if the report does not arrive
+	 * in time.
+	 * 
+	 * @param ipAddress		The address of the receiver.
+	 * @param numPackets	The number of packets the file was split into.
+	 * @param round			The current round number.
+	 * 
+	 * @return				The report (the round number followed by the
+	 * 						missing packet bitmap), or null if none came.
+	 * 
+	 * @throws IOException	If the round-end packet cannot be sent.
+	 */
+	private byte[] requestMissingReport(InetAddress ipAddress, int numPackets, byte round) throws IOException {
+		
+		byte[] roundEndData = new byte[4];
+		roundEndData[0] = (byte) (numPackets >>> 8);
+		roundEndData[1] = (byte) (numPackets);
+		roundEndData[2] = ROUND_END;
+		roundEndData[3] = round;
+		
+		DatagramPacket roundEndPacket = new DatagramPacket(roundEndData, roundEndData.length,
+															ipAddress, portNumber);
+		
+		byte[] reportBuffer = new byte[1 + ((numPackets + 7) / 8)];
+		
+		reportSocket.setSoTimeout(REPORT_TIMEOUT_LENGTH);
+		
+		for (int attempt = 0; attempt < MAX_REPORT_ATTEMPTS; attempt++) {
+			
+			senderSocket.send(roundEndPacket);
+			
+			try {
+				
+				/* Reports from earlier rounds may still be arriving, so skip
+				 * anything that isn't for this round. */
+				while (true) {
+					
+					DatagramPacket reportPacket = new DatagramPacket(reportBuffer, reportBuffer.length);
+					reportSocket.receive(reportPacket);
+					
+					if (reportPacket.getLength() == reportBuffer.length && reportBuffer[0] == round) {
+						return reportBuffer;
+					}
+					
+				}
+				
+			} catch (SocketTimeoutException ste) {
+				
+				/* Timeouts are not errors! */
+				if (DEBUG_MODE) {
+					System.out.println("DEBUG: Timeout waiting for the round " + round + " report.");
+				}
+				
+			}
+			
+		}
+		
+		return null;
+		
+	}
+	
+	/**
+	 * Re-reads a single packet's worth of data from the file and sends it.
+	 * 
+	 * @param file			The file being sent.
+	 * @param ipAddress		The address of the receiver.
+	 * @param packetNum		The number of the packet to send.
+	 * @param numPackets	The number of packets the file was split into.
+	 * 
+	 * @throws IOException	If the file cannot be read or the packet sent.
+	 */
+	private void sendFromFile(RandomAccessFile file, InetAddress ipAddress,
+			int packetNum, int numPackets) throws IOException {
+		
+		long offset = (long) packetNum * (PACKET_SIZE - 3);
+		int datalen = (int) Math.min(PACKET_SIZE - 3, file.length() - offset);
+		
+		byte sendData[] = new byte[datalen + 3];
+		sendData[0] = (byte) (packetNum >>> 8);
+		sendData[1] = (byte) (packetNum);
+		sendData[2] = (byte) ((packetNum == numPackets - 1) ? 1 : 0);
+		
+		file.seek(offset);
+		file.readFully(sendData, 3, datalen);
+		
+		DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length,
+														ipAddress, portNumber);
+		senderSocket.send(sendPacket);
+		
+	}
 
 	/**
-	 * The main method for running the Sender1 class. There are three arguments -
-	 * the host name, port number and name of the file to send.
+	 * The main method for running the Sender1 class. There are three compulsory
+	 * arguments - the host name, port number and name of the file to send - and
+	 * an optional fourth, the word "repair" to turn on repair mode.
 	 * 
-	 * @param args	The program arguments: the host name, the port number, and the 
-	 * 				name of the file that is to be sent.
+	 * @param args	The program arguments: the host name, the port number, the 
+	 * 				name of the file that is to be sent, and optionally "repair".
 	 */
 	public static void main(String[] args) {
 
@@ -197,9 +402,9 @@ public class Sender1 {
 		String filePath;
 		boolean successful = false;
 
-		/* All three arguments are compulsory. */
-		if (args.length != 3) {
-			System.err.println("Usage: java Sender1 host_name port filename");
+		/* The first three arguments are compulsory. */
+		if (args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].equals("repair"))) {
+			System.err.println("Usage: java Sender1 host_name port filename [repair]");
 			System.exit(-1);
 		}
 		
@@ -211,7 +416,7 @@ public class Sender1 {
 			filePath = args[2]; 
 			
 			/* Attempt to send the file. */
-			Sender1 sender = new Sender1(host, portNumber);
+			Sender1 sender = new Sender1(host, portNumber, args.length == 4);
 			successful = sender.send(new File(filePath));
 			
 		} catch (NumberFormatException nfe) {
@@ -10,6 +10,9 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * The Sender2 class represents a transmission of a number of bytes via
@@ -17,14 +20,31 @@ import java.net.UnknownHostException;
  * sent an acknowledgement packet (ack) must be received before the next
  * packet is sent. Packet numbers are either 0 or 1, alternating.
  * <p>
+ * Optionally, several independent stop-and-wait channels can share the one
+ * socket. Packets are dealt out to the channels in turn (packet n goes on
+ * channel n % channels), each channel runs its own alternating packet number,
+ * and the receiver puts the packets back in order. A channel is only given a new
+ * packet once every earlier packet has been acked, so there are never more than
+ * one packet per channel in flight.
+ * <p>
  * The outgoing packet protocol is as follows:
  * <ul>
- * <li>The first two bytes are the packet number (giving a value range of 0 to 65536).
+ * <li>The first byte is the channel number, always 0 with a single channel.
+ * <li>The second byte is the packet number on that channel, 0 or 1.
  * <li>The next byte is the EOF byte. A value of anything but 0 signifies an EOF packet.
- * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 3) bytes are filled with data.
+ * <li>If checksums are on (see {@link #setChecksummed(boolean)}), the next four bytes
+ * are the packet's checksum (see {@link PacketChecksum}).
+ * <li>The remaining bytes, up to <a href="#PACKET_SIZE">PACKET_SIZE</a>, are filled with data.
  * </ul>
  * <p>
- * The ack packet is merely a 1 or 0 to note the packet number.
+ * The ack packet is a 1 or 0 to note the packet number, followed by the channel
+ * number. A 1 byte ack is taken to be for channel 0.
+ * <p>
+ * Once every packet has been acked the transfer is closed by sending a FIN packet
+ * (a header only packet with the EOF byte set to <a href="#FIN">FIN</a>) until the
+ * receiver answers with a FIN-ACK (an ack packet with a third byte of FIN). The last
+ * packet of the file is re-sent as a tail-loss probe after about two round trips,
+ * rather than after the full timeout.
  * <p>
  * Note that the ack-receiving port is hard-coded to be the outgoing port + 1, as the
  * coursework does not specify any way of setting when calling the program.
@@ -38,6 +58,9 @@ public class Sender2 {
 	 * data will be transferred. */
 	public static final int PACKET_SIZE = 1024;
 	
+	/** The EOF byte value that marks a FIN packet, and the third byte of a FIN-ACK. */
+	public static final byte FIN = 2;
+	
 	/* Using a constant value for DEBUG_MODE allows the compiler to
 	 * optimise away the if statements that rely on it and thus remove
 	 * all performance hits when debugging is off. */
@@ -47,6 +70,12 @@ public class Sender2 {
 	 * sending of a packet. */
 	private static final int TIMEOUT_LENGTH = 90;
 	
+	/* The shortest time (in ms) we wait before sending a tail-loss probe. */
+	private static final long MIN_PROBE_TIMEOUT = 10;
+	
+	/* The number of times we send a FIN packet before giving up on a FIN-ACK. */
+	private static final int MAX_FIN_ATTEMPTS = 10;
+	
 	/* The receiving host name. */
 	private String host;
 	
@@ -63,23 +92,63 @@ public class Sender2 {
 	/* Used to track the number of timeouts for coursework question. */
 	private int retransmissions;
 	
+	/* The number of stop-and-wait channels sharing the socket. */
+	private int numChannels;
+	
+	/* Estimates the round trip time, for tail-loss probes. */
+	private RttEstimator rttEstimator;
+	
+	/* The size of the checksum field in data packets, 0 if they have none. */
+	private int checksumSize;
+	
 	/**
-	 * Default constructor.
+	 * Default constructor. Uses a single channel.
 	 * 
 	 * @param host			The receiving host.
 	 * @param portNumber	The port number on the receiving host.
 	 */
 	public Sender2(String host, int portNumber) {
+		this(host, portNumber, 1);
+	}
+	
+	/**
+	 * Constructor for several stop-and-wait channels.
+	 * 
+	 * @param host			The receiving host.
+	 * @param portNumber	The port number on the receiving host.
+	 * @param numChannels	The number of channels, from 1 to 256. The
+	 * 						receiver must use the same number.
+	 */
+	public Sender2(String host, int portNumber, int numChannels) {
+		
+		if (numChannels < 1 || numChannels > 256) {
+			throw new IllegalArgumentException("Number of channels must be between 1 and 256.");
+		}
+		
 		this.host = host;
 		this.portNumber = portNumber;
+		this.numChannels = numChannels;
 		
 		this.retransmissions = 0;
+		this.rttEstimator = new RttEstimator();
+		this.checksumSize = 0;
+	}
+	
+	/**
+	 * Sets whether data packets carry a checksum (see {@link PacketChecksum}), so
+	 * that the receiver can drop corrupted packets and have them re-sent. The
+	 * receiver must be set to check them (see {@link Receiver2#setChecksummed(boolean)}).
+	 * 
+	 * @param checksummed	True to add a checksum to data packets.
+	 */
+	public void setChecksummed(boolean checksummed) {
+		this.checksumSize = checksummed ? PacketChecksum.CHECKSUM_SIZE : 0;
 	}
 	
 	/**
 	 * Attempt to send the data contained in a file. Uses the stop-and-wait
 	 * protocol, where after each packet is sent we wait for an ack to arrive
-	 * back for that packet before we send the next packet.
+	 * back for that packet before we send the next packet on its channel.
 	 * 
 	 * @param dataFile		The file to get the data from.
 	 * 
@@ -89,6 +158,25 @@ public class Sender2 {
 	 * 			ack was received for every packet sent.
 	 */
 	public boolean send(File dataFile) throws IllegalArgumentException {
+		return send(dataFile, 0, dataFile.length());
+	}
+	
+	/**
+	 * Attempt to send part of the data contained in a file, in the same way
+	 * as {@link #send(File)}. The receiver writes the data at the same offset
+	 * (see {@link Receiver2#receive(long)}), so a file can be sent in several parts.
+	 * 
+	 * @param dataFile		The file to get the data from.
+	 * @param offset		The position in the file of the first byte to send.
+	 * @param length		The number of bytes to send.
+	 * 
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send(File dataFile, long offset, long length) throws IllegalArgumentException {
+		
+		if (offset < 0 || length < 0 || offset + length > dataFile.length()) {
+			throw new IllegalArgumentException("Part of input file to send is out of range.");
+		}
 		
 		/* Open a buffered reader around the file, checking it is okay while
 		 * doing so. Note that I do no locking of the file, so writing to it
@@ -108,89 +196,149 @@ public class Sender2 {
 
 			/* Debug-mode variables. */
 			int numSentFileBytes = 0;
-			int dataFileLength = reader.available();
+			long dataFileLength = length;
+			
+			/* Skip to the part of the file being sent, and track how much of
+			 * it is left to read. */
+			reader.skip(offset);
+			long bytesLeft = length;
 			
 			senderSocket = new DatagramSocket();
 			ackSocket = new DatagramSocket(portNumber + 1);
 			
 			InetAddress ipAddress = InetAddress.getByName(host);
 		
-			/* Since the packet number cycles between 0 and 1, we only need
-			 * a byte of space. */
-			byte packetNum = 0;
+			/* The packets currently in flight, in packet order. There is at most
+			 * one per channel, so with a single channel this is plain stop-and-wait. */
+			List<WindowPacket> channelPackets = new ArrayList<WindowPacket>();
 			
-			boolean ackRecieved = false;
+			/* Packets are numbered in file order. Packet n goes on channel
+			 * n % numChannels, where its alternating number is (n / numChannels) % 2. */
+			int packetNum = 0;
 			
-			/* Tracks whether we are done with the transfer or not (i.e. if we've
-			 * sent the final packet. */
-			boolean finishedTransfer = false;
+			/* Tracks whether we have read the final packet from the file. */
+			boolean EOF = false;
+			
+			/* Where the data starts in a data packet. */
+			int dataStart = 3 + checksumSize;
 			
 			/* Used to monitor throughput for the coursework question. */
 			long before = System.currentTimeMillis();
 			
-			while (!finishedTransfer) {
+			while (!EOF || channelPackets.size() > 0) {
 				
-				int availableData = reader.available();
-
-				/* If in the final packet, there may be less than 
-				 * PACKET_SIZE - 3 bytes left to send. */
-				int datalen = (availableData >= (PACKET_SIZE - 3)) 
-								? PACKET_SIZE - 3 
-								: availableData;
+				/* Free the channels of acked packets. A channel is only reused once all
+				 * earlier packets are acked, so the receiver never has more than one
+				 * packet per channel waiting to be written. */
+				while (channelPackets.size() > 0 && channelPackets.get(0).isAcked()) {
+					
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Recieved ack for packet " + channelPackets.get(0).getPacketNum() + ".");
+					}
+					
+					channelPackets.remove(0);
+					
+				}
 				
-				/* Check if this is the final packet. */			
-				finishedTransfer = availableData <= (PACKET_SIZE - 3);
+				/* Give any free channels a new packet. */
+				while (channelPackets.size() < numChannels && !EOF) {
 				
-				/* Holds the packet data. */
-				byte sendData[] = new byte[datalen + 3];
-												
-				/* Packet number. */
-				sendData[0] = 0;
-				sendData[1] = packetNum;
-							
-				/* EOF byte */
-				sendData[2] = (byte) (finishedTransfer ? 1 : 0);
+					long availableData = bytesLeft;
+	
+					/* If in the final packet, there may be less than 
+					 * PACKET_SIZE - dataStart bytes left to send. */
+					int datalen = (availableData >= (PACKET_SIZE - dataStart)) 
+									? PACKET_SIZE - dataStart 
+									: (int) availableData;
+					
+					/* Check if this is the final packet. */			
+					EOF = availableData <= (PACKET_SIZE - dataStart);
+					
+					/* Holds the packet data. */
+					byte sendData[] = new byte[datalen + dataStart];
+													
+					/* Channel and packet number. */
+					sendData[0] = (byte) (packetNum % numChannels);
+					sendData[1] = (byte) ((packetNum / numChannels) % 2);
 								
-				/* The data bytes. */
-				reader.read(sendData, 3, datalen);
-				
-				if (DEBUG_MODE) {
-					numSentFileBytes += datalen;
+					/* EOF byte */
+					sendData[2] = (byte) (EOF ? 1 : 0);
+									
+					/* The data bytes. */
+					reader.read(sendData, dataStart, datalen);
+					bytesLeft -= datalen;
+					
+					/* The checksum, which follows the EOF byte. */
+					if (checksumSize > 0) {
+						PacketChecksum.sign(sendData, 3, sendData.length);
+					}
+					
+					if (DEBUG_MODE) {
+						numSentFileBytes += datalen;
+					}
+	
+					DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length,
+																	ipAddress, portNumber);
+					
+					channelPackets.add(new WindowPacket(sendPacket, false, packetNum));
+					
+					packetNum++;
+					
 				}
-
-				DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length,
-																ipAddress, portNumber);
 				
-				/* Reduce by one because we just increment it every time we even send a 
-				 * packet, not just when we re-transmit. */
-				retransmissions--;
+				/* Send any packets whose ack has timed out (new packets have never been
+				 * sent, so always count as timed out), and work out how long we can wait
+				 * for acks before the next timeout is due. The last packet of the file
+				 * is first re-sent as a tail-loss probe, after about two round trips. */
+				boolean waitingForAcks = false;
+				long waitTime = TIMEOUT_LENGTH;
+				WindowPacket tailPacket = (EOF && channelPackets.size() > 0)
+											? channelPackets.get(channelPackets.size() - 1)
+											: null;
+				long probeTimeout = rttEstimator.getProbeTimeout(MIN_PROBE_TIMEOUT, TIMEOUT_LENGTH);
 				
-				/* Keep sending until the correct ack is received. */
-				while (!ackRecieved) {
+				for (WindowPacket packet : channelPackets) {
 					
-					retransmissions++;
+					if (packet.isAcked()) {
+						continue;
+					}
 					
-					senderSocket.send(sendPacket);
+					long now = System.currentTimeMillis();
+					long timeout = (packet == tailPacket && packet.getTimesSent() == 1) 
+									? probeTimeout 
+									: TIMEOUT_LENGTH;
 					
-					if (DEBUG_MODE) {
-						System.out.println("DEBUG: Sent packet " + packetNum + " with size "
-								+ sendPacket.getLength() + " and data size " + (sendPacket.getLength() - 3));
+					if (now >= packet.getTimeLastSent() + timeout) {
+						
+						if (packet.getTimeLastSent() != 0) {
+							retransmissions++;
+						}
+						
+						senderSocket.send(packet.getPacket());
+						packet.setTimeLastSent(now);
+						
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Sent packet " + packet.getPacketNum() + " with size "
+									+ packet.getPacket().getLength() + " and data size " + (packet.getPacket().getLength() - 3));
+						}
+						
 					}
 					
-					ackRecieved = waitForAck(packetNum, ackSocket);
+					waitingForAcks = true;
+					waitTime = Math.min(waitTime, packet.getTimeLastSent() + timeout - now);
 					
 				}
 				
-				if (DEBUG_MODE) {
-					System.out.println("DEBUG: Recieved ack for packet " + packetNum + ".");
+				if (waitingForAcks) {
+					waitForAck(channelPackets, (int) Math.max(1, waitTime));
 				}
-							
-				ackRecieved = false;
-				
-				/* Cycle between packet numbers 0 and 1. */
-				packetNum = (byte) ((packetNum + 1) % 2);
 				
 			}
+			
+			/* Everything has been acked, so let the receiver know it can stop. */
+			if (!close(ipAddress) && DEBUG_MODE) {
+				System.out.println("DEBUG: No FIN-ACK received, the receiver will time out instead.");
+			}
 
 			/* Used to monitor throughput for the coursework question. */
 			long now = System.currentTimeMillis();
@@ -200,6 +348,8 @@ public class Sender2 {
 			double kBSent = dataFileLength / 1024.0;
 			System.out.println("Throughput: " + (kBSent / timeTaken) + " kB/s");
 			
+			reader.close();
+			
 			if (DEBUG_MODE) {
 				System.out.println("DEBUG: Finished sending packets.");
 				System.out.println("DEBUG: " + dataFileLength + " bytes should have been sent.");
@@ -235,34 +385,56 @@ public class Sender2 {
 	}
 
 	/**
-	 * Waits for an ack packet of the given packet number on a socket,
-	 * timing out after a set amount of time.
+	 * Waits for an ack packet on the ack socket, timing out after a set amount
+	 * of time, and marks the packet it is for as acked.
 	 * 
-	 * @param packetNum			The packet number we want an ack for.
-	 * @param ackSocket			The socket to listen on for packets.
-	 * @return					True if a correct ack was received, false
-	 * 							if we either timed-out or the received ack
-	 * 							had the incorrect packet number.
+	 * @param channelPackets	The packets currently in flight.
+	 * @param timeout			The amount of time (in ms) to wait for an ack.
+	 * @return					True if an ack was received for a packet in
+	 * 							flight, false if we either timed-out or the
+	 * 							received ack was a duplicate.
 	 */
-	private boolean waitForAck(byte packetNum, DatagramSocket ackSocket) {
+	private boolean waitForAck(List<WindowPacket> channelPackets, int timeout) {
 		
 		try {
 
-			byte[] ackBuffer = new byte[1];
+			byte[] ackBuffer = new byte[2];
 			DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
 
 			/* Retransmission timeout. */
-			ackSocket.setSoTimeout(TIMEOUT_LENGTH);	
+			ackSocket.setSoTimeout(timeout);	
 			
 			ackSocket.receive(ackPacket);
 			
 			byte[] ackData = ackPacket.getData();
 			
+			/* Single channel receivers send just the packet number. */
+			int channel = (ackPacket.getLength() > 1) ? (0x000000FF & ackData[1]) : 0;
+			
 			if (DEBUG_MODE) {
-				System.out.println("DEBUG: Recieved ack for packet num " + ackData[0]);
+				System.out.println("DEBUG: Recieved ack for packet num " + ackData[0] + " on channel " + channel);
+			}
+			
+			/* There is only one packet in flight per channel, and the packet number
+			 * tells it apart from the previous packet on the channel. */
+			for (WindowPacket packet : channelPackets) {
+				
+				if (packet.getPacketNum() % numChannels == channel
+						&& (packet.getPacketNum() / numChannels) % 2 == ackData[0]) {
+					
+					/* Only packets sent once give a reliable round trip time. */
+					if (packet.getTimesSent() == 1) {
+						rttEstimator.addSample(System.currentTimeMillis() - packet.getTimeLastSent());
+					}
+					
+					packet.ackPacket();
+					return true;
+					
+				}
+				
 			}
 			
-			return (ackData[0] == packetNum);
+			return false;
 			
 		} catch (SocketTimeoutException ste) {
 			
@@ -284,22 +456,84 @@ public class Sender2 {
 	}
 
 	/**
-	 * The main method for running the Sender2 class. There are three arguments -
-	 * the host name, port number and name of the file to send.
+	 * Closes the transfer by sending a FIN packet until the receiver answers
+	 * with a FIN-ACK. Until it sees the FIN the receiver keeps acking any
+	 * packets we re-send, so a lost final ack can't leave us stuck.
+	 * 
+	 * @param ipAddress		The address of the receiver.
+	 * 
+	 * @return				True if a FIN-ACK was received, false if we gave up.
+	 * 
+	 * @throws IOException	If the FIN packet cannot be sent.
+	 */
+	private boolean close(InetAddress ipAddress) throws IOException {
+		
+		byte[] finData = { 0, 0, FIN };
+		DatagramPacket finPacket = new DatagramPacket(finData, finData.length, ipAddress, portNumber);
+		
+		ackSocket.setSoTimeout(TIMEOUT_LENGTH);
+		
+		for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS; attempt++) {
+			
+			senderSocket.send(finPacket);
+			
+			try {
+				
+				/* Skip any late acks for data packets. */
+				while (true) {
+					
+					byte[] ackBuffer = new byte[3];
+					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+					ackSocket.receive(ackPacket);
+					
+					if (ackPacket.getLength() == 3 && ackBuffer[2] == FIN) {
+						return true;
+					}
+					
+				}
+				
+			} catch (SocketTimeoutException ste) {
+				
+				/* Timeouts are not errors! */
+				if (DEBUG_MODE) {
+					System.out.println("DEBUG: Timeout waiting for FIN-ACK.");
+				}
+				
+			}
+			
+		}
+		
+		return false;
+		
+	}
+
+	/**
+	 * The main method for running the Sender2 class. There are three compulsory
+	 * arguments - the host name, port number and name of the file to send - and
+	 * an optional fourth, the number of channels (default 1). They may be preceded
+	 * by -c to add checksums to the packets (see {@link #setChecksummed(boolean)}).
 	 * 
-	 * @param args	The program arguments: the host name, the port number, and the 
-	 * 				name of the file that is to be sent.
+	 * @param args	The program arguments: the host name, the port number, the 
+	 * 				name of the file that is to be sent, and optionally the number
+	 * 				of channels.
 	 */
 	public static void main(String[] args) {
 
+		/* A leading -c turns on checksums. */
+		boolean checksummed = args.length > 0 && args[0].equals("-c");
+		if (checksummed) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
 		String host;
 		int portNumber;
 		String filePath;
+		int numChannels;
 		boolean successful = false;
 
-		/* All three arguments are compulsory. */
-		if (args.length != 3) {
-			System.err.println("Usage: java Sender2 host_name port filename");
+		/* The first three arguments are compulsory. */
+		if (args.length != 3 && args.length != 4) {
+			System.err.println("Usage: java Sender2 [-c] host_name port filename [channels]");
 			System.exit(-1);
 		}
 		
@@ -308,14 +542,15 @@ public class Sender2 {
 			host = args[0];
 			portNumber = Integer.parseInt(args[1]);
 			filePath = args[2]; 
+			numChannels = (args.length == 4) ? Integer.parseInt(args[3]) : 1;
 			
 			/* Attempt to send the file. */
-			Sender2 sender = new Sender2(host, portNumber);
+			Sender2 sender = new Sender2(host, portNumber, numChannels);
+			sender.setChecksummed(checksummed);
 			successful = sender.send(new File(filePath));
 			
 		} catch (NumberFormatException nfe) {
-			System.err.println("Error: Unable to convert input port number \"" + args[1] +
-			   "\" to an integer.");
+			System.err.println("Error: Unable to convert the port number or number of channels to an integer.");
 		} catch (IllegalArgumentException iae) {
 			System.err.println("Error: " + iae.getMessage());
 		}
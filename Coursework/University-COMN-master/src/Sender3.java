@@ -4,31 +4,43 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 
 /**
  * The Sender3 class represents a transmission of a number of bytes via
  * the UDP protocol using a go-back-N protocol. A window of size N is 
- * defined, which holds packets. Every TIMEOUT_LENGTH all of the unacked
- * packets are re-sent.
+ * defined, which holds packets. If the oldest unacked packet goes
+ * TIMEOUT_LENGTH without an ack it is re-sent on its own; the cumulative ack
+ * that follows moves the window on to the next missing packet.
  * 
  * <p>
  * The outgoing packet protocol is as follows:
  * <ul>
  * <li>The first two bytes are the packet number (giving a value range of 0 to 65536).
  * <li>The next byte is the EOF byte. A value of anything but 0 signifies an EOF packet.
- * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 3) bytes are filled with data.
+ * <li>If checksums are on (see {@link #setChecksummed(boolean)}), the next four bytes
+ * are the packet's checksum (see {@link PacketChecksum}).
+ * <li>The remaining bytes, up to <a href="#PACKET_SIZE">PACKET_SIZE</a>, are filled with data.
  * </ul>
  * <p>
  * The ack packet is merely the packet number (and thus is 2 bytes).
  * <p>
+ * Once every packet has been acked the transfer is closed by sending a FIN packet
+ * (a header only packet with the EOF byte set to <a href="#FIN">FIN</a>) until the
+ * receiver answers with a FIN-ACK (an ack packet with a third byte of FIN). Once the
+ * whole file is in the window, the last packet is re-sent on its own as a tail-loss
+ * probe if it goes about two round trips without being acked.
+ * <p>
  * Note that the ack-receiving port is hard-coded to be the outgoing port + 1, as the
  * coursework does not specify any way of setting when calling the program.
  * 
@@ -41,13 +53,22 @@ public class Sender3 {
 	 * data will be transferred. */
 	public static final int PACKET_SIZE = 1024;
 	
+	/** The EOF byte value that marks a FIN packet, and the third byte of a FIN-ACK. */
+	public static final byte FIN = 2;
+	
 	/* Using a constant value for DEBUG_MODE allows the compiler to
 	 * optimise away the if statements that rely on it and thus remove
 	 * all performance hits when debugging is off. */
 	private static final boolean DEBUG_MODE = false;
 	
-	/* The timeout period to wait before re-sending unacked packets. */
-	private static final long TIMEOUT_LENGTH = 30;
+	/** The timeout period (in ms) to wait before re-sending the oldest unacked packet. */
+	public static final long TIMEOUT_LENGTH = 30;
+	
+	/* The shortest time (in ms) we wait before sending a tail-loss probe. */
+	private static final long MIN_PROBE_TIMEOUT = 10;
+	
+	/* The number of times we send a FIN packet before giving up on a FIN-ACK. */
+	private static final int MAX_FIN_ATTEMPTS = 10;
 	
 	/* The receiving host name. */
 	private String host;
@@ -65,12 +86,24 @@ public class Sender3 {
 	private List<WindowPacket> windowPackets;
 	
 	/* Used to read data from the input file. */
-	private FileInputStream reader;
+	private InputStream reader;
 	
 	/* Flag to stop sender and ack threads. */
 	public boolean stopThread;
 	
 	private int ackedPacketNum;
+	
+	/* Set by the ack thread when the receiver answers our FIN. */
+	private volatile boolean finAcked;
+	
+	/* Estimates the round trip time, for tail-loss probes. */
+	private RttEstimator rttEstimator;
+	
+	/* Whether the runs of zeros in files are sent as markers. */
+	private boolean sparse;
+	
+	/* The size of the checksum field in data packets, 0 if they have none. */
+	private int checksumSize;
 
 	/**
 	 * Default constructor.
@@ -87,9 +120,35 @@ public class Sender3 {
 		this.windowSize = windowSize;
 		
 		this.stopThread = false;
+		this.finAcked = false;
+		this.rttEstimator = new RttEstimator();
+		this.sparse = false;
+		this.checksumSize = 0;
 		
 	}
 	
+	/**
+	 * Sets whether the runs of zeros in files are sent as markers giving their
+	 * length, rather than as data (see {@link SparseEncoder}). The receiver must be
+	 * set to expect them too (see {@link Receiver3#setSparse(boolean)}).
+	 * 
+	 * @param sparse	True to send the runs of zeros as markers.
+	 */
+	public void setSparse(boolean sparse) {
+		this.sparse = sparse;
+	}
+	
+	/**
+	 * Sets whether data packets carry a checksum (see {@link PacketChecksum}), so
+	 * that the receiver can drop corrupted packets and have them re-sent. The
+	 * receiver must be set to check them (see {@link Receiver3#setChecksummed(boolean)}).
+	 * 
+	 * @param checksummed	True to add a checksum to data packets.
+	 */
+	public void setChecksummed(boolean checksummed) {
+		this.checksumSize = checksummed ? PacketChecksum.CHECKSUM_SIZE : 0;
+	}
+	
 	/**
 	 * This thread monitors incoming acks. When an ack is received for a packet
 	 * all previous packets are marked as having been acked, as the receiver must
@@ -133,7 +192,7 @@ public class Sender3 {
 						System.out.println("DEBUG: Checking for ack");
 					}
 					
-					byte[] ackBuffer = new byte[2];
+					byte[] ackBuffer = new byte[3];
 				
 					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
 
@@ -143,6 +202,12 @@ public class Sender3 {
 					ackSocket.receive(ackPacket);
 
 					byte[] ackData = ackPacket.getData();
+					
+					/* The answer to our FIN. */
+					if (ackPacket.getLength() == 3 && ackData[2] == FIN) {
+						finAcked = true;
+						continue;
+					}
 
 					/* Grab the packet number that we received an ack for. */
 					int ackPacketNum = ((ackData[1] << 8) & 0x0000FF00) | 
@@ -192,6 +257,25 @@ public class Sender3 {
 	 * 			ack was received for every packet sent. 
 	 */
 	public boolean send(File dataFile) {
+		return send(dataFile, 0, dataFile.length());
+	}
+	
+	/**
+	 * Attempt to send part of the data contained in a file, in the same way
+	 * as {@link #send(File)}. The receiver writes the data at the same offset
+	 * (see {@link Receiver3#receive(long)}), so a file can be sent in several parts.
+	 * 
+	 * @param dataFile		The file to get the data from.
+	 * @param offset		The position in the file of the first byte to send.
+	 * @param length		The number of bytes to send.
+	 * 
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send(File dataFile, long offset, long length) {
+		
+		if (offset < 0 || length < 0 || offset + length > dataFile.length()) {
+			throw new IllegalArgumentException("Part of input file to send is out of range.");
+		}
 		
 		/* Open a buffered reader around the file, checking it is okay while
 		 * doing so. Note that I do no locking of the file, so writing to it
@@ -217,7 +301,23 @@ public class Sender3 {
 			
 			/* Debug-mode variables. */
 			int numSentFileBytes = 0;
-			int dataFileLength = reader.available();
+			long dataFileLength = length;
+			
+			/* Skip to the part of the file being sent, and track how much of
+			 * it is left to read and how much has been read. When sending the
+			 * runs of zeros as markers the length is not known until the end, so
+			 * we read ahead to find the last packet. */
+			reader.skip(offset);
+			long bytesLeft = length;
+			long bytesRead = 0;
+			
+			if (sparse) {
+				reader = new PushbackInputStream(new SparseEncoder(reader, length), PACKET_SIZE - 2);
+				bytesLeft = -1;
+			}
+			
+			/* Where the data starts in a data packet. */
+			int dataStart = 3 + checksumSize;
 			
 			senderSocket = new DatagramSocket();
 			
@@ -235,27 +335,38 @@ public class Sender3 {
 			while(!stopThread) {
 				
 
-				/* Remove acked packets. */
-				while(windowPackets.size() > 0 && windowPackets.get(0).getPacketNum() <= ackedPacketNum) {
-					windowPackets.remove(0);
+				/* Remove acked packets, timing the round trip of the packet that
+				 * the ack was actually for. Only packets sent once give a reliable
+				 * round trip time. */
+				int lastAckedPacketNum = ackedPacketNum;
+				while(windowPackets.size() > 0 && windowPackets.get(0).getPacketNum() <= lastAckedPacketNum) {
+					
+					WindowPacket packet = windowPackets.remove(0);
+					
+					if (packet.getPacketNum() == lastAckedPacketNum && packet.getTimesSent() == 1) {
+						rttEstimator.addSample(System.currentTimeMillis() - packet.getTimeLastSent());
+					}
+					
 				}
 				
 				/* Add new packets to the window */
 				while (windowPackets.size() < windowSize && !EOF) {
 
-					int availableData = reader.available();
+					long availableData = (bytesLeft >= 0)
+							? bytesLeft
+							: peekAvailable(PACKET_SIZE - dataStart + 1);
 
 					/* If in the final packet, there may be less than 
-					 * PACKET_SIZE - 3 bytes left to send. */
-					int datalen = (availableData >= (PACKET_SIZE - 3)) 
-					? PACKET_SIZE - 3 
-							: availableData;
+					 * PACKET_SIZE - dataStart bytes left to send. */
+					int datalen = (availableData >= (PACKET_SIZE - dataStart)) 
+					? PACKET_SIZE - dataStart 
+							: (int) availableData;
 
 					/* Check if this is the final packet. */			
-					EOF = availableData <= (PACKET_SIZE - 3);
+					EOF = availableData <= (PACKET_SIZE - dataStart);
 
 					/* Holds the packet data. */
-					byte sendData[] = new byte[datalen + 3];
+					byte sendData[] = new byte[datalen + dataStart];
 
 					/* Packet number. */
 					sendData[0] = (byte) (packetNum >> 8);
@@ -265,7 +376,16 @@ public class Sender3 {
 					sendData[2] = (byte) (EOF ? 1 : 0);
 
 					/* The data bytes. */
-					reader.read(sendData, 3, datalen);
+					readFully(sendData, dataStart, datalen);
+					bytesRead += datalen;
+					if (bytesLeft >= 0) {
+						bytesLeft -= datalen;
+					}
+					
+					/* The checksum, which follows the EOF byte. */
+					if (checksumSize > 0) {
+						PacketChecksum.sign(sendData, 3, sendData.length);
+					}
 
 					if (DEBUG_MODE) {
 						numSentFileBytes += datalen;
@@ -284,18 +404,21 @@ public class Sender3 {
 
 				}
 				
-				/* Send the timed out packets. */
-				boolean sendPackets = false;
+				/* Send the new packets, and the oldest unacked packet if it has
+				 * timed out. Only the oldest is re-sent, as the receiver may be
+				 * holding the packets after it; its cumulative ack then tells us
+				 * where the next gap is. */
+				boolean oldestUnacked = true;
 				for (WindowPacket packet : windowPackets) {
 
 					/* We just ignore acked packets. */
 					if (packet.getPacketNum() > ackedPacketNum) {
 
-						/* Check if we should start sending packets. */
-						sendPackets = sendPackets ||
-						System.currentTimeMillis() > (packet.getTimeLastSent() + TIMEOUT_LENGTH);
+						boolean sendPacket = packet.getTimesSent() == 0 || (oldestUnacked &&
+								System.currentTimeMillis() > (packet.getTimeLastSent() + TIMEOUT_LENGTH));
+						oldestUnacked = false;
 
-						if (sendPackets) {
+						if (sendPacket) {
 
 							if (DEBUG_MODE) {
 								System.out.println("DEBUG: Sending packet " + packet.getPacketNum() +
@@ -306,9 +429,6 @@ public class Sender3 {
 							senderSocket.send(packet.getPacket());
 							packet.setTimeLastSent(System.currentTimeMillis());
 
-						} else {
-							/* First unacked packet has not timed out, so break. */
-							break;
 						}
 
 					}
@@ -317,24 +437,60 @@ public class Sender3 {
 
 
 
+				/* Tail-loss probe: once the whole file is in the window, re-send the last
+				 * packet on its own if it goes about two round trips without an ack,
+				 * rather than waiting for the first packet to time out. */
+				if (EOF && windowPackets.size() > 0) {
+					
+					WindowPacket tailPacket = windowPackets.get(windowPackets.size() - 1);
+					long probeTimeout = rttEstimator.getProbeTimeout(MIN_PROBE_TIMEOUT, TIMEOUT_LENGTH);
+					
+					if (tailPacket.getPacketNum() > ackedPacketNum && tailPacket.getTimesSent() == 1 &&
+							System.currentTimeMillis() > (tailPacket.getTimeLastSent() + probeTimeout)) {
+						
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Sending tail-loss probe for packet " + tailPacket.getPacketNum());
+						}
+						
+						senderSocket.send(tailPacket.getPacket());
+						tailPacket.setTimeLastSent(System.currentTimeMillis());
+						
+					}
+					
+				}
+
 				/* Once the window is empty, we know that we have sent all possible
 				 * packets - all packets had been acked and there were no more packets
-				 * to add. */
+				 * to add - so close the transfer. */
 				if (windowPackets.size() == 0) {
+					
+					if (!close(ipAddress) && DEBUG_MODE) {
+						System.out.println("DEBUG: No FIN-ACK received, the receiver will time out instead.");
+					}
+					
 					stopThread = true;
+					
 				}
 				
 				Thread.yield();
 
 			}
 
+			/* Wait for the ack thread to close the ack socket, so that the port
+			 * can be used again as soon as we return. */
+			try {
+				ackThread.join();
+			} catch (InterruptedException ie) { }
+			
 			if (DEBUG_MODE) {
 				System.out.println("DEBUG: Finished sending packets.");
 				System.out.println("DEBUG: " + dataFileLength + " bytes should have been sent.");
 				System.out.println("DEBUG: " + numSentFileBytes + " bytes were sent.");
 			}
 
-			/* Used to monitor throughput for the coursework question. */
+			/* Used to monitor throughput for the coursework question. The size of
+			 * the part of the file sent is reported, and how much was sent for it
+			 * if that differs because its zeros were left out. */
 			long now = System.currentTimeMillis();
 			
 			/* Calculate the throughput. */
@@ -342,16 +498,24 @@ public class Sender3 {
 			System.out.println("Time taken: " + timeTaken);
 			double kBSent = dataFileLength / 1024.0;
 			System.out.println("Data file size: " + dataFileLength + " ("  + dataFileLength/1024.0 + " kB)");
+			if (bytesRead != dataFileLength) {
+				System.out.println("Bytes sent: " + bytesRead + " (" + bytesRead/1024.0 + " kB)");
+			}
 			System.out.println("Throughput: " + (kBSent / timeTaken) + " kB/s");
 			
+			reader.close();
+			
 		} catch (SocketException se) {
 			System.err.println("Error: Socket exception:");
 			System.err.println(se.getMessage());
+			return false;
 		} catch (UnknownHostException uhe) {
 			System.err.println("Error: Host \"" + host + "\" was not found.");
+			return false;
 		} catch (IOException e) {
 			System.err.println("Error: IO Exception:");
 			System.err.println(e.getMessage());
+			return false;
 		} finally {
 			
 			senderSocket.close();
@@ -363,16 +527,91 @@ public class Sender3 {
 		
 	}
 
+	/**
+	 * Closes the transfer by sending a FIN packet until the ack thread hears
+	 * a FIN-ACK. Until it sees the FIN the receiver keeps acking any packets
+	 * we re-send, so a lost final ack can't leave us stuck.
+	 * 
+	 * @param ipAddress		The address of the receiver.
+	 * 
+	 * @return				True if a FIN-ACK was received, false if we gave up.
+	 * 
+	 * @throws IOException	If the FIN packet cannot be sent.
+	 */
+	private boolean close(InetAddress ipAddress) throws IOException {
+		
+		byte[] finData = { 0, 0, FIN };
+		DatagramPacket finPacket = new DatagramPacket(finData, finData.length, ipAddress, portNumber);
+		
+		for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS && !finAcked; attempt++) {
+			
+			senderSocket.send(finPacket);
+			
+			long resendTime = System.currentTimeMillis() + TIMEOUT_LENGTH;
+			while (!finAcked && System.currentTimeMillis() < resendTime) {
+				try { Thread.sleep(1); } catch (InterruptedException e) { }
+			}
+			
+		}
+		
+		return finAcked;
+		
+	}
+
+	/* Reads exactly len bytes into the buffer. */
+	private void readFully(byte[] buffer, int off, int len) throws IOException {
+		while (len > 0) {
+			int read = reader.read(buffer, off, len);
+			if (read < 0) {
+				throw new IOException("The input ended " + len + " bytes early.");
+			}
+			off += read;
+			len -= read;
+		}
+	}
+
+	/* Returns how many bytes (up to max) are left to read, when the length is not
+	 * known. They are read and then pushed back, so they can still be read. */
+	private int peekAvailable(int max) throws IOException {
+		
+		PushbackInputStream pushback = (PushbackInputStream) reader;
+		byte[] ahead = new byte[max];
+		int available = 0;
+		
+		while (available < max) {
+			int read = pushback.read(ahead, available, max - available);
+			if (read < 0) {
+				break;
+			}
+			available += read;
+		}
+		
+		pushback.unread(ahead, 0, available);
+		return available;
+		
+	}
+
 	/**
 	 * The main method for running the Sender3 class. There are four arguments -
 	 * the host name, port number, name of the file to send, and the window size
-	 * to use.
+	 * to use. They may be preceded by -s to send the file's runs of zeros as
+	 * markers (see {@link #setSparse(boolean)}) and -c to add checksums to the
+	 * packets (see {@link #setChecksummed(boolean)}).
 	 * 
 	 * @param args	The program arguments: the host name, the port number, the 
 	 * 				name of the file that is to be sent, and the window size.
 	 */
 	public static void main(String[] args) {
 
+		/* A leading -s turns on sparse sending, and -c checksums. */
+		boolean sparse = false;
+		boolean checksummed = false;
+		while (args.length > 0 && (args[0].equals("-s") || args[0].equals("-c"))) {
+			sparse |= args[0].equals("-s");
+			checksummed |= args[0].equals("-c");
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
 		String host;
 		int portNumber;
 		String filePath;
@@ -381,7 +620,7 @@ public class Sender3 {
 
 		/* All four arguments are compulsory. */
 		if (args.length != 4) {
-			System.err.println("Usage: java Sender3 host_name port filename windowsize");
+			System.err.println("Usage: java Sender3 [-s] [-c] host_name port filename windowsize");
 			System.exit(-1);
 		}
 		
@@ -393,6 +632,8 @@ public class Sender3 {
 			windowSize = Integer.parseInt(args[3]);
 			
 			Sender3 sender = new Sender3(host, portNumber, windowSize);
+			sender.setSparse(sparse);
+			sender.setChecksummed(checksummed);
 			sendSuccessful = sender.send(new File(filePath));
 			
 		} catch (IllegalArgumentException iae) {
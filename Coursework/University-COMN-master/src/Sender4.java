@@ -4,15 +4,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.security.KeyPair;
 import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * The Sender4 class represents a transmission of a number of bytes via
@@ -25,13 +29,39 @@ import java.util.ArrayList;
  * <ul>
  * <li>The first two bytes are the packet number (giving a value range of 0 to 65536).
  * <li>The next byte is the EOF byte. A value of anything but 0 signifies an EOF packet.
- * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 3) bytes are filled with data.
+ * <li>If checksums are on (see {@link #setChecksummed(boolean)}), the next four bytes
+ * are the packet's checksum (see {@link PacketChecksum}).
+ * <li>The remaining bytes, up to <a href="#PACKET_SIZE">PACKET_SIZE</a>, are filled with data.
+ * If encryption is on (see {@link #setEncrypted(boolean)}), the data is encrypted and
+ * followed by its authentication tag (see {@link PacketCipher}).
  * </ul>
  * <p>
  * The ack packet is merely the packet number (and thus is 2 bytes).
  * <p>
+ * With encryption on, the transfer opens with a key packet (a header with the EOF
+ * byte set to {@link PacketCipher#KEY} followed by our public key, signed under the
+ * shared key), sent until the receiver answers with its own signed public key in
+ * the same form. Acks then gain a third byte of 0, and acks, FINs and FIN-ACKs are
+ * followed by a MAC under the agreed key (see {@link PacketCipher#sign(byte[], int, long)}).
+ * Those whose MAC is wrong are ignored.
+ * <p>
+ * Once every packet has been acked the transfer is closed by sending a FIN packet
+ * (a header only packet with the EOF byte set to <a href="#FIN">FIN</a>) until the
+ * receiver answers with a FIN-ACK (an ack packet with a third byte of FIN). Once the
+ * whole file is in the window, the last unacked packet is re-sent as a tail-loss
+ * probe after about two round trips, rather than after the full timeout.
+ * <p>
  * Note that the ack-receiving port is hard-coded to be the outgoing port + 1, as the
  * coursework does not specify any way of setting when calling the program.
+ * <p>
+ * When sending to a {@link ReceiverServer}, which serves many transfers on one port,
+ * a session ID is given. Every packet (including the FIN) then starts with the 4 byte
+ * session ID, and the acks (which start with it too) come back to the socket we send
+ * from rather than to the port + 1.
+ * <p>
+ * Senders that run in parallel to the same host in one process can be coupled (see
+ * {@link #setCoupled(boolean)}), so that they share one congestion window rather
+ * than each using the full window size.
  * 
  * @author s0840449
  *
@@ -42,13 +72,22 @@ public class Sender4 {
 	 * data will be transferred. */
 	public static final int PACKET_SIZE = 1024;
 	
+	/** The EOF byte value that marks a FIN packet, and the third byte of a FIN-ACK. */
+	public static final byte FIN = 2;
+	
 	/* Using a constant value for DEBUG_MODE allows the compiler to
 	 * optimise away the if statements that rely on it and thus remove
 	 * all performance hits when debugging is off. */
 	private static final boolean DEBUG_MODE = false;
 	
-	/* The timeout period to wait before re-sending unacked packets. */
-	private static final long TIMEOUT_LENGTH = 300;
+	/** The timeout period (in ms) to wait before re-sending unacked packets. */
+	public static final long TIMEOUT_LENGTH = 300;
+	
+	/* The shortest time (in ms) we wait before sending a tail-loss probe. */
+	private static final long MIN_PROBE_TIMEOUT = 10;
+	
+	/* The number of times we send a FIN packet before giving up on a FIN-ACK. */
+	private static final int MAX_FIN_ATTEMPTS = 10;
 	
 	/* The receiving host name. */
 	private String host;
@@ -65,12 +104,53 @@ public class Sender4 {
 	/* Holds the window packets */
 	private List<WindowPacket> windowPackets;
 	
-	/* Used to read data from the input file. */
-	private FileInputStream reader;
+	/* Used to read the data to send. */
+	private InputStream reader;
 
 	/* Flag to stop sender and ack threads. */
 	private boolean stopThread;
 	
+	/* Set by the ack thread when the receiver answers our FIN. */
+	private volatile boolean finAcked;
+	
+	/* Estimates the round trip time, for tail-loss probes. */
+	private RttEstimator rttEstimator;
+	
+	/* Whether we are sending to a ReceiverServer, the session ID if so, and
+	 * the resulting header size. */
+	private boolean sessionMode;
+	private int sessionId;
+	private int headerSize;
+	
+	/* Whether to share a congestion window with other coupled senders to the
+	 * host, and that window once sending. */
+	private boolean coupled;
+	private CongestionState congestionState;
+	
+	/* How long (in ms) to wait for an ack before giving up on the receiver,
+	 * or 0 to wait forever, and when the last ack arrived. */
+	private int idleTimeout;
+	private volatile long lastAckTime;
+	
+	/* Whether files are compressed before being sent. */
+	private boolean compressed;
+	
+	/* Whether the runs of zeros in files are sent as markers. */
+	private boolean sparse;
+	
+	/* The size of the checksum field in data packets, 0 if they have none. */
+	private int checksumSize;
+	
+	/* Whether data packets are encrypted, the shared key and the size of their
+	 * tag and of the MAC on other packets if so, the receiver's signed public key
+	 * once it answers our key packet, and the cipher agreed from it. */
+	private boolean encrypted;
+	private byte[] sharedKey;
+	private int tagSize;
+	private int macSize;
+	private volatile byte[] receiverKey;
+	private volatile PacketCipher cipher;
+	
 	/**
 	 * Default constructor.
 	 * 
@@ -84,8 +164,135 @@ public class Sender4 {
 		this.windowSize = windowSize;
 		
 		this.stopThread = false;
+		this.finAcked = false;
+		this.rttEstimator = new RttEstimator();
+		this.sessionMode = false;
+		this.headerSize = 3;
+		this.coupled = false;
+		this.idleTimeout = 0;
+		this.compressed = false;
+		this.sparse = false;
+		this.checksumSize = 0;
+		this.encrypted = false;
+		this.sharedKey = null;
+		this.tagSize = 0;
+		this.macSize = 0;
+	}
+	
+	/**
+	 * Constructor for sending to a {@link ReceiverServer}.
+	 * 
+	 * @param host			The receiving host.
+	 * @param portNumber	The port number the server listens on.
+	 * @param windowSize	The window size to use.
+	 * @param sessionId		The session ID, which must not be in use by
+	 * 						another transfer to the same server.
+	 */
+	public Sender4(String host, int portNumber, int windowSize, int sessionId) {
+		this(host, portNumber, windowSize);
+		
+		this.sessionMode = true;
+		this.sessionId = sessionId;
+		this.headerSize = 7;
+	}
+		
+	/**
+	 * Sets whether this sender shares a congestion window (see {@link CongestionState})
+	 * with the other coupled senders in this process sending to the same host. If it
+	 * does, the window size given is the most it will ever use of the shared window.
+	 * 
+	 * @param coupled		True to share the congestion window.
+	 */
+	public void setCoupled(boolean coupled) {
+		this.coupled = coupled;
+	}
+	
+	/**
+	 * Sets how long to wait for an ack before giving up on the receiver, if it
+	 * goes away before the whole file has been acked. By default we wait forever.
+	 * 
+	 * @param idleTimeout	The time in ms, or 0 to wait forever.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Sets whether files are compressed before being sent (see {@link ChunkCompressor}).
+	 * The receiver must be set to decompress them too (see
+	 * {@link Receiver4#setCompressed(boolean)}). This cannot be used when sending to a
+	 * {@link ReceiverServer}.
+	 * 
+	 * @param compressed	True to compress files.
+	 */
+	public void setCompressed(boolean compressed) {
+		
+		if (compressed && sessionMode) {
+			throw new IllegalArgumentException("Compression is not supported when sending to a ReceiverServer.");
+		}
+		
+		this.compressed = compressed;
+	}
+	
+	/**
+	 * Sets whether the runs of zeros in files are sent as markers giving their
+	 * length, rather than as data (see {@link SparseEncoder}). The receiver must be
+	 * set to expect them too (see {@link Receiver4#setSparse(boolean)}). If files
+	 * are also compressed, the markers are compressed along with the data. This
+	 * cannot be used when sending to a {@link ReceiverServer}.
+	 * 
+	 * @param sparse	True to send the runs of zeros as markers.
+	 */
+	public void setSparse(boolean sparse) {
+		
+		if (sparse && sessionMode) {
+			throw new IllegalArgumentException("Sparse files are not supported when sending to a ReceiverServer.");
+		}
+		
+		this.sparse = sparse;
 	}
+	
+	/**
+	 * Sets whether data packets carry a checksum (see {@link PacketChecksum}), so
+	 * that the receiver can drop corrupted packets and have them re-sent. The
+	 * receiver must be set to check them (see {@link Receiver4#setChecksummed(boolean)}).
+	 * This cannot be used when sending to a {@link ReceiverServer}.
+	 * 
+	 * @param checksummed	True to add a checksum to data packets.
+	 */
+	public void setChecksummed(boolean checksummed) {
+		
+		if (checksummed && sessionMode) {
+			throw new IllegalArgumentException("Checksums are not supported when sending to a ReceiverServer.");
+		}
+		
+		this.checksumSize = checksummed ? PacketChecksum.CHECKSUM_SIZE : 0;
+	}
+	
+	/**
+	 * Sets whether data packets are encrypted and authenticated with a key agreed
+	 * with the receiver at the start of the transfer (see {@link PacketCipher}),
+	 * which is authenticated with a key shared with the receiver beforehand. The
+	 * receiver must be set to decrypt them too, with the same shared key (see
+	 * {@link Receiver4#setEncrypted(byte[])}). This cannot be used when sending to a
+	 * {@link ReceiverServer}.
+	 * 
+	 * @param sharedKey		The shared key, or null to send data packets as they are.
+	 */
+	public void setEncrypted(byte[] sharedKey) {
+		
+		boolean encrypted = sharedKey != null;
+		
+		if (encrypted && sessionMode) {
+			throw new IllegalArgumentException("Encryption is not supported when sending to a ReceiverServer.");
+		}
 		
+		this.encrypted = encrypted;
+		this.sharedKey = sharedKey;
+		this.tagSize = encrypted ? PacketCipher.TAG_SIZE : 0;
+		this.macSize = encrypted ? PacketCipher.MAC_SIZE : 0;
+	}
+	
 	/**
 	 * This thread monitors incoming acks. When an ack is received the relevant packet
 	 * is marked as having been acked.
@@ -107,7 +314,9 @@ public class Sender4 {
 		 */
 		public ACKThread(List<WindowPacket> windowPackets, int portNumber) throws SocketException {
 			this.windowPackets = windowPackets;
-			this.ackSocket = new DatagramSocket(portNumber + 1);
+			
+			/* A ReceiverServer acks to the socket the packets came from. */
+			this.ackSocket = sessionMode ? senderSocket : new DatagramSocket(portNumber + 1);
 		}
 		
 		/**
@@ -125,7 +334,9 @@ public class Sender4 {
 				
 				try {
 					
-					byte[] ackBuffer = new byte[2];
+					/* The receiver's key packet is longer than an ack, but once we
+					 * have it any others are only re-sends. */
+					byte[] ackBuffer = new byte[(encrypted && receiverKey == null) ? PACKET_SIZE : headerSize + macSize];
 				
 					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
 					
@@ -137,9 +348,38 @@ public class Sender4 {
 					
 					byte[] ackData = ackPacket.getData();
 					
+					lastAckTime = System.currentTimeMillis();
+					
+					/* In session mode, the ack follows the session ID. */
+					int ackStart = headerSize - 3;
+					if (sessionMode && (ackPacket.getLength() < ackStart + 2 || readSessionId(ackData) != sessionId)) {
+						continue;
+					}
+					
+					/* The answer to our key packet. */
+					if (encrypted && ackPacket.getLength() >= 3 && ackData[2] == PacketCipher.KEY) {
+						if (receiverKey == null) {
+							receiverKey = Arrays.copyOfRange(ackData, 3, ackPacket.getLength());
+						}
+						continue;
+					}
+					
+					/* The answer to our FIN. */
+					if (ackPacket.getLength() == ackStart + 3 + macSize && ackData[ackStart + 2] == FIN) {
+						if (!encrypted || (cipher != null && cipher.verify(ackData, ackPacket.getLength(), 0))) {
+							finAcked = true;
+						}
+						continue;
+					}
+					
+					/* An encrypted transfer's acks carry a third byte of 0 and a MAC. */
+					if (encrypted && (cipher == null || ackPacket.getLength() != 3 + macSize || ackData[2] != 0)) {
+						continue;
+					}
+					
 					/* Grab the packet number that we received an ack for. */
-					int ackPacketNum = ((ackData[1] << 8) & 0x0000FF00) 
-									 | (ackData[0] & 0x000000FF);	
+					int ackPacketNum = ((ackData[ackStart + 1] << 8) & 0x0000FF00) 
+									 | (ackData[ackStart] & 0x000000FF);	
 					
 					/* Set the isAcked property of the correct packet.
 					 * Must synchronise to avoid concurrent access. */
@@ -147,7 +387,22 @@ public class Sender4 {
 						
 						for (WindowPacket packet : windowPackets) {
 							
-							if (packet.getPacketNum() == ackPacketNum) {
+							/* Only the bottom two bytes of the packet number are sent, but
+							 * the MAC covers the full number. */
+							if ((packet.getPacketNum() & 0xFFFF) == ackPacketNum) {
+								
+								if (encrypted && !cipher.verify(ackData, ackPacket.getLength(), packet.getPacketNum())) {
+									break;
+								}
+								
+								/* Only packets sent once give a reliable round trip time. */
+								if (!packet.isAcked() && packet.getTimesSent() == 1) {
+									rttEstimator.addSample(System.currentTimeMillis() - packet.getTimeLastSent());
+								}
+								
+								if (!packet.isAcked() && congestionState != null) {
+									congestionState.onAck();
+								}
 								
 								packet.ackPacket();
 								break;
@@ -172,7 +427,11 @@ public class Sender4 {
 				
 			}
 			
-			ackSocket.close();
+			/* In session mode the socket is also the sending socket, which
+			 * is closed once sending ends. */
+			if (!sessionMode) {
+				ackSocket.close();
+			}
 
 			if (DEBUG_MODE) {
 				System.out.println("DEBUG: Ack Thread ending...");
@@ -195,6 +454,25 @@ public class Sender4 {
 	 * 			ack was received for every packet sent. 
 	 */
 	public boolean send(File dataFile) {
+		return send(dataFile, 0, dataFile.length());
+	}
+	
+	/**
+	 * Attempt to send part of the data contained in a file, in the same way
+	 * as {@link #send(File)}. The receiver writes the data at the same offset
+	 * (see {@link Receiver4#receive(long)}), so a file can be sent in several parts.
+	 * 
+	 * @param dataFile		The file to get the data from.
+	 * @param offset		The position in the file of the first byte to send.
+	 * @param length		The number of bytes to send.
+	 * 
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send(File dataFile, long offset, long length) {
+		
+		if (offset < 0 || length < 0 || offset + length > dataFile.length()) {
+			throw new IllegalArgumentException("Part of input file to send is out of range.");
+		}
 		
 		/* Open a buffered reader around the file, checking it is okay while
 		 * doing so. Note that I do no locking of the file, so writing to it
@@ -203,13 +481,87 @@ public class Sender4 {
 			throw new IllegalArgumentException("Cannot read input file \"" + 
 					dataFile.getName() + "\". Please check file permissions and try again.");
 		}
+		FileInputStream fileReader;
 		try {
-			reader = new FileInputStream(dataFile);
+			fileReader = new FileInputStream(dataFile);
 		} catch (FileNotFoundException fnfe) {
 			throw new IllegalArgumentException("Input file \"" + dataFile.getName() +
 					"\" does not exist.");
 		}
 
+		/* Skip to the part of the file being sent. */
+		try {
+			fileReader.skip(offset);
+		} catch (IOException e) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(e.getMessage());
+			try {
+				fileReader.close();
+			} catch (IOException ioe) { }
+			return false;
+		}
+		
+		/* Encoded data's length is not known until it has been read, so we read
+		 * ahead as in send(InputStream), but report the file's own length. */
+		if (sparse) {
+			InputStream encoded = new SparseEncoder(fileReader, length);
+			return sendData(new PushbackInputStream(compressed ? new ChunkCompressor(encoded) : encoded,
+					PACKET_SIZE + 1), -1, length);
+		}
+		
+		if (compressed) {
+			return sendData(new PushbackInputStream(new ChunkCompressor(fileReader, length), PACKET_SIZE + 1),
+					-1, length);
+		}
+		
+		return sendData(fileReader, length, length);
+		
+	}
+	
+	/**
+	 * Attempt to send everything read from a stream, up to its end, in the same
+	 * way as {@link #send(File)}. This is for when the length is not known up front,
+	 * as the data is being made as it is sent. The stream is closed once sent.
+	 * 
+	 * @param input			The stream to read the data from.
+	 * 
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send(InputStream input) {
+		
+		/* We read a packet and one byte ahead, to know whether each packet is the last. */
+		return sendData(new PushbackInputStream(input, PACKET_SIZE + 1), -1, -1);
+		
+	}
+	
+	/**
+	 * Attempt to send the data read from a stream, in the same way as
+	 * {@link #send(File)}. The length must be known up front so that the last
+	 * packet can be marked. The stream is closed once sent.
+	 * 
+	 * @param input			The stream to read the data from.
+	 * @param length		The number of bytes to send.
+	 * 
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send(InputStream input, long length) {
+		
+		if (length < 0) {
+			throw new IllegalArgumentException("Length to send cannot be negative.");
+		}
+		
+		return sendData(input, length, length);
+		
+	}
+	
+	/* Does the sending for all of the above. A length of -1 means the length is
+	 * not known, and the input is then a PushbackInputStream so we can read ahead.
+	 * The source length is that of the file the input was encoded from, reported
+	 * once sent, or -1 to report how much was read from the input. */
+	private boolean sendData(InputStream input, long length, long sourceLength) {
+		
+		reader = input;
+
 		int packetNum = 0;
 		
 		boolean EOF = false;
@@ -220,12 +572,22 @@ public class Sender4 {
 			
 			/* Debug-mode variables. */
 			int numSentFileBytes = 0;
-			int dataFileLength = reader.available();
+			long dataFileLength = length;
+			
+			/* Track how much of the data is left to read, if the length is known,
+			 * and how much has been read. */
+			long bytesLeft = length;
+			long bytesRead = 0;
 			
 			senderSocket = new DatagramSocket();
 			
 			InetAddress ipAddress = InetAddress.getByName(host);
 			
+			if (coupled) {
+				congestionState = CongestionState.forHost(ipAddress);
+				congestionState.join(this, 1, windowSize);
+			}
+			
 			//SendThread sendThread = new SendThread(windowPackets, senderSocket);
 			ACKThread ackThread = new ACKThread(windowPackets, portNumber);
 			
@@ -234,6 +596,24 @@ public class Sender4 {
 			
 			/* Used to monitor throughput for the coursework question. */
 			long before = System.currentTimeMillis();
+			lastAckTime = before;
+			
+			/* Set if we give up on the receiver. */
+			boolean timedOut = false;
+			
+			/* Agree a key with the receiver before sending any data. */
+			cipher = null;
+			if (encrypted) {
+				cipher = exchangeKeys(ipAddress);
+				if (cipher == null) {
+					timedOut = true;
+					stopThread = true;
+				}
+			}
+			
+			/* Where the data starts in a data packet, and how much it holds. */
+			int dataStart = headerSize + checksumSize;
+			int packetCapacity = PACKET_SIZE - dataStart - tagSize;
 			
 			while(!stopThread) {
 				
@@ -245,31 +625,51 @@ public class Sender4 {
 				}
 				
 				/* Add new packets to the window */
-				while (windowPackets.size() < windowSize && !EOF) {
+				while (windowPackets.size() < getWindow() && !EOF) {
 					
-					int availableData = reader.available();
+					long availableData = (bytesLeft >= 0)
+							? bytesLeft
+							: peekAvailable(packetCapacity + 1);
 
 					/* If in the final packet, there may be less than 
-					 * PACKET_SIZE - 3 bytes left to send. */
-					int datalen = (availableData >= (PACKET_SIZE - 3)) 
-							? PACKET_SIZE - 3 
-							: availableData;
+					 * packetCapacity bytes left to send. */
+					int datalen = (availableData >= packetCapacity) 
+							? packetCapacity 
+							: (int) availableData;
 
 					/* Check if this is the final packet. */			
-					EOF = availableData <= (PACKET_SIZE - 3);
+					EOF = availableData <= packetCapacity;
 
 					/* Holds the packet data. */
-					byte sendData[] = new byte[datalen + 3];
+					byte sendData[] = new byte[datalen + dataStart + tagSize];
+					
+					/* Session ID, in session mode. */
+					writeSessionId(sendData);
+					int packetStart = headerSize - 3;
 													
 					/* Packet number. */
-					sendData[0] = (byte) (packetNum >> 8);
-					sendData[1] = (byte) (packetNum);
+					sendData[packetStart] = (byte) (packetNum >> 8);
+					sendData[packetStart + 1] = (byte) (packetNum);
 								
 					/* EOF byte */
-					sendData[2] = (byte) (EOF ? 1 : 0);
+					sendData[packetStart + 2] = (byte) (EOF ? 1 : 0);
 									
 					/* The data bytes. */
-					reader.read(sendData, 3, datalen);
+					readFully(sendData, dataStart, datalen);
+					bytesRead += datalen;
+					if (bytesLeft >= 0) {
+						bytesLeft -= datalen;
+					}
+					
+					/* Encrypt the data, adding its tag. */
+					if (cipher != null) {
+						cipher.seal(sendData, headerSize, dataStart, datalen, packetNum);
+					}
+					
+					/* The checksum, which follows the EOF byte. */
+					if (checksumSize > 0) {
+						PacketChecksum.sign(sendData, headerSize, sendData.length);
+					}
 
 					if (DEBUG_MODE) {
 						numSentFileBytes += datalen;
@@ -288,13 +688,30 @@ public class Sender4 {
 					
 				}
 				
-				/* Send the timed out packets. */
+				/* Send the timed out packets. Once the whole file is in the window, the
+				 * last unacked packet is first re-sent as a tail-loss probe, after about
+				 * two round trips rather than the full timeout. */
 				synchronized (windowPackets) {
+					
+					WindowPacket tailPacket = null;
+					if (EOF) {
+						for (WindowPacket packet : windowPackets) {
+							if (!packet.isAcked()) {
+								tailPacket = packet;
+							}
+						}
+					}
+					
+					long probeTimeout = rttEstimator.getProbeTimeout(MIN_PROBE_TIMEOUT, TIMEOUT_LENGTH);
 
 					for (WindowPacket packet : windowPackets) {
+						
+						long timeout = (packet == tailPacket && packet.getTimesSent() == 1)
+										? probeTimeout
+										: TIMEOUT_LENGTH;
 
 						if (!packet.isAcked() && 
-								System.currentTimeMillis() > (packet.getTimeLastSent() + TIMEOUT_LENGTH)) {
+								System.currentTimeMillis() > (packet.getTimeLastSent() + timeout)) {
 
 							if (DEBUG_MODE) {
 								System.out.println("DEBUG: Sending packet " + packet.getPacketNum() +
@@ -302,6 +719,11 @@ public class Sender4 {
 										" and data size " +	(packet.getPacket().getLength() - 3));
 							}					
 
+							/* A re-send after the full timeout means the packet was lost. */
+							if (congestionState != null && packet.getTimesSent() > 0 && timeout == TIMEOUT_LENGTH) {
+								congestionState.onLoss(packet.getTimeLastSent());
+							}
+
 							senderSocket.send(packet.getPacket());
 							packet.setTimeLastSent(System.currentTimeMillis());
 
@@ -313,8 +735,21 @@ public class Sender4 {
 
 				/* Once the window is empty, we know that we have sent all possible
 				 * packets - all packets had been acked and there were no more packets
-				 * to add. */
+				 * to add - so close the transfer. */
 				if (windowPackets.size() == 0) {
+					
+					if (!close(ipAddress) && DEBUG_MODE) {
+						System.out.println("DEBUG: No FIN-ACK received, the receiver will time out instead.");
+					}
+					
+					stopThread = true;
+					
+				}
+				
+				/* Give up if the receiver has stopped acking. */
+				if (idleTimeout > 0 && windowPackets.size() > 0 
+						&& System.currentTimeMillis() - lastAckTime > idleTimeout) {
+					timedOut = true;
 					stopThread = true;
 				}
 				
@@ -322,22 +757,42 @@ public class Sender4 {
 				
 			}
 								
+			/* Wait for the ack thread to close the ack socket, so that the port
+			 * can be used again as soon as we return. */
+			try {
+				ackThread.join();
+			} catch (InterruptedException ie) { }
+			
+			if (timedOut) {
+				System.err.println("Error: The receiver stopped acking.");
+				reader.close();
+				return false;
+			}
+			
 			if (DEBUG_MODE) {
 				System.out.println("DEBUG: Finished sending packets.");
 				System.out.println("DEBUG: " + dataFileLength + " bytes should have been sent.");
 				System.out.println("DEBUG: " + numSentFileBytes + " bytes were sent.");
 			}
 			
-			/* Used to monitor throughput for the coursework question. */
+			/* Used to monitor throughput for the coursework question. The file's
+			 * own size is reported, and how much was sent for it if that differs
+			 * because it was compressed or had its zeros left out. */
 			long now = System.currentTimeMillis();
+			dataFileLength = (sourceLength >= 0) ? sourceLength : bytesRead;
 			
 			/* Calculate the throughput. */
 			double timeTaken = (now - before) / 1000.0;
 			System.out.println("Time taken: " + timeTaken);
 			double kBSent = dataFileLength / 1024.0;
 			System.out.println("Data file size: " + dataFileLength + " ("  + dataFileLength/1024.0 + " kB)");
+			if (bytesRead != dataFileLength) {
+				System.out.println("Bytes sent: " + bytesRead + " (" + bytesRead/1024.0 + " kB)");
+			}
 			System.out.println("Throughput: " + (kBSent / timeTaken) + " kB/s");
 			
+			reader.close();
+			
 		} catch (SocketException se) {
 			System.err.println("Error: Socket exception:");
 			System.err.println(se.getMessage());
@@ -348,8 +803,15 @@ public class Sender4 {
 		} catch (IOException e) {
 			System.err.println("Error: IO Exception:");
 			System.err.println(e.getMessage());
+			return false;
 		} finally {
 			senderSocket.close();
+			try {
+				reader.close();
+			} catch (IOException ioe) { }
+			if (congestionState != null) {
+				congestionState.leave(this);
+			}
 		}
 		
 		return true;
@@ -357,14 +819,190 @@ public class Sender4 {
 	}
 
 	/**
-	 * The main method for running the Sender4 class. There are four arguments -
-	 * the host name, port number, name of the file to send, and the window size
-	 * to use.
+	 * Closes the transfer by sending a FIN packet until the ack thread hears
+	 * a FIN-ACK. Until it sees the FIN the receiver keeps acking any packets
+	 * we re-send, so a lost final ack can't leave us stuck.
+	 * 
+	 * @param ipAddress		The address of the receiver.
+	 * 
+	 * @return				True if a FIN-ACK was received, false if we gave up.
+	 * 
+	 * @throws IOException	If the FIN packet cannot be sent.
+	 */
+	private boolean close(InetAddress ipAddress) throws IOException {
+		
+		byte[] finData = new byte[headerSize + macSize];
+		writeSessionId(finData);
+		finData[headerSize - 1] = FIN;
+		if (encrypted) {
+			cipher.sign(finData, headerSize, 0);
+		}
+		DatagramPacket finPacket = new DatagramPacket(finData, finData.length, ipAddress, portNumber);
+		
+		for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS && !finAcked; attempt++) {
+			
+			senderSocket.send(finPacket);
+			
+			long resendTime = System.currentTimeMillis() + TIMEOUT_LENGTH;
+			while (!finAcked && System.currentTimeMillis() < resendTime) {
+				try { Thread.sleep(1); } catch (InterruptedException e) { }
+			}
+			
+		}
+		
+		return finAcked;
+		
+	}
+
+	/**
+	 * Agrees a key with the receiver by sending our key packet until the ack
+	 * thread hears the receiver's. The packet is re-sent every timeout for as
+	 * long as we would wait for an ack, and a key that arrives damaged, or was
+	 * not signed under the shared key, is ignored.
+	 * 
+	 * @param ipAddress		The address of the receiver.
+	 * 
+	 * @return				The cipher for the transfer, or null if the receiver
+	 * 						did not answer within the idle timeout.
+	 * 
+	 * @throws IOException	If the key packet cannot be sent.
+	 */
+	private PacketCipher exchangeKeys(InetAddress ipAddress) throws IOException {
+		
+		KeyPair keys = PacketCipher.generateKeyPair();
+		byte[] publicKey = PacketCipher.signKey(sharedKey, keys, null);
+		
+		byte[] keyData = new byte[3 + publicKey.length];
+		keyData[2] = PacketCipher.KEY;
+		System.arraycopy(publicKey, 0, keyData, 3, publicKey.length);
+		DatagramPacket keyPacket = new DatagramPacket(keyData, keyData.length, ipAddress, portNumber);
+		
+		long start = System.currentTimeMillis();
+		
+		while (true) {
+			
+			if (idleTimeout > 0 && System.currentTimeMillis() - start > idleTimeout) {
+				return null;
+			}
+			
+			senderSocket.send(keyPacket);
+			
+			long resendTime = System.currentTimeMillis() + TIMEOUT_LENGTH;
+			while (receiverKey == null && System.currentTimeMillis() < resendTime) {
+				try { Thread.sleep(1); } catch (InterruptedException e) { }
+			}
+			
+			/* A key damaged or forged on the way is dropped, and ours sent again. */
+			if (receiverKey != null) {
+				try {
+					return PacketCipher.agree(sharedKey, keys, receiverKey, true);
+				} catch (IOException ioe) {
+					receiverKey = null;
+				}
+			}
+			
+		}
+		
+	}
+
+	/* Reads exactly len bytes into the buffer. A stream may return fewer bytes
+	 * than asked for from one read, such as at the join between two files. */
+	private void readFully(byte[] buffer, int off, int len) throws IOException {
+		while (len > 0) {
+			int read = reader.read(buffer, off, len);
+			if (read < 0) {
+				throw new IOException("The input ended " + len + " bytes early.");
+			}
+			off += read;
+			len -= read;
+		}
+	}
+
+	/* Returns how many bytes (up to max) are left to read, when the length is not
+	 * known. They are read and then pushed back, so they can still be read. */
+	private int peekAvailable(int max) throws IOException {
+		
+		PushbackInputStream pushback = (PushbackInputStream) reader;
+		byte[] ahead = new byte[max];
+		int available = 0;
+		
+		while (available < max) {
+			int read = pushback.read(ahead, available, max - available);
+			if (read < 0) {
+				break;
+			}
+			available += read;
+		}
+		
+		pushback.unread(ahead, 0, available);
+		return available;
+		
+	}
+
+	/* Returns the number of packets the window may hold: the window size, or
+	 * our share of the congestion window if that is smaller. */
+	private int getWindow() {
+		if (congestionState == null) {
+			return windowSize;
+		}
+		return Math.min(windowSize, congestionState.getWindow(this));
+	}
+
+	/* Writes the session ID into the first 4 bytes of a packet, in session mode. */
+	private void writeSessionId(byte[] data) {
+		if (sessionMode) {
+			data[0] = (byte) (sessionId >>> 24);
+			data[1] = (byte) (sessionId >>> 16);
+			data[2] = (byte) (sessionId >>> 8);
+			data[3] = (byte) sessionId;
+		}
+	}
+	
+	/**
+	 * Reads a session ID from the first 4 bytes of a packet.
+	 * 
+	 * @param data		The packet data.
+	 * 
+	 * @return			The session ID.
+	 */
+	public static int readSessionId(byte[] data) {
+		return ((0x000000FF & data[0]) << 24) | ((0x000000FF & data[1]) << 16)
+				| ((0x000000FF & data[2]) << 8) | (0x000000FF & data[3]);
+	}
+
+	/**
+	 * The main method for running the Sender4 class. There are four compulsory
+	 * arguments - the host name, port number, name of the file to send, and the
+	 * window size to use - and an optional fifth, the session ID to use when
+	 * sending to a {@link ReceiverServer}. They may be preceded by -z to compress
+	 * the file (see {@link #setCompressed(boolean)}), -s to send its runs of zeros
+	 * as markers (see {@link #setSparse(boolean)}), -c to add checksums to the
+	 * packets (see {@link #setChecksummed(boolean)}) and -e and the name of a file
+	 * holding the shared key to encrypt them (see {@link #setEncrypted(byte[])}).
 	 * 
 	 * @param args	The program arguments: the host name, the port number, the 
-	 * 				name of the file that is to be sent, and the window size.
+	 * 				name of the file that is to be sent, the window size, and
+	 * 				optionally the session ID.
 	 */
 	public static void main(String[] args) {
+		
+		/* A leading -z turns on compression, -s sparse sending, -c checksums and
+		 * -e (followed by the shared key file) encryption. */
+		boolean compressed = false;
+		boolean sparse = false;
+		boolean checksummed = false;
+		String sharedKeyFile = null;
+		while (args.length > 0 && (args[0].equals("-z") || args[0].equals("-s") || args[0].equals("-c")
+				|| (args[0].equals("-e") && args.length > 1))) {
+			compressed |= args[0].equals("-z");
+			sparse |= args[0].equals("-s");
+			checksummed |= args[0].equals("-c");
+			if (args[0].equals("-e")) {
+				sharedKeyFile = args[1];
+				args = Arrays.copyOfRange(args, 1, args.length);
+			}
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
 
 		String host;
 		int portNumber;
@@ -372,12 +1010,24 @@ public class Sender4 {
 		int windowSize;
 		boolean sendSuccessful = false;
 
-		/* All four arguments are compulsory. */
-		if (args.length != 4) {
-			System.err.println("Usage: java Sender1 host_name port filename windowsize");
+		/* The first four arguments are compulsory. */
+		if (args.length != 4 && args.length != 5) {
+			System.err.println("Usage: java Sender4 [-z] [-s] [-c] [-e keyfile] host_name port filename windowsize [session_id]");
 			System.exit(-1);
 		}
 		
+		/* Read the shared key before anything else. */
+		byte[] sharedKey = null;
+		if (sharedKeyFile != null) {
+			try {
+				sharedKey = PacketCipher.loadSharedKey(new File(sharedKeyFile));
+			} catch (IOException ioe) {
+				System.err.println("Error: Unable to read the shared key:");
+				System.err.println(ioe.getMessage());
+				System.exit(-1);
+			}
+		}
+		
 		try {
 			
 			host = args[0];
@@ -385,7 +1035,13 @@ public class Sender4 {
 			filePath = args[2];
 			windowSize = Integer.parseInt(args[3]);
 			
-			Sender4 sender = new Sender4(host, portNumber, windowSize);
+			Sender4 sender = (args.length == 5)
+					? new Sender4(host, portNumber, windowSize, Integer.parseInt(args[4]))
+					: new Sender4(host, portNumber, windowSize);
+			sender.setCompressed(compressed);
+			sender.setSparse(sparse);
+			sender.setChecksummed(checksummed);
+			sender.setEncrypted(sharedKey);
 			sendSuccessful = sender.send(new File(filePath));
 			
 		} catch (IllegalArgumentException iae) {
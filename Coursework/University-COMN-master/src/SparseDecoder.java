@@ -0,0 +1,215 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The SparseDecoder class takes in the frames made by a {@link SparseEncoder}, in
+ * order, and writes out the data they hold. When writing to a file, the runs of
+ * zeros are skipped over rather than written, so that the file system leaves them
+ * as holes and the file takes up no more disk than the data in it. Parts of a run
+ * that fall within what the file held before are written as zeros, as skipping
+ * those would leave the old data in place.
+ *
+ * @author s0840449
+ *
+ */
+public class SparseDecoder extends OutputStream {
+
+	/* Zeros to write out a run from. */
+	private static final byte[] ZERO_BLOCK = new byte[SparseEncoder.BLOCK_SIZE];
+
+	/* Where the data goes - a file, which we can leave holes in, or a stream. */
+	private FileChannel channel;
+	private OutputStream output;
+
+	/* The length of the file before we started on it. */
+	private long initialSize;
+
+	/* Whether the last thing written was a hole. */
+	private boolean endsInHole;
+
+	/* Collects the frame header being read, and how much of the frame's data is
+	 * still to come. */
+	private ByteBuffer header;
+	private int dataLeft;
+
+	/**
+	 * Constructor which writes to a file from its current position, leaving
+	 * holes for the runs of zeros. The channel is closed once done.
+	 *
+	 * @param channel		The file to write to.
+	 *
+	 * @throws IOException	If the file's length cannot be read.
+	 */
+	public SparseDecoder(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.output = null;
+		this.initialSize = channel.size();
+		this.endsInHole = false;
+
+		this.header = ByteBuffer.allocate(1);
+		this.dataLeft = 0;
+	}
+
+	/**
+	 * Constructor which writes to a stream, writing the runs of zeros out in
+	 * full. The stream is closed once done.
+	 *
+	 * @param output	The stream to write to.
+	 */
+	public SparseDecoder(OutputStream output) {
+		this.channel = null;
+		this.output = output;
+		this.endsInHole = false;
+
+		this.header = ByteBuffer.allocate(1);
+		this.dataLeft = 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] data, int off, int len) throws IOException {
+
+		while (len > 0) {
+
+			if (dataLeft > 0) {
+
+				int count = Math.min(len, dataLeft);
+				writeOut(data, off, count);
+				endsInHole = false;
+				dataLeft -= count;
+				off += count;
+				len -= count;
+				continue;
+
+			}
+
+			int count = Math.min(len, header.remaining());
+			header.put(data, off, count);
+			off += count;
+			len -= count;
+
+			if (!header.hasRemaining()) {
+				readHeader();
+			}
+
+		}
+
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		try {
+
+			if (dataLeft > 0 || header.position() > 0) {
+				throw new IOException("The data ended part way through a frame.");
+			}
+
+			/* A hole at the end of a file does not make it any longer, so write
+			 * its last byte to give the file its full length. */
+			if (channel != null && endsInHole && channel.size() < channel.position()) {
+				channel.position(channel.position() - 1);
+				writeOut(ZERO_BLOCK, 0, 1);
+			}
+
+		} finally {
+
+			if (channel != null) {
+				channel.close();
+			} else {
+				output.close();
+			}
+
+		}
+
+	}
+
+	/* Acts on the frame header collected so far, growing the buffer if only its
+	 * type has been read. */
+	private void readHeader() throws IOException {
+
+		byte type = header.get(0);
+
+		int size;
+		switch (type) {
+		case SparseEncoder.DATA:
+			size = 5;
+			break;
+		case SparseEncoder.ZEROS:
+			size = 9;
+			break;
+		default:
+			throw new IOException("The data holds an unknown frame.");
+		}
+
+		if (header.capacity() < size) {
+			header = ByteBuffer.allocate(size).put(type);
+			return;
+		}
+
+		header.flip();
+		header.get();
+
+		if (type == SparseEncoder.DATA) {
+			dataLeft = header.getInt();
+			if (dataLeft <= 0 || dataLeft > SparseEncoder.MAX_DATA_LENGTH) {
+				throw new IOException("The data holds a malformed frame.");
+			}
+		} else {
+			long zeros = header.getLong();
+			if (zeros <= 0) {
+				throw new IOException("The data holds a malformed frame.");
+			}
+			writeZeros(zeros);
+		}
+
+		header = ByteBuffer.allocate(1);
+
+	}
+
+	/* Writes a run of zeros, as a hole where we can. */
+	private void writeZeros(long zeros) throws IOException {
+
+		/* The part we cannot leave as a hole - all of it, for a stream. */
+		long toWrite = zeros;
+		if (channel != null) {
+			toWrite = Math.max(0, Math.min(zeros, initialSize - channel.position()));
+		}
+
+		for (long written = 0; written < toWrite; ) {
+			int count = (int) Math.min(ZERO_BLOCK.length, toWrite - written);
+			writeOut(ZERO_BLOCK, 0, count);
+			written += count;
+		}
+
+		if (channel != null && zeros > toWrite) {
+			channel.position(channel.position() + zeros - toWrite);
+			endsInHole = true;
+		}
+
+	}
+
+	/* Writes data out. */
+	private void writeOut(byte[] data, int off, int len) throws IOException {
+
+		if (channel == null) {
+			output.write(data, off, len);
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data, off, len);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+	}
+
+}
@@ -0,0 +1,189 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The SparseEncoder class replaces the runs of zeros in the data read from a stream
+ * with markers giving their length, for sending with {@link Sender4#setSparse(boolean)}
+ * or {@link Sender3#setSparse(boolean)}. Disk images and the like are often mostly
+ * zeros, and this way the zeros cost a few bytes on the wire rather than a packet
+ * per kilobyte, and {@link SparseDecoder} can leave them as holes in the file
+ * rather than writing them out.
+ * <p>
+ * The data is looked at in blocks of <a href="#BLOCK_SIZE">BLOCK_SIZE</a> bytes,
+ * the usual size of a file system block, so that the holes line up with the
+ * blocks the receiver's file system can leave out. It is read back out as frames:
+ * <ul>
+ * <li><a href="#DATA">DATA</a>, a four byte length, and that much data, which is
+ * at most <a href="#MAX_DATA_LENGTH">MAX_DATA_LENGTH</a>.
+ * <li><a href="#ZEROS">ZEROS</a> and an eight byte length: that many zeros.
+ * </ul>
+ *
+ * @author s0840449
+ *
+ */
+public class SparseEncoder extends InputStream {
+
+	/** The size of the blocks checked for zeros. */
+	public static final int BLOCK_SIZE = 4096;
+
+	/** The most data in one frame. */
+	public static final int MAX_DATA_LENGTH = 64 * 1024;
+
+	/** The type byte of a frame of data. */
+	public static final byte DATA = 0;
+
+	/** The type byte of a run of zeros. */
+	public static final byte ZEROS = 1;
+
+	/* The stream the data comes from, and how much more of it to read. */
+	private InputStream source;
+	private long sourceLeft;
+
+	/* The block read but not yet framed, if any. */
+	private byte[] block;
+	private int blockLength;
+
+	/* The frame being read out, and the position in it. */
+	private byte[] current;
+	private int position;
+
+	/**
+	 * Default constructor. Encodes everything up to the end of the stream.
+	 *
+	 * @param source	The stream to read the data from.
+	 */
+	public SparseEncoder(InputStream source) {
+		this(source, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor which encodes only the start of a stream.
+	 *
+	 * @param source	The stream to read the data from.
+	 * @param length	The most bytes to read from it.
+	 */
+	public SparseEncoder(InputStream source, long length) {
+		this.source = source;
+		this.sourceLeft = length;
+
+		this.block = new byte[BLOCK_SIZE];
+		this.blockLength = 0;
+
+		this.current = new byte[0];
+		this.position = 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		byte[] single = new byte[1];
+		if (read(single, 0, 1) < 0) {
+			return -1;
+		}
+
+		return 0xFF & single[0];
+
+	}
+
+	@Override
+	public int read(byte[] data, int off, int len) throws IOException {
+
+		if (len == 0) {
+			return 0;
+		}
+
+		while (position == current.length) {
+
+			if (blockLength == 0 && !readBlock()) {
+				return -1;
+			}
+
+			current = isZero(block, blockLength) ? zerosFrame() : dataFrame();
+			position = 0;
+
+		}
+
+		int count = Math.min(len, current.length - position);
+		System.arraycopy(current, position, data, off, count);
+		position += count;
+
+		return count;
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/* Frames the run of zero blocks starting with the one in hand. */
+	private byte[] zerosFrame() throws IOException {
+
+		long zeros = 0;
+		do {
+			zeros += blockLength;
+			blockLength = 0;
+		} while (readBlock() && isZero(block, blockLength));
+
+		return ByteBuffer.allocate(9).put(ZEROS).putLong(zeros).array();
+
+	}
+
+	/* Frames the run of non-zero blocks starting with the one in hand, up to
+	 * MAX_DATA_LENGTH. */
+	private byte[] dataFrame() throws IOException {
+
+		ByteBuffer frame = ByteBuffer.allocate(5 + MAX_DATA_LENGTH);
+		frame.put(DATA).putInt(0);
+
+		do {
+			frame.put(block, 0, blockLength);
+			blockLength = 0;
+		} while (frame.position() + BLOCK_SIZE <= frame.capacity() && readBlock() && !isZero(block, blockLength));
+
+		frame.putInt(1, frame.position() - 5);
+
+		byte[] framed = new byte[frame.position()];
+		System.arraycopy(frame.array(), 0, framed, 0, framed.length);
+
+		return framed;
+
+	}
+
+	/* Reads the next block, which is short only at the end of the data. Returns
+	 * false if there is none. */
+	private boolean readBlock() throws IOException {
+
+		int length = (int) Math.min(BLOCK_SIZE, sourceLeft);
+
+		while (blockLength < length) {
+			int read = source.read(block, blockLength, length - blockLength);
+			if (read < 0) {
+				break;
+			}
+			blockLength += read;
+		}
+
+		sourceLeft -= blockLength;
+
+		return blockLength > 0;
+
+	}
+
+	/* Returns whether the start of a buffer is all zeros. */
+	private static boolean isZero(byte[] data, int len) {
+
+		for (int i = 0; i < len; i++) {
+			if (data[i] != 0) {
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+}
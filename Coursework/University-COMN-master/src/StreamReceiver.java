@@ -0,0 +1,304 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The StreamReceiver class receives a session of several independent streams sent
+ * by a {@link StreamSender}, writing stream i to the file <tt>stream-i</tt> in the
+ * output directory. See {@link StreamSender} for the packet format.
+ * <p>
+ * Every data packet is acked by its session packet number as it arrives. Each
+ * stream then writes its packets in order on its own: a packet that comes ahead
+ * of a gap is buffered with its stream, and only that stream waits for the gap to
+ * be filled. The other streams carry on writing.
+ * <p>
+ * As with {@link Receiver4}, the session ends on a FIN, or
+ * <a href="Receiver4.html#LINGER_LENGTH">LINGER_LENGTH</a> after the last packet
+ * once every stream has been written.
+ *
+ * @author s0840449
+ *
+ */
+public class StreamReceiver {
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* The directory to write the streams to. */
+	private File directory;
+
+	/* The port number to listen for data on. */
+	private int portNumber;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param directory		The directory to write the streams to.
+	 * @param portNumber	The port number to wait for data on.
+	 */
+	public StreamReceiver(File directory, int portNumber) {
+
+		if (!directory.isDirectory()) {
+			throw new IllegalArgumentException("\"" + directory.getPath() + "\" is not a directory.");
+		}
+
+		this.directory = directory;
+		this.portNumber = portNumber;
+	}
+
+	/**
+	 * The Stream class holds the receiving state of one stream.
+	 */
+	private class Stream {
+
+		private FileOutputStream writer;
+
+		/* The stream packet number we are waiting to write next. */
+		private int nextSeq;
+
+		/* Packets that arrived ahead of a gap in this stream. */
+		private Map<Integer, BufferedPacket> bufferedPackets;
+
+		private boolean finished;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param streamId		The stream number.
+		 *
+		 * @throws IOException	If the output file cannot be opened.
+		 */
+		public Stream(int streamId) throws IOException {
+			this.writer = new FileOutputStream(new File(directory, "stream-" + streamId));
+			this.nextSeq = 0;
+			this.bufferedPackets = new HashMap<Integer, BufferedPacket>();
+			this.finished = false;
+		}
+
+		/**
+		 * Takes in a packet of the stream, writing it and any buffered packets it
+		 * frees if it is the next one, or buffering it if it comes after a gap.
+		 *
+		 * @param streamSeq		The packet's number within the stream.
+		 * @param data			The packet's data.
+		 * @param eof			Whether this is the last packet of the stream.
+		 *
+		 * @throws IOException	If the output file cannot be written.
+		 */
+		public void receive(int streamSeq, byte[] data, boolean eof) throws IOException {
+
+			if (streamSeq < nextSeq || bufferedPackets.containsKey(streamSeq)) {
+				return;
+			}
+
+			bufferedPackets.put(streamSeq, new BufferedPacket(streamSeq, data, eof));
+
+			BufferedPacket packet;
+			while ((packet = bufferedPackets.remove(nextSeq)) != null) {
+
+				writer.write(packet.getData());
+				nextSeq++;
+
+				if (packet.isEof()) {
+					finished = true;
+					writer.close();
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Receives a session, writing each stream to its own file.
+	 *
+	 * @return		True if every stream was received and written, False otherwise.
+	 */
+	public boolean receive() {
+
+		DatagramSocket receiverSocket = null;
+		DatagramSocket ackSocket = null;
+
+		/* The streams seen so far, and how many the session has. */
+		Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+		int numStreams = -1;
+		int streamsFinished = 0;
+
+		try {
+
+			receiverSocket = new DatagramSocket(portNumber);
+			ackSocket = new DatagramSocket();
+
+			byte[] receivedData = new byte[StreamSender.PACKET_SIZE];
+
+			while (true) {
+
+				DatagramPacket receivedPacket = new DatagramPacket(receivedData, receivedData.length);
+
+				try {
+					receiverSocket.receive(receivedPacket);
+				} catch (SocketTimeoutException ste) {
+
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: No FIN received, closing anyway.");
+					}
+
+					break;
+
+				}
+
+				int currentPacketSize = receivedPacket.getLength();
+				if (currentPacketSize < StreamSender.HEADER_SIZE) {
+					continue;
+				}
+
+				ByteBuffer header = ByteBuffer.wrap(receivedData, 0, StreamSender.HEADER_SIZE);
+				int packetNum = header.getInt();
+				int streamId = 0xFFFF & header.getShort();
+				int streamCount = 0xFFFF & header.getShort();
+				int streamSeq = header.getInt();
+				byte flags = header.get();
+
+				/* FIN check. */
+				if (flags == Sender4.FIN) {
+
+					byte[] finAckBuffer = { 0, 0, 0, 0, Sender4.FIN };
+					ackSocket.send(new DatagramPacket(finAckBuffer, finAckBuffer.length,
+							receivedPacket.getAddress(), portNumber + 1));
+
+					break;
+
+				}
+
+				if (streamId >= streamCount) {
+					continue;
+				}
+				numStreams = streamCount;
+
+				Stream stream = streams.get(streamId);
+				if (stream == null) {
+					stream = new Stream(streamId);
+					streams.put(streamId, stream);
+				}
+
+				if (!stream.finished) {
+
+					byte[] data = new byte[currentPacketSize - StreamSender.HEADER_SIZE];
+					System.arraycopy(receivedData, StreamSender.HEADER_SIZE, data, 0, data.length);
+
+					stream.receive(streamSeq, data, flags == StreamSender.END_OF_STREAM);
+
+					if (stream.finished) {
+						streamsFinished++;
+
+						if (DEBUG_MODE) {
+							System.out.println("DEBUG: Stream " + streamId + " finished.");
+						}
+					}
+
+				}
+
+				/* Ack every packet, including repeats whose ack was lost. */
+				byte[] ackBuffer = ByteBuffer.allocate(4).putInt(packetNum).array();
+				ackSocket.send(new DatagramPacket(ackBuffer, ackBuffer.length,
+						receivedPacket.getAddress(), portNumber + 1));
+
+				/* Stop waiting for a FIN if the sender goes quiet. */
+				if (streamsFinished == numStreams) {
+					receiverSocket.setSoTimeout(Receiver4.LINGER_LENGTH);
+				}
+
+			}
+
+		} catch (SocketException se) {
+
+			System.err.println("Error: Unable to open a datagram socket:");
+			System.err.println(se.getMessage());
+			return false;
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		} finally {
+
+			if (receiverSocket != null) {
+				receiverSocket.close();
+			}
+			if (ackSocket != null) {
+				ackSocket.close();
+			}
+
+			for (Stream stream : streams.values()) {
+				try {
+					stream.writer.close();
+				} catch (IOException ioe) { }
+			}
+
+		}
+
+		if (streamsFinished != numStreams) {
+			System.err.println("Error: Only " + streamsFinished + " of " + numStreams + " streams were received.");
+			return false;
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * The main method for running the StreamReceiver class. There are two
+	 * compulsory arguments - the port number to listen on and the directory
+	 * to write the streams to.
+	 *
+	 * @param args		The program arguments: the port number and the output
+	 * 					directory.
+	 */
+	public static void main(String[] args) {
+
+		boolean receiveSuccessful = false;
+
+		if (args.length != 2) {
+			System.err.println("Usage: java StreamReceiver port directory");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File directory = new File(args[1]);
+
+			StreamReceiver receiver = new StreamReceiver(directory, portNumber);
+			receiveSuccessful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (receiveSuccessful) {
+			System.out.println("Success! Streams have been received.");
+		} else {
+			System.err.println("Streams were not received successfully. Please try again.");
+		}
+
+	}
+
+}
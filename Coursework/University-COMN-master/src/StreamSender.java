@@ -0,0 +1,510 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The StreamSender class sends several files at once as independent streams within
+ * one session, to a {@link StreamReceiver}. With {@link Sender4}, a session carries a
+ * single ordered stream, so a lost packet holds up everything behind it until it is
+ * re-sent. Here each stream is delivered in order on its own, so a loss in one
+ * stream never holds up the others - a small file of metadata, say, is not stuck
+ * behind a lost packet of a large file sent with it.
+ * <p>
+ * The streams share one window, one ack socket, one round trip estimate and one
+ * congestion window (see {@link CongestionState}). Each new packet comes from the
+ * next stream in turn that has data left. Packets are numbered across the session
+ * for acking, and each also carries its number within its stream for ordering:
+ * <ul>
+ * <li>The first four bytes are the session packet number.
+ * <li>The next two bytes are the stream number, and the two after that the number
+ * of streams in the session.
+ * <li>The next four bytes are the packet's number within its stream.
+ * <li>The next byte is the flags byte: 1 for the last packet of a stream, or
+ * <a href="Sender4.html#FIN">FIN</a> for a header only FIN packet.
+ * <li>The remaining (<a href="#PACKET_SIZE">PACKET_SIZE</a> - 13) bytes are data.
+ * </ul>
+ * The ack packet is the four byte session packet number; the FIN-ACK is four zero
+ * bytes followed by FIN. Acks come back on the port + 1.
+ * <p>
+ * The window counts the packets sent but not yet acked, rather than the span from
+ * the oldest unacked packet, so a lost packet does not stop new packets from the
+ * other streams being sent while it waits to be re-sent.
+ *
+ * @author s0840449
+ *
+ */
+public class StreamSender {
+
+	/** Defines the size of a packet, in bytes. */
+	public static final int PACKET_SIZE = 1024;
+
+	/** The size of the packet header. */
+	public static final int HEADER_SIZE = 13;
+
+	/** The flags byte value of the last packet of a stream. */
+	public static final byte END_OF_STREAM = 1;
+
+	/* Using a constant value for DEBUG_MODE allows the compiler to
+	 * optimise away the if statements that rely on it and thus remove
+	 * all performance hits when debugging is off. */
+	private static final boolean DEBUG_MODE = false;
+
+	/* The number of times we send a FIN packet before giving up on a FIN-ACK. */
+	private static final int MAX_FIN_ATTEMPTS = 10;
+
+	/* The receiving host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* The socket packets are sent from. */
+	private DatagramSocket senderSocket;
+
+	/* The packets sent but not yet acked, by session packet number. */
+	private Map<Integer, WindowPacket> windowPackets;
+
+	/* The shared round trip estimate and congestion window. */
+	private RttEstimator rttEstimator;
+	private CongestionState congestionState;
+
+	/* Flag to stop the ack thread. */
+	private volatile boolean stopThread;
+
+	/* Set by the ack thread when the receiver answers our FIN. */
+	private volatile boolean finAcked;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The receiving host.
+	 * @param portNumber	The port number on the receiving host.
+	 * @param windowSize	The most packets unacked at once, across all streams.
+	 */
+	public StreamSender(String host, int portNumber, int windowSize) {
+		this.host = host;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+
+		this.stopThread = false;
+		this.finAcked = false;
+	}
+
+	/**
+	 * The Stream class holds the sending state of one stream.
+	 */
+	private static class Stream {
+
+		private File dataFile;
+		private FileInputStream reader;
+		private long bytesLeft;
+		private int streamSeq;
+		private boolean ended;
+
+		/* Used to report the time taken. */
+		private long finished;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param dataFile		The file the stream carries.
+		 *
+		 * @throws FileNotFoundException	If the file cannot be opened.
+		 */
+		public Stream(File dataFile) throws FileNotFoundException {
+			this.dataFile = dataFile;
+			this.reader = new FileInputStream(dataFile);
+			this.bytesLeft = dataFile.length();
+			this.streamSeq = 0;
+			this.ended = false;
+			this.finished = 0;
+		}
+
+	}
+
+	/**
+	 * This thread monitors incoming acks. When an ack is received the relevant
+	 * packet is removed from the window.
+	 */
+	private class ACKThread extends Thread {
+
+		private DatagramSocket ackSocket;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @throws SocketException	If the ack port cannot be opened.
+		 */
+		public ACKThread() throws SocketException {
+			this.ackSocket = new DatagramSocket(portNumber + 1);
+		}
+
+		/**
+		 * The main method for the thread. Constantly waits for ack packets to
+		 * arrive and acks the relevant packet.
+		 */
+		public void run() {
+
+			while (!stopThread) {
+
+				try {
+
+					byte[] ackBuffer = new byte[5];
+					DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+
+					/* Timeout so that we will keep checking for stopThread rather than
+					 * just blocking forever. */
+					ackSocket.setSoTimeout(50);
+					ackSocket.receive(ackPacket);
+
+					/* The answer to our FIN. */
+					if (ackPacket.getLength() == 5 && ackBuffer[4] == Sender4.FIN) {
+						finAcked = true;
+						continue;
+					}
+
+					if (ackPacket.getLength() != 4) {
+						continue;
+					}
+
+					int ackPacketNum = ByteBuffer.wrap(ackBuffer).getInt();
+
+					synchronized (windowPackets) {
+
+						WindowPacket packet = windowPackets.remove(ackPacketNum);
+
+						if (packet != null) {
+
+							/* Only packets sent once give a reliable round trip time. */
+							if (packet.getTimesSent() == 1) {
+								rttEstimator.addSample(System.currentTimeMillis() - packet.getTimeLastSent());
+							}
+
+							congestionState.onAck();
+
+						}
+
+					}
+
+					if (DEBUG_MODE) {
+						System.out.println("DEBUG: Received ack for packet num " + ackPacketNum);
+					}
+
+				} catch (SocketTimeoutException ste) {
+					/* Ignore timeouts. */
+				} catch (IOException e) {
+					System.err.println("Error: IO exception - " + e.getMessage());
+				}
+
+			}
+
+			ackSocket.close();
+
+		}
+
+	}
+
+	/**
+	 * Attempt to send several files, each as a stream of its own. Stream i carries
+	 * the i-th file.
+	 *
+	 * @param dataFiles		The files to send.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 * 			A return value of True does <b>not</b> guarantee that the
+	 * 			data made it successfully to the receiver, only that an
+	 * 			ack was received for every packet sent.
+	 */
+	public boolean send(File[] dataFiles) {
+
+		if (dataFiles.length < 1 || dataFiles.length > 0xFFFF) {
+			throw new IllegalArgumentException("Between 1 and 65535 files can be sent at once.");
+		}
+
+		List<Stream> streams = new ArrayList<Stream>();
+
+		for (File dataFile : dataFiles) {
+
+			if (!dataFile.canRead()) {
+				throw new IllegalArgumentException("Cannot read input file \"" +
+						dataFile.getName() + "\". Please check file permissions and try again.");
+			}
+
+			try {
+				streams.add(new Stream(dataFile));
+			} catch (FileNotFoundException fnfe) {
+				throw new IllegalArgumentException("Input file \"" + dataFile.getName() +
+						"\" does not exist.");
+			}
+
+		}
+
+		windowPackets = new LinkedHashMap<Integer, WindowPacket>();
+		rttEstimator = new RttEstimator();
+		congestionState = new CongestionState();
+		congestionState.join(this, 1, windowSize);
+
+		ACKThread ackThread = null;
+
+		try {
+
+			senderSocket = new DatagramSocket();
+			InetAddress ipAddress = InetAddress.getByName(host);
+
+			ackThread = new ACKThread();
+			ackThread.start();
+
+			int packetNum = 0;
+			int nextStream = 0;
+			int streamsLeft = streams.size();
+
+			/* Used to monitor throughput for the coursework question. */
+			long before = System.currentTimeMillis();
+			long totalLength = 0;
+			for (Stream stream : streams) {
+				totalLength += stream.dataFile.length();
+			}
+
+			while (true) {
+
+				synchronized (windowPackets) {
+
+					/* Report the streams that have been fully acked. */
+					for (int i = 0; i < streams.size(); i++) {
+						Stream stream = streams.get(i);
+						if (stream.ended && stream.finished == 0 && !hasPacketsOf(i)) {
+							stream.finished = System.currentTimeMillis();
+						}
+					}
+
+					if (streamsLeft == 0 && windowPackets.isEmpty()) {
+						break;
+					}
+
+					/* Re-send the timed out packets. */
+					long now = System.currentTimeMillis();
+					for (WindowPacket packet : windowPackets.values()) {
+
+						if (now > packet.getTimeLastSent() + Sender4.TIMEOUT_LENGTH) {
+
+							congestionState.onLoss(packet.getTimeLastSent());
+
+							if (DEBUG_MODE) {
+								System.out.println("DEBUG: Re-sending packet " + packet.getPacketNum());
+							}
+
+							senderSocket.send(packet.getPacket());
+							packet.setTimeLastSent(now);
+
+						}
+
+					}
+
+					/* Send new packets, taking each from the next stream in turn. */
+					int window = Math.min(windowSize, congestionState.getWindow(this));
+					while (windowPackets.size() < window && streamsLeft > 0) {
+
+						while (streams.get(nextStream).ended) {
+							nextStream = (nextStream + 1) % streams.size();
+						}
+
+						Stream stream = streams.get(nextStream);
+
+						/* If in the final packet, there may be less than
+						 * PACKET_SIZE - HEADER_SIZE bytes left to send. */
+						int datalen = (int) Math.min(stream.bytesLeft, PACKET_SIZE - HEADER_SIZE);
+						boolean end = stream.bytesLeft <= (PACKET_SIZE - HEADER_SIZE);
+
+						ByteBuffer sendData = ByteBuffer.allocate(datalen + HEADER_SIZE);
+						sendData.putInt(packetNum);
+						sendData.putShort((short) nextStream);
+						sendData.putShort((short) streams.size());
+						sendData.putInt(stream.streamSeq);
+						sendData.put(end ? END_OF_STREAM : 0);
+
+						stream.reader.read(sendData.array(), HEADER_SIZE, datalen);
+						stream.bytesLeft -= datalen;
+						stream.streamSeq++;
+
+						if (end) {
+							stream.ended = true;
+							stream.reader.close();
+							streamsLeft--;
+						}
+
+						DatagramPacket sendPacket = new DatagramPacket(sendData.array(), sendData.capacity(),
+								ipAddress, portNumber);
+						WindowPacket packet = new WindowPacket(sendPacket, false, packetNum);
+						windowPackets.put(packetNum, packet);
+
+						senderSocket.send(sendPacket);
+						packet.setTimeLastSent(System.currentTimeMillis());
+
+						packetNum++;
+						nextStream = (nextStream + 1) % streams.size();
+
+					}
+
+				}
+
+				try { Thread.sleep(1); } catch (InterruptedException e) { }
+
+			}
+
+			if (!close(ipAddress) && DEBUG_MODE) {
+				System.out.println("DEBUG: No FIN-ACK received, the receiver will time out instead.");
+			}
+
+			/* Calculate the throughput, and when each stream finished. */
+			double timeTaken = (System.currentTimeMillis() - before) / 1000.0;
+			System.out.println("Time taken: " + timeTaken);
+			System.out.println("Throughput: " + (totalLength / 1024.0 / timeTaken) + " kB/s");
+
+			for (int i = 0; i < streams.size(); i++) {
+				Stream stream = streams.get(i);
+				System.out.println("Stream " + i + " (" + stream.dataFile.getName() + ") acked after " +
+						(stream.finished - before) / 1000.0 + " s");
+			}
+
+		} catch (SocketException se) {
+			System.err.println("Error: Socket exception:");
+			System.err.println(se.getMessage());
+			return false;
+		} catch (UnknownHostException uhe) {
+			System.err.println("Error: Host \"" + host + "\" was not found.");
+			return false;
+		} catch (IOException e) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(e.getMessage());
+			return false;
+		} finally {
+
+			stopThread = true;
+
+			if (ackThread != null) {
+				try {
+					ackThread.join();
+				} catch (InterruptedException ie) { }
+			}
+
+			if (senderSocket != null) {
+				senderSocket.close();
+			}
+
+			for (Stream stream : streams) {
+				try {
+					stream.reader.close();
+				} catch (IOException ioe) { }
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/* Returns whether any packet of a stream is still unacked. The caller must
+	 * hold the window lock. */
+	private boolean hasPacketsOf(int streamId) {
+
+		for (WindowPacket packet : windowPackets.values()) {
+			if (ByteBuffer.wrap(packet.getPacket().getData()).getShort(4) == (short) streamId) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Closes the session by sending a FIN packet until the ack thread hears
+	 * a FIN-ACK.
+	 *
+	 * @param ipAddress		The address of the receiver.
+	 *
+	 * @return				True if a FIN-ACK was received, false if we gave up.
+	 *
+	 * @throws IOException	If the FIN packet cannot be sent.
+	 */
+	private boolean close(InetAddress ipAddress) throws IOException {
+
+		byte[] finData = new byte[HEADER_SIZE];
+		finData[HEADER_SIZE - 1] = Sender4.FIN;
+		DatagramPacket finPacket = new DatagramPacket(finData, finData.length, ipAddress, portNumber);
+
+		for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS && !finAcked; attempt++) {
+
+			senderSocket.send(finPacket);
+
+			long resendTime = System.currentTimeMillis() + Sender4.TIMEOUT_LENGTH;
+			while (!finAcked && System.currentTimeMillis() < resendTime) {
+				try { Thread.sleep(1); } catch (InterruptedException e) { }
+			}
+
+		}
+
+		return finAcked;
+
+	}
+
+	/**
+	 * The main method for running the StreamSender class. There are four or more
+	 * arguments - the host name, port number, window size, and the files to send,
+	 * each of which becomes a stream.
+	 *
+	 * @param args	The program arguments: the host name, the port number, the
+	 * 				window size, and the names of the files to send.
+	 */
+	public static void main(String[] args) {
+
+		boolean sendSuccessful = false;
+
+		if (args.length < 4) {
+			System.err.println("Usage: java StreamSender host_name port windowsize filename [filename ...]");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+
+			File[] dataFiles = new File[args.length - 3];
+			for (int i = 3; i < args.length; i++) {
+				dataFiles[i - 3] = new File(args[i]);
+			}
+
+			StreamSender sender = new StreamSender(host, portNumber, windowSize);
+			sendSuccessful = sender.send(dataFiles);
+
+		} catch (IllegalArgumentException iae) {
+			/* Includes NumberFormatException. */
+			System.err.println("Error: " + iae.getMessage());
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! Files have been sent.");
+		} else {
+			System.err.println("Files were not sent successfully. Please try again.");
+		}
+
+	}
+
+}
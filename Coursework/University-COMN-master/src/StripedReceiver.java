@@ -0,0 +1,260 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * The StripedReceiver class receives a file sent as several stripes at once by
+ * {@link StripedSender}. Once the setup packet gives us the file length, each
+ * stripe is received by its own thread using the selective-repeat protocol (see
+ * {@link Receiver4}) on its own port, and written into the file at its offset.
+ * <p>
+ * The setup packet keeps being acked while the stripes arrive, in case the
+ * ack was lost.
+ *
+ * @author s0840449
+ *
+ */
+public class StripedReceiver {
+
+	/* How often (in ms) we check whether every stripe has arrived. */
+	private static final int POLL_LENGTH = 100;
+
+	/* The file name to write to. */
+	private String fileName;
+
+	/* The first port number to listen for data on. */
+	private int portNumber;
+
+	/* The window size of each stripe, and the number of stripes. */
+	private int windowSize;
+	private int numStripes;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param fileName		The output file name to write to.
+	 * @param portNumber	The first port number to wait for data on. Each
+	 * 						stripe uses two ports from here on.
+	 * @param windowSize	The window size of each stripe. Must match the sender.
+	 * @param numStripes	The number of stripes. Must match the sender.
+	 */
+	public StripedReceiver(String fileName, int portNumber, int windowSize, int numStripes) {
+
+		if (numStripes < 1) {
+			throw new IllegalArgumentException("Number of stripes must be at least 1.");
+		}
+
+		this.fileName = fileName;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+		this.numStripes = numStripes;
+	}
+
+	/**
+	 * The StripeThread class receives one stripe of the file, a segment at a time.
+	 */
+	private class StripeThread extends Thread {
+
+		private int stripe;
+		private long offset;
+		private long length;
+
+		private boolean successful;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param stripe		The stripe number.
+		 * @param offset		Where the stripe starts in the file.
+		 * @param length		The length of the stripe.
+		 */
+		public StripeThread(int stripe, long offset, long length) {
+			this.stripe = stripe;
+			this.offset = offset;
+			this.length = length;
+			this.successful = true;
+		}
+
+		/**
+		 * The main method for the thread. Receives each segment of the stripe in turn.
+		 */
+		public void run() {
+
+			long received = 0;
+
+			while (successful && received < length) {
+
+				Receiver4 receiver = new Receiver4(fileName, portNumber + 2 * stripe, windowSize);
+				receiver.setIdleTimeout(StripedSender.IDLE_TIMEOUT_LENGTH);
+				successful = receiver.receive(offset + received);
+
+				received += Math.min(StripedSender.SEGMENT_SIZE, length - received);
+
+			}
+
+		}
+
+		/**
+		 * Returns whether the stripe was received.
+		 *
+		 * @return		True once every segment of the stripe has been written.
+		 */
+		public boolean isSuccessful() {
+			return successful;
+		}
+
+	}
+
+	/**
+	 * Receives a file sent as several stripes and writes it to the output file.
+	 *
+	 * @return		True if data is correctly received and the output file
+	 * 				written, False otherwise.
+	 */
+	public boolean receive() {
+
+		DatagramSocket setupSocket = null;
+		StripeThread[] stripeThreads = new StripeThread[numStripes];
+
+		try {
+
+			setupSocket = new DatagramSocket(portNumber + 2 * numStripes);
+
+			/* Wait for the file length. */
+			DatagramPacket setupPacket;
+			byte[] setupBuffer = new byte[11];
+			do {
+				setupPacket = new DatagramPacket(setupBuffer, setupBuffer.length);
+				setupSocket.receive(setupPacket);
+			} while (setupPacket.getLength() != 11 || setupBuffer[2] != StripedSender.SETUP);
+
+			long dataFileLength = ByteBuffer.wrap(setupBuffer, 3, 8).getLong();
+
+			/* Set the file to its full length up front, as the stripes
+			 * are written into it out of order. */
+			RandomAccessFile writer = new RandomAccessFile(new File(this.fileName), "rw");
+			writer.setLength(0);
+			writer.setLength(dataFileLength);
+			writer.close();
+
+			for (int stripe = 0; stripe < numStripes; stripe++) {
+				stripeThreads[stripe] = new StripeThread(stripe,
+						StripedSender.getStripeOffset(dataFileLength, numStripes, stripe),
+						StripedSender.getStripeLength(dataFileLength, numStripes, stripe));
+				stripeThreads[stripe].start();
+			}
+
+			/* Ack the setup packet, and any re-sends of it, until every
+			 * stripe has arrived. */
+			byte[] ackBuffer = { 0, 0, StripedSender.SETUP };
+			setupSocket.send(new DatagramPacket(ackBuffer, ackBuffer.length,
+					setupPacket.getAddress(), portNumber + 2 * numStripes + 1));
+
+			setupSocket.setSoTimeout(POLL_LENGTH);
+
+			for (int stripe = 0; stripe < numStripes; stripe++) {
+
+				while (stripeThreads[stripe].isAlive()) {
+
+					setupPacket = new DatagramPacket(setupBuffer, setupBuffer.length);
+
+					try {
+						setupSocket.receive(setupPacket);
+					} catch (SocketTimeoutException ste) {
+						continue;
+					}
+
+					if (setupPacket.getLength() == 11 && setupBuffer[2] == StripedSender.SETUP) {
+						setupSocket.send(new DatagramPacket(ackBuffer, ackBuffer.length,
+								setupPacket.getAddress(), portNumber + 2 * numStripes + 1));
+					}
+
+				}
+
+				if (!stripeThreads[stripe].isSuccessful()) {
+					return false;
+				}
+
+			}
+
+		} catch (SocketException se) {
+
+			System.err.println("Error: Unable to open a datagram socket:");
+			System.err.println(se.getMessage());
+			return false;
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		} finally {
+
+			if (setupSocket != null) {
+				setupSocket.close();
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * The main method for running the StripedReceiver class. There are four
+	 * compulsory arguments - the first port number to receive on, the name of
+	 * the file to write, the window size of each stripe and the number of stripes.
+	 *
+	 * @param args		The program arguments: the first port number, the name of
+	 * 					the file that is to be written, the window size and the
+	 * 					number of stripes.
+	 */
+	public static void main(String[] args) {
+
+		int portNumber;
+		String fileName = null;
+		int windowSize;
+		int numStripes;
+		boolean successful = false;
+
+		if (args.length != 4) {
+			System.err.println("Usage: java StripedReceiver port filename window_size stripes");
+			System.exit(-1);
+		}
+
+		try {
+			portNumber = Integer.parseInt(args[0]);
+			fileName = args[1];
+			windowSize = Integer.parseInt(args[2]);
+			numStripes = Integer.parseInt(args[3]);
+
+			/* Attempt to receive data and write it to the given file. */
+			StripedReceiver receiver = new StripedReceiver(fileName, portNumber, windowSize, numStripes);
+			successful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number, window size or number of stripes " +
+					"to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (successful) {
+			System.out.println("Success! A file has been received and written to " + fileName);
+		} else {
+			System.err.println("File was not received successfully. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,343 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * The StripedSender class sends a file as a number of stripes at once, to
+ * spread the work over several cores and several flows rather than being
+ * limited by a single send loop and window.
+ * <p>
+ * The file is split into one contiguous byte range (stripe) per stripe number.
+ * Each stripe is sent by its own thread using the selective-repeat protocol (see
+ * {@link Sender4}), with its own window and its own pair of sockets: stripe i
+ * sends to the port + 2i and hears acks on the port + 2i + 1. The
+ * {@link StripedReceiver} writes each stripe into the file at its offset.
+ * <p>
+ * A stripe longer than <a href="#SEGMENT_SIZE">SEGMENT_SIZE</a> is sent in
+ * several segments, one after the other, as one run of the selective-repeat
+ * protocol only has 65536 packet numbers. Both ends give up on a stripe that
+ * hears nothing for <a href="#IDLE_TIMEOUT_LENGTH">IDLE_TIMEOUT_LENGTH</a>.
+ * <p>
+ * Before the stripes start, the file length is sent to the receiver in a setup
+ * packet, so that both sides split the file the same way. The setup packet goes
+ * to the port + 2n (for n stripes) and is re-sent until acked on the port + 2n + 1:
+ * <ul>
+ * <li>The first two bytes are 0.
+ * <li>The next byte is <a href="#SETUP">SETUP</a>.
+ * <li>The next eight bytes are the length of the file.
+ * </ul>
+ * The ack packet is the first three bytes of the setup packet.
+ *
+ * @author s0840449
+ *
+ */
+public class StripedSender {
+
+	/** The packet type byte of a setup packet. */
+	public static final byte SETUP = 6;
+
+	/** The most data sent in one run of the selective-repeat protocol. Small
+	 * enough that a segment never needs more packet numbers than it has. */
+	public static final long SEGMENT_SIZE = 32 * 1024 * 1024;
+
+	/** How long (in ms) a stripe waits to hear from the other end before giving up. */
+	public static final int IDLE_TIMEOUT_LENGTH = 10000;
+
+	/* How long (in ms) to wait for the setup packet to be acked, and how
+	 * many times to try. */
+	private static final int SETUP_TIMEOUT_LENGTH = 500;
+	private static final int MAX_SETUP_ATTEMPTS = 20;
+
+	/* The host to send to and the first port number. */
+	private String host;
+	private int portNumber;
+
+	/* The window size of each stripe, and the number of stripes. */
+	private int windowSize;
+	private int numStripes;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The host to send the data to.
+	 * @param portNumber	The first port number to send the data to. Each
+	 * 						stripe uses two ports from here on.
+	 * @param windowSize	The window size of each stripe.
+	 * @param numStripes	The number of stripes. Must match the receiver.
+	 */
+	public StripedSender(String host, int portNumber, int windowSize, int numStripes) {
+
+		if (numStripes < 1) {
+			throw new IllegalArgumentException("Number of stripes must be at least 1.");
+		}
+
+		this.host = host;
+		this.portNumber = portNumber;
+		this.windowSize = windowSize;
+		this.numStripes = numStripes;
+	}
+
+	/**
+	 * The StripeThread class sends one stripe of the file, a segment at a time.
+	 */
+	private class StripeThread extends Thread {
+
+		private File dataFile;
+		private int stripe;
+		private long offset;
+		private long length;
+
+		private boolean successful;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param dataFile		The file being sent.
+		 * @param stripe		The stripe number.
+		 * @param offset		Where the stripe starts in the file.
+		 * @param length		The length of the stripe.
+		 */
+		public StripeThread(File dataFile, int stripe, long offset, long length) {
+			this.dataFile = dataFile;
+			this.stripe = stripe;
+			this.offset = offset;
+			this.length = length;
+			this.successful = true;
+		}
+
+		/**
+		 * The main method for the thread. Sends each segment of the stripe in turn.
+		 */
+		public void run() {
+
+			long sent = 0;
+
+			while (successful && sent < length) {
+
+				long segmentLength = Math.min(SEGMENT_SIZE, length - sent);
+
+				Sender4 sender = new Sender4(host, portNumber + 2 * stripe, windowSize);
+				sender.setIdleTimeout(IDLE_TIMEOUT_LENGTH);
+				successful = sender.send(dataFile, offset + sent, segmentLength);
+
+				sent += segmentLength;
+
+			}
+
+		}
+
+		/**
+		 * Returns whether the stripe was sent.
+		 *
+		 * @return		True once every segment of the stripe has been acked.
+		 */
+		public boolean isSuccessful() {
+			return successful;
+		}
+
+	}
+
+	/**
+	 * Attempt to send the data contained in a file, as several stripes at once.
+	 *
+	 * @param dataFile		The file to get the data from.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 * 			A return value of True does <b>not</b> guarantee that the
+	 * 			data made it successfully to the receiver, only that an
+	 * 			ack was received for every packet sent.
+	 */
+	public boolean send(File dataFile) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		long dataFileLength = dataFile.length();
+
+		try {
+
+			if (!sendSetup(InetAddress.getByName(host), dataFileLength)) {
+				System.err.println("Error: The receiver did not ack the setup packet.");
+				return false;
+			}
+
+		} catch (SocketException se) {
+			System.err.println("Error: Socket exception:");
+			System.err.println(se.getMessage());
+			return false;
+		} catch (UnknownHostException uhe) {
+			System.err.println("Error: Host \"" + host + "\" was not found.");
+			return false;
+		} catch (IOException e) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(e.getMessage());
+			return false;
+		}
+
+		/* Used to monitor throughput for the coursework question. */
+		long before = System.currentTimeMillis();
+
+		StripeThread[] stripeThreads = new StripeThread[numStripes];
+		for (int stripe = 0; stripe < numStripes; stripe++) {
+			stripeThreads[stripe] = new StripeThread(dataFile, stripe,
+					getStripeOffset(dataFileLength, numStripes, stripe),
+					getStripeLength(dataFileLength, numStripes, stripe));
+			stripeThreads[stripe].start();
+		}
+
+		boolean successful = true;
+		for (int stripe = 0; stripe < numStripes; stripe++) {
+
+			try {
+				stripeThreads[stripe].join();
+			} catch (InterruptedException ie) {
+				return false;
+			}
+
+			successful &= stripeThreads[stripe].isSuccessful();
+
+		}
+
+		/* Calculate the throughput over the whole file. */
+		double timeTaken = (System.currentTimeMillis() - before) / 1000.0;
+		System.out.println("Total time taken: " + timeTaken);
+		System.out.println("Total throughput: " + (dataFileLength / 1024.0 / timeTaken) + " kB/s");
+
+		return successful;
+
+	}
+
+	/* Sends the setup packet until it is acked, and returns whether it was. */
+	private boolean sendSetup(InetAddress ipAddress, long dataFileLength) throws IOException {
+
+		ByteBuffer setupBuffer = ByteBuffer.allocate(11);
+		setupBuffer.putShort((short) 0);
+		setupBuffer.put(SETUP);
+		setupBuffer.putLong(dataFileLength);
+
+		DatagramSocket setupSocket = new DatagramSocket(portNumber + 2 * numStripes + 1);
+
+		try {
+
+			DatagramPacket setupPacket = new DatagramPacket(setupBuffer.array(), setupBuffer.capacity(),
+					ipAddress, portNumber + 2 * numStripes);
+			setupSocket.setSoTimeout(SETUP_TIMEOUT_LENGTH);
+
+			for (int attempt = 0; attempt < MAX_SETUP_ATTEMPTS; attempt++) {
+
+				setupSocket.send(setupPacket);
+
+				byte[] ackBuffer = new byte[3];
+				DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+
+				try {
+					setupSocket.receive(ackPacket);
+				} catch (SocketTimeoutException ste) {
+					continue;
+				}
+
+				if (ackPacket.getLength() == 3 && ackBuffer[2] == SETUP) {
+					return true;
+				}
+
+			}
+
+			return false;
+
+		} finally {
+			setupSocket.close();
+		}
+
+	}
+
+	/**
+	 * Returns where a stripe starts in the file. Every stripe but the last
+	 * has the same length, rounded up.
+	 *
+	 * @param dataFileLength	The length of the file.
+	 * @param numStripes		The number of stripes.
+	 * @param stripe			The stripe number.
+	 *
+	 * @return					The offset of the stripe in the file.
+	 */
+	public static long getStripeOffset(long dataFileLength, int numStripes, long stripe) {
+		long stripeLength = (dataFileLength + numStripes - 1) / numStripes;
+		return Math.min(dataFileLength, stripe * stripeLength);
+	}
+
+	/**
+	 * Returns the length of a stripe, which may be 0 for a small file.
+	 *
+	 * @param dataFileLength	The length of the file.
+	 * @param numStripes		The number of stripes.
+	 * @param stripe			The stripe number.
+	 *
+	 * @return					The length of the stripe in bytes.
+	 */
+	public static long getStripeLength(long dataFileLength, int numStripes, long stripe) {
+		return getStripeOffset(dataFileLength, numStripes, stripe + 1)
+				- getStripeOffset(dataFileLength, numStripes, stripe);
+	}
+
+	/**
+	 * The main method for running the StripedSender class. There are five
+	 * compulsory arguments - the host name, the first port number, the name
+	 * of the file to send, the window size of each stripe and the number of
+	 * stripes.
+	 *
+	 * @param args		The program arguments: the host name, the first port
+	 * 					number, the name of the file to send, the window size
+	 * 					and the number of stripes.
+	 */
+	public static void main(String[] args) {
+
+		String host;
+		int portNumber;
+		String filePath;
+		int windowSize;
+		int numStripes;
+		boolean successful = false;
+
+		if (args.length != 5) {
+			System.err.println("Usage: java StripedSender host_name port filename window_size stripes");
+			System.exit(-1);
+		}
+
+		try {
+
+			host = args[0];
+			portNumber = Integer.parseInt(args[1]);
+			filePath = args[2];
+			windowSize = Integer.parseInt(args[3]);
+			numStripes = Integer.parseInt(args[4]);
+
+			/* Attempt to send the file. */
+			StripedSender sender = new StripedSender(host, portNumber, windowSize, numStripes);
+			successful = sender.send(new File(filePath));
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number, window size or number of stripes " +
+					"to an integer.");
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+		}
+
+		if (successful) {
+			System.out.println("Success! File has been sent.");
+		} else {
+			System.err.println("File was not sent successfully. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,308 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A list of the files under a directory, giving each one's path, size and
+ * modification time, and optionally a SHA-256 hash of its contents. Two ends of a
+ * {@link SyncSender} transfer compare manifests to find the files that differ.
+ * <p>
+ * The directory is walked once, with each file's size and time read in the same
+ * call that finds it, so a tree of many small files is listed quickly. Only
+ * regular files are listed, and links are not followed. Paths use '/' between
+ * directories, and the entries are in path order.
+ * <p>
+ * The written manifest is a one byte flag saying whether hashes are included, the
+ * four byte number of entries, and then for each the two byte length of its path,
+ * the path in UTF-8, its eight byte size and eight byte time (in ms), and its
+ * thirty two byte hash if included.
+ *
+ * @author s0840449
+ *
+ */
+public class SyncManifest {
+
+	/** The size of a hash. */
+	public static final int HASH_SIZE = 32;
+
+	/* The entries, in path order, and whether they have hashes. */
+	private List<Entry> entries;
+	private boolean hashed;
+
+	/* Private, as made by scan() or read(). */
+	private SyncManifest(List<Entry> entries, boolean hashed) {
+		this.entries = entries;
+		this.hashed = hashed;
+	}
+
+	/**
+	 * Lists the files under a directory.
+	 *
+	 * @param root			The directory.
+	 * @param hashed		Whether to hash each file, which reads all of them.
+	 *
+	 * @return				The manifest.
+	 *
+	 * @throws IOException	If the directory cannot be walked or a file read.
+	 */
+	public static SyncManifest scan(File root, boolean hashed) throws IOException {
+
+		final Path rootPath = root.toPath();
+		final List<Entry> entries = new ArrayList<Entry>();
+
+		Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				if (attributes.isRegularFile()) {
+					String name = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+					entries.add(new Entry(name, attributes.size(), attributes.lastModifiedTime().toMillis(), null));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry entry1, Entry entry2) {
+				return entry1.getName().compareTo(entry2.getName());
+			}
+		});
+
+		if (hashed) {
+			for (int i = 0; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				entries.set(i, new Entry(entry.getName(), entry.getSize(), entry.getModified(),
+						hashFile(new File(root, entry.getName()))));
+			}
+		}
+
+		return new SyncManifest(entries, hashed);
+
+	}
+
+	/**
+	 * Reads a manifest written by {@link #toBytes()}.
+	 *
+	 * @param data			The manifest as written.
+	 *
+	 * @return				The manifest.
+	 *
+	 * @throws IOException	If the manifest is malformed.
+	 */
+	public static SyncManifest read(byte[] data) throws IOException {
+
+		try {
+
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			boolean hashed = buffer.get() != 0;
+			int count = buffer.getInt();
+			if (count < 0) {
+				throw new IOException("The manifest is malformed.");
+			}
+
+			List<Entry> entries = new ArrayList<Entry>();
+			for (int i = 0; i < count; i++) {
+
+				byte[] name = new byte[0xFFFF & buffer.getShort()];
+				buffer.get(name);
+				long size = buffer.getLong();
+				long modified = buffer.getLong();
+				byte[] hash = null;
+				if (hashed) {
+					hash = new byte[HASH_SIZE];
+					buffer.get(hash);
+				}
+
+				if (size < 0) {
+					throw new IOException("The manifest is malformed.");
+				}
+
+				entries.add(new Entry(new String(name, StandardCharsets.UTF_8), size, modified, hash));
+
+			}
+
+			if (buffer.hasRemaining()) {
+				throw new IOException("The manifest is malformed.");
+			}
+
+			return new SyncManifest(entries, hashed);
+
+		} catch (BufferUnderflowException bue) {
+			throw new IOException("The manifest is malformed.");
+		}
+
+	}
+
+	/**
+	 * Writes the manifest out.
+	 *
+	 * @return		The manifest as bytes.
+	 */
+	public byte[] toBytes() {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+
+		try {
+
+			data.writeBoolean(hashed);
+			data.writeInt(entries.size());
+
+			for (Entry entry : entries) {
+				byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+				if (name.length > 0xFFFF) {
+					throw new IllegalArgumentException("The path \"" + entry.getName() + "\" is too long.");
+				}
+				data.writeShort(name.length);
+				data.write(name);
+				data.writeLong(entry.getSize());
+				data.writeLong(entry.getModified());
+				if (hashed) {
+					data.write(entry.getHash());
+				}
+			}
+
+		} catch (IOException ioe) {
+			/* Writing to memory cannot fail. */
+			throw new IllegalStateException(ioe);
+		}
+
+		return bytes.toByteArray();
+
+	}
+
+	/**
+	 * Returns the entries, in path order.
+	 *
+	 * @return		The entries.
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns whether the entries have hashes.
+	 *
+	 * @return		True if they have hashes.
+	 */
+	public boolean isHashed() {
+		return hashed;
+	}
+
+	/**
+	 * Hashes a file's contents.
+	 *
+	 * @param file			The file.
+	 *
+	 * @return				The SHA-256 hash.
+	 *
+	 * @throws IOException	If the file cannot be read.
+	 */
+	public static byte[] hashFile(File file) throws IOException {
+
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			/* Every Java platform has to provide SHA-256. */
+			throw new IllegalStateException(nsae);
+		}
+
+		InputStream reader = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+				sha256.update(buffer, 0, read);
+			}
+		} finally {
+			reader.close();
+		}
+
+		return sha256.digest();
+
+	}
+
+	/**
+	 * The Entry class describes one file of a manifest.
+	 */
+	public static class Entry {
+
+		/* The file's path within the directory, size, time and hash. */
+		private String name;
+		private long size;
+		private long modified;
+		private byte[] hash;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param name		The file's path within the directory.
+		 * @param size		The file's size.
+		 * @param modified	The file's modification time, in ms.
+		 * @param hash		The file's hash, or null if not hashed.
+		 */
+		public Entry(String name, long size, long modified, byte[] hash) {
+			this.name = name;
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+
+		/**
+		 * Returns the file's path within the directory.
+		 *
+		 * @return		The path.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the file's size.
+		 *
+		 * @return		The size.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Returns the file's modification time.
+		 *
+		 * @return		The time, in ms.
+		 */
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 * Returns the file's hash.
+		 *
+		 * @return		The hash, or null if not hashed.
+		 */
+		public byte[] getHash() {
+			return hash;
+		}
+
+	}
+
+}
@@ -0,0 +1,320 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The SyncReceiver class brings a directory up to date with one held by a
+ * {@link SyncSender}. Both ends list their directory in a {@link SyncManifest},
+ * and only the files that are new or differ in size or time are sent, so syncing a
+ * large tree in which a few files have changed costs little more than the
+ * manifest.
+ * <p>
+ * The transfer goes:
+ * <ol>
+ * <li>The sender sends to our port with {@link Sender4}, compressed by a
+ * {@link ChunkCompressor}, a one byte set of option flags (see
+ * {@link SyncSender#DELETE}) followed by its manifest.
+ * <li>We send back which files we want to the sender's port + 2 with
+ * {@link Sender4} (with its acks coming back on our port + 3). It is a bitmap, a
+ * bit per manifest entry starting from the high bit of the first byte (see
+ * {@link WantedBitmap}).
+ * <li>If any are wanted, the sender sends them to our port with a
+ * {@link BatchSender}, and we write them with a {@link BatchReceiver}.
+ * </ol>
+ * Each file received is given the sender's modification time, so that it matches
+ * next time. When the manifest has hashes, a file whose time differs but whose
+ * contents match is only given the new time. Files the sender does not have are
+ * deleted, if it asks, once the rest has been received, along with any
+ * directories that leaves empty.
+ * <p>
+ * Once the manifest has arrived, both ends give up on a transfer that hears
+ * nothing for <a href="#IDLE_TIMEOUT_LENGTH">IDLE_TIMEOUT_LENGTH</a>. The sender
+ * allows <a href="#REPLY_TIMEOUT_LENGTH">REPLY_TIMEOUT_LENGTH</a> for the wanted
+ * files, as we scan (and perhaps hash) the directory before answering.
+ *
+ * @author s0840449
+ *
+ */
+public class SyncReceiver {
+
+	/** How long (in ms) either end waits to hear from the other, once the manifest is sent. */
+	public static final int IDLE_TIMEOUT_LENGTH = 10000;
+
+	/** How long (in ms) the sender waits for the wanted files. */
+	public static final int REPLY_TIMEOUT_LENGTH = 120000;
+
+	/* The port number we receive on. */
+	private int portNumber;
+
+	/* The directory to bring up to date. */
+	private File directory;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* Counts reported once done. */
+	private int filesReceived;
+	private int filesUnchanged;
+	private int filesDeleted;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param portNumber	The port number we receive on, and that the sender's
+	 * 						ports are worked out from.
+	 * @param directory		The directory to bring up to date.
+	 * @param windowSize	The window size.
+	 */
+	public SyncReceiver(int portNumber, File directory, int windowSize) {
+
+		if (!directory.isDirectory()) {
+			throw new IllegalArgumentException("\"" + directory.getPath() + "\" is not a directory.");
+		}
+
+		this.portNumber = portNumber;
+		this.directory = directory;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Waits for a sender's manifest, then receives the files that differ.
+	 *
+	 * @return		True if the directory was brought up to date, False otherwise.
+	 */
+	public boolean receive() {
+
+		Receiver4 offerReceiver = new Receiver4(null, portNumber, windowSize);
+		offerReceiver.setCompressed(true);
+		ByteArrayOutputStream offerBytes = new ByteArrayOutputStream();
+
+		if (!offerReceiver.receive(offerBytes)) {
+			System.err.println("Error: Unable to receive the manifest.");
+			return false;
+		}
+
+		InetAddress senderAddress = offerReceiver.getSenderAddress();
+		byte[] offer = offerBytes.toByteArray();
+
+		try {
+
+			if (offer.length < 1) {
+				throw new IOException("The manifest is malformed.");
+			}
+
+			boolean delete = (offer[0] & SyncSender.DELETE) != 0;
+			SyncManifest theirs = SyncManifest.read(Arrays.copyOfRange(offer, 1, offer.length));
+			SyncManifest ours = SyncManifest.scan(directory, false);
+
+			Map<String, SyncManifest.Entry> ourEntries = new HashMap<String, SyncManifest.Entry>();
+			for (SyncManifest.Entry entry : ours.getEntries()) {
+				ourEntries.put(entry.getName(), entry);
+			}
+
+			List<SyncManifest.Entry> entries = theirs.getEntries();
+			boolean[] wanted = new boolean[entries.size()];
+			filesReceived = 0;
+
+			for (int i = 0; i < entries.size(); i++) {
+				if (isWanted(entries.get(i), ourEntries.get(entries.get(i).getName()))) {
+					wanted[i] = true;
+					filesReceived++;
+				}
+			}
+			byte[] bitmap = WantedBitmap.encode(wanted);
+
+			filesUnchanged = entries.size() - filesReceived;
+
+			/* Start listening for the files before asking for them. */
+			final BatchReceiver receiver = new BatchReceiver(directory, portNumber, windowSize);
+			receiver.setIdleTimeout(IDLE_TIMEOUT_LENGTH);
+			final boolean[] received = { false };
+
+			Thread receiveThread = new Thread() {
+				public void run() {
+					received[0] = receiver.receive();
+				}
+			};
+			receiveThread.setDaemon(true);
+			if (filesReceived > 0) {
+				receiveThread.start();
+			}
+
+			Sender4 sender = new Sender4(senderAddress.getHostAddress(), portNumber + 2, windowSize);
+			sender.setIdleTimeout(IDLE_TIMEOUT_LENGTH);
+			if (!sender.send(new ByteArrayInputStream(bitmap), bitmap.length)) {
+				System.err.println("Error: Unable to send the wanted files.");
+				return false;
+			}
+
+			if (filesReceived > 0) {
+
+				try {
+					receiveThread.join();
+				} catch (InterruptedException ie) {
+					return false;
+				}
+
+				if (!received[0] || receiver.getFilesReceived() != filesReceived) {
+					System.err.println("Error: Not every file asked for was received.");
+					return false;
+				}
+
+			}
+
+			/* Give the files the sender's times, so they match next time. */
+			for (int i = 0; i < entries.size(); i++) {
+				SyncManifest.Entry entry = entries.get(i);
+				SyncManifest.Entry ourEntry = ourEntries.get(entry.getName());
+				if (wanted[i] || ourEntry.getModified() != entry.getModified()) {
+					Files.setLastModifiedTime(new File(directory, entry.getName()).toPath(),
+							FileTime.fromMillis(entry.getModified()));
+				}
+			}
+
+			filesDeleted = 0;
+			if (delete) {
+
+				Set<String> theirNames = new HashSet<String>();
+				for (SyncManifest.Entry entry : entries) {
+					theirNames.add(entry.getName());
+				}
+
+				for (SyncManifest.Entry entry : ours.getEntries()) {
+					if (!theirNames.contains(entry.getName())) {
+						deleteFile(new File(directory, entry.getName()));
+						filesDeleted++;
+					}
+				}
+
+			}
+
+		} catch (IOException ioe) {
+
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of files received.
+	 *
+	 * @return		The number of files.
+	 */
+	public int getFilesReceived() {
+		return filesReceived;
+	}
+
+	/**
+	 * Returns the number of files that were already up to date.
+	 *
+	 * @return		The number of files.
+	 */
+	public int getFilesUnchanged() {
+		return filesUnchanged;
+	}
+
+	/**
+	 * Returns the number of files deleted.
+	 *
+	 * @return		The number of files.
+	 */
+	public int getFilesDeleted() {
+		return filesDeleted;
+	}
+
+	/* Returns whether the sender's file needs sending, given ours (or null). */
+	private boolean isWanted(SyncManifest.Entry theirs, SyncManifest.Entry ours) throws IOException {
+
+		if (ours == null || ours.getSize() != theirs.getSize()) {
+			return true;
+		}
+
+		if (ours.getModified() == theirs.getModified()) {
+			return false;
+		}
+
+		return theirs.getHash() == null ||
+				!Arrays.equals(theirs.getHash(), SyncManifest.hashFile(new File(directory, ours.getName())));
+
+	}
+
+	/* Deletes a file, and the directories above it that this leaves empty. */
+	private void deleteFile(File file) throws IOException {
+
+		if (!file.delete()) {
+			throw new IOException("Unable to delete \"" + file.getPath() + "\".");
+		}
+
+		File root = directory.getCanonicalFile();
+		for (File parent = file.getParentFile().getCanonicalFile(); !parent.equals(root); parent = parent.getParentFile()) {
+			String[] children = parent.list();
+			if (children == null || children.length > 0 || !parent.delete()) {
+				break;
+			}
+		}
+
+	}
+
+	/**
+	 * The main method for running the SyncReceiver class. There are three
+	 * compulsory arguments - the port number, the directory to bring up to date,
+	 * and the window size.
+	 *
+	 * @param args		The program arguments: the port number, the directory
+	 * 					and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean receiveSuccessful = false;
+		SyncReceiver receiver = null;
+
+		if (args.length != 3) {
+			System.err.println("Usage: java SyncReceiver port directory windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File directory = new File(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+
+			receiver = new SyncReceiver(portNumber, directory, windowSize);
+			receiveSuccessful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (receiveSuccessful) {
+			System.out.println("Success! " + args[1] + " has been synced: " + receiver.getFilesReceived() +
+					" files were received, " + receiver.getFilesUnchanged() + " were already up to date and " +
+					receiver.getFilesDeleted() + " were deleted.");
+		} else {
+			System.err.println("Directory was not synced. Please try again.");
+		}
+
+	}
+
+}
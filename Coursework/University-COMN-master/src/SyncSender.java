@@ -0,0 +1,227 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The SyncSender class brings a directory held by a {@link SyncReceiver} up to date
+ * with one here, sending only the files that are new or have changed. See
+ * {@link SyncReceiver} for the protocol.
+ *
+ * @author s0840449
+ *
+ */
+public class SyncSender {
+
+	/** The option flag asking the receiver to delete files we do not have. */
+	public static final byte DELETE = 1;
+
+	/* The receiver's host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The directory to send. */
+	private File directory;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* Whether files are compared by hash, and whether extra files are deleted. */
+	private boolean hashed;
+	private boolean delete;
+
+	/* The number of files sent and left as they were, reported once done. */
+	private int filesSent;
+	private int filesUnchanged;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The host the receiver is on.
+	 * @param portNumber	The port number the receiver receives on, and that our
+	 * 						ports are worked out from.
+	 * @param directory		The directory to send.
+	 * @param windowSize	The window size.
+	 */
+	public SyncSender(String host, int portNumber, File directory, int windowSize) {
+
+		if (!directory.isDirectory()) {
+			throw new IllegalArgumentException("\"" + directory.getPath() + "\" is not a directory.");
+		}
+
+		this.host = host;
+		this.portNumber = portNumber;
+		this.directory = directory;
+		this.windowSize = windowSize;
+		this.hashed = false;
+		this.delete = false;
+	}
+
+	/**
+	 * Sets whether files are compared by the hash of their contents, as well as
+	 * their size and time. Files whose times differ but contents match are then
+	 * not sent, at the cost of reading every file on both ends.
+	 *
+	 * @param hashed	True to compare files by hash.
+	 */
+	public void setHashed(boolean hashed) {
+		this.hashed = hashed;
+	}
+
+	/**
+	 * Sets whether the receiver deletes the files it has that we do not.
+	 *
+	 * @param delete	True to delete the extra files.
+	 */
+	public void setDelete(boolean delete) {
+		this.delete = delete;
+	}
+
+	/**
+	 * Sends our manifest, then the files the receiver asks for.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send() {
+
+		SyncManifest manifest;
+		try {
+			manifest = SyncManifest.scan(directory, hashed);
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		ByteArrayOutputStream offer = new ByteArrayOutputStream();
+		offer.write(delete ? DELETE : 0);
+		byte[] manifestBytes = manifest.toBytes();
+		offer.write(manifestBytes, 0, manifestBytes.length);
+
+		/* The paths in a manifest have a lot in common, so it is compressed. */
+		Sender4 offerSender = new Sender4(host, portNumber, windowSize);
+		if (!offerSender.send(new ChunkCompressor(new ByteArrayInputStream(offer.toByteArray())))) {
+			System.err.println("Error: Unable to send the manifest.");
+			return false;
+		}
+
+		Receiver4 receiver = new Receiver4(null, portNumber + 2, windowSize);
+		receiver.setIdleTimeout(SyncReceiver.REPLY_TIMEOUT_LENGTH);
+		ByteArrayOutputStream bitmap = new ByteArrayOutputStream();
+
+		if (!receiver.receive(bitmap)) {
+			System.err.println("Error: Unable to receive the wanted files.");
+			return false;
+		}
+
+		List<SyncManifest.Entry> entries = manifest.getEntries();
+		if (bitmap.size() != WantedBitmap.length(entries.size())) {
+			System.err.println("Error: The wanted files are malformed.");
+			return false;
+		}
+
+		byte[] bits = bitmap.toByteArray();
+		BatchSender batch = new BatchSender(host, portNumber, windowSize);
+		batch.setIdleTimeout(SyncReceiver.IDLE_TIMEOUT_LENGTH);
+		filesSent = 0;
+
+		for (int i = 0; i < entries.size(); i++) {
+			if (WantedBitmap.isWanted(bits, i)) {
+				String name = entries.get(i).getName();
+				batch.addFile(new File(directory, name), name);
+				filesSent++;
+			}
+		}
+
+		filesUnchanged = entries.size() - filesSent;
+
+		/* With nothing wanted, the receiver is not waiting for a batch. */
+		if (filesSent == 0) {
+			return true;
+		}
+
+		return batch.send();
+
+	}
+
+	/**
+	 * Returns the number of files sent.
+	 *
+	 * @return		The number of files.
+	 */
+	public int getFilesSent() {
+		return filesSent;
+	}
+
+	/**
+	 * Returns the number of files the receiver already had.
+	 *
+	 * @return		The number of files.
+	 */
+	public int getFilesUnchanged() {
+		return filesUnchanged;
+	}
+
+	/**
+	 * The main method for running the SyncSender class. There are four
+	 * compulsory arguments - the receiver's host name, the port number, the
+	 * directory to send, and the window size. They may be preceded by -h to
+	 * compare files by hash (see {@link #setHashed(boolean)}) and -d to delete
+	 * the receiver's extra files (see {@link #setDelete(boolean)}).
+	 *
+	 * @param args		The program arguments: the host name, the port number,
+	 * 					the directory and the window size.
+	 */
+	public static void main(String[] args) {
+
+		/* A leading -h turns on hashing and -d deleting. */
+		boolean hashed = false;
+		boolean delete = false;
+		while (args.length > 0 && (args[0].equals("-h") || args[0].equals("-d"))) {
+			hashed |= args[0].equals("-h");
+			delete |= args[0].equals("-d");
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
+		boolean sendSuccessful = false;
+		SyncSender sender = null;
+
+		if (args.length != 4) {
+			System.err.println("Usage: java SyncSender [-h] [-d] host_name port directory windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			File directory = new File(args[2]);
+			int windowSize = Integer.parseInt(args[3]);
+
+			sender = new SyncSender(host, portNumber, directory, windowSize);
+			sender.setHashed(hashed);
+			sender.setDelete(delete);
+			sendSuccessful = sender.send();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! Directory has been synced: " + sender.getFilesSent() +
+					" files were sent and " + sender.getFilesUnchanged() + " were already up to date.");
+		} else {
+			System.err.println("Directory was not synced. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,492 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The VerifiedReceiver class receives a file from a {@link VerifiedSender}, and
+ * checks it against a {@link MerkleTree} of its chunks built by the sender as it
+ * sent it. The receiver builds its own tree from the chunks as they are written,
+ * so the check needs no second pass over either copy of the file, and only the
+ * chunks that differ are sent again.
+ * <p>
+ * The transfer goes:
+ * <ol>
+ * <li>The sender sends to our port with {@link Sender4} the eight byte length of
+ * the file, the file, and then its tree as written by {@link MerkleTree#toBytes()}.
+ * <li>We send a reply to the sender's port + 2 with {@link Sender4} (with its acks
+ * coming back on our port + 3). It is a one byte type, then the four byte number
+ * of chunks listed and the four byte index of each. The type is
+ * <a href="#VERIFIED">VERIFIED</a> if our tree matches the sender's,
+ * <a href="#REPAIR">REPAIR</a> to ask for the listed chunks again, or
+ * <a href="#FAILED">FAILED</a> to give up.
+ * <li>After a REPAIR, the sender sends the chunks asked for to our port with
+ * {@link Sender4}, one after another, and we reply again.
+ * </ol>
+ * We give up after <a href="#MAX_REPAIR_ROUNDS">MAX_REPAIR_ROUNDS</a> repairs, or
+ * if the tree itself arrives damaged, as then there is nothing to check against.
+ *
+ * @author s0840449
+ *
+ */
+public class VerifiedReceiver {
+
+	/** The reply type when the file matches. */
+	public static final byte VERIFIED = 0;
+
+	/** The reply type asking for chunks again. */
+	public static final byte REPAIR = 1;
+
+	/** The reply type when the file cannot be put right. */
+	public static final byte FAILED = 2;
+
+	/** The most times chunks are asked for again before giving up. */
+	public static final int MAX_REPAIR_ROUNDS = 3;
+
+	/* The port number we receive on. */
+	private int portNumber;
+
+	/* The file to write. */
+	private File dataFile;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* The number of chunks asked for again, reported once done. */
+	private int repairedChunks;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param portNumber	The port number we receive on, and that the sender's
+	 * 						ports are worked out from.
+	 * @param dataFile		The file to write the received file to.
+	 * @param windowSize	The window size.
+	 */
+	public VerifiedReceiver(int portNumber, File dataFile, int windowSize) {
+		this.portNumber = portNumber;
+		this.dataFile = dataFile;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Waits for a sender, receives the file from it, and has any chunks that do
+	 * not match sent again.
+	 *
+	 * @return		True if the file was received and matches the sender's,
+	 * 				False otherwise.
+	 */
+	public boolean receive() {
+
+		Receiver4 receiver = new Receiver4(null, portNumber, windowSize);
+		VerifyingWriter writer;
+		try {
+			writer = new VerifyingWriter();
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		boolean received = receiver.receive(writer);
+		InetAddress senderAddress = receiver.getSenderAddress();
+
+		if (!received) {
+			if (senderAddress != null) {
+				reply(senderAddress, FAILED, new ArrayList<Integer>());
+			}
+			return false;
+		}
+
+		MerkleTree senderTree;
+		MerkleTree ourTree = writer.getTree();
+		try {
+			if (ourTree == null) {
+				throw new IOException("The data sent is malformed.");
+			}
+			senderTree = MerkleTree.fromBytes(writer.getTreeBytes(), ourTree.getNumLeaves());
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			reply(senderAddress, FAILED, new ArrayList<Integer>());
+			return false;
+		}
+
+		long length = writer.getLength();
+		repairedChunks = 0;
+
+		for (int round = 0; ; round++) {
+
+			List<Integer> differing = ourTree.differingLeaves(senderTree);
+
+			if (differing.isEmpty()) {
+				return reply(senderAddress, VERIFIED, differing);
+			}
+
+			if (round == MAX_REPAIR_ROUNDS) {
+				System.err.println("Error: " + differing.size() + " chunks still do not match after " +
+						MAX_REPAIR_ROUNDS + " repairs.");
+				reply(senderAddress, FAILED, new ArrayList<Integer>());
+				return false;
+			}
+
+			/* Start listening for the chunks before asking for them. */
+			final Receiver4 repairReceiver = new Receiver4(null, portNumber, windowSize);
+			final RepairWriter repairWriter;
+			try {
+				repairWriter = new RepairWriter(differing, length);
+			} catch (IOException ioe) {
+				System.err.println("Error: IO Exception:");
+				System.err.println(ioe.getMessage());
+				reply(senderAddress, FAILED, new ArrayList<Integer>());
+				return false;
+			}
+			final boolean[] repaired = { false };
+
+			Thread receiveThread = new Thread() {
+				public void run() {
+					repaired[0] = repairReceiver.receive(repairWriter);
+				}
+			};
+			receiveThread.setDaemon(true);
+			receiveThread.start();
+
+			if (!reply(senderAddress, REPAIR, differing)) {
+				return false;
+			}
+
+			try {
+				receiveThread.join();
+			} catch (InterruptedException ie) {
+				return false;
+			}
+
+			if (!repaired[0] || !repairWriter.isComplete()) {
+				System.err.println("Error: Unable to receive the chunks asked for.");
+				return false;
+			}
+
+			ourTree = ourTree.withLeaves(differing, repairWriter.getHashes());
+			repairedChunks += differing.size();
+
+		}
+
+	}
+
+	/**
+	 * Returns the number of chunks that had to be sent again.
+	 *
+	 * @return		The number of chunks.
+	 */
+	public int getRepairedChunks() {
+		return repairedChunks;
+	}
+
+	/* Sends a reply to the sender. */
+	private boolean reply(InetAddress senderAddress, byte type, List<Integer> leaves) {
+
+		ByteBuffer reply = ByteBuffer.allocate(5 + 4 * leaves.size());
+		reply.put(type).putInt(leaves.size());
+		for (int leaf : leaves) {
+			reply.putInt(leaf);
+		}
+
+		Sender4 sender = new Sender4(senderAddress.getHostAddress(), portNumber + 2, windowSize);
+		if (!sender.send(new ByteArrayInputStream(reply.array()), reply.capacity())) {
+			System.err.println("Error: Unable to send the reply.");
+			return false;
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * The VerifyingWriter class takes in the file's length, the file and its
+	 * tree, writing out the file and building our own tree from it as it goes.
+	 * Data that does not fit the length it starts with is dropped rather than
+	 * failing the transfer, so that the sender can still be told.
+	 */
+	private class VerifyingWriter extends OutputStream {
+
+		/* Collects the length, and then the file's length once read. */
+		private ByteBuffer header;
+		private long length;
+
+		/* The file, what builds its tree, and how much of it has been written. */
+		private OutputStream writer;
+		private MerkleTree.Builder builder;
+		private long written;
+
+		/* The trees, once the file is written and as sent. */
+		private MerkleTree tree;
+		private ByteArrayOutputStream treeBytes;
+		private int treeSize;
+
+		/* Whether the data did not fit its length. */
+		private boolean malformed;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public VerifyingWriter() throws IOException {
+			this.header = ByteBuffer.allocate(8);
+			this.length = -1;
+			this.writer = new BufferedOutputStream(new FileOutputStream(dataFile));
+			this.builder = new MerkleTree.Builder();
+			this.written = 0;
+			this.tree = null;
+			this.treeBytes = new ByteArrayOutputStream();
+			this.malformed = false;
+		}
+
+		/**
+		 * Returns the length of the file.
+		 *
+		 * @return		The length.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Returns the tree of the file as written, or null if the data sent was
+		 * malformed.
+		 *
+		 * @return		The tree.
+		 */
+		public MerkleTree getTree() {
+			return malformed ? null : tree;
+		}
+
+		/**
+		 * Returns the tree as sent.
+		 *
+		 * @return		The tree as bytes.
+		 */
+		public byte[] getTreeBytes() {
+			return treeBytes.toByteArray();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+
+			while (len > 0 && !malformed) {
+
+				if (header.hasRemaining()) {
+
+					int count = Math.min(len, header.remaining());
+					header.put(data, off, count);
+					off += count;
+					len -= count;
+
+					if (!header.hasRemaining()) {
+						length = header.getLong(0);
+						/* The tree of a length this large would not fit in memory, so it
+						 * can only be a damaged header. */
+						if (length < 0 || length / MerkleTree.CHUNK_SIZE > Integer.MAX_VALUE / (2 * MerkleTree.HASH_SIZE)) {
+							malformed = true;
+						} else {
+							treeSize = MerkleTree.serializedSize(length);
+						}
+					}
+
+				} else if (written < length) {
+
+					int count = (int) Math.min(len, length - written);
+					writer.write(data, off, count);
+					builder.update(data, off, count);
+					written += count;
+					off += count;
+					len -= count;
+
+				} else {
+
+					if (treeBytes.size() + len > treeSize) {
+						malformed = true;
+					} else {
+						treeBytes.write(data, off, len);
+						len = 0;
+					}
+
+				}
+
+			}
+
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			try {
+				writer.close();
+			} finally {
+				if (header.hasRemaining() || written < length || treeBytes.size() < treeSize) {
+					malformed = true;
+				}
+				if (!malformed) {
+					tree = builder.finish();
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * The RepairWriter class takes in the chunks asked for again, in order,
+	 * writing each over its place in the file and hashing it.
+	 */
+	private class RepairWriter extends OutputStream {
+
+		/* The chunks being sent, and the length of the file. */
+		private List<Integer> leaves;
+		private long length;
+
+		/* The file, the chunk being received and the part of it so far. */
+		private RandomAccessFile writer;
+		private int next;
+		private byte[] chunk;
+		private int filled;
+
+		/* The hash of each chunk written. */
+		private List<byte[]> hashes;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param leaves		The index of each chunk.
+		 * @param length		The length of the file.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public RepairWriter(List<Integer> leaves, long length) throws IOException {
+			this.leaves = leaves;
+			this.length = length;
+			this.writer = new RandomAccessFile(dataFile, "rw");
+			this.next = 0;
+			this.chunk = null;
+			this.hashes = new ArrayList<byte[]>();
+		}
+
+		/**
+		 * Returns whether every chunk has been written.
+		 *
+		 * @return		True if every chunk has been written.
+		 */
+		public boolean isComplete() {
+			return next == leaves.size();
+		}
+
+		/**
+		 * Returns the hash of each chunk written.
+		 *
+		 * @return		The hashes, in order.
+		 */
+		public List<byte[]> getHashes() {
+			return hashes;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+
+			while (len > 0) {
+
+				if (next == leaves.size()) {
+					throw new IOException("More data was sent than asked for.");
+				}
+
+				if (chunk == null) {
+					chunk = new byte[VerifiedSender.chunkLength(length, leaves.get(next))];
+					filled = 0;
+				}
+
+				int count = Math.min(len, chunk.length - filled);
+				System.arraycopy(data, off, chunk, filled, count);
+				filled += count;
+				off += count;
+				len -= count;
+
+				if (filled == chunk.length) {
+					writer.seek((long) leaves.get(next) * MerkleTree.CHUNK_SIZE);
+					writer.write(chunk);
+					hashes.add(MerkleTree.hashLeaf(chunk, 0, chunk.length));
+					chunk = null;
+					next++;
+				}
+
+			}
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.close();
+		}
+
+	}
+
+	/**
+	 * The main method for running the VerifiedReceiver class. There are three
+	 * compulsory arguments - the port number, the file to write, and the window
+	 * size.
+	 *
+	 * @param args		The program arguments: the port number, the name of the
+	 * 					file and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean receiveSuccessful = false;
+		VerifiedReceiver receiver = null;
+
+		if (args.length != 3) {
+			System.err.println("Usage: java VerifiedReceiver port filename windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			int portNumber = Integer.parseInt(args[0]);
+			File dataFile = new File(args[1]);
+			int windowSize = Integer.parseInt(args[2]);
+
+			receiver = new VerifiedReceiver(portNumber, dataFile, windowSize);
+			receiveSuccessful = receiver.receive();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		}
+
+		if (receiveSuccessful) {
+			System.out.println("Success! " + args[1] + " has been received and verified: " +
+					receiver.getRepairedChunks() + " chunks were sent again.");
+		} else {
+			System.err.println("File was not received. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,384 @@
+/* Stephen McGruer 0840449 */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The VerifiedSender class sends a file to a {@link VerifiedReceiver}, along with
+ * the {@link MerkleTree} of its chunks, and re-sends any chunks the receiver finds
+ * do not match. See {@link VerifiedReceiver} for the protocol.
+ * <p>
+ * The tree is built from the data as it is read to be sent, with the chunks hashed
+ * on other threads, so it is ready as soon as the last of the file goes out and
+ * the file is only read once.
+ *
+ * @author s0840449
+ *
+ */
+public class VerifiedSender {
+
+	/* The receiver's host name and port. */
+	private String host;
+	private int portNumber;
+
+	/* The file to send. */
+	private File dataFile;
+
+	/* The window size. */
+	private int windowSize;
+
+	/* The number of chunks re-sent, reported once done. */
+	private int repairedChunks;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param host			The host the receiver is on.
+	 * @param portNumber	The port number the receiver receives on, and that our
+	 * 						ports are worked out from.
+	 * @param dataFile		The file to send.
+	 * @param windowSize	The window size.
+	 */
+	public VerifiedSender(String host, int portNumber, File dataFile, int windowSize) {
+
+		if (!dataFile.canRead()) {
+			throw new IllegalArgumentException("Cannot read input file \"" +
+					dataFile.getName() + "\". Please check file permissions and try again.");
+		}
+
+		this.host = host;
+		this.portNumber = portNumber;
+		this.dataFile = dataFile;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Sends the file and its tree, then re-sends chunks until the receiver
+	 * has them all right.
+	 *
+	 * @return	True if the sending succeeded, False if an error occurred.
+	 */
+	public boolean send() {
+
+		long length = dataFile.length();
+		long total = 8 + length + MerkleTree.serializedSize(length);
+
+		HashingReader reader;
+		try {
+			reader = new HashingReader(length);
+		} catch (IOException ioe) {
+			System.err.println("Error: IO Exception:");
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		Sender4 sender = new Sender4(host, portNumber, windowSize);
+		if (!sender.send(reader, total)) {
+			return false;
+		}
+
+		repairedChunks = 0;
+
+		while (true) {
+
+			Receiver4 receiver = new Receiver4(null, portNumber + 2, windowSize);
+			ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
+
+			if (!receiver.receive(replyBytes)) {
+				System.err.println("Error: Unable to receive the receiver's reply.");
+				return false;
+			}
+
+			List<Integer> leaves = new ArrayList<Integer>();
+			byte type;
+			try {
+
+				ByteBuffer reply = ByteBuffer.wrap(replyBytes.toByteArray());
+				if (reply.remaining() < 5) {
+					throw new IOException("The reply is malformed.");
+				}
+
+				type = reply.get();
+				int count = reply.getInt();
+				if (count < 0 || reply.remaining() != 4L * count) {
+					throw new IOException("The reply is malformed.");
+				}
+
+				int numLeaves = MerkleTree.numLeaves(length);
+				for (int i = 0; i < count; i++) {
+					int leaf = reply.getInt();
+					if (leaf < 0 || leaf >= numLeaves) {
+						throw new IOException("The reply is malformed.");
+					}
+					leaves.add(leaf);
+				}
+
+			} catch (IOException ioe) {
+				System.err.println("Error: IO Exception:");
+				System.err.println(ioe.getMessage());
+				return false;
+			}
+
+			if (type == VerifiedReceiver.VERIFIED) {
+				return true;
+			} else if (type == VerifiedReceiver.FAILED) {
+				System.err.println("Error: The receiver gave up on repairing the file.");
+				return false;
+			} else if (type != VerifiedReceiver.REPAIR) {
+				System.err.println("Error: The reply is malformed.");
+				return false;
+			}
+
+			long repairBytes = 0;
+			for (int leaf : leaves) {
+				repairBytes += chunkLength(length, leaf);
+			}
+
+			ChunkReader chunks;
+			try {
+				chunks = new ChunkReader(leaves, length);
+			} catch (IOException ioe) {
+				System.err.println("Error: IO Exception:");
+				System.err.println(ioe.getMessage());
+				return false;
+			}
+
+			Sender4 repairSender = new Sender4(host, portNumber, windowSize);
+			if (!repairSender.send(chunks, repairBytes)) {
+				return false;
+			}
+
+			repairedChunks += leaves.size();
+
+		}
+
+	}
+
+	/**
+	 * Returns the number of chunks that had to be re-sent.
+	 *
+	 * @return		The number of chunks.
+	 */
+	public int getRepairedChunks() {
+		return repairedChunks;
+	}
+
+	/**
+	 * Returns the length of a chunk of a file.
+	 *
+	 * @param length	The length of the file.
+	 * @param leaf		The index of the chunk.
+	 *
+	 * @return			The length of the chunk.
+	 */
+	static int chunkLength(long length, int leaf) {
+		return (int) Math.min(MerkleTree.CHUNK_SIZE, length - (long) leaf * MerkleTree.CHUNK_SIZE);
+	}
+
+	/**
+	 * The HashingReader class reads out the file's length, then the file, then
+	 * its tree, building the tree from the file as it goes past.
+	 */
+	private class HashingReader extends InputStream {
+
+		/* The parts before and after the file. */
+		private InputStream header;
+		private InputStream tree;
+
+		/* The file, and what builds its tree. */
+		private InputStream reader;
+		private MerkleTree.Builder builder;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param length		The length of the file.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public HashingReader(long length) throws IOException {
+			this.header = new ByteArrayInputStream(ByteBuffer.allocate(8).putLong(length).array());
+			this.tree = null;
+			this.reader = new FileInputStream(dataFile);
+			this.builder = new MerkleTree.Builder();
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			byte[] single = new byte[1];
+			if (read(single, 0, 1) < 0) {
+				return -1;
+			}
+
+			return 0xFF & single[0];
+
+		}
+
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (header.available() > 0) {
+				return header.read(data, off, len);
+			}
+
+			if (tree == null) {
+
+				int read = reader.read(data, off, len);
+				if (read > 0) {
+					builder.update(data, off, read);
+					return read;
+				}
+
+				tree = new ByteArrayInputStream(builder.finish().toBytes());
+
+			}
+
+			return tree.read(data, off, len);
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * The ChunkReader class reads the chunks asked for out of the file, one
+	 * after another.
+	 */
+	private class ChunkReader extends InputStream {
+
+		/* The chunks to read, and the length of the file. */
+		private List<Integer> leaves;
+		private long length;
+
+		/* The file, the chunk being read and how much of it is left. */
+		private RandomAccessFile reader;
+		private int next;
+		private int left;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param leaves		The index of each chunk.
+		 * @param length		The length of the file.
+		 *
+		 * @throws IOException	If the file cannot be opened.
+		 */
+		public ChunkReader(List<Integer> leaves, long length) throws IOException {
+			this.leaves = leaves;
+			this.length = length;
+			this.reader = new RandomAccessFile(dataFile, "r");
+			this.next = 0;
+			this.left = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			byte[] single = new byte[1];
+			if (read(single, 0, 1) < 0) {
+				return -1;
+			}
+
+			return 0xFF & single[0];
+
+		}
+
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (left == 0) {
+
+				if (next == leaves.size()) {
+					return -1;
+				}
+
+				reader.seek((long) leaves.get(next) * MerkleTree.CHUNK_SIZE);
+				left = chunkLength(length, leaves.get(next));
+				next++;
+
+			}
+
+			int read = reader.read(data, off, Math.min(len, left));
+			if (read < 0) {
+				throw new IOException("The file changed while being sent.");
+			}
+			left -= read;
+
+			return read;
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * The main method for running the VerifiedSender class. There are four
+	 * compulsory arguments - the receiver's host name, the port number, the file
+	 * to send, and the window size.
+	 *
+	 * @param args		The program arguments: the host name, the port number,
+	 * 					the name of the file and the window size.
+	 */
+	public static void main(String[] args) {
+
+		boolean sendSuccessful = false;
+		VerifiedSender sender = null;
+
+		if (args.length != 4) {
+			System.err.println("Usage: java VerifiedSender host_name port filename windowsize");
+			System.exit(-1);
+		}
+
+		try {
+
+			String host = args[0];
+			int portNumber = Integer.parseInt(args[1]);
+			File dataFile = new File(args[2]);
+			int windowSize = Integer.parseInt(args[3]);
+
+			sender = new VerifiedSender(host, portNumber, dataFile, windowSize);
+			sendSuccessful = sender.send();
+
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: Unable to convert the port number or window size to an integer.");
+			System.exit(-1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.exit(-1);
+		}
+
+		if (sendSuccessful) {
+			System.out.println("Success! File has been sent and verified: " +
+					sender.getRepairedChunks() + " chunks were re-sent.");
+		} else {
+			System.err.println("File was not sent. Please try again.");
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+/* Stephen McGruer 0840449 */
+
+/**
+ * Encodes which of a list of items a receiver wants, as a bitmap with a bit per
+ * item starting from the high bit of the first byte. {@link DedupReceiver} uses it
+ * to ask for chunks and {@link SyncReceiver} for files, and {@link DedupSender} and
+ * {@link SyncSender} read it back.
+ *
+ * @author s0840449
+ *
+ */
+public class WantedBitmap {
+
+	/* Only static methods. */
+	private WantedBitmap() { }
+
+	/**
+	 * Encodes which items are wanted.
+	 *
+	 * @param wanted	Whether each item is wanted.
+	 *
+	 * @return			The bitmap.
+	 */
+	public static byte[] encode(boolean[] wanted) {
+
+		byte[] bitmap = new byte[length(wanted.length)];
+
+		for (int i = 0; i < wanted.length; i++) {
+			if (wanted[i]) {
+				bitmap[i / 8] |= (byte) (0x80 >>> (i % 8));
+			}
+		}
+
+		return bitmap;
+
+	}
+
+	/**
+	 * Checks whether an item is wanted.
+	 *
+	 * @param bitmap	The bitmap.
+	 * @param index		The item's place in the list.
+	 *
+	 * @return			True if the item is wanted.
+	 */
+	public static boolean isWanted(byte[] bitmap, int index) {
+		return (bitmap[index / 8] & (0x80 >>> (index % 8))) != 0;
+	}
+
+	/**
+	 * Gives the length of the bitmap for a list of items.
+	 *
+	 * @param numItems	The number of items.
+	 *
+	 * @return			The length of the bitmap in bytes.
+	 */
+	public static int length(int numItems) {
+		return (numItems + 7) / 8;
+	}
+
+}
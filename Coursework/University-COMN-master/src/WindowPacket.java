@@ -3,7 +3,7 @@
 import java.net.DatagramPacket;
 
 /**
- * Represents a packet in the Sender3/4 window.
+ * Represents a packet in the Sender2/3/4 window.
  * 
  * @author s0840449
  */
@@ -21,6 +21,9 @@ public class WindowPacket {
 	/* The time the packet was last sent. */
 	private long timeLastSent;
 	
+	/* The number of times the packet has been sent. */
+	private int timesSent;
+	
 	/**
 	 * Default constructor.
 	 * 
@@ -36,6 +39,7 @@ public class WindowPacket {
 		/* Set to make sure that the packet is ready to send straight away
 		 * when created. */
 		this.timeLastSent = 0;
+		this.timesSent = 0;
 	}
 	
 	/**
@@ -83,13 +87,25 @@ public class WindowPacket {
 	}
 	
 	/**
-	 * Sets the time that the packet was last sent at.
+	 * Sets the time that the packet was last sent at, counting it as
+	 * another sending of the packet.
 	 * 
 	 * @param timeLastSent		The time that the packet was last sent,
 	 * 							in milliseconds since the epoch.
 	 */
 	public void setTimeLastSent(long timeLastSent) {
 		this.timeLastSent = timeLastSent;
+		this.timesSent++;
+	}
+	
+	/**
+	 * Returns the number of times the packet has been sent. Only
+	 * packets sent once give a reliable round trip time.
+	 * 
+	 * @return		The number of times the packet has been sent.
+	 */
+	public int getTimesSent() {
+		return timesSent;
 	}
 
 }